@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.bluetooth.RemoteDevice;
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the {@link BluetoothDeviceDiscovery} hot paths: the inquiry result diffing, the device filter and the
+ * fleet matching of the pairing.
+ * <p/>
+ * All the devices are registered during the setup, so {@link #discovered()} measures a discovery cycle finding the
+ * same devices again. The radio is a {@link SimulatedBluetoothStack}, no adapter is required.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BluetoothDeviceDiscoveryBenchmark {
+
+    /**
+     * The number of discovered devices, and of entries in the fleet.
+     */
+    @Param({"100", "1000", "10000", "50000"})
+    public int devices;
+
+    private SimulatedBluetoothStack m_stack;
+
+    private BluetoothDeviceDiscovery m_discovery;
+
+    private Set<RemoteDevice> m_discovered;
+
+    /**
+     * The last device of the population, matching the last entry of the fleet.
+     */
+    private RemoteDevice m_last;
+
+    /**
+     * A device neither discovered nor in the fleet.
+     */
+    private RemoteDevice m_unknown;
+
+    @Setup
+    public void setUp() throws Exception {
+        SimulationHostStack.install();
+        m_stack = new SimulatedBluetoothStack();
+        BluetoothThreadManager.setStack(m_stack);
+
+        List<RemoteDevice> population = SyntheticFleet.devices(devices);
+        m_discovered = new HashSet<RemoteDevice>(population);
+        m_last = population.get(devices - 1);
+        m_unknown = new RemoteDeviceStub(SyntheticFleet.address(devices), SyntheticFleet.name(devices));
+
+        m_discovery = new BluetoothDeviceDiscovery(new BundleContextStub());
+        m_discovery.discovered(m_discovered);
+
+        // The fleet is loaded once the devices are registered, the registration would submit the pairings otherwise.
+        File fleet = SyntheticFleet.write(devices, "device-.*");
+        m_discovery.setAutopairingConfiguration(fleet);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BluetoothThreadManager.setStack(null);
+        m_stack.shutdown();
+    }
+
+    @Benchmark
+    public void discovered() {
+        m_discovery.discovered(m_discovered);
+    }
+
+    @Benchmark
+    public boolean containsMissingDevice() {
+        return BluetoothDeviceDiscovery.contains(m_discovered, m_unknown);
+    }
+
+    @Benchmark
+    public boolean matchesDeviceFilter() {
+        // The filter matches the name, not the address: both are checked.
+        return m_discovery.matchesDeviceFilter(m_last);
+    }
+
+    @Benchmark
+    public boolean pairUnknownDevice() {
+        // No fleet entry matches, the whole fleet is scanned and the radio is not used.
+        return m_discovery.pair(m_unknown);
+    }
+}
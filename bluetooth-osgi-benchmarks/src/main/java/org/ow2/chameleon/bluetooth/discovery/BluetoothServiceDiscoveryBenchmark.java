@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.ow2.chameleon.bluetooth.devices.Device;
+
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the {@link BluetoothServiceDiscovery} hot paths: the fleet lookup and the publication of the
+ * discovered services.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BluetoothServiceDiscoveryBenchmark {
+
+    /**
+     * The number of services published by each device.
+     */
+    private static final int SERVICES = 5;
+
+    /**
+     * The number of devices, and of entries in the fleet.
+     */
+    @Param({"100", "1000", "10000", "50000"})
+    public int devices;
+
+    private BluetoothServiceDiscovery m_discovery;
+
+    private BluetoothServiceDiscovery m_fleetDiscovery;
+
+    private List<RemoteDevice> m_population;
+
+    private List<List<ServiceRecord>> m_services;
+
+    private RemoteDevice m_last;
+
+    private RemoteDevice m_unknown;
+
+    private int m_next;
+
+    @Setup
+    public void setUp() throws Exception {
+        SimulationHostStack.install();
+
+        m_population = SyntheticFleet.devices(devices);
+        m_services = new ArrayList<List<ServiceRecord>>(devices);
+        for (RemoteDevice device : m_population) {
+            List<ServiceRecord> records = new ArrayList<ServiceRecord>(SERVICES);
+            for (int i = 0; i < SERVICES; i++) {
+                records.add(new ServiceRecordStub(device, "service-" + i));
+            }
+            m_services.add(records);
+        }
+        m_last = m_population.get(devices - 1);
+        m_unknown = new RemoteDeviceStub(SyntheticFleet.address(devices), SyntheticFleet.name(devices));
+
+        // Without fleet, the publication cost is measured alone.
+        m_discovery = new BluetoothServiceDiscovery(new BundleContextStub());
+        m_fleetDiscovery = new BluetoothServiceDiscovery(new BundleContextStub());
+        m_fleetDiscovery.setDeviceFile(SyntheticFleet.write(devices, null));
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_discovery.stop();
+        m_fleetDiscovery.stop();
+    }
+
+    /**
+     * Looks up the next device of the population, as during a registration burst.
+     */
+    @Benchmark
+    public Device findDeviceFromFleet() {
+        int index = m_next;
+        m_next = (index + 1) % devices;
+        return m_fleetDiscovery.findDeviceFromFleet(m_population.get(index));
+    }
+
+    @Benchmark
+    public Device findLastDeviceFromFleet() {
+        return m_fleetDiscovery.findDeviceFromFleet(m_last);
+    }
+
+    @Benchmark
+    public Device findUnknownDeviceFromFleet() {
+        return m_fleetDiscovery.findDeviceFromFleet(m_unknown);
+    }
+
+    /**
+     * Publishes the services of the next device of the population, replacing the ones published the previous time.
+     */
+    @Benchmark
+    public void register() {
+        int index = m_next;
+        m_next = (index + 1) % devices;
+        m_discovery.discovered(m_population.get(index), m_services.get(index));
+    }
+}
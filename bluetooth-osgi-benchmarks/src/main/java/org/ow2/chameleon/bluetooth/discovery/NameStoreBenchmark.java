@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the persistent device names: opening the index and its journal, looking up a name in the mapped
+ * index, persisting a learned name, and the full rewrite of the name file done on each stop by the previous versions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NameStoreBenchmark {
+
+    /**
+     * The number of indexed names. The journal holds a tenth of this number, up to the compaction threshold.
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int names;
+
+    private File m_file;
+
+    private NameStore m_store;
+
+    private NameStore m_learning;
+
+    private String[] m_addresses;
+
+    private int m_next;
+
+    @Setup
+    public void setUp() throws IOException {
+        m_file = File.createTempFile("names", ".properties");
+        Properties snapshot = new Properties();
+        for (int i = 0; i < names; i++) {
+            snapshot.setProperty(SyntheticFleet.address(i), SyntheticFleet.name(i));
+        }
+        FileOutputStream out = new FileOutputStream(m_file);
+        snapshot.store(out, null);
+        out.close();
+
+        // Imports the name file into the index.
+        m_store = new NameStore(m_file);
+        m_store.open();
+        for (int i = 0; i < Math.min(names / 10, NameStore.COMPACTION_THRESHOLD - 1); i++) {
+            m_store.put(SyntheticFleet.address(names + i), SyntheticFleet.name(names + i));
+        }
+        m_store.flush();
+
+        m_learning = new NameStore(new File(m_file.getPath() + ".learned"));
+        m_learning.open();
+
+        m_addresses = new String[names];
+        for (int i = 0; i < names; i++) {
+            m_addresses[i] = SyntheticFleet.address(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        m_learning.close();
+        for (String suffix : new String[]{"", ".index", ".journal", ".learned.index", ".learned.journal",
+                ".learned.tmp"}) {
+            new File(m_file.getPath() + suffix).delete();
+        }
+    }
+
+    @Benchmark
+    public NameStore open() {
+        NameStore store = new NameStore(m_file);
+        store.open();
+        return store;
+    }
+
+    /**
+     * Looks up the name of the next indexed device.
+     */
+    @Benchmark
+    public String lookup() {
+        m_next = (m_next + 7919) % names;
+        return m_store.get(m_addresses[m_next]);
+    }
+
+    /**
+     * Records a learned name, written behind by the store.
+     */
+    @Benchmark
+    public void learnName() {
+        int index = m_next++;
+        m_learning.put(SyntheticFleet.address(index), SyntheticFleet.name(index));
+    }
+
+    /**
+     * Reads and rewrites the whole name file, as done by the previous versions.
+     */
+    @Benchmark
+    public void storeAll() throws IOException {
+        Properties snapshot = new Properties();
+        FileInputStream in = new FileInputStream(m_file);
+        snapshot.load(in);
+        in.close();
+        FileOutputStream out = new FileOutputStream(m_file.getPath() + ".learned.tmp");
+        snapshot.store(out, "Mac to Name file");
+        out.close();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.RemoteDevice;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the synthetic device populations and fleet descriptions used by the benchmarks.
+ * The device <tt>i</tt> has the address <tt>001E0000000i</tt> (hexadecimal) and the name <tt>device-i</tt>.
+ */
+final class SyntheticFleet {
+
+    private static final long FIRST_ADDRESS = 0x001E00000000L;
+
+    private SyntheticFleet() {
+        // Utility class.
+    }
+
+    static String address(int index) {
+        return String.format("%012X", FIRST_ADDRESS + index);
+    }
+
+    static String name(int index) {
+        return "device-" + index;
+    }
+
+    /**
+     * Creates the devices <tt>0</tt> to <tt>count - 1</tt>.
+     *
+     * @param count the number of devices
+     * @return the devices
+     */
+    static List<RemoteDevice> devices(int count) {
+        List<RemoteDevice> devices = new ArrayList<RemoteDevice>(count);
+        for (int i = 0; i < count; i++) {
+            devices.add(new RemoteDeviceStub(address(i), name(i)));
+        }
+        return devices;
+    }
+
+    /**
+     * Writes a <tt>devices.xml</tt> file describing a fleet of <tt>count</tt> devices. The entry <tt>i</tt> matches the
+     * device <tt>i</tt> by address.
+     *
+     * @param count  the number of entries
+     * @param filter the device filter, <code>null</code> to accept all devices
+     * @return the file, deleted on exit
+     * @throws IOException if the file cannot be written
+     */
+    static File write(int count, String filter) throws IOException {
+        File file = File.createTempFile("devices", ".xml");
+        file.deleteOnExit();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<tns:devices xmlns:tns=\"http://org.ow2.chameleon.bluetooth/devices/\">\n");
+            if (filter != null) {
+                writer.write("    <device-filter>" + filter + "</device-filter>\n");
+            }
+            for (int i = 0; i < count; i++) {
+                writer.write("    <devices>\n");
+                writer.write("        <id>" + address(i) + "</id>\n");
+                writer.write("        <pin>" + String.format("%08d", i) + "</pin>\n");
+                writer.write("        <password>" + name(i) + "</password>\n");
+                writer.write("    </devices>\n");
+            }
+            writer.write("</tns:devices>\n");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
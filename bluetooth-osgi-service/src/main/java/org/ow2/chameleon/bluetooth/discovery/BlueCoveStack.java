@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.BlueCoveConfigProperties;
+import com.intel.bluetooth.BlueCoveImpl;
+import com.intel.bluetooth.RemoteDeviceHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.LocalDevice;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.UUID;
+import java.io.IOException;
+
+/**
+ * The {@link BluetoothStack} backed by BlueCove.
+ * <p/>
+ * When several adapters are used, the radio worker threads are bound to the BlueCove local devices using the
+ * BlueCove thread local stacks. Once bound, <code>LocalDevice.getLocalDevice()</code> returns the adapter of the
+ * worker, so a single radio serves all the adapters.
+ */
+public class BlueCoveStack implements BluetoothStack {
+
+    private final Logger m_logger = LoggerFactory.getLogger(BlueCoveStack.class);
+
+    /**
+     * The BlueCove device ids (<tt>bluecove.deviceID</tt>), by adapter index. <code>null</code> to use the default
+     * adapter.
+     */
+    private final String[] m_deviceIds;
+
+    private final BluetoothRadio m_radio = new BlueCoveRadio();
+
+    /**
+     * Creates a {@link BlueCoveStack} using the default adapter.
+     */
+    public BlueCoveStack() {
+        this(null);
+    }
+
+    /**
+     * Creates a {@link BlueCoveStack} using the given adapters.
+     *
+     * @param deviceIds the BlueCove device ids of the adapters, <code>null</code> to use the default adapter
+     */
+    public BlueCoveStack(String[] deviceIds) {
+        m_deviceIds = deviceIds;
+    }
+
+    @Override
+    public String getName() {
+        return LocalDevice.getProperty("bluecove.stack");
+    }
+
+    @Override
+    public int getAdapterCount() {
+        return m_deviceIds == null ? 1 : m_deviceIds.length;
+    }
+
+    @Override
+    public void bind(int adapter) throws Exception {
+        if (m_deviceIds == null) {
+            // The default adapter is used by all the threads.
+            return;
+        }
+        // The configuration properties are global until the stack is initialized, so the stacks are created one
+        // at a time.
+        synchronized (BlueCoveStack.class) {
+            BlueCoveImpl.useThreadLocalBluetoothStack();
+            BlueCoveImpl.setConfigProperty(BlueCoveConfigProperties.PROPERTY_LOCAL_DEVICE_ID, m_deviceIds[adapter]);
+            BlueCoveImpl.getThreadBluetoothStackID();
+            m_logger.info("Worker thread bound to the adapter " + m_deviceIds[adapter] + " ("
+                    + LocalDevice.getLocalDevice().getBluetoothAddress() + ")");
+        }
+    }
+
+    @Override
+    public BluetoothRadio getRadio(int adapter) {
+        return m_radio;
+    }
+
+    /**
+     * The radio of the adapter bound to the calling thread.
+     */
+    private static class BlueCoveRadio implements BluetoothRadio {
+
+        @Override
+        public boolean isPowerOn() {
+            return LocalDevice.isPowerOn();
+        }
+
+        @Override
+        public String getAddress() throws BluetoothStateException {
+            return LocalDevice.getLocalDevice().getBluetoothAddress();
+        }
+
+        @Override
+        public boolean startInquiry(int accessCode, DiscoveryListener listener) throws BluetoothStateException {
+            return LocalDevice.getLocalDevice().getDiscoveryAgent().startInquiry(accessCode, listener);
+        }
+
+        @Override
+        public boolean cancelInquiry(DiscoveryListener listener) {
+            try {
+                return LocalDevice.getLocalDevice().getDiscoveryAgent().cancelInquiry(listener);
+            } catch (BluetoothStateException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public int searchServices(int[] attributes, UUID[] uuids, RemoteDevice device, DiscoveryListener listener)
+                throws BluetoothStateException {
+            return LocalDevice.getLocalDevice().getDiscoveryAgent().searchServices(attributes, uuids, device,
+                    listener);
+        }
+
+        @Override
+        public boolean cancelServiceSearch(int transaction) {
+            try {
+                return LocalDevice.getLocalDevice().getDiscoveryAgent().cancelServiceSearch(transaction);
+            } catch (BluetoothStateException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public RemoteDevice[] retrieveDevices(int option) {
+            try {
+                return LocalDevice.getLocalDevice().getDiscoveryAgent().retrieveDevices(option);
+            } catch (BluetoothStateException e) {
+                LoggerFactory.getLogger(BlueCoveStack.class).error("Bluetooth Adapter not started.");
+                return null;
+            }
+        }
+
+        @Override
+        public String getFriendlyName(RemoteDevice device) throws IOException {
+            return device.getFriendlyName(false);
+        }
+
+        @Override
+        public String requestFriendlyName(RemoteDevice device) throws IOException {
+            return device.getFriendlyName(true);
+        }
+
+        @Override
+        public boolean authenticate(RemoteDevice device, String pin) throws IOException {
+            return RemoteDeviceHelper.authenticate(device, pin);
+        }
+
+        @Override
+        public void removeAuthentication(RemoteDevice device) throws IOException {
+            RemoteDeviceHelper.removeAuthentication(device);
+        }
+
+        @Override
+        public boolean isAuthenticated(RemoteDevice device) {
+            return device.isAuthenticated();
+        }
+    }
+}
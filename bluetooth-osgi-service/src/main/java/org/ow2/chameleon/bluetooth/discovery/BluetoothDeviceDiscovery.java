@@ -15,12 +15,14 @@
 
 package org.ow2.chameleon.bluetooth.discovery;
 
-import com.intel.bluetooth.RemoteDeviceHelper;
+import org.apache.felix.ipojo.annotations.Bind;
 import org.apache.felix.ipojo.annotations.Component;
 import org.apache.felix.ipojo.annotations.Instantiate;
 import org.apache.felix.ipojo.annotations.Invalidate;
 import org.apache.felix.ipojo.annotations.Property;
 import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Unbind;
+import org.apache.felix.ipojo.annotations.Updated;
 import org.apache.felix.ipojo.annotations.Validate;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
@@ -30,27 +32,22 @@ import org.ow2.chameleon.bluetooth.devices.DeviceList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.bluetooth.BluetoothStateException;
-import javax.bluetooth.DeviceClass;
 import javax.bluetooth.DiscoveryAgent;
-import javax.bluetooth.DiscoveryListener;
-import javax.bluetooth.LocalDevice;
 import javax.bluetooth.RemoteDevice;
-import javax.bluetooth.ServiceRecord;
 import javax.xml.bind.JAXBException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 
 
@@ -82,7 +79,8 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
         LIAC
     }
 
-    public static List<String> SUPPORTED_STACKS = Arrays.asList("winsock", "widcomm", "mac", "bluez");  // "bluez-dbus"
+    public static List<String> SUPPORTED_STACKS = Arrays.asList("winsock", "widcomm", "mac", "bluez",
+            SimulatedBluetoothStack.NAME);  // "bluez-dbus"
 
     /**
      * Bundle Context.
@@ -90,9 +88,9 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
     private BundleContext m_context;
 
     /**
-     * Map storing the currently exposed bluetooth device.
+     * The currently exposed bluetooth devices, indexed by address.
      */
-    private Map<RemoteDevice, ServiceRegistration> m_devices = new HashMap<RemoteDevice, ServiceRegistration>();
+    private final DeviceRegistry m_registry = new DeviceRegistry();
 
     /**
      * Logger.
@@ -105,6 +103,11 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
      */
     private DeviceList m_fleet = null;
 
+    /**
+     * The matcher of the fleet entries, built when the fleet is loaded.
+     */
+    private FleetMatcher m_fleetMatcher = null;
+
 
     /**
      * Configurable Property specifying the time between two inquiries.
@@ -113,13 +116,27 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
      * makes the device dynamism hard to track.
      */
     @Property(name = "bluetooth.discovery.period", value = "10") // In second !
-    private int m_period;
+    int m_period;
+
+    /**
+     * Configurable property specifying the minimum time between two inquiries, in second. The period shortens down
+     * to this bound while devices arrive or leave. Defaults to the period.
+     */
+    @Property(name = "bluetooth.discovery.period.min")
+    int m_minPeriod;
+
+    /**
+     * Configurable property specifying the maximum time between two inquiries, in second. The period grows up to this
+     * bound while no device arrives or leaves. Defaults to the period.
+     */
+    @Property(name = "bluetooth.discovery.period.max")
+    int m_maxPeriod;
 
     /**
      * Configurable property specifying the discovery mode among GIAC and LIAC.
      */
     @Property(name = "bluetooth.discovery.mode", value = "GIAC")
-    private DiscoveryMode m_discoveryMode;
+    DiscoveryMode m_discoveryMode;
 
     /**
      * Configuration property enabling the support of unnamed devices. Unnamed devices do not communicate their name.
@@ -130,8 +147,8 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
     /**
      * This configuration property enables the online check when a device is found.
      * It turns around the Windows 7 behavior, where the device discovery returns all paired devices
-     * even if they are not reachable anymore. However it introduces a performance cost ( a service discovery for
-     * each cached device on every discovery search).
+     * even if they are not reachable anymore. However it introduces a performance cost (a presence probe for
+     * each cached device on every discovery search, the <tt>handle</tt> probe unless the fleet entry sets one).
      * It should be used in combination with <tt>bluetooth.discovery.unpairOnDeparture</tt>.
      */
     @Property(name = "bluetooth.discovery.onlinecheck", value = "false")
@@ -145,18 +162,31 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
     boolean m_unpairLostDevices;
 
     /**
-     * The file storing the mac -> name association.
-     * This file is updated every time a new device is discovered.
+     * Configuration property enabling the streaming mode: the devices are filtered, named, paired and registered as
+     * soon as the inquiry (and the online check) finds them, instead of at the end of the inquiry. The departures are
+     * still computed at the end of the inquiry.
+     */
+    @Property(name = "bluetooth.discovery.streaming", value = "false")
+    boolean m_streaming;
+
+    /**
+     * The store of the mac -> name association.
+     * The journal of the store is appended every time a new device name is discovered.
      * If set to <code>null</code> the list is not persisted.
      */
-    private File m_deviceNameFile;
+    private NameStore m_nameStore;
+
+    /**
+     * Resolver of the device names, holding the MAC address to name association.
+     * It avoids ignoring unnamed devices, as once we get a name, it is stored in this association.
+     * This association can be persisted if the device name file is set.
+     */
+    private final NameResolver m_resolver = new NameResolver(2, 3600 * 1000L, 10000);
 
     /**
-     * Map storing the MAc address to name association.
-     * It avoids ignoring unnamed devices, as once we get a name, it is stored in this list.
-     * This map can be persisted if the device name file is set.
+     * Set when the discovery is stopped, the names resolved afterwards are ignored.
      */
-    private Properties m_names = new Properties();
+    private volatile boolean m_stopped;
 
     /**
      * The fleet device filter (regex configured in the devices.xml file).
@@ -165,6 +195,47 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
 
     private DeviceDiscoveryAgent m_agent;
 
+    /**
+     * The delay between two inquiries, adapting to the churn. Created when the discovery starts.
+     */
+    private volatile InquiryPeriod m_inquiryPeriod;
+
+    /**
+     * The deadline of the inquiries. Its maximum also bounds the online checks following an inquiry.
+     */
+    private final OperationDeadline m_inquiryDeadline = new OperationDeadline("inquiry", 15000, 60000);
+
+    /**
+     * The presence probes, checking the devices missing from the inquiries and, if enabled, the found devices.
+     */
+    private final PresenceProbes m_probes = new PresenceProbes();
+
+    /**
+     * The probe checking the last sighting of the devices by the inquiries.
+     */
+    private final InquiryPresenceProbe m_inquiryProbe = new InquiryPresenceProbe(m_registry, 120 * 1000L);
+
+    /**
+     * Decides when the devices missing from the inquiries are checked, and counts the flaps.
+     */
+    private final DepartureHysteresis m_hysteresis = new DepartureHysteresis(1, 0);
+
+    /**
+     * The presence checks waiting for the radio, by adapter. The checks of a cycle are run in a single task per
+     * adapter.
+     */
+    private final Map<Integer, PresenceBatch> m_batches = new HashMap<Integer, PresenceBatch>();
+
+    /**
+     * The changes delivered to the {@link DeviceListener}s, one batch per cycle.
+     */
+    private final DeviceEventDispatcher m_events = DeviceEventDispatcher.getDefault();
+
+    /**
+     * The latency and counter metrics.
+     */
+    private final DiscoveryMetricsRecorder m_metrics = DiscoveryMetricsRecorder.getDefault();
+
 
     /**
      * Creates a {@link BluetoothDeviceDiscovery}.
@@ -173,22 +244,26 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
      */
     public BluetoothDeviceDiscovery(BundleContext context) {
         m_context = context;
+        m_probes.addBuiltIn(m_inquiryProbe);
     }
 
     @Property(name = "bluetooth.devices")
     public void setAutopairingConfiguration(File file) throws IOException {
         if (!file.exists()) {
             m_fleet = null;
+            m_fleetMatcher = null;
+            m_filter = null;
+            m_probes.setFleet(null);
             m_logger.warn("No devices.xml file found, ignoring auto-pairing and device filter");
         } else {
             try {
                 FileInputStream fis = new FileInputStream(file);
                 m_fleet = ConfigurationUtils.unmarshal(DeviceList.class, fis);
+                m_fleetMatcher = new FleetMatcher(m_fleet);
+                m_probes.setFleet(m_fleetMatcher);
                 String filter = m_fleet.getDeviceFilter();
 
-                if (filter != null) {
-                    m_filter = Pattern.compile(filter);
-                }
+                m_filter = filter == null ? null : Pattern.compile(filter);
 
                 m_logger.info(m_fleet.getDevices().size() + " devices loaded from devices.xml");
                 if (m_filter != null) {
@@ -206,69 +281,170 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
         }
     }
 
+    /**
+     * Sets the maximum duration of an inquiry. An inquiry not completed in time is cancelled and the discovery cycle
+     * is skipped. The effective deadline adapts to the observed durations, within this bound. The online checks
+     * following the inquiry are bounded by this duration as well: the devices checked in time are delivered.
+     *
+     * @param timeout the timeout in seconds
+     */
+    @Property(name = "bluetooth.discovery.inquiry.timeout", value = "60")
+    public void setInquiryTimeout(int timeout) {
+        m_inquiryDeadline.setMaximum(timeout * 1000L);
+    }
+
+    /**
+     * Sets the maximum duration of a presence check. A check not completed in time is cancelled and considered
+     * failed.
+     *
+     * @param timeout the timeout in seconds
+     */
+    @Property(name = "bluetooth.discovery.presence.timeout", value = "30")
+    public void setPresenceTimeout(int timeout) {
+        m_probes.setTimeout(timeout * 1000L);
+    }
+
+    /**
+     * Sets the probe checking the presence of the devices whose fleet entry does not set one: <tt>sdp</tt>,
+     * <tt>handle</tt>, <tt>name</tt>, <tt>inquiry</tt> or the name of a custom probe.
+     *
+     * @param probe the name of the probe
+     */
+    @Property(name = "bluetooth.discovery.presence.probe", value = PresenceProbes.SDP)
+    public void setPresenceProbe(String probe) {
+        m_probes.setDefault(probe);
+    }
+
+    /**
+     * Sets the time after which a device not found by the inquiries is considered lost by the <tt>inquiry</tt> probe.
+     *
+     * @param age the time in seconds
+     */
+    @Property(name = "bluetooth.discovery.presence.inquiry.age", value = "120")
+    public void setPresenceInquiryAge(int age) {
+        m_inquiryProbe.setMaxAge(age * 1000L);
+    }
+
+    /**
+     * Sets the number of consecutive inquiries a device must miss before its presence is checked.
+     *
+     * @param misses the number of inquiries, 1 to check the device as soon as an inquiry misses it
+     */
+    @Property(name = "bluetooth.discovery.departure.misses", value = "1")
+    public void setDepartureMisses(int misses) {
+        m_hysteresis.setMisses(misses);
+    }
+
+    /**
+     * Sets the time during which a device missing from the inquiries is kept without check.
+     *
+     * @param grace the time in seconds since the device was last seen
+     */
+    @Property(name = "bluetooth.discovery.departure.grace", value = "0")
+    public void setDepartureGracePeriod(int grace) {
+        m_hysteresis.setGracePeriod(grace * 1000L);
+    }
+
+    /**
+     * A {@link DeviceListener} is published, it receives the changes from the next batch.
+     *
+     * @param listener the listener
+     */
+    @Bind(aggregate = true, optional = true)
+    public void bindDeviceListener(DeviceListener listener) {
+        m_events.addListener(listener);
+    }
+
+    @Unbind
+    public void unbindDeviceListener(DeviceListener listener) {
+        m_events.removeListener(listener);
+    }
+
+    /**
+     * A custom presence probe is available. It replaces the probe having the same name.
+     *
+     * @param probe the probe
+     */
+    @Bind(aggregate = true, optional = true)
+    public void bindPresenceProbe(PresenceProbe probe) {
+        m_probes.add(probe);
+    }
+
+    /**
+     * A custom presence probe disappears. The built-in probe having the same name, if any, is restored.
+     *
+     * @param probe the probe
+     */
+    @Unbind
+    public void unbindPresenceProbe(PresenceProbe probe) {
+        m_probes.remove(probe);
+    }
+
     /**
      * Sets the device name file.
      * If set to <code>null</code> or to <code>""</code> or to <code>"null"</code>, the persistent support is disabled.
-     * Otherwise, the file is read to initialize the device list and written each time we find a new device.
+     * Otherwise, the file and its journal are read to initialize the device list, and the journal is appended each
+     * time we find a new device.
      *
      * @param name the path to the file relative to the working directory.
      */
     @Property(name = "bluetooth.discovery.names", value = "btnames.properties")
     public void setDeviceNameFile(String name) {
+        if (m_nameStore != null) {
+            // Writes the names learned so far, and stops its writer.
+            m_nameStore.close();
+            m_nameStore = null;
+            m_resolver.setStore(null);
+        }
         if (name == null || name.equals("null") || name.trim().length() == 0) {
             m_logger.warn("No device name file set, disabling persistent support");
             return;
         }
-        m_deviceNameFile = new File(name);
+        m_nameStore = new NameStore(new File(name));
 
-        m_names = loadDeviceNames();
+        loadDeviceNames();
     }
 
-    private Properties loadDeviceNames() {
-        Properties properties = new Properties();
-
-        if (m_deviceNameFile == null) {
-            m_logger.error("No device name files, ignoring persistent support");
-            return properties;
-        }
-
-        if (!m_deviceNameFile.exists()) {
-            m_logger.error("The device name file does not exist, ignoring (" + m_deviceNameFile.getAbsolutePath() + ")");
-            return properties;
-        }
-
-        try {
-            FileInputStream fis = new FileInputStream(m_deviceNameFile);
-            properties.load(fis);
-            fis.close();
-            m_logger.info("Device name file loaded, " + properties.size() + " devices read");
-        } catch (IOException e) {
-            m_logger.error("Cannot load the device name file (" + m_deviceNameFile.getAbsolutePath() + ")", e);
-        }
+    /**
+     * Sets the time-to-live of the resolved device names. Once elapsed, the name is requested again when the device
+     * is found, the previous name being kept if the device does not answer.
+     *
+     * @param ttl the time-to-live in seconds
+     */
+    @Property(name = "bluetooth.discovery.names.ttl", value = "3600")
+    public void setNameTimeToLive(int ttl) {
+        m_resolver.setTimeToLive(ttl * 1000L);
+    }
 
-        return properties;
+    /**
+     * Sets the maximum number of device names kept in memory. The other names are read back from the device name
+     * file when needed.
+     *
+     * @param size the number of names
+     */
+    @Property(name = "bluetooth.discovery.names.cache", value = "10000")
+    public void setNameCacheSize(int size) {
+        m_resolver.setCapacity(size);
     }
 
+    /**
+     * Sets the number of threads delivering the resolved names. The name requests are executed in the
+     * {@link RadioLane#NAME} lane, one at a time per adapter.
+     *
+     * @param concurrency the number of threads
+     */
+    @Property(name = "bluetooth.discovery.names.concurrency", value = "2")
+    public void setNameConcurrency(int concurrency) {
+        m_resolver.setConcurrency(concurrency);
+    }
 
-    private void storeDeviceNames(Properties properties) {
-        if (m_deviceNameFile == null) {
+    private void loadDeviceNames() {
+        if (m_nameStore == null) {
+            m_logger.error("No device name files, ignoring persistent support");
             return;
         }
-
-        if (!m_deviceNameFile.exists()) {
-            final File parent = m_deviceNameFile.getParentFile();
-            if (parent != null) {
-                parent.mkdirs();
-            }
-        }
-
-        try {
-            FileOutputStream fos = new FileOutputStream(m_deviceNameFile);
-            properties.store(fos, "Mac to Name file");
-            fos.close();
-        } catch (IOException e) {
-            m_logger.error("Cannot store the 'names' in " + m_deviceNameFile.getAbsolutePath(), e);
-        }
+        m_nameStore.open();
+        m_resolver.setStore(m_nameStore);
     }
 
     /**
@@ -280,7 +456,8 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
             return;
         }
 
-        m_names = loadDeviceNames();
+        loadDeviceNames();
+        m_stopped = false;
 
         if (m_period == 0) {
             m_period = 10; // Default to 30 seconds.
@@ -291,14 +468,75 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
             return;
         }
 
+        m_agent = createAgent();
+        m_inquiryPeriod = createInquiryPeriod(null);
+        BluetoothThreadManager.scheduleJob(m_agent, m_inquiryPeriod);
+    }
+
+    /**
+     * Applies a new configuration without restarting the discovery: the registered devices are kept. The inquiry
+     * job is replaced atomically, the next cycle uses the new period, discovery mode, online check and streaming
+     * settings. The inquiry running meanwhile, if any, completes with the previous settings. The registered devices
+     * which do not match the device filter anymore are withdrawn.
+     */
+    @Updated
+    public void updated() {
+        DeviceDiscoveryAgent current = m_agent;
+        if (current == null) {
+            // Not started, the configuration is read when the discovery starts.
+            return;
+        }
+
+        DeviceDiscoveryAgent agent = createAgent();
+        InquiryPeriod period = createInquiryPeriod(m_inquiryPeriod);
+        if (!BluetoothThreadManager.rescheduleJob(current, agent, period)) {
+            // The scheduler was replaced in the meantime (e.g. new stack).
+            BluetoothThreadManager.scheduleJob(agent, period);
+        }
+        m_agent = agent;
+        m_inquiryPeriod = period;
+        m_logger.info("Discovery reconfigured : mode=" + m_discoveryMode + ", online check="
+                + m_onlineCheckOnDiscovery + ", streaming=" + m_streaming + ", " + period);
+
+        for (RemoteDevice device : m_registry.getDevices()) {
+            if (!matchesDeviceFilter(device, m_resolver.getCachedName(device))) {
+                m_logger.info("Device " + device.getBluetoothAddress() + " does not match the device filter anymore");
+                unregister(device);
+            }
+        }
+        m_events.flush();
+    }
+
+    private DeviceDiscoveryAgent createAgent() {
         if ("winsock".equals(getBluetoothStack())) {
             m_logger.info("Winsock stack detected, forcing online check and lost device unpairing");
             m_onlineCheckOnDiscovery = true;
             m_unpairLostDevices = true;
         }
+        return new DeviceDiscoveryAgent(this, m_discoveryMode, m_onlineCheckOnDiscovery, m_streaming,
+                m_inquiryDeadline, m_probes);
+    }
 
-        m_agent = new DeviceDiscoveryAgent(this, m_discoveryMode, m_onlineCheckOnDiscovery);
-        BluetoothThreadManager.scheduleJob(m_agent, m_period);
+    /**
+     * Creates the inquiry period from the configuration.
+     *
+     * @param current the current period, kept with its adaptation if the configuration did not change
+     */
+    private InquiryPeriod createInquiryPeriod(InquiryPeriod current) {
+        if (m_period <= 0) {
+            m_period = 10;
+        }
+        long period = m_period * 1000L;
+        long min = (m_minPeriod > 0 ? m_minPeriod : m_period) * 1000L;
+        long max = (m_maxPeriod > 0 ? m_maxPeriod : m_period) * 1000L;
+        if (min > max) {
+            m_logger.warn("The minimum inquiry period is greater than the maximum, using " + max + " ms");
+            min = max;
+        }
+        if (current != null && current.isConfiguredAs(period, min, max)) {
+            return current;
+        }
+        return new InquiryPeriod(period, min, max);
     }
 
     /**
@@ -309,20 +547,66 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
         if (m_agent == null) {
             return;
         }
-        storeDeviceNames(m_names);
+        m_stopped = true;
+        if (m_nameStore != null) {
+            m_nameStore.close();
+        }
         m_agent = null;
+        m_inquiryPeriod = null;
+        synchronized (m_batches) {
+            m_batches.clear();
+        }
+        m_logger.info("Presence probe statistics : " + m_probes.getStatistics().values());
+        m_logger.info("Departure statistics : " + m_hysteresis.getStatistics());
         BluetoothThreadManager.stopScheduler();
         unregisterAll();
+        m_events.flush();
+        m_events.shutdown();
+    }
+
+    /**
+     * Gets the departure statistics: the missing devices kept by the hysteresis, the flaps it absorbed, and the
+     * remaining flaps.
+     *
+     * @return a snapshot of the statistics
+     */
+    public DepartureStatistics getDepartureStatistics() {
+        return m_hysteresis.getStatistics();
+    }
+
+    /**
+     * Gets the cost statistics of the presence probes.
+     *
+     * @return a snapshot of the statistics, by probe name
+     */
+    public Map<String, PresenceProbeStatistics> getPresenceProbeStatistics() {
+        return m_probes.getStatistics();
+    }
+
+    /**
+     * @return the current delay between two inquiries in milliseconds, -1 if the discovery is not started.
+     */
+    public long getInquiryPeriod() {
+        InquiryPeriod period = m_inquiryPeriod;
+        return period == null ? -1 : period.getPeriod();
+    }
+
+    /**
+     * @return the reason of the last change of the inquiry period, <code>null</code> if the discovery is not started.
+     */
+    public String getInquiryPeriodReason() {
+        InquiryPeriod period = m_inquiryPeriod;
+        return period == null ? null : period.getReason();
     }
 
     @Override
     public String getBluetoothStack() {
-        return LocalDevice.getProperty("bluecove.stack");
+        return BluetoothThreadManager.getStack().getName();
     }
 
     @Override
     public boolean isBluetoothDeviceTurnedOn() {
-        return LocalDevice.isPowerOn();
+        return BluetoothThreadManager.getRadio().isPowerOn();
     }
 
     @Override
@@ -331,11 +615,20 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
     }
 
     /**
-     * Callback receiving the new set of reachable devices.
+     * Callback receiving the new set of reachable devices. The changes of the cycle are then delivered to the
+     * {@link DeviceListener}s.
      *
      * @param discovered the set of found RemoteDevice
      */
     public void discovered(Set<RemoteDevice> discovered) {
+        try {
+            update(discovered);
+        } finally {
+            m_events.flush();
+        }
+    }
+
+    private void update(Set<RemoteDevice> discovered) {
         if (discovered == null) {
             // Bluetooth error, we unregister all devices
             m_logger.warn("Bluetooth error detected, unregistering all devices");
@@ -343,58 +636,124 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
             return;
         }
 
+        // The diff is a snapshot: presence checks running on other adapters update the registry concurrently.
+        DiscoveryDiff diff = m_registry.diff(discovered);
+        m_logger.info("Discovery cycle: " + diff);
+        InquiryPeriod period = m_inquiryPeriod;
+        if (period != null) {
+            period.record(discovered);
+        }
+
+        m_hysteresis.recovered(diff.getRecovered().size());
+
         // Detect devices that have left
-        // We must create a copy of the list to avoid concurrent modifications
-        Set<RemoteDevice> presents = new HashSet<RemoteDevice>(m_devices.keySet());
-        for (RemoteDevice old : presents) {
-            m_logger.info("Did we lost contact with " + old.getBluetoothAddress() + " => " + (!contains(discovered, old)));
-            if (!contains(discovered, old)) {
-                ServiceCheckAgent serviceCheckAgent = new ServiceCheckAgent(old, SERVICECHECK_UNREGISTER_IF_NOT_HERE);
-                BluetoothThreadManager.submit(serviceCheckAgent);
+        for (RemoteDevice old : diff.getDeparted()) {
+            int misses = m_registry.getMisses(old);
+            if (!m_hysteresis.isDeparted(misses, m_registry.getLastSeen(old))) {
+                m_logger.info("Lost contact with " + old.getBluetoothAddress() + " (" + misses
+                        + " missed inquiries), waiting for the next inquiries");
+                continue;
             }
+            m_logger.info("Lost contact with " + old.getBluetoothAddress() + ", checking its presence");
+            check(old, SERVICECHECK_UNREGISTER_IF_NOT_HERE);
         }
 
         // Detect new devices
-        for (RemoteDevice remote : discovered) {
-            if (!m_devices.containsKey(remote)) {
-                if (matchesDeviceFilter(remote)) {
-                    m_logger.info("New device found (" + remote.getBluetoothAddress() + ")");
-                    register(remote);
-                } else {
-                    m_logger.info("Device ignored because it does not match the device filter");
-                }
-            } else {
-                m_logger.info("Already known device " + remote.getBluetoothAddress());
-            }
+        for (RemoteDevice remote : diff.getArrived()) {
+            arrived(remote);
         }
 
         if ("bluez".equals(getBluetoothStack())) {
             // Workaround for bluez : trying to keep all the paired devices.
             // Has bluez doesn't return the paired devices when we have an inquiry, we can try to search if some of the
             // cached devices is are reachable
-            LocalDevice local = null;
-            try {
-                local = LocalDevice.getLocalDevice();
-            } catch (BluetoothStateException e) {
-                m_logger.error("Bluetooth Adapter not started.");
-            }
-            RemoteDevice[] cachedDevices = local.getDiscoveryAgent().retrieveDevices(DiscoveryAgent.CACHED);
+            RemoteDevice[] cachedDevices = BluetoothThreadManager.getRadio().retrieveDevices(DiscoveryAgent.CACHED);
             if (cachedDevices == null || cachedDevices.length == 0) {
                 return;
             }
-            presents = new HashSet<RemoteDevice>(m_devices.keySet());
             for (RemoteDevice cached : cachedDevices) {
-                if (!contains(presents, cached)) {
-                    ServiceCheckAgent serviceCheckAgent = new ServiceCheckAgent(cached, SERVICECHECK_REGISTER_IF_HERE);
-                    BluetoothThreadManager.submit(serviceCheckAgent);
+                if (!m_registry.contains(cached)) {
+                    check(cached, SERVICECHECK_REGISTER_IF_HERE);
                 }
             }
         }
     }
 
+    /**
+     * Callback receiving a device found by an ongoing inquiry, in streaming mode. The device is registered if it is
+     * new and matches the device filter. It is also part of the set given to {@link #discovered(java.util.Set)} at
+     * the end of the inquiry.
+     *
+     * @param remote the found device
+     */
+    public void deviceFound(RemoteDevice remote) {
+        if (!m_registry.contains(remote)) {
+            arrived(remote);
+        }
+    }
+
+    /**
+     * A new device is found. It is registered right away with its known name, if any, so a name request never delays
+     * the registration. The rules depending on the name, the device filter and the unnamed devices policy, are
+     * applied again once the name is resolved: the device is then renamed, withdrawn or registered.
+     */
+    private void arrived(RemoteDevice remote) {
+        String cached = m_resolver.getCachedName(remote);
+        final boolean accepted = cached == null || matchesDeviceFilter(remote, cached);
+        if (accepted) {
+            m_logger.info("New device found (" + remote.getBluetoothAddress() + ")");
+            register(remote, cached);
+        } else {
+            m_logger.info("Device ignored because it does not match the device filter");
+        }
+        m_resolver.resolve(remote, new NameResolver.Callback() {
+            @Override
+            public void nameResolved(RemoteDevice device, String name) {
+                if (!m_stopped) {
+                    named(device, name, accepted);
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies the rules depending on the name of a device, once resolved.
+     *
+     * @param device   the device
+     * @param name     the name, <code>null</code> if unknown
+     * @param accepted whether the device was registered when found
+     */
+    private void named(RemoteDevice device, String name, boolean accepted) {
+        if (name == null && m_ignoreUnnamedDevices) {
+            withdraw(device, "discovery set to ignore unnamed devices");
+        } else if (!matchesDeviceFilter(device, name)) {
+            withdraw(device, "it does not match the device filter");
+        } else if (!accepted) {
+            m_logger.info("Device " + device.getBluetoothAddress() + " matches the device filter by its name");
+            register(device, name);
+        } else if (name != null && m_registry.update(device, "device.name", name)) {
+            m_logger.info("Name of " + device.getBluetoothAddress() + " set to " + name);
+            m_events.post(new DeviceEvent(DeviceEvent.Type.NAME_CHANGED, device.getBluetoothAddress(),
+                    device, name));
+        }
+    }
+
+    /**
+     * Withdraws a device registered before its name was resolved.
+     */
+    private synchronized void withdraw(RemoteDevice device, String reason) {
+        ServiceRegistration reg = m_registry.remove(device);
+        if (reg != null) {
+            m_logger.info("Withdrawing device " + device.getBluetoothAddress() + " - " + reason);
+            reg.unregister();
+            departed(device);
+        }
+    }
+
     /**
      * Checks whether the given list contains the given device.
-     * The check is based on the bluetooth address.
+     * The check is based on the bluetooth address, by scanning the list. The discovery relies on the
+     * {@link DeviceRegistry} index instead.
      *
      * @param list   a non-null list of remote device
      * @param device the device to check
@@ -411,86 +770,108 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
     }
 
     public boolean matchesDeviceFilter(RemoteDevice device) {
+        if (m_filter == null || m_filter.matcher(device.getBluetoothAddress()).matches()) {
+            return true;
+        }
+        return matchesDeviceFilter(device, getDeviceName(device));
+    }
+
+    private boolean matchesDeviceFilter(RemoteDevice device, String name) {
         if (m_filter == null) {
             // No filter... all devices accepted
             return true;
         }
 
         String address = device.getBluetoothAddress();
-        String name = getDeviceName(device);
-
         return (m_filter.matcher(address).matches() || (name != null && m_filter.matcher(name).matches()));
     }
 
+    /**
+     * Gets the name of a device, waiting for its resolution if needed. Must not be called while holding the
+     * discovery lock.
+     */
     private String getDeviceName(RemoteDevice device) {
-        String name = m_names.getProperty(device.getBluetoothAddress());
-        if (name == null) {
-            try {
-                name = device.getFriendlyName(false);
-                if (name != null && name.length() != 0) {
-                    m_logger.info("New device name discovered : " + device.getBluetoothAddress() + " => " + name);
-                    m_names.setProperty(device.getBluetoothAddress(), name);
-                }
-            } catch (IOException e) {
-                m_logger.info("Not able to get the device friendly name of " + device.getBluetoothAddress(), e);
-            }
-        } else {
-            m_logger.info("Found the device name in memory : " + device.getBluetoothAddress() + " => " + name);
+        try {
+            return m_resolver.getName(device);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return m_resolver.getCachedName(device);
         }
-        return name;
     }
 
     private synchronized void unregisterAll() {
-        for (Map.Entry<RemoteDevice, ServiceRegistration> entry : m_devices.entrySet()) {
+        for (Map.Entry<RemoteDevice, ServiceRegistration> entry : m_registry.clear().entrySet()) {
             entry.getValue().unregister();
+            departed(entry.getKey());
             unpair(entry.getKey());
         }
-        m_devices.clear();
     }
 
     private synchronized void unregister(RemoteDevice device) {
-        ServiceRegistration reg = m_devices.remove(device);
+        ServiceRegistration reg = m_registry.remove(device);
         if (reg != null) {
             reg.unregister();
+            departed(device);
         }
         unpair(device);
 
     }
 
-    private synchronized void register(RemoteDevice device) {
+    private void departed(RemoteDevice device) {
+        m_metrics.increment(DiscoveryMetricsRecorder.DEVICES_UNREGISTERED);
+        m_events.post(new DeviceEvent(DeviceEvent.Type.DEPARTED, device.getBluetoothAddress(), device,
+                m_resolver.getCachedName(device)));
+    }
+
+    /**
+     * Registers a device, or submits its pairing. The name may be unknown yet, the unnamed devices policy is applied
+     * once the name is resolved.
+     */
+    private synchronized void register(RemoteDevice device, String name) {
         Dictionary<String, Object> props = new Hashtable<String, Object>();
         props.put("device.id", device.getBluetoothAddress());
-        String name = getDeviceName(device);
 
         if (name != null) {
             // Switch device to our own implementation
             device = new RemoteNamedDevice(device, name);
             props.put("device.name", name);
-        } else if (m_ignoreUnnamedDevices) {
-            m_logger.warn("Ignoring device " + device.getBluetoothAddress() + " - discovery set to ignore " +
-                    "unnamed devices");
-            return;
         }
 
-        m_logger.info("Registering new service for " + device.getBluetoothAddress() + " with properties " + props);
-
         // check autopairing
-        if (!device.isAuthenticated()) {
-            if (!pair(device)) {
-                m_logger.warn("Aborting registering for " + device.getBluetoothAddress());
-                return;
+        if (m_fleet != null && m_fleet.getDevices() != null && !BluetoothThreadManager.getRadio().isAuthenticated(device)) {
+            // Pairing is a radio operation, the registration is completed by the pairing agent.
+            m_logger.info("Submitting pairing of " + device.getBluetoothAddress());
+            try {
+                BluetoothThreadManager.submit(RadioLane.PAIRING, device.getBluetoothAddress(),
+                        new PairingAgent(device, props));
+            } catch (RejectedExecutionException e) {
+                m_logger.warn("Cannot pair " + device.getBluetoothAddress() + ", the discovery is stopping");
             }
+            return;
         }
 
-        ServiceRegistration reg = m_context.registerService(RemoteDevice.class.getName(), device, props);
-        m_devices.put(device, reg);
+        publish(device, props);
+    }
 
+    private synchronized void publish(RemoteDevice device, Dictionary<String, Object> props) {
+        if (m_registry.contains(device)) {
+            m_logger.info("Device " + device.getBluetoothAddress() + " already registered");
+            return;
+        }
+        m_logger.info("Registering new service for " + device.getBluetoothAddress() + " with properties " + props);
+        ServiceRegistration reg = m_context.registerService(RemoteDevice.class.getName(), device, props);
+        m_registry.add(device, reg, props);
+        m_hysteresis.arrived(device);
+        m_metrics.increment(DiscoveryMetricsRecorder.DEVICES_REGISTERED);
+        m_events.post(new DeviceEvent(DeviceEvent.Type.ARRIVED, device.getBluetoothAddress(), device,
+                (String) props.get("device.name")));
     }
 
     void unpair(RemoteDevice device) {
-        if (matchesDeviceFilter(device) && m_unpairLostDevices) {
+        // Called while holding the lock, only the known name is used.
+        if (m_unpairLostDevices && matchesDeviceFilter(device, m_resolver.getCachedName(device))) {
             try {
-                RemoteDeviceHelper.removeAuthentication(device);
+                BluetoothThreadManager.getRadio().removeAuthentication(device);
             } catch (IOException e) {
                 m_logger.error("Can't unpair device " + device.getBluetoothAddress(), e);
             }
@@ -511,152 +892,215 @@ public class BluetoothDeviceDiscovery implements BluetoothController {
             return false;
         }
 
-        List<Device> devices = m_fleet.getDevices();
-        for (Device model : devices) {
+        for (Device model : m_fleetMatcher.getMatchingDevices(address, name)) {
             String regex = model.getId();
             String pin = model.getPin();
-            if (Pattern.matches(regex, address) || (name != null && Pattern.matches(regex, name))) {
-                m_logger.info("Paring pattern match for " + address + " / " + name + " with " + regex);
-                try {
-                    RemoteDeviceHelper.authenticate(device, pin);
+            m_logger.info("Paring pattern match for " + address + " / " + name + " with " + regex);
+            try {
+                if (BluetoothThreadManager.getRadio().authenticate(device, pin)) {
                     m_logger.info("Device " + address + " paired");
                     return true;
-                } catch (IOException e) {
-                    m_logger.error("Cannot authenticate device despite it match the regex " + regex, e);
                 }
+                m_logger.error("Device " + address + " refused the pairing");
+            } catch (IOException e) {
+                m_logger.error("Cannot authenticate device despite it match the regex " + regex, e);
             }
         }
         return false;
     }
 
-    private static final int SERVICECHECK_UNREGISTER_IF_NOT_HERE = 0;
+    /**
+     * Agent pairing a device in the {@link RadioLane#PAIRING} lane, and registering it once paired.
+     */
+    class PairingAgent implements Runnable {
 
-    private static final int SERVICECHECK_REGISTER_IF_HERE = 1;
+        private final RemoteDevice m_device;
 
-    class ServiceCheckAgent implements Runnable, DiscoveryListener {
+        private final Dictionary<String, Object> m_properties;
 
-        private final RemoteDevice m_device;
+        PairingAgent(RemoteDevice device, Dictionary<String, Object> properties) {
+            m_device = device;
+            m_properties = properties;
+        }
 
-        private final int m_action;
+        public void run() {
+            synchronized (BluetoothDeviceDiscovery.this) {
+                if (m_registry.contains(m_device)) {
+                    m_logger.info("Device " + m_device.getBluetoothAddress() + " already registered, pairing skipped");
+                    return;
+                }
+            }
+            // Already paired through this adapter (the pairing is checked on the inquiry adapter first).
+            if (!BluetoothThreadManager.getRadio().isAuthenticated(m_device)) {
+                long start = System.currentTimeMillis();
+                boolean paired = pair(m_device);
+                m_metrics.record(DiscoveryMetricsRecorder.PAIRING, System.currentTimeMillis() - start, paired);
+                if (!paired) {
+                    m_logger.warn("Aborting registering for " + m_device.getBluetoothAddress());
+                    return;
+                }
+            }
+            // The pairing resolved the name if it was not known yet.
+            String name = m_resolver.getCachedName(m_device);
+            if (name != null && m_properties.get("device.name") == null) {
+                m_properties.put("device.name", name);
+            }
+            publish(m_device, m_properties);
+        }
+
+        @Override
+        public String toString() {
+            return "PairingAgent[" + m_device.getBluetoothAddress() + "]";
+        }
+    }
 
-        private boolean m_searchInProgress = false;
+    private static final int SERVICECHECK_UNREGISTER_IF_NOT_HERE = 0;
 
-        private Logger m_logger = LoggerFactory.getLogger(ServiceCheckAgent.class);
+    private static final int SERVICECHECK_REGISTER_IF_HERE = 1;
 
-        public ServiceCheckAgent(RemoteDevice remoteDevice, int action) {
-            if (action != SERVICECHECK_REGISTER_IF_HERE && action != SERVICECHECK_UNREGISTER_IF_NOT_HERE) {
-                throw new IllegalArgumentException();
+    /**
+     * Checks the presence of a device. The probes without radio operation are executed immediately, the others are
+     * added to the batch of the adapter of the device, a single {@link RadioLane#PRESENCE} task running the checks
+     * of a cycle one after the other.
+     *
+     * @param device the device
+     * @param action the action depending on the outcome
+     */
+    private void check(RemoteDevice device, int action) {
+        Device entry = m_probes.getEntry(device, m_resolver.getCachedName(device));
+        PresenceProbe probe = m_probes.select(entry);
+        if (!probe.isRadioRequired()) {
+            try {
+                checked(device, action, m_probes.probe(probe, null, device, entry, Long.MAX_VALUE));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            m_device = remoteDevice;
-            m_action = action;
+            return;
         }
 
-        private LocalDevice initialize() {
-            LocalDevice local = null;
+        int adapter = BluetoothThreadManager.getAdapter(device.getBluetoothAddress());
+        synchronized (m_batches) {
+            PresenceBatch batch = m_batches.get(adapter);
+            if (batch != null) {
+                // Not started yet, the check joins the batch.
+                batch.m_checks.put(DeviceRegistry.address(device), new PresenceCheck(device, action));
+                return;
+            }
+            batch = new PresenceBatch(adapter);
+            batch.m_checks.put(DeviceRegistry.address(device), new PresenceCheck(device, action));
+            m_batches.put(adapter, batch);
             try {
-                local = LocalDevice.getLocalDevice();
-            } catch (BluetoothStateException e) {
-                m_logger.error("Bluetooth Adapter not started.");
+                // The key routes the batch to the adapter of the device.
+                BluetoothThreadManager.submit(RadioLane.PRESENCE, device.getBluetoothAddress(), batch);
+            } catch (RejectedExecutionException e) {
+                // Never executed, the next checks must not join it.
+                m_batches.remove(adapter);
             }
-            return local;
         }
+    }
 
-        public void run() {
-            try {
-                LocalDevice local = initialize();
-                if (!LocalDevice.isPowerOn() || local == null) {
-                    m_logger.error("Bluetooth adapter not ready");
-                    unregister(m_device);
-                    return;
+    /**
+     * Handles the outcome of a presence check.
+     *
+     * @param device  the device
+     * @param action  the action depending on the outcome
+     * @param present whether the device is reachable
+     */
+    private void checked(RemoteDevice device, int action, boolean present) {
+        if (!present) {
+            if (action == SERVICECHECK_UNREGISTER_IF_NOT_HERE) {
+                m_logger.info("Device " + device.getBluetoothAddress() + " have disappeared : Unregister it.");
+                if (m_registry.contains(device)) {
+                    m_hysteresis.departed(device);
                 }
-                doSearch(local);
-            } catch (Throwable e) {
-                m_logger.error("Unexpected exception during service inquiry", e);
-                unregister(m_device);
+                unregister(device);
+            } else {
+                m_logger.info("Device " + device.getBluetoothAddress() + " is not here");
             }
+        } else if (action == SERVICECHECK_REGISTER_IF_HERE) {
+            m_logger.info("Device " + device.getBluetoothAddress() + " is here : Register it.");
+            if (!m_registry.contains(device)) {
+                arrived(device);
+            }
+        } else {
+            m_logger.info("Device " + device.getBluetoothAddress() + " is still here.");
         }
+    }
 
-        void doSearch(LocalDevice local) {
-            synchronized (this) {
-                m_searchInProgress = true;
-                try {
+    /**
+     * A pending presence check.
+     */
+    private static final class PresenceCheck {
 
-                    if (Env.isTestEnvironmentEnabled()) {
-                        m_logger.warn("=== TEST ENVIRONMENT ENABLED ===");
-                    } else {
-                        javax.bluetooth.UUID[] searchUuidSet = {UUIDs.PUBLIC_BROWSE_GROUP};
-                        local.getDiscoveryAgent().searchServices(null, searchUuidSet, m_device, this);
-                    }
-                    wait();
-                } catch (InterruptedException e) {
-                    if (m_searchInProgress) {
-                        // we're stopping, aborting discovery.
-                        m_searchInProgress = false;
-                        m_logger.warn("Interrupting bluetooth service discovery - interruption");
-                    } else {
-                        // Search done !
-                    }
-                } catch (BluetoothStateException e) {
-                    // well ... bad choice. Bluetooth driver not ready
-                    // Just abort.
-                    m_logger.error("Cannot search for bluetooth services", e);
-                    unregister(m_device);
-                    return;
-                }
-                // Do nothing
-            }
+        private final RemoteDevice m_device;
+
+        private final int m_action;
+
+        private PresenceCheck(RemoteDevice device, int action) {
+            m_device = device;
+            m_action = action;
         }
+    }
 
-        /*
-         *
-         ********** DiscoveryListener **********
-         *
+    /**
+     * Task probing, one after the other, the devices to check on an adapter. The checks requested until the task
+     * starts join it, so the checks of a cycle use a single slot of the {@link RadioLane#PRESENCE} lane.
+     */
+    class PresenceBatch implements Runnable {
+
+        private final int m_adapter;
+
+        /**
+         * The checks by device address, guarded by the batch map.
          */
-        @Override
-        public void deviceDiscovered(RemoteDevice btDevice, DeviceClass cod) {
-            // Not used here.
+        private final Map<Long, PresenceCheck> m_checks = new LinkedHashMap<Long, PresenceCheck>();
+
+        PresenceBatch(int adapter) {
+            m_adapter = adapter;
         }
 
         @Override
-        public void servicesDiscovered(int transID, ServiceRecord[] servRecord) {
-            synchronized (this) {
-                if (!m_searchInProgress) {
-                    // We were stopped.
-                    notifyAll();
-                    return;
-                }
-            }
-            // Do nothing
+        public String toString() {
+            return "PresenceBatch[adapter " + m_adapter + "]";
         }
 
-        @Override
-        public void serviceSearchCompleted(int transID, int respCode) {
-            if (respCode != SERVICE_SEARCH_COMPLETED) {
-                if (m_action == SERVICECHECK_UNREGISTER_IF_NOT_HERE) {
-                    m_logger.info("Device " + m_device.getBluetoothAddress() + " have disappeared : Unregister it.");
-                    unregister(m_device);
-                } else if (m_action == SERVICECHECK_REGISTER_IF_HERE) {
-                    m_logger.info("Device " + m_device.getBluetoothAddress() + " is not here");
-                }
-            } else {
-                if (m_action == SERVICECHECK_REGISTER_IF_HERE) {
-                    m_logger.info("Device " + m_device.getBluetoothAddress() + " is here : Register it.");
-                    register(m_device);
-                } else if (m_action == SERVICECHECK_UNREGISTER_IF_NOT_HERE) {
-                    m_logger.info("Device " + m_device.getBluetoothAddress() + " is still here.");
+        public void run() {
+            List<PresenceCheck> checks;
+            synchronized (m_batches) {
+                if (m_batches.get(m_adapter) == this) {
+                    // From now on, the checks go to a new batch.
+                    m_batches.remove(m_adapter);
                 }
+                checks = new ArrayList<PresenceCheck>(m_checks.values());
             }
+            m_logger.info("Checking the presence of " + checks.size() + " devices");
 
-            synchronized (this) {
-                m_searchInProgress = false;
-                notifyAll();
+            BluetoothRadio radio = BluetoothThreadManager.getRadio();
+            for (PresenceCheck check : checks) {
+                if (m_stopped) {
+                    return;
+                }
+                try {
+                    if (!radio.isPowerOn()) {
+                        m_logger.error("Bluetooth adapter not ready");
+                        checked(check.m_device, check.m_action, false);
+                        continue;
+                    }
+                    Device entry = m_probes.getEntry(check.m_device, m_resolver.getCachedName(check.m_device));
+                    PresenceProbe probe = m_probes.select(entry);
+                    checked(check.m_device, check.m_action,
+                            m_probes.probe(probe, radio, check.m_device, entry, Long.MAX_VALUE));
+                } catch (InterruptedException e) {
+                    // we're stopping, aborting the checks.
+                    m_logger.warn("Interrupting the presence checks - interruption");
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Throwable e) {
+                    m_logger.error("Unexpected exception during presence check", e);
+                    checked(check.m_device, check.m_action, false);
+                }
             }
         }
-
-        @Override
-        public void inquiryCompleted(int discType) {
-            // Not used here.
-        }
     }
 
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.UUID;
+import java.io.IOException;
+
+/**
+ * The radio operations of one adapter, as used by the discovery agents.
+ * The methods follow the JSR-82 <code>DiscoveryAgent</code> contract: the inquiries and the service searches are
+ * asynchronous and report to the given {@link DiscoveryListener}, the other operations block until done.
+ * <p/>
+ * Radios are obtained from the {@link BluetoothStack}. The agents get the radio of the adapter running them from
+ * {@link BluetoothThreadManager#getRadio()}.
+ */
+public interface BluetoothRadio {
+
+    /**
+     * @return <code>true</code> if the adapter is ready.
+     */
+    boolean isPowerOn();
+
+    /**
+     * @return the bluetooth address of the adapter.
+     * @throws BluetoothStateException if the adapter is not ready
+     */
+    String getAddress() throws BluetoothStateException;
+
+    /**
+     * Starts an inquiry.
+     *
+     * @param accessCode the inquiry access code (<code>DiscoveryAgent.GIAC</code> or <code>DiscoveryAgent.LIAC</code>)
+     * @param listener   the listener notified of the found devices and of the inquiry completion
+     * @return <code>true</code> if the inquiry was started
+     * @throws BluetoothStateException if the inquiry cannot be started
+     */
+    boolean startInquiry(int accessCode, DiscoveryListener listener) throws BluetoothStateException;
+
+    /**
+     * Cancels the inquiry started with the given listener.
+     *
+     * @param listener the listener
+     * @return <code>true</code> if the inquiry was cancelled
+     */
+    boolean cancelInquiry(DiscoveryListener listener);
+
+    /**
+     * Starts a service search on a device.
+     *
+     * @param attributes the attributes to retrieve in addition to the default ones, may be <code>null</code>
+     * @param uuids      the UUIDs the services must contain
+     * @param device     the device
+     * @param listener   the listener notified of the found services and of the search completion
+     * @return the transaction id of the search
+     * @throws BluetoothStateException if the search cannot be started
+     */
+    int searchServices(int[] attributes, UUID[] uuids, RemoteDevice device, DiscoveryListener listener)
+            throws BluetoothStateException;
+
+    /**
+     * Cancels a service search.
+     *
+     * @param transaction the transaction id
+     * @return <code>true</code> if the search was cancelled
+     */
+    boolean cancelServiceSearch(int transaction);
+
+    /**
+     * Gets the devices known by the adapter.
+     *
+     * @param option <code>DiscoveryAgent.CACHED</code> or <code>DiscoveryAgent.PREKNOWN</code>
+     * @return the devices, <code>null</code> if none
+     */
+    RemoteDevice[] retrieveDevices(int option);
+
+    /**
+     * Gets the name of a device.
+     *
+     * @param device the device
+     * @return the name, <code>null</code> if the device does not advertise a name
+     * @throws IOException if the device cannot be contacted
+     */
+    String getFriendlyName(RemoteDevice device) throws IOException;
+
+    /**
+     * Requests the name of a device from the device itself, even if the name is already known by the adapter.
+     *
+     * @param device the device
+     * @return the name, <code>null</code> if the device does not advertise a name
+     * @throws IOException if the device cannot be contacted
+     */
+    String requestFriendlyName(RemoteDevice device) throws IOException;
+
+    /**
+     * Pairs a device.
+     *
+     * @param device the device
+     * @param pin    the pin code, <code>null</code> to use the default one
+     * @return <code>true</code> if the device is paired
+     * @throws IOException if the device cannot be contacted
+     */
+    boolean authenticate(RemoteDevice device, String pin) throws IOException;
+
+    /**
+     * Removes the pairing of a device.
+     *
+     * @param device the device
+     * @throws IOException if the pairing cannot be removed
+     */
+    void removeAuthentication(RemoteDevice device) throws IOException;
+
+    /**
+     * @param device the device
+     * @return <code>true</code> if the device is paired with the adapter.
+     */
+    boolean isAuthenticated(RemoteDevice device);
+}
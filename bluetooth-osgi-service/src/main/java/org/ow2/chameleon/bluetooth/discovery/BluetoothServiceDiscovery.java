@@ -31,31 +31,52 @@ import org.slf4j.LoggerFactory;
 import javax.bluetooth.DataElement;
 import javax.bluetooth.RemoteDevice;
 import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
 import javax.xml.bind.JAXBException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Component publishing a {@link ServiceRecord} for all bluetooth services. This component consumes {@link RemoteDevice}
  * services and gets all the bluetooth services of the device. For each bluetooth service, it publishs a
  * {@link ServiceRecord}.
+ * <p/>
+ * The devices are handled in parallel: the state of a device (its registrations, attempts and pending search) is
+ * only modified under a lock striped by device address, so the bindings and the search results of different devices
+ * do not wait for each other.
  */
 @Component(public_factory = false, immediate = true)
 @Instantiate(name = "BluetoothServiceDiscovery")
 public class BluetoothServiceDiscovery {
 
+    /**
+     * The attributes requested by default in addition to the default ones (record handle to protocol descriptor
+     * list), <code>null</code> for none.
+     */
     static final int[] ATTRIBUTES = null;
 
     private static final int SERVICE_NAME_ATTRIBUTE = 0x0100;
 
+    /**
+     * The number of device locks, a power of two.
+     */
+    static final int STRIPES = 64;
+
     /**
      * Bundle Context.
      */
@@ -67,20 +88,93 @@ public class BluetoothServiceDiscovery {
     private Logger m_logger = LoggerFactory.getLogger(this.getClass());
 
     /**
-     * Map storing the currently registered ServiceRecord(with their ServiceRegistration) by RemoteDevice
+     * Map storing the currently registered ServiceRecord(with their ServiceRegistration) by device address.
+     * The registrations of a device are only accessed under the device lock.
+     */
+    private final ConcurrentMap<Long, Map<ServiceRecord, ServiceRegistration>> m_servicesRecord =
+            new ConcurrentHashMap<Long, Map<ServiceRecord, ServiceRegistration>>();
+
+    /**
+     * The device locks, striped by address: the devices are bound, searched, published and withdrawn in parallel,
+     * while the callbacks of a given device are serialized.
      */
-    private Map<RemoteDevice, Map<ServiceRecord, ServiceRegistration>> m_servicesRecord = new HashMap<RemoteDevice, Map<ServiceRecord, ServiceRegistration>>();
+    private final Object[] m_locks = new Object[STRIPES];
+
+    /**
+     * The pending service searches by device address, so the late results of a device that left are not published.
+     */
+    private final ConcurrentMap<Long, PendingSearches> m_searches = new ConcurrentHashMap<Long, PendingSearches>();
 
     /**
      * Set of devices loaded from the <tt>devices.xml</tt> file.
      * This file contains the authentication information for the device.
      */
-    private DeviceList m_fleet = null;
+    private volatile DeviceList m_fleet = null;
+
+    /**
+     * The matcher of the fleet entries, built when the fleet is loaded.
+     */
+    private volatile FleetMatcher m_fleetMatcher = null;
+
+    /**
+     * Number of retries by device address, for the devices under retries.
+     */
+    private final ConcurrentMap<Long, Integer> m_attempts = new ConcurrentHashMap<Long, Integer>();
+
+    /**
+     * The retries waiting for their delay by device address.
+     */
+    private final ConcurrentMap<Long, ScheduledRetry> m_retries = new ConcurrentHashMap<Long, ScheduledRetry>();
+
+    /**
+     * The delays between the retries of a failed service search.
+     */
+    private final RetryBackoff m_backoff = new RetryBackoff(5 * 1000L, 300 * 1000L);
+
+    /**
+     * The maximum number of retries of the devices out of the fleet.
+     */
+    private volatile int m_maxRetries = 3;
+
+    /**
+     * The maximum number of retries waiting for their delay, all devices included.
+     */
+    private volatile int m_retryBudget = 32;
+
+    /**
+     * The deadline of the service searches, adapting to the observed search durations.
+     */
+    private final OperationDeadline m_deadline = new OperationDeadline("sdp", 5000, 30000);
+
+    /**
+     * The records discovered on the devices, published again when the devices come back.
+     */
+    private final ServiceRecordCache m_cache = new ServiceRecordCache(1000, 600 * 1000L);
+
+    /**
+     * The snapshot of the cached records, <code>null</code> if the persistent support is disabled.
+     */
+    private volatile ServiceRecordSnapshot m_snapshot;
+
+    /**
+     * The attributes requested by the service searches, <code>null</code> for the default attributes only.
+     */
+    private volatile int[] m_requestedAttributes = ATTRIBUTES;
+
+    /**
+     * The attributes exposed in the <tt>service.attributes</tt> property, <code>null</code> to expose all of them.
+     */
+    private volatile Set<Integer> m_exposedAttributes = null;
+
+    /**
+     * The changes delivered to the {@link DeviceListener}s, with the changes of the devices.
+     */
+    private final DeviceEventDispatcher m_events = DeviceEventDispatcher.getDefault();
 
     /**
-     * List of device under attempts.
+     * The latency and counter metrics.
      */
-    private Map<RemoteDevice, Integer> m_attempts = new HashMap<RemoteDevice, Integer>();
+    private final DiscoveryMetricsRecorder m_metrics = DiscoveryMetricsRecorder.getDefault();
 
     /**
      * Creates a {@link BluetoothServiceDiscovery}.
@@ -89,6 +183,9 @@ public class BluetoothServiceDiscovery {
      */
     public BluetoothServiceDiscovery(BundleContext context) {
         m_context = context;
+        for (int i = 0; i < STRIPES; i++) {
+            m_locks[i] = new Object();
+        }
         m_logger.info("Bluetooth Tracker Started");
     }
 
@@ -96,11 +193,13 @@ public class BluetoothServiceDiscovery {
     public void setDeviceFile(File file) throws IOException {
         if (!file.exists()) {
             m_fleet = null;
+            m_fleetMatcher = null;
             m_logger.warn("No devices.xml file found, ignoring authentication");
         } else {
             try {
                 FileInputStream fis = new FileInputStream(file);
                 m_fleet = ConfigurationUtils.unmarshal(DeviceList.class, fis);
+                m_fleetMatcher = new FleetMatcher(m_fleet);
                 m_logger.info(m_fleet.getDevices().size() + " devices loaded from devices.xml");
                 fis.close();
             } catch (JAXBException e) {
@@ -112,65 +211,365 @@ public class BluetoothServiceDiscovery {
     }
 
     /**
-     * Stops the discovery. All published services are withdrawn.
+     * Sets the maximum duration of a service search. A search not completed in time is cancelled and considered
+     * failed. The effective deadline adapts to the observed durations, within this bound.
+     *
+     * @param timeout the timeout in seconds
+     */
+    @Property(name = "bluetooth.discovery.sdp.timeout", value = "30")
+    public void setServiceDiscoveryTimeout(int timeout) {
+        m_deadline.setMaximum(timeout * 1000L);
+    }
+
+    /**
+     * Sets the delay before the first retry of a failed service search. The following retries double the delay, up
+     * to the maximum delay. The fleet entries can set their own initial delay.
+     *
+     * @param delay the delay in seconds
+     */
+    @Property(name = "bluetooth.discovery.sdp.retry.delay", value = "5")
+    public void setServiceRetryDelay(int delay) {
+        m_backoff.setInitialDelay(delay * 1000L);
+    }
+
+    /**
+     * Sets the maximum delay between two retries of a failed service search.
+     *
+     * @param delay the delay in seconds
+     */
+    @Property(name = "bluetooth.discovery.sdp.retry.delay.max", value = "300")
+    public void setServiceRetryMaximumDelay(int delay) {
+        m_backoff.setMaximumDelay(delay * 1000L);
+    }
+
+    /**
+     * Sets the number of retries of a failed service search for the devices out of the fleet. The fleet devices use
+     * the <tt>retry</tt> and <tt>max-retry</tt> settings of their entry.
+     *
+     * @param retries the number of retries, 0 to never retry
+     */
+    @Property(name = "bluetooth.discovery.sdp.retry.max", value = "3")
+    public void setServiceMaxRetries(int retries) {
+        m_maxRetries = Math.max(0, retries);
+    }
+
+    /**
+     * Sets the maximum number of retries waiting for their delay. Once reached, the failed searches are not retried
+     * until some retries are executed, so many failing devices cannot saturate the radio.
+     *
+     * @param budget the number of waiting retries
+     */
+    @Property(name = "bluetooth.discovery.sdp.retry.budget", value = "32")
+    public void setServiceRetryBudget(int budget) {
+        m_retryBudget = Math.max(0, budget);
+    }
+
+    /**
+     * Sets the time-to-live of the cached service records. The cached records of a device coming back are published
+     * right away, and searched again in the background once older than this time-to-live.
+     *
+     * @param ttl the time-to-live in seconds
+     */
+    @Property(name = "bluetooth.discovery.sdp.cache.ttl", value = "600")
+    public void setServiceCacheTimeToLive(int ttl) {
+        m_cache.setTimeToLive(ttl * 1000L);
+    }
+
+    /**
+     * Sets the maximum number of devices whose service records are cached.
+     *
+     * @param size the number of devices, 0 disables the cache
+     */
+    @Property(name = "bluetooth.discovery.sdp.cache.size", value = "1000")
+    public void setServiceCacheSize(int size) {
+        m_cache.setCapacity(size);
+    }
+
+    /**
+     * Sets the service record snapshot file.
+     * If set to <code>null</code> or to <code>""</code> or to <code>"null"</code>, the persistent support is disabled.
+     * Otherwise, the snapshot is read to restore the services of the known devices: they are published as soon as the
+     * devices are bound, and searched again in the background. The snapshot is written when the discovery stops.
+     *
+     * @param name the path to the file relative to the working directory.
+     */
+    @Property(name = "bluetooth.discovery.sdp.snapshot", value = "btservices.snapshot")
+    public void setServiceSnapshotFile(String name) {
+        if (name == null || name.equals("null") || name.trim().length() == 0) {
+            m_logger.warn("No service record snapshot set, disabling persistent support");
+            m_snapshot = null;
+            return;
+        }
+        m_snapshot = new ServiceRecordSnapshot(new File(name));
+        int restored = m_cache.restore(m_snapshot);
+        m_logger.info("Services of " + restored + " devices restored from " + m_snapshot.getFile().getAbsolutePath());
+    }
+
+    /**
+     * Sets the attributes requested by the service searches, in addition to the default attributes (service record
+     * handle, service class ID list, service record state, service ID and protocol descriptor list).
+     *
+     * @param attributes the attribute IDs, decimal or hexadecimal (<tt>0x0100</tt>), separated by commas, empty for
+     *                   the default attributes only
+     */
+    @Property(name = "bluetooth.discovery.sdp.attributes", value = "")
+    public void setRequestedAttributes(String attributes) {
+        Set<Integer> ids = parseAttributes(attributes);
+        if (ids == null || ids.isEmpty()) {
+            m_requestedAttributes = ATTRIBUTES;
+            return;
+        }
+        int[] requested = new int[ids.size()];
+        int i = 0;
+        for (Integer id : ids) {
+            requested[i++] = id;
+        }
+        m_requestedAttributes = requested;
+    }
+
+    /**
+     * Sets the attributes exposed in the <tt>service.attributes</tt> property of the published services. The
+     * property is a {@link ServiceAttributes} view reading the record lazily, all the attributes remaining available
+     * through {@link ServiceAttributes#getAll()}.
+     *
+     * @param attributes the attribute IDs, decimal or hexadecimal (<tt>0x0100</tt>), separated by commas,
+     *                   <tt>*</tt> for all the attributes, empty to not publish the property
+     */
+    @Property(name = "bluetooth.discovery.sdp.properties", value = "*")
+    public void setExposedAttributes(String attributes) {
+        m_exposedAttributes = parseAttributes(attributes);
+    }
+
+    /**
+     * Parses a list of attribute IDs.
+     *
+     * @param attributes the attribute IDs, separated by commas
+     * @return the attribute IDs, <code>null</code> for <tt>*</tt>
+     */
+    Set<Integer> parseAttributes(String attributes) {
+        Set<Integer> ids = new TreeSet<Integer>();
+        if (attributes == null) {
+            return ids;
+        }
+        if (attributes.trim().equals("*")) {
+            return null;
+        }
+        for (String attribute : attributes.split("[,\\s]+")) {
+            if (attribute.length() == 0) {
+                continue;
+            }
+            try {
+                int id = Integer.decode(attribute);
+                if (id < 0 || id > 0xFFFF) {
+                    throw new NumberFormatException("out of range");
+                }
+                ids.add(id);
+            } catch (NumberFormatException e) {
+                m_logger.warn("Ignoring the invalid attribute ID " + attribute + " (" + e.getMessage() + ")");
+            }
+        }
+        return ids;
+    }
+
+    ServiceRecordCache getServiceCache() {
+        return m_cache;
+    }
+
+    OperationDeadline getServiceDiscoveryDeadline() {
+        return m_deadline;
+    }
+
+    RetryBackoff getRetryBackoff() {
+        return m_backoff;
+    }
+
+    /**
+     * @return the number of retries waiting for their delay.
+     */
+    int getPendingRetries() {
+        return m_retries.size();
+    }
+
+    /**
+     * @return the number of devices having a service search queued or running.
+     */
+    int getPendingSearches() {
+        return m_searches.size();
+    }
+
+    /**
+     * Stops the discovery. All published services are withdrawn, the waiting retries are cancelled, and the cached
+     * records are saved in the snapshot.
      */
     @Invalidate
-    public synchronized void stop() {
+    public void stop() {
         unregisterAll();
+        m_events.flush();
+        m_events.shutdown();
+        for (Long address : m_retries.keySet()) {
+            synchronized (lock(address)) {
+                cancelRetry(address);
+            }
+        }
         m_attempts.clear();
+        m_searches.clear();
+        ServiceRecordSnapshot snapshot = m_snapshot;
+        if (snapshot != null) {
+            try {
+                m_cache.save(snapshot);
+            } catch (IOException e) {
+                m_logger.error("Cannot save the service records in " + snapshot.getFile().getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Gets the lock of a device. The state of a device is only modified under its lock.
+     *
+     * @param address the device address
+     * @return the lock
+     */
+    private Object lock(long address) {
+        // Spread the bits, the addresses of a vendor share their upper bits.
+        long hash = address ^ (address >>> 24);
+        return m_locks[(int) (hash ^ (hash >>> 12)) & (STRIPES - 1)];
     }
 
-    private synchronized void unregisterAll() {
-        for (RemoteDevice remoteDevice : m_servicesRecord.keySet()) {
-            unregister(remoteDevice);
+    private void unregisterAll() {
+        // The map is concurrent, its iteration is not disturbed by the removals.
+        for (Long address : m_servicesRecord.keySet()) {
+            synchronized (lock(address)) {
+                servicesChanged(null, address, Collections.<ServiceRecord>emptyList(),
+                        Collections.<ServiceRecord>emptyList(), unregister(address));
+            }
         }
     }
 
-    private synchronized void unregister(RemoteDevice remote) {
-        Map<ServiceRecord, ServiceRegistration> services = m_servicesRecord.remove(remote);
+    /**
+     * Withdraws the services of a device, under the device lock.
+     *
+     * @return the withdrawn records
+     */
+    private List<ServiceRecord> unregister(long address) {
+        Map<ServiceRecord, ServiceRegistration> services = m_servicesRecord.remove(address);
         if (services == null) {
-            return;
+            return Collections.emptyList();
         }
         for (ServiceRegistration sr : services.values()) {
             sr.unregister();
         }
+        return new ArrayList<ServiceRecord>(services.keySet());
     }
 
-    private synchronized void register(RemoteDevice remote, ServiceRecord serviceRecord, Device device, String url) {
-        if (!m_servicesRecord.containsKey(remote)) {
-            m_servicesRecord.put(remote, new HashMap<ServiceRecord, ServiceRegistration>());
+    /**
+     * Posts the changes of the services of a device, if any, under the device lock.
+     *
+     * @param remote the device, <code>null</code> if unknown
+     */
+    private void servicesChanged(RemoteDevice remote, long address, List<ServiceRecord> added,
+                                 List<ServiceRecord> modified, List<ServiceRecord> removed) {
+        if (added.isEmpty() && modified.isEmpty() && removed.isEmpty()) {
+            return;
         }
+        m_metrics.add(DiscoveryMetricsRecorder.SERVICES_REGISTERED, added.size());
+        m_metrics.add(DiscoveryMetricsRecorder.SERVICES_UPDATED, modified.size());
+        m_metrics.add(DiscoveryMetricsRecorder.SERVICES_UNREGISTERED, removed.size());
+        String id = remote == null ? String.format("%012X", address) : remote.getBluetoothAddress();
+        m_events.post(new DeviceEvent(DeviceEvent.Type.SERVICES_CHANGED, id, remote, null, added, modified,
+                removed));
+    }
+
+    private void register(RemoteDevice remote, ServiceRecord serviceRecord, Device device, String url) {
+        long address = DeviceRegistry.address(remote);
+        Map<ServiceRecord, ServiceRegistration> services = m_servicesRecord.get(address);
+        if (services == null) {
+            services = new HashMap<ServiceRecord, ServiceRegistration>();
+            m_servicesRecord.put(address, services);
+        }
+        ServiceRegistration sr = m_context.registerService(ServiceRecord.class.getName(), serviceRecord,
+                properties(remote, serviceRecord, device, url));
+        services.put(serviceRecord, sr);
+    }
+
+    private Dictionary<String, Object> properties(RemoteDevice remote, ServiceRecord serviceRecord, Device device,
+                                                  String url) {
         Dictionary<String, Object> props = new Hashtable<String, Object>();
         props.put("device.id", remote.getBluetoothAddress());
+        Set<Integer> exposed = m_exposedAttributes;
         int[] attributeIDs = serviceRecord.getAttributeIDs();
-        if (attributeIDs != null && attributeIDs.length > 0) {
-            Map<Integer, DataElement> attrs = new HashMap<Integer, DataElement>();
-            for (int attrID : attributeIDs) {
-                attrs.put(attrID, serviceRecord.getAttributeValue(attrID));
-            }
-            props.put("service.attributes", attrs);
+        if (attributeIDs != null && attributeIDs.length > 0 && (exposed == null || !exposed.isEmpty())) {
+            // Read from the record when needed.
+            props.put("service.attributes", new ServiceAttributes(serviceRecord, exposed));
         }
         props.put("service.url", url);
         if (device != null) {
             props.put("fleet.device", device);
         }
-        ServiceRegistration sr = m_context.registerService(ServiceRecord.class.getName(), serviceRecord, props);
-        m_servicesRecord.get(remote).put(serviceRecord, sr);
+        return props;
+    }
+
+    /**
+     * Updates the properties of a service record registration, kept as a raw {@link ServiceRegistration}.
+     *
+     * @param registration the registration
+     * @param properties   the new properties
+     */
+    @SuppressWarnings("unchecked")
+    private static void setProperties(ServiceRegistration registration, Dictionary<String, Object> properties) {
+        registration.setProperties(properties);
     }
 
     /**
      * A new {@link RemoteDevice} is available. Checks if it implements OBEX, if
-     * so publish the service
+     * so publish the service. The cached services of the device are published immediately, and searched again only
+     * if stale.
      *
      * @param device the device
      */
     @Bind(aggregate = true, optional = true)
-    public synchronized void bindRemoteDevice(RemoteDevice device) {
+    public void bindRemoteDevice(RemoteDevice device) {
+        long address = DeviceRegistry.address(device);
+        synchronized (lock(address)) {
+            List<ServiceRecord> cached = m_cache.get(device);
+            if (cached != null && !m_servicesRecord.containsKey(address)) {
+                m_logger.info("Publishing the " + cached.size() + " cached services of " + device.getBluetoothAddress());
+                servicesChanged(device, address, publish(device, cached), Collections.<ServiceRecord>emptyList(),
+                        Collections.<ServiceRecord>emptyList());
+                if (!m_cache.isStale(device)) {
+                    PendingSearches searches = m_searches.get(address);
+                    if (searches != null) {
+                        // Back during a search, its results are expected again.
+                        searches.m_bound = true;
+                    }
+                    return;
+                }
+            }
+            search(device, address);
+        }
+    }
+
+    /**
+     * Submits the service search of a device, under the device lock.
+     */
+    private void search(RemoteDevice device, long address) {
+        PendingSearches searches = m_searches.get(address);
+        if (searches == null) {
+            searches = new PendingSearches();
+            m_searches.put(address, searches);
+        }
+        searches.m_bound = true;
         try {
-            // We can't run searches concurrently.
-            ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(this, device);
-            BluetoothThreadManager.submit(agent);
+            // The searches are serialized per adapter by the scheduler.
+            ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(this, device, m_deadline, m_requestedAttributes,
+                    getServiceClasses(device));
+            if (BluetoothThreadManager.submit(RadioLane.SDP, device.getBluetoothAddress(), agent)) {
+                searches.m_count++;
+            }
+            // Otherwise merged in the waiting search, completed once.
         } catch (Exception e) {
+            if (searches.m_count == 0) {
+                m_searches.remove(address);
+            }
             m_logger.error(
                     "Cannot discover services from "
                             + device.getBluetoothAddress(), e);
@@ -184,47 +583,83 @@ public class BluetoothServiceDiscovery {
      * @param device the device
      */
     @Unbind
-    public synchronized void unbindRemoteDevice(RemoteDevice device) {
-        unregister(device);
+    public void unbindRemoteDevice(RemoteDevice device) {
+        long address = DeviceRegistry.address(device);
+        synchronized (lock(address)) {
+            servicesChanged(device, address, Collections.<ServiceRecord>emptyList(),
+                    Collections.<ServiceRecord>emptyList(), unregister(address));
+            cancelRetry(address);
+            m_attempts.remove(address);
+            PendingSearches searches = m_searches.get(address);
+            if (searches != null) {
+                searches.m_bound = false;
+            }
+        }
     }
 
     /**
      * Callback receiving the set of discovered service from the given RemoteDevice.
+     * With several adapters, this method is called concurrently: the results of different devices are handled in
+     * parallel.
      *
      * @param remote the RemoteDevice
      * @param discoveredServices the list of ServiceRecord
      */
-    public void discovered(RemoteDevice remote,
-                           List<ServiceRecord> discoveredServices) {
-        if (discoveredServices == null || discoveredServices.isEmpty()) {
-            unregister(remote);
-
-            if (retry(remote)) {
-                m_logger.info("Retrying service discovery for device " + remote.getBluetoothAddress() + " - " + m_attempts.get(remote));
-                incrementAttempt(remote);
-                ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(this, remote);
-                BluetoothThreadManager.submit(agent);
-            } else {
-                // We don't retry, either retry is false or we reached the number of attempts.
-                m_attempts.remove(remote);
+    public void discovered(RemoteDevice remote, List<ServiceRecord> discoveredServices) {
+        long address = DeviceRegistry.address(remote);
+        synchronized (lock(address)) {
+            PendingSearches searches = m_searches.get(address);
+            if (searches != null && !searches.done(address)) {
+                // The device left during the search.
+                m_attempts.remove(address);
+                if (discoveredServices != null && !discoveredServices.isEmpty()) {
+                    m_cache.put(remote, discoveredServices);
+                }
+                return;
             }
-            return;
+            if (discoveredServices == null || discoveredServices.isEmpty()) {
+                m_metrics.increment(DiscoveryMetricsRecorder.SDP_FAILURES);
+                servicesChanged(remote, address, Collections.<ServiceRecord>emptyList(),
+                        Collections.<ServiceRecord>emptyList(), unregister(address));
+                m_cache.remove(remote);
+                retry(remote, address);
+                return;
+            }
+            m_logger.info("Agent has discovered " + discoveredServices.size()
+                    + " services from " + remote.getBluetoothAddress() + ".");
+
+            // Service discovery successful, we reset the number of attempts.
+            m_attempts.remove(address);
+
+            Map<ServiceRecord, ServiceRegistration> published = m_servicesRecord.get(address);
+            if (published != null) {
+                ServiceRecordDiff diff = ServiceRecordDiff.compute(published.keySet(), discoveredServices);
+                m_logger.info("Services of " + remote.getBluetoothAddress() + " discovered again: " + diff);
+                if (!diff.isEmpty()) {
+                    update(remote, published, diff);
+                }
+                m_cache.put(remote, discoveredServices);
+                return;
+            }
+            m_cache.put(remote, discoveredServices);
+            servicesChanged(remote, address, publish(remote, discoveredServices),
+                    Collections.<ServiceRecord>emptyList(), Collections.<ServiceRecord>emptyList());
         }
-        m_logger.info("Agent has discovered " + discoveredServices.size()
-                + " services from " + remote.getBluetoothAddress() + ".");
-
-        // Service discovery successful, we reset the number of attempts.
-        m_attempts.remove(remote);
-        Device device = findDeviceFromFleet(remote);
+    }
 
-        for (ServiceRecord record : discoveredServices) {
-            String url;
-            if (device == null) {
-                url = record.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
-            } else {
-                url = record.getConnectionURL(ServiceRecord.AUTHENTICATE_NOENCRYPT, false);
-            }
+    /**
+     * Publishes the services of a device, under the device lock.
+     *
+     * @return the registered records, the records without URL being ignored
+     */
+    private List<ServiceRecord> publish(RemoteDevice remote, List<ServiceRecord> records) {
+        return publish(remote, records, findDeviceFromFleet(remote));
+    }
 
+    private List<ServiceRecord> publish(RemoteDevice remote, List<ServiceRecord> records, Device device) {
+        List<ServiceRecord> registered = new ArrayList<ServiceRecord>();
+        for (ServiceRecord record : records) {
+            String url = url(record, device);
             if (url == null) {
                 m_logger.warn("Can't compute the service url for device " + remote.getBluetoothAddress() + " - Ignoring service record");
             } else {
@@ -235,60 +670,230 @@ public class BluetoothServiceDiscovery {
                     m_logger.info("Service found " + url);
                 }
                 register(remote, record, device, url);
+                registered.add(record);
             }
         }
+        return registered;
+    }
 
+    /**
+     * Applies the changes of the services of a device, under the device lock. The registrations of the unchanged
+     * records are kept, the changed records update the properties of their registration, so only the added and the
+     * removed records are seen as registered and unregistered services.
+     * <p/>
+     * The service object of an updated registration remains the record first registered: the properties of the
+     * registration hold the current attributes and URL.
+     */
+    private void update(RemoteDevice remote, Map<ServiceRecord, ServiceRegistration> published,
+                        ServiceRecordDiff diff) {
+        Device device = findDeviceFromFleet(remote);
+        List<ServiceRecord> modified = new ArrayList<ServiceRecord>();
+        List<ServiceRecord> removed = new ArrayList<ServiceRecord>(diff.getRemoved());
+        for (ServiceRecord record : diff.getRemoved()) {
+            published.remove(record).unregister();
+        }
+        for (Map.Entry<ServiceRecord, ServiceRecord> change : diff.getChanged().entrySet()) {
+            ServiceRecord record = change.getValue();
+            ServiceRegistration registration = published.remove(change.getKey());
+            String url = url(record, device);
+            if (url == null) {
+                m_logger.warn("Can't compute the service url for device " + remote.getBluetoothAddress() + " - Withdrawing service record");
+                registration.unregister();
+                removed.add(change.getKey());
+            } else {
+                m_logger.info("Service updated " + url);
+                setProperties(registration, properties(remote, record, device, url));
+                published.put(record, registration);
+                modified.add(record);
+            }
+        }
+        for (Map.Entry<ServiceRecord, ServiceRecord> same : diff.getUnchanged().entrySet()) {
+            // Compare with the latest records next time.
+            published.put(same.getValue(), published.remove(same.getKey()));
+        }
+        List<ServiceRecord> added = publish(remote, diff.getAdded(), device);
+        if (published.isEmpty()) {
+            m_servicesRecord.remove(DeviceRegistry.address(remote));
+        }
+        servicesChanged(remote, DeviceRegistry.address(remote), added, modified, removed);
     }
 
-    private void incrementAttempt(RemoteDevice remote) {
-        Integer attempt = m_attempts.get(remote);
-        if (attempt == null) {
-            attempt = 1;
-            m_attempts.put(remote, attempt);
-        } else {
-            m_attempts.put(remote, ++attempt);
+    private static String url(ServiceRecord record, Device device) {
+        if (device == null) {
+            return record.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
         }
+        return record.getConnectionURL(ServiceRecord.AUTHENTICATE_NOENCRYPT, false);
     }
 
-    private boolean retry(RemoteDevice remote) {
+    /**
+     * Schedules the retry of the failed service search of a device, under the device lock. The retry is delayed by
+     * the backoff, and dropped if the device has no retry left or if too many retries are already waiting.
+     */
+    private void retry(RemoteDevice remote, long address) {
         Device device = findDeviceFromFleet(remote);
-        if (device == null) {
-            return true;
+        Integer previous = m_attempts.get(address);
+        int retry = previous == null ? 1 : previous + 1;
+        int max = getMaxRetries(device);
+        if (retry > max) {
+            // We don't retry, either retry is false or we reached the number of attempts.
+            m_logger.info("Giving up the service discovery for device " + remote.getBluetoothAddress() + " after "
+                    + (retry - 1) + " retries");
+            m_attempts.remove(address);
+            return;
+        }
+        cancelRetry(address);
+        if (m_retries.size() >= m_retryBudget) {
+            m_logger.warn("Not retrying the service discovery for device " + remote.getBluetoothAddress() + " - "
+                    + m_retries.size() + " retries already waiting");
+            m_attempts.remove(address);
+            m_metrics.increment(DiscoveryMetricsRecorder.SDP_RETRIES_DROPPED);
+            return;
         }
 
-        Integer numberOfTries = m_attempts.get(remote);
-        if (numberOfTries == null) {
-            numberOfTries = 0;
+        long initialDelay = m_backoff.getInitialDelay();
+        if (device != null && device.getRetryDelay() != null) {
+            initialDelay = device.getRetryDelay().longValue() * 1000L;
+        }
+        long delay = m_backoff.getDelay(retry, initialDelay);
+        ScheduledRetry scheduled = new ScheduledRetry(remote, address);
+        m_retries.put(address, scheduled);
+        scheduled.m_future = BluetoothThreadManager.schedule(scheduled, delay, TimeUnit.MILLISECONDS);
+        if (scheduled.m_future == null) {
+            m_retries.remove(address);
+            m_attempts.remove(address);
+            return;
         }
+        m_attempts.put(address, retry);
+        m_metrics.increment(DiscoveryMetricsRecorder.SDP_RETRIES);
+        m_logger.info("Retrying service discovery for device " + remote.getBluetoothAddress() + " in " + delay
+                + " ms - " + retry + "/" + max);
+    }
 
+    /**
+     * Cancels the waiting retry of a device, if any, under the device lock.
+     */
+    private void cancelRetry(long address) {
+        ScheduledRetry scheduled = m_retries.remove(address);
+        if (scheduled != null && scheduled.m_future != null) {
+            scheduled.m_future.cancel(false);
+        }
+    }
+
+    /**
+     * Gets the number of retries of a failed service search. The fleet devices are retried only if their entry
+     * enables the retries, <tt>max-retry</tt> times (once if not set).
+     *
+     * @param device the fleet entry of the device, <code>null</code> if the device is not in the fleet
+     * @return the number of retries
+     */
+    private int getMaxRetries(Device device) {
+        if (device == null) {
+            return m_maxRetries;
+        }
+        if (!device.isRetry()) {
+            return 0;
+        }
         BigInteger mr = device.getMaxRetry();
-        int max = 1;
-        if (mr != null && mr.intValue() != 0) {
-            max = mr.intValue();
+        if (mr != null && mr.intValue() > 0) {
+            return mr.intValue();
         }
+        return 1;
+    }
 
-        return device.isRetry() && max >= numberOfTries;
+    /**
+     * Gets the service classes searched on a device, declared by its fleet entry.
+     *
+     * @param remote the device
+     * @return the service classes, empty to search all the public services
+     */
+    UUID[] getServiceClasses(RemoteDevice remote) {
+        FleetMatcher matcher = m_fleetMatcher;
+        Device device = findDeviceFromFleet(remote);
+        if (matcher == null || device == null) {
+            return new UUID[0];
+        }
+        return matcher.getServiceClasses(device);
     }
 
     Device findDeviceFromFleet(RemoteDevice remote) {
-        if (m_fleet != null) {
-            String address = remote.getBluetoothAddress();
+        FleetMatcher matcher = m_fleetMatcher;
+        if (matcher != null) {
             String sn = null;
             try {
                 sn = remote.getFriendlyName(false);
             } catch (IOException e) {
                 // ignore the exception
             }
+            // id can be regex.
+            return matcher.getMatchingDevice(remote.getBluetoothAddress(), sn);
+        }
+        return null;
+    }
+
+    /**
+     * A retry waiting for its delay. Once due, the service search is submitted unless the retry was cancelled in
+     * the meantime.
+     */
+    private final class ScheduledRetry implements Runnable {
+
+        private final RemoteDevice m_device;
+
+        private final long m_address;
 
-            for (int i = 0; i < m_fleet.getDevices().size(); i++) {
-                Device d = m_fleet.getDevices().get(i);
-                String regex = d.getId(); // id can be regex.
-                if (Pattern.matches(regex, address) || (sn != null && Pattern.matches(regex, sn))) {
-                    return d;
+        /**
+         * The future of the delay, set under the device lock.
+         */
+        private Future<?> m_future;
+
+        private ScheduledRetry(RemoteDevice device, long address) {
+            m_device = device;
+            m_address = address;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock(m_address)) {
+                // Cancelled, or replaced, while waiting for the lock.
+                if (m_retries.get(m_address) != this) {
+                    return;
                 }
+                m_retries.remove(m_address);
+                search(m_device, m_address);
             }
         }
-        return null;
+
+        @Override
+        public String toString() {
+            return "ServiceDiscoveryRetry[" + m_device.getBluetoothAddress() + "]";
+        }
     }
 
+    /**
+     * The service searches submitted for a device and not completed yet. Only accessed under the device lock.
+     */
+    private final class PendingSearches {
+
+        /**
+         * The number of searches queued, merged searches are counted once.
+         */
+        private int m_count;
+
+        /**
+         * Whether the device is still bound.
+         */
+        private boolean m_bound;
+
+        /**
+         * Records the completion of a search.
+         *
+         * @param address the device address
+         * @return <code>true</code> if the device is still bound
+         */
+        private boolean done(long address) {
+            if (--m_count <= 0) {
+                m_searches.remove(address);
+            }
+            return m_bound;
+        }
+    }
 }
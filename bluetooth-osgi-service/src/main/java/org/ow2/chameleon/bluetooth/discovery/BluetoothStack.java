@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+/**
+ * A bluetooth stack, giving access to the radios of one or several adapters.
+ * The discovery uses the {@link BlueCoveStack} by default. Another stack, such as the
+ * {@link SimulatedBluetoothStack}, is installed with {@link BluetoothThreadManager#setStack(BluetoothStack)}.
+ */
+public interface BluetoothStack {
+
+    /**
+     * @return the stack name, such as <tt>bluez</tt> or <tt>winsock</tt>.
+     */
+    String getName();
+
+    /**
+     * @return the number of adapters, at least 1.
+     */
+    int getAdapterCount();
+
+    /**
+     * Binds the calling thread to an adapter.
+     * This method is called once by each radio worker thread, before executing any operation.
+     *
+     * @param adapter the adapter index
+     * @throws Exception if the adapter cannot be used
+     */
+    void bind(int adapter) throws Exception;
+
+    /**
+     * Gets the radio of an adapter.
+     *
+     * @param adapter the adapter index
+     * @return the radio
+     */
+    BluetoothRadio getRadio(int adapter);
+}
@@ -17,10 +17,11 @@ package org.ow2.chameleon.bluetooth.discovery;
 
 import org.slf4j.LoggerFactory;
 
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -29,6 +30,15 @@ import java.util.concurrent.TimeUnit;
  * It ensures that only one bluetooth action is executed at a time.
  * <p/>
  * Bluetooth operation are submitted to this class which executed them when a free slot if available.
+ * Operations are queued in {@link RadioLane}s, so a backlog of service discoveries does not delay the periodic
+ * inquiry (see {@link RadioScheduler}).
+ * <p/>
+ * Several adapters can be used by listing their BlueCove device ids in the <tt>bluetooth.radio.adapters</tt> system
+ * property. In this case, one action is executed at a time <em>per adapter</em>: inquiries run on the first adapter
+ * and the other actions are spread over the other adapters.
+ * <p/>
+ * The actions reach the adapters through the {@link BluetoothStack} (BlueCove by default), which can be replaced
+ * with {@link #setStack(BluetoothStack)}.
  */
 public class BluetoothThreadManager {
 
@@ -57,10 +67,81 @@ public class BluetoothThreadManager {
     };
 
     /**
-     * The thread pool executing the action.
-     * the thread pool size is limited to 1.
+     * System property setting the aging period of the radio lanes, in milliseconds.
+     */
+    public static final String AGING_PERIOD_PROPERTY = "bluetooth.radio.aging";
+
+    /**
+     * System property listing the BlueCove device ids of the adapters to use, separated by commas. If not set, the
+     * default adapter is used.
+     */
+    public static final String ADAPTERS_PROPERTY = "bluetooth.radio.adapters";
+
+    /**
+     * The bluetooth stack executing the radio operations.
+     */
+    private static volatile BluetoothStack m_stack = createDefaultStack();
+
+    /**
+     * The scheduler executing the action.
+     * Only one action is executed at a time per adapter.
+     */
+    private static volatile RadioScheduler m_pool = createScheduler(m_stack);
+
+    private static BluetoothStack createDefaultStack() {
+        String adapters = System.getProperty(ADAPTERS_PROPERTY);
+        if (adapters == null || adapters.trim().length() == 0) {
+            return new BlueCoveStack();
+        }
+        String[] ids = adapters.trim().split("\\s*,\\s*");
+        LoggerFactory.getLogger(BluetoothThreadManager.class).info("Using " + ids.length + " adapters : " + adapters);
+        return new BlueCoveStack(ids);
+    }
+
+    private static RadioScheduler createScheduler(final BluetoothStack stack) {
+        long aging = Long.getLong(AGING_PERIOD_PROPERTY, 5000);
+        return new RadioScheduler(m_factory, aging, stack.getAdapterCount(), new RadioScheduler.AdapterBinder() {
+            @Override
+            public void bind(int adapter) throws Exception {
+                stack.bind(adapter);
+            }
+        });
+    }
+
+    /**
+     * Installs the bluetooth stack executing the radio operations, such as a {@link SimulatedBluetoothStack}.
+     * The current scheduler is shut down, dropping the waiting tasks and the periodic jobs, and a new one is created
+     * for the adapters of the stack.
+     *
+     * @param stack the stack, <code>null</code> to restore the default BlueCove stack
      */
-    private static ScheduledThreadPoolExecutor m_pool = new ScheduledThreadPoolExecutor(1, m_factory);
+    public static synchronized void setStack(BluetoothStack stack) {
+        BluetoothStack newStack = stack == null ? createDefaultStack() : stack;
+        LoggerFactory.getLogger(BluetoothThreadManager.class).info("Using the bluetooth stack " + newStack.getName()
+                + " (" + newStack.getAdapterCount() + " adapters)");
+        RadioScheduler old = m_pool;
+        m_stack = newStack;
+        m_pool = createScheduler(newStack);
+        old.shutdown();
+    }
+
+    /**
+     * @return the bluetooth stack executing the radio operations.
+     */
+    public static BluetoothStack getStack() {
+        return m_stack;
+    }
+
+    /**
+     * Gets the radio of the adapter bound to the calling thread. Outside the radio worker threads, the radio of the
+     * first adapter is returned.
+     *
+     * @return the radio
+     */
+    public static BluetoothRadio getRadio() {
+        int adapter = RadioScheduler.currentAdapter();
+        return m_stack.getRadio(adapter < 0 ? 0 : adapter);
+    }
 
     /**
      * Schedules a periodic job such as the Device Inquiry
@@ -71,31 +152,137 @@ public class BluetoothThreadManager {
     public static void scheduleJob(Runnable runnable, int period) {
         try {
             LoggerFactory.getLogger(BluetoothThreadManager.class).info("Submitting periodic task " + runnable);
-            m_pool.scheduleWithFixedDelay(runnable, 0, period, TimeUnit.SECONDS);
+            m_pool.schedule(RadioLane.INQUIRY, runnable, period, TimeUnit.SECONDS);
             LoggerFactory.getLogger(BluetoothThreadManager.class).info(runnable
-                    + " submitted - waiting queue " + m_pool.getQueue().size());
+                    + " submitted - waiting queue " + m_pool.getQueueSize());
         } catch (RejectedExecutionException e) {
             LoggerFactory.getLogger(BluetoothThreadManager.class).error("Cannot submit task", e);
         }
     }
 
+    /**
+     * Schedules a periodic job whose period changes over time, such as the Device Inquiry.
+     *
+     * @param runnable the job
+     * @param delay    the delay between two executions
+     */
+    static void scheduleJob(Runnable runnable, RadioScheduler.Delay delay) {
+        try {
+            LoggerFactory.getLogger(BluetoothThreadManager.class).info("Submitting periodic task " + runnable
+                    + " - " + delay);
+            m_pool.schedule(RadioLane.INQUIRY, runnable, delay);
+        } catch (RejectedExecutionException e) {
+            LoggerFactory.getLogger(BluetoothThreadManager.class).error("Cannot submit task", e);
+        }
+    }
+
+    /**
+     * Replaces a periodic job, such as the Device Inquiry, and its delay. The running execution of the job
+     * completes, the next executions run the replacement.
+     *
+     * @param job         the scheduled job
+     * @param replacement the job executed from now on
+     * @param delay       the delay between two executions from now on
+     * @return <code>true</code> if the job was replaced, <code>false</code> if the job is not scheduled, e.g. as the
+     *         scheduler was replaced since
+     */
+    static boolean rescheduleJob(Runnable job, Runnable replacement, RadioScheduler.Delay delay) {
+        boolean replaced = m_pool.reschedule(job, replacement, delay);
+        if (replaced) {
+            LoggerFactory.getLogger(BluetoothThreadManager.class).info("Periodic task " + job + " replaced by "
+                    + replacement + " - " + delay);
+        }
+        return replaced;
+    }
+
+    /**
+     * Cancels a periodic job. The running execution of the job completes.
+     *
+     * @param job the scheduled job
+     * @return <code>true</code> if the job was cancelled, <code>false</code> if it is not scheduled
+     */
+    public static boolean cancelJob(Runnable job) {
+        return m_pool.cancel(job);
+    }
+
     /**
      * Submits a one-shot job that does not return a result such as a Service Inquiry.
-     * the job will be executed when possible.
+     * the job will be executed when possible, in the {@link RadioLane#SDP} lane.
      *
      * @param runnable the job
      */
     public static void submit(Runnable runnable) {
+        submit(RadioLane.SDP, runnable);
+    }
+
+    /**
+     * Submits a one-shot job that does not return a result in the given lane.
+     * the job will be executed when possible.
+     *
+     * @param lane     the lane
+     * @param runnable the job
+     */
+    public static void submit(RadioLane lane, Runnable runnable) {
         try {
-            LoggerFactory.getLogger(BluetoothThreadManager.class).info("Submitting one-shot task " + runnable);
-            m_pool.submit(runnable);
+            LoggerFactory.getLogger(BluetoothThreadManager.class).info("Submitting one-shot task " + runnable
+                    + " to lane " + lane);
+            m_pool.submit(lane, runnable);
             LoggerFactory.getLogger(BluetoothThreadManager.class).info(runnable
-                    + " submitted - waiting queue " + m_pool.getQueue().size());
+                    + " submitted - waiting queue " + m_pool.getQueueSize());
         } catch (RejectedExecutionException e) {
             LoggerFactory.getLogger(BluetoothThreadManager.class).error("Cannot submit task", e);
         }
     }
 
+    /**
+     * Submits a one-shot job targeting a device in the given lane.
+     * If a job of the same lane targeting the same device is still waiting, the new job replaces it, keeping its
+     * place in the queue. So the queue length stays bounded by the number of devices.
+     *
+     * @param lane     the lane
+     * @param address  the bluetooth address of the targeted device
+     * @param runnable the job
+     * @return <code>true</code> if the job was queued, <code>false</code> if it replaced the waiting job, so only one
+     *         of them is executed
+     * @throws RejectedExecutionException if the scheduler is stopped, the job is never executed
+     */
+    public static boolean submit(RadioLane lane, String address, Runnable runnable) {
+        try {
+            if (m_pool.submit(lane, address, runnable)) {
+                LoggerFactory.getLogger(BluetoothThreadManager.class).info(runnable
+                        + " submitted to lane " + lane + " - waiting queue " + m_pool.getQueueSize());
+                return true;
+            }
+            LoggerFactory.getLogger(BluetoothThreadManager.class).info(runnable
+                    + " merged into the waiting task of lane " + lane + " for " + address);
+            return false;
+        } catch (RejectedExecutionException e) {
+            LoggerFactory.getLogger(BluetoothThreadManager.class).error("Cannot submit task", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Executes a one-shot job once the given delay elapsed, such as a delayed retry. The job is executed out of the
+     * radio lanes, so it must not use the radio: it generally submits a job once due.
+     *
+     * @param runnable the job
+     * @param delay    the delay
+     * @param unit     the unit of the delay
+     * @return the future of the job, cancelling it drops the job if not executed yet, <code>null</code> if the job
+     *         cannot be scheduled
+     */
+    public static Future<?> schedule(Runnable runnable, long delay, TimeUnit unit) {
+        try {
+            LoggerFactory.getLogger(BluetoothThreadManager.class).info("Scheduling one-shot task " + runnable
+                    + " in " + unit.toMillis(delay) + " ms");
+            return m_pool.delay(runnable, delay, unit);
+        } catch (RejectedExecutionException e) {
+            LoggerFactory.getLogger(BluetoothThreadManager.class).error("Cannot schedule task", e);
+            return null;
+        }
+    }
+
     /**
      * Submits a one-shot job returning a result. A Future object is returned to get the result.
      * It is strongly recommended to <strong>NOT</strong> interrupt the computation.
@@ -107,9 +294,10 @@ public class BluetoothThreadManager {
     public static <V> Future<V> submit(Callable<V> task) {
         try {
             LoggerFactory.getLogger(BluetoothThreadManager.class).info("Submitting one-shot task " + task);
-            Future<V> future = m_pool.submit(task);
+            FutureTask<V> future = new FutureTask<V>(task);
+            m_pool.submit(RadioLane.SDP, future);
             LoggerFactory.getLogger(BluetoothThreadManager.class).info(task
-                    + " submitted - waiting queue " + m_pool.getQueue().size());
+                    + " submitted - waiting queue " + m_pool.getQueueSize());
             return future;
         } catch (RejectedExecutionException e) {
             LoggerFactory.getLogger(BluetoothThreadManager.class).error("Cannot submit task", e);
@@ -118,13 +306,43 @@ public class BluetoothThreadManager {
     }
 
     /**
-     * Shutdowns the pool.
-     * No task can be submitted once this method is called.
+     * @return the number of adapters used to execute the actions.
+     */
+    public static int getAdapterCount() {
+        return m_pool.getAdapterCount();
+    }
+
+    /**
+     * Gets the adapter executing the operations submitted with the given key.
+     *
+     * @param address the bluetooth address of the targeted device
+     * @return the index of the adapter
+     */
+    static int getAdapter(String address) {
+        return m_pool.getAdapter(address);
+    }
+
+    /**
+     * Gets the wait time statistics of each lane.
+     *
+     * @return a snapshot of the statistics, by lane
+     */
+    public static Map<RadioLane, LaneStatistics> getLaneStatistics() {
+        return m_pool.getStatistics();
+    }
+
+    /**
+     * Shutdowns the pool: the waiting tasks and the periodic jobs are dropped, and the running ones are interrupted.
+     * A new pool is created for the current stack, so the discovery can be started again.
      */
-    public static void stopScheduler() {
+    public static synchronized void stopScheduler() {
         LoggerFactory.getLogger(BluetoothThreadManager.class).info("Shutdown scheduler");
+        RadioScheduler old = m_pool;
+        m_pool = createScheduler(m_stack);
         try {
-            m_pool.shutdownNow();
+            LoggerFactory.getLogger(BluetoothThreadManager.class).info("Lane statistics : "
+                    + old.getStatistics().values());
+            old.shutdown();
         } catch (Throwable e) {
             // Ignore.
             LoggerFactory.getLogger(BluetoothThreadManager.class).info("Exception during shutdown : ", e);
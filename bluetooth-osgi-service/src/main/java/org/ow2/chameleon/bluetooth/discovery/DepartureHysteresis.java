@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.RemoteDevice;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides when a device missing from the inquiries is checked, and possibly withdrawn.
+ * Inquiries routinely miss devices which are present: withdrawing a device withdraws its services too, which are
+ * searched again when the next inquiry finds it. So a missing device is only checked once it has missed a number of
+ * consecutive inquiries <em>and</em> has not been seen for a grace period.
+ * <p/>
+ * The flaps are counted: the devices found again while waiting (absorbed flaps), and the devices registered again
+ * shortly after their departure (remaining flaps). This class is thread-safe.
+ */
+class DepartureHysteresis {
+
+    /**
+     * The time in milliseconds after a departure during which a new arrival of the device is counted as a flap.
+     */
+    static final long FLAP_WINDOW = 10 * 60 * 1000L;
+
+    /**
+     * The maximum number of departures remembered to detect the flaps.
+     */
+    static final int MAX_DEPARTURES = 1024;
+
+    private int m_misses;
+
+    private long m_gracePeriod;
+
+    private long m_deferred;
+
+    private long m_absorbed;
+
+    private long m_departures;
+
+    private long m_flaps;
+
+    /**
+     * The recent departure times, by address.
+     */
+    private final Map<Long, Long> m_departed = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_DEPARTURES;
+        }
+    };
+
+    /**
+     * Creates a {@link DepartureHysteresis}.
+     *
+     * @param misses      the number of consecutive inquiries a device must miss before being checked
+     * @param gracePeriod the time in milliseconds a device must not have been seen before being checked
+     */
+    DepartureHysteresis(int misses, long gracePeriod) {
+        setMisses(misses);
+        setGracePeriod(gracePeriod);
+    }
+
+    synchronized void setMisses(int misses) {
+        m_misses = Math.max(1, misses);
+    }
+
+    synchronized void setGracePeriod(long gracePeriod) {
+        m_gracePeriod = Math.max(0, gracePeriod);
+    }
+
+    /**
+     * Checks whether a missing device must be checked.
+     *
+     * @param misses   the number of consecutive inquiries the device missed
+     * @param lastSeen the last time the device was seen, in milliseconds
+     * @return <code>true</code> if the device must be checked, <code>false</code> to wait for the next inquiries
+     */
+    synchronized boolean isDeparted(int misses, long lastSeen) {
+        if (misses >= m_misses && System.currentTimeMillis() - lastSeen >= m_gracePeriod) {
+            return true;
+        }
+        m_deferred++;
+        return false;
+    }
+
+    /**
+     * Records the devices found again while waiting.
+     *
+     * @param count the number of devices
+     */
+    synchronized void recovered(int count) {
+        m_absorbed += count;
+    }
+
+    /**
+     * Records the departure of a device.
+     *
+     * @param device the withdrawn device
+     */
+    synchronized void departed(RemoteDevice device) {
+        m_departures++;
+        m_departed.put(DeviceRegistry.address(device), System.currentTimeMillis());
+    }
+
+    /**
+     * Records the arrival of a device, counting a flap if the device left recently.
+     *
+     * @param device the registered device
+     */
+    synchronized void arrived(RemoteDevice device) {
+        Long departure = m_departed.remove(DeviceRegistry.address(device));
+        if (departure != null && System.currentTimeMillis() - departure <= FLAP_WINDOW) {
+            m_flaps++;
+        }
+    }
+
+    /**
+     * @return a snapshot of the statistics.
+     */
+    synchronized DepartureStatistics getStatistics() {
+        return new DepartureStatistics(m_deferred, m_absorbed, m_departures, m_flaps);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+/**
+ * Statistics of the device departures, showing the churn removed by the departure hysteresis.
+ * Instances returned by the discovery are snapshots, they are not updated afterwards.
+ */
+public class DepartureStatistics {
+
+    private final long m_deferred;
+
+    private final long m_absorbed;
+
+    private final long m_departures;
+
+    private final long m_flaps;
+
+    DepartureStatistics(long deferred, long absorbed, long departures, long flaps) {
+        m_deferred = deferred;
+        m_absorbed = absorbed;
+        m_departures = departures;
+        m_flaps = flaps;
+    }
+
+    /**
+     * @return the number of times a missing device was kept without check, waiting for the next inquiries.
+     */
+    public long getDeferred() {
+        return m_deferred;
+    }
+
+    /**
+     * @return the number of devices found again after missing inquiries, without being withdrawn.
+     */
+    public long getAbsorbedFlaps() {
+        return m_absorbed;
+    }
+
+    /**
+     * @return the number of devices withdrawn because they were lost.
+     */
+    public long getDepartures() {
+        return m_departures;
+    }
+
+    /**
+     * @return the number of devices registered again less than 10 minutes after their departure.
+     */
+    public long getFlaps() {
+        return m_flaps;
+    }
+
+    @Override
+    public String toString() {
+        return "DepartureStatistics[deferred=" + m_deferred + ", absorbedFlaps=" + m_absorbed + ", departures="
+                + m_departures + ", flaps=" + m_flaps + "]";
+    }
+}
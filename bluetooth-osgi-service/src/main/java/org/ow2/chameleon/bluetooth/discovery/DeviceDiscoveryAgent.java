@@ -15,6 +15,7 @@
 
 package org.ow2.chameleon.bluetooth.discovery;
 
+import org.ow2.chameleon.bluetooth.devices.Device;
 import org.ow2.chameleon.bluetooth.discovery.BluetoothDeviceDiscovery.DiscoveryMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,13 +24,11 @@ import javax.bluetooth.BluetoothStateException;
 import javax.bluetooth.DeviceClass;
 import javax.bluetooth.DiscoveryAgent;
 import javax.bluetooth.DiscoveryListener;
-import javax.bluetooth.LocalDevice;
 import javax.bluetooth.RemoteDevice;
 import javax.bluetooth.ServiceRecord;
-import javax.bluetooth.UUID;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
 public class DeviceDiscoveryAgent implements Runnable {
@@ -42,29 +41,65 @@ public class DeviceDiscoveryAgent implements Runnable {
 
     private final boolean m_onlineCheckOnDiscovery;
 
+    /**
+     * Whether the found devices are handed to the parent as soon as they are found (and checked online), in
+     * addition to the whole result at the end of the inquiry.
+     */
+    private final boolean m_streaming;
+
     private final BluetoothDeviceDiscovery m_parent;
 
+    /**
+     * The deadline of the inquiry. Its maximum also bounds the online checks, which start once the inquiry completes.
+     */
+    private final OperationDeadline m_deadline;
+
+    /**
+     * The probes checking the found devices, if the online check is enabled.
+     */
+    private final PresenceProbes m_probes;
+
     private DeviceDiscoveryListener m_listener;
 
+    /**
+     * Whether the inquiry (and the online checks) are completed. Guarded by the lock.
+     */
+    private boolean m_completed;
+
+
+    DeviceDiscoveryAgent(BluetoothDeviceDiscovery parent, DiscoveryMode mode, boolean onlineCheckOnDiscovery,
+                         OperationDeadline deadline) {
+        this(parent, mode, onlineCheckOnDiscovery, false, deadline);
+    }
+
+    DeviceDiscoveryAgent(BluetoothDeviceDiscovery parent, DiscoveryMode mode, boolean onlineCheckOnDiscovery,
+                         boolean streaming, OperationDeadline deadline) {
+        this(parent, mode, onlineCheckOnDiscovery, streaming, deadline, new PresenceProbes());
+    }
 
-    DeviceDiscoveryAgent(BluetoothDeviceDiscovery parent, DiscoveryMode mode, boolean onlineCheckOnDiscovery) {
+    DeviceDiscoveryAgent(BluetoothDeviceDiscovery parent, DiscoveryMode mode, boolean onlineCheckOnDiscovery,
+                         boolean streaming, OperationDeadline deadline, PresenceProbes probes) {
         m_mode = mode;
         m_parent = parent;
         m_onlineCheckOnDiscovery = onlineCheckOnDiscovery;
+        m_streaming = streaming;
+        m_deadline = deadline;
+        m_probes = probes;
     }
 
     @Override
     public void run() {
         try {
             m_logger.info("Running Device Discovery Agent");
-            LocalDevice local = initialize();
-            if (!LocalDevice.isPowerOn() || local == null) {
-                m_logger.info("Device discovery aborted - cannot get the local device");
+            BluetoothRadio radio = BluetoothThreadManager.getRadio();
+            if (!radio.isPowerOn()) {
+                m_logger.info("Device discovery aborted - the bluetooth adapter is not ready");
                 m_parent.discovered(null);
                 return;
             }
+            m_logger.info("Initialize : Address: " + radio.getAddress());
 
-            doInquiry(local);
+            doInquiry(radio);
         } catch (Throwable e) {
             m_logger.error("Unexpected exception during device inquiry", e);
         }
@@ -79,35 +114,65 @@ public class DeviceDiscoveryAgent implements Runnable {
         return m_listener;
     }
 
-    void doInquiry(LocalDevice local) {
+    void doInquiry(BluetoothRadio radio) {
         try {
             m_logger.info("Starting device inquiry...");
+            synchronized (m_lock) {
+                m_completed = false;
+            }
+            long start = System.currentTimeMillis();
+            long deadline = m_deadline.getDeadline();
 
+            m_listener = new DeviceDiscoveryListener();
+            radio.startInquiry(getDiscoveryMode(), m_listener);
 
-            if (!Env.isTestEnvironmentEnabled()) {
-                DiscoveryAgent agent = local.getDiscoveryAgent();
-                m_listener = new DeviceDiscoveryListener(agent);
-                agent.startInquiry(getDiscoveryMode(), m_listener);
-            } else {
-                m_logger.warn("=== TEST ENVIRONMENT ENABLED ===");
-                m_listener = new DeviceDiscoveryListener(null);
+            // Wait until the inquiry is done, or the deadline expires.
+            boolean timedOut;
+            synchronized (m_lock) {
+                try {
+                    long remaining = deadline;
+                    while (!m_completed && remaining > 0) {
+                        m_lock.wait(remaining);
+                        remaining = deadline - (System.currentTimeMillis() - start);
+                    }
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+                timedOut = !m_completed && System.currentTimeMillis() - start >= deadline;
             }
 
-            // Wait until the inquiry is done.
-            try {
-                synchronized (m_lock) {
-                    //TODO Define a timeout.
-                    m_lock.wait();
+            if (timedOut) {
+                // The stack did not call us back, cancel the inquiry and skip this cycle.
+                m_deadline.timedOut();
+                DiscoveryMetricsRecorder.getDefault().record(DiscoveryMetricsRecorder.INQUIRY, System.currentTimeMillis() - start, false);
+                m_logger.warn("Device inquiry not completed after " + deadline + " ms, cancelling it - " + m_deadline);
+                m_listener.cancel(radio);
+                return;
+            }
+
+            long duration = System.currentTimeMillis() - start;
+            m_deadline.record(duration);
+            DiscoveryMetricsRecorder.getDefault().record(DiscoveryMetricsRecorder.INQUIRY, duration, true);
+
+            if (m_onlineCheckOnDiscovery) {
+                long budget = m_deadline.getMaximum();
+                if (!checkOnline(radio, System.currentTimeMillis(), budget)) {
+                    // The devices checked so far are delivered, the others miss this cycle.
+                    m_logger.warn("Online check not completed after " + budget + " ms, delivering the devices "
+                            + "checked so far");
                 }
-            } catch (InterruptedException e) {
-                // Ignore.
             }
+
             Set<RemoteDevice> discoveredDevices = m_listener.getDiscoveredDevices();
             m_logger.info("Injecting found devices " + discoveredDevices + " to the parent");
             m_parent.discovered(discoveredDevices);
         } catch (BluetoothStateException e1) {
             m_logger.error("Device discovery aborted", e1);
             m_parent.discovered(null);
+        } catch (InterruptedException e) {
+            // we're stopping, aborting the discovery.
+            m_logger.warn("Interrupting the online check - interruption");
+            Thread.currentThread().interrupt();
         } finally {
             m_listener = null;
         }
@@ -115,19 +180,40 @@ public class DeviceDiscoveryAgent implements Runnable {
     }
 
 
-    private LocalDevice initialize() {
-        LocalDevice local;
-        try {
-            local = LocalDevice.getLocalDevice();
-            m_logger.info("Initialize : "
-                    + "Address: " + local.getBluetoothAddress() + " ; "
-                    + "Name: " + local.getFriendlyName());
-        } catch (BluetoothStateException e) {
-            m_logger.error("Bluetooth Adapter not started.");
-            return null;
+    /**
+     * Checks the presence of the devices found by the inquiry, one after the other, until the budget of the checks
+     * expires. Each device is checked with the probe set by its fleet entry, the <tt>handle</tt> probe by default,
+     * bounded by the deadline of this probe. The probes without radio operation accept the device, as the inquiry
+     * has just found it. The devices not checked before the budget expires are left out of the result.
+     *
+     * @param radio  the radio
+     * @param start  the start time of the checks
+     * @param budget the maximum duration of the checks in milliseconds, a started probe is not interrupted
+     * @return <code>false</code> if the budget expired before all the devices were checked
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private boolean checkOnline(BluetoothRadio radio, long start, long budget) throws InterruptedException {
+        // On windows, even lost device may be re-discovered once they are paired.
+        // We need a way to check their presence => This is a bug in the Windows stack:
+        // http://code.google.com/p/bluecove/issues/detail?id=51
+        // Paired devices are kept forever.
+        List<RemoteDevice> candidates = m_listener.getCandidates();
+        m_logger.info("Checking the availability of " + candidates.size() + " devices");
+        for (RemoteDevice remote : candidates) {
+            if (System.currentTimeMillis() - start >= budget) {
+                return false;
+            }
+            Device entry = m_probes.getEntry(remote, null);
+            PresenceProbe probe = m_probes.select(entry, PresenceProbes.HANDLE);
+            if (!probe.isRadioRequired() || m_probes.probe(probe, radio, remote, entry, Long.MAX_VALUE)) {
+                m_logger.info("Online check of " + remote.getBluetoothAddress() + " completed successfully, "
+                        + "injecting device");
+                m_listener.found(remote);
+            } else {
+                m_logger.warn("Device " + remote.getBluetoothAddress() + " not reachable");
+            }
         }
-        return local;
-
+        return true;
     }
 
     /**
@@ -154,101 +240,90 @@ public class DeviceDiscoveryAgent implements Runnable {
 
         private Set<RemoteDevice> m_discoveredDevices = new HashSet<RemoteDevice>();
 
-        private DiscoveryAgent m_agent;
-
         /**
-         * Map maintaining the current service discovery on discovered device.
-         * The Key is the transaction id and the value is the tested device
-         * The entry is removed when the service discovery ends.
+         * The devices found by the inquiry and waiting for their online check, in discovery order.
          */
-        private Map<Integer, RemoteDevice> m_serviceDiscoveryInProgress = new HashMap<Integer, RemoteDevice>();
+        private List<RemoteDevice> m_candidates = new ArrayList<RemoteDevice>();
 
         private boolean m_inquiryCompleted;
 
-        public DeviceDiscoveryListener(DiscoveryAgent agent) {
-            m_agent = agent;
-        }
-
         @Override
         public void deviceDiscovered(RemoteDevice remote, DeviceClass clazz) {
+            boolean found = false;
             synchronized (this) {
                 try {
                     m_logger.info("Device discovered : " + remote.getBluetoothAddress() + " " + remote.getFriendlyName(false));
                     if (m_onlineCheckOnDiscovery) {
-                        // On windows, even lost device may be re-discovered once they are paired.
-                        // We need a way to check their presence => This is a bug in the Windows stack:
-                        // http://code.google.com/p/bluecove/issues/detail?id=51
-                        // Paired devices are kept forever.
-                        m_logger.info("Start service discovery on : " + remote.getBluetoothAddress() + " to ensure availability");
-                        int transId = m_agent.searchServices(null, new UUID[]{new UUID(0x0001)}, remote, this);
-                        m_serviceDiscoveryInProgress.put(transId, remote);
+                        // The devices are checked once the inquiry is completed, in a single batch.
+                        m_logger.info("Online check of " + remote.getBluetoothAddress() + " queued to ensure availability");
+                        if (!m_candidates.contains(remote)) {
+                            m_candidates.add(remote);
+                        }
                     } else {
                         // We add the device.
                         m_logger.info("Device discovery completed successfully, injecting device (no online check)");
                         m_discoveredDevices.add(remote);
+                        found = true;
                     }
                 } catch (Throwable e) {
                     m_logger.error("Something really bad happened during the device discovery", e);
                 }
             }
+            if (found) {
+                stream(remote);
+            }
         }
 
-        @Override
-        public void inquiryCompleted(int result) {
-            m_logger.info("Inquiry completed : " + result);
-            if (result == INQUIRY_ERROR || result == INQUIRY_TERMINATED) {
-                m_logger.info("The inquiry was not successfully completed");
-                m_discoveredDevices.clear();
-            }
-            m_inquiryCompleted = true;
-            // In the online check is disable the map will never be populated, so it's empty.
-            if (m_serviceDiscoveryInProgress.isEmpty()) {
-                synchronized (m_lock) {
-                    m_logger.info("Device inquiry and online check done, releasing lock");
-                    m_lock.notifyAll();
-                }
-            } else {
-                m_logger.info("Waiting for " + m_serviceDiscoveryInProgress.size() + " service discovery to complete");
+        /**
+         * Adds a device having passed its online check.
+         *
+         * @param remote the device
+         */
+        void found(RemoteDevice remote) {
+            synchronized (this) {
+                m_discoveredDevices.add(remote);
             }
+            stream(remote);
         }
 
         /**
-         * This callback will be called only if the online check is enabled.
-         * The purpose of this method is to just check that a device is still around.
+         * Hands a found device to the parent while the inquiry goes on, if the streaming mode is enabled.
+         * This runs outside of the listener lock.
          *
-         * @param transID  the transaction id
-         * @param respCode the response code
+         * @param remote the device
          */
+        private void stream(RemoteDevice remote) {
+            if (!m_streaming) {
+                return;
+            }
+            try {
+                m_parent.deviceFound(remote);
+            } catch (Throwable e) {
+                m_logger.error("Cannot handle the device " + remote.getBluetoothAddress() + " found by the inquiry", e);
+            }
+        }
+
         @Override
-        public void serviceSearchCompleted(int transID, int respCode) {
-            RemoteDevice remote = null; // Stack confinement.
+        public void inquiryCompleted(int result) {
+            m_logger.info("Inquiry completed : " + result);
             synchronized (this) {
-                remote = m_serviceDiscoveryInProgress.remove(transID);
-                if (remote == null) {
-                    m_logger.warn("No remote device associated with the transaction id : " + transID);
-                    return;
+                if (result == INQUIRY_ERROR || result == INQUIRY_TERMINATED) {
+                    m_logger.info("The inquiry was not successfully completed");
+                    m_discoveredDevices.clear();
+                    m_candidates.clear();
                 }
+                m_inquiryCompleted = true;
             }
-
-            m_logger.info("Service search completed for " + remote.getBluetoothAddress() + " with result : " + respCode);
-            if (respCode == DiscoveryListener.SERVICE_SEARCH_COMPLETED || respCode == DiscoveryListener.SERVICE_SEARCH_NO_RECORDS) {
-                m_logger.info("Service discovery completed successfully, injecting device");
-                m_discoveredDevices.add(remote);
-            } else if (respCode == DiscoveryListener.SERVICE_SEARCH_DEVICE_NOT_REACHABLE) {
-                m_logger.warn("Device " + remote + " not reachable");
-            } else {
-                m_logger.warn("Device " + remote + " has not terminated successfully: " + respCode);
+            synchronized (m_lock) {
+                m_logger.info("Device inquiry done, releasing lock");
+                m_completed = true;
+                m_lock.notifyAll();
             }
+        }
 
-            if (m_inquiryCompleted && m_serviceDiscoveryInProgress.isEmpty()) {
-                synchronized (m_lock) {
-                    m_logger.info("Device inquiry and online check done, releasing lock");
-                    m_lock.notifyAll();
-                }
-            } else {
-                m_logger.info("Waiting for " + m_serviceDiscoveryInProgress.size() + " service discovery to complete " +
-                        "(device inquiry completed: " + m_inquiryCompleted + ")");
-            }
+        @Override
+        public void serviceSearchCompleted(int transID, int respCode) {
+            // Not used here, the online checks are run by the presence probes.
         }
 
         @Override
@@ -257,9 +332,31 @@ public class DeviceDiscoveryAgent implements Runnable {
             // We ignore the found services.
         }
 
-        public Set<RemoteDevice> getDiscoveredDevices() {
+        public synchronized Set<RemoteDevice> getDiscoveredDevices() {
             return m_discoveredDevices;
         }
+
+        /**
+         * @return a copy of the devices waiting for their online check.
+         */
+        synchronized List<RemoteDevice> getCandidates() {
+            return new ArrayList<RemoteDevice>(m_candidates);
+        }
+
+        /**
+         * Cancels the inquiry.
+         *
+         * @param radio the radio running the inquiry
+         */
+        void cancel(BluetoothRadio radio) {
+            boolean completed;
+            synchronized (this) {
+                completed = m_inquiryCompleted;
+            }
+            if (!completed) {
+                radio.cancelInquiry(this);
+            }
+        }
     }
 
 
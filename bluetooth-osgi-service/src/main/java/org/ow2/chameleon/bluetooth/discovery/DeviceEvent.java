@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A change of the published devices or of their services, delivered in a {@link DeviceEventBatch}.
+ */
+public class DeviceEvent {
+
+    /**
+     * Kind of change.
+     */
+    public enum Type {
+        /**
+         * The device is registered.
+         */
+        ARRIVED,
+        /**
+         * The device is withdrawn.
+         */
+        DEPARTED,
+        /**
+         * The name of a registered device is resolved or changed.
+         */
+        NAME_CHANGED,
+        /**
+         * Services of the device are registered, updated or withdrawn.
+         */
+        SERVICES_CHANGED
+    }
+
+    private final Type m_type;
+
+    private final String m_address;
+
+    private final RemoteDevice m_device;
+
+    private final String m_name;
+
+    private final List<ServiceRecord> m_added;
+
+    private final List<ServiceRecord> m_modified;
+
+    private final List<ServiceRecord> m_removed;
+
+    DeviceEvent(Type type, String address, RemoteDevice device, String name) {
+        this(type, address, device, name, Collections.<ServiceRecord>emptyList(),
+                Collections.<ServiceRecord>emptyList(), Collections.<ServiceRecord>emptyList());
+    }
+
+    DeviceEvent(Type type, String address, RemoteDevice device, String name, List<ServiceRecord> added,
+                List<ServiceRecord> modified, List<ServiceRecord> removed) {
+        m_type = type;
+        m_address = address;
+        m_device = device;
+        m_name = name;
+        m_added = Collections.unmodifiableList(added);
+        m_modified = Collections.unmodifiableList(modified);
+        m_removed = Collections.unmodifiableList(removed);
+    }
+
+    public Type getType() {
+        return m_type;
+    }
+
+    /**
+     * @return the bluetooth address of the device.
+     */
+    public String getAddress() {
+        return m_address;
+    }
+
+    /**
+     * @return the device, <code>null</code> if the services of a device are withdrawn while the discovery stops.
+     */
+    public RemoteDevice getDevice() {
+        return m_device;
+    }
+
+    /**
+     * @return the name of the device, <code>null</code> if it is unknown.
+     */
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * @return the registered service records, empty unless the type is {@link Type#SERVICES_CHANGED}.
+     */
+    public List<ServiceRecord> getAddedServices() {
+        return m_added;
+    }
+
+    /**
+     * @return the service records whose registration is updated, empty unless the type is
+     * {@link Type#SERVICES_CHANGED}.
+     */
+    public List<ServiceRecord> getModifiedServices() {
+        return m_modified;
+    }
+
+    /**
+     * @return the withdrawn service records, empty unless the type is {@link Type#SERVICES_CHANGED}.
+     */
+    public List<ServiceRecord> getRemovedServices() {
+        return m_removed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("DeviceEvent[").append(m_type).append(' ').append(m_address);
+        if (m_name != null) {
+            builder.append(" (").append(m_name).append(')');
+        }
+        if (m_type == Type.SERVICES_CHANGED) {
+            builder.append(" added=").append(m_added.size()).append(", modified=").append(m_modified.size())
+                    .append(", removed=").append(m_removed.size());
+        }
+        return builder.append(']').toString();
+    }
+}
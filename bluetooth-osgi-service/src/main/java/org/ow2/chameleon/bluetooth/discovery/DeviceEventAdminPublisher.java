@@ -0,0 +1,71 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Requires;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Forwards the device changes to the Event Admin, when it is available. Each {@link DeviceEvent} is posted on the
+ * <tt>org/ow2/chameleon/bluetooth/device/&lt;TYPE&gt;</tt> topic (e.g. <tt>.../device/ARRIVED</tt>), with the
+ * sequence number of its batch and its position in the batch, so the handlers can restore the order of the changes.
+ * <p/>
+ * The <tt>org.osgi.service.event</tt> package is a mandatory import of the bundle, the publisher being always
+ * instantiated. It stays invalid, and the events are not posted, until an Event Admin service is published.
+ */
+@Component(public_factory = false)
+@Provides
+@Instantiate(name = "BluetoothDeviceEventAdminPublisher")
+public class DeviceEventAdminPublisher implements DeviceListener {
+
+    /**
+     * The prefix of the topics.
+     */
+    public static final String TOPIC_PREFIX = "org/ow2/chameleon/bluetooth/device/";
+
+    @Requires
+    private EventAdmin m_eventAdmin;
+
+    @Override
+    public void devicesChanged(DeviceEventBatch batch) {
+        int index = 0;
+        for (DeviceEvent event : batch.getEvents()) {
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("sequence", batch.getSequence());
+            properties.put("index", index++);
+            properties.put("device.id", event.getAddress());
+            if (event.getDevice() != null) {
+                properties.put("device", event.getDevice());
+            }
+            if (event.getName() != null) {
+                properties.put("device.name", event.getName());
+            }
+            if (event.getType() == DeviceEvent.Type.SERVICES_CHANGED) {
+                properties.put("services.added", event.getAddedServices());
+                properties.put("services.modified", event.getModifiedServices());
+                properties.put("services.removed", event.getRemovedServices());
+            }
+            m_eventAdmin.postEvent(new Event(TOPIC_PREFIX + event.getType(), properties));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ordered changes of a discovery cycle. The batches are numbered in sequence: a listener missing a sequence
+ * number has missed a batch, e.g. while it was not bound.
+ */
+public class DeviceEventBatch {
+
+    private final long m_sequence;
+
+    private final long m_timestamp;
+
+    private final List<DeviceEvent> m_events;
+
+    DeviceEventBatch(long sequence, long timestamp, List<DeviceEvent> events) {
+        m_sequence = sequence;
+        m_timestamp = timestamp;
+        m_events = Collections.unmodifiableList(events);
+    }
+
+    /**
+     * @return the sequence number of the batch, incremented by one for each batch.
+     */
+    public long getSequence() {
+        return m_sequence;
+    }
+
+    /**
+     * @return the time at which the batch was closed, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return m_timestamp;
+    }
+
+    /**
+     * @return the events, in the order of the changes. A device can appear several times, e.g. arrived then named.
+     */
+    public List<DeviceEvent> getEvents() {
+        return m_events;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceEventBatch[" + m_sequence + ", " + m_events.size() + " events]";
+    }
+}
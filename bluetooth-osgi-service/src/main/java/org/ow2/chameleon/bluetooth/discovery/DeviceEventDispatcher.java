@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the changes of the devices and services, and delivers them to the {@link DeviceListener}s as one batch
+ * per discovery cycle.
+ * <p/>
+ * The device and service discoveries post their changes as they happen, the device discovery closes the batch at
+ * the end of each cycle. The changes completed after the end of a cycle (presence checks, pairings, service
+ * searches) are part of the next batch. The batches are delivered on a single thread, in sequence, so the radio
+ * threads never call the listeners. While no listener is bound, the changes are not recorded.
+ */
+final class DeviceEventDispatcher {
+
+    /**
+     * The dispatcher shared by the device and service discoveries.
+     */
+    private static final DeviceEventDispatcher DEFAULT = new DeviceEventDispatcher();
+
+    private final Logger m_logger = LoggerFactory.getLogger(DeviceEventDispatcher.class);
+
+    private final List<DeviceListener> m_listeners = new CopyOnWriteArrayList<DeviceListener>();
+
+    /**
+     * The changes of the current batch, guarded by the dispatcher.
+     */
+    private List<DeviceEvent> m_pending = new ArrayList<DeviceEvent>();
+
+    /**
+     * The sequence number of the last batch, guarded by the dispatcher.
+     */
+    private long m_sequence;
+
+    /**
+     * The thread delivering the batches, created by the first batch after a shutdown. Guarded by the dispatcher.
+     */
+    private ExecutorService m_executor;
+
+    /**
+     * @return the dispatcher shared by the device and service discoveries.
+     */
+    static DeviceEventDispatcher getDefault() {
+        return DEFAULT;
+    }
+
+    void addListener(DeviceListener listener) {
+        m_listeners.add(listener);
+    }
+
+    void removeListener(DeviceListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    /**
+     * Adds a change to the current batch.
+     *
+     * @param event the change
+     */
+    synchronized void post(DeviceEvent event) {
+        if (!m_listeners.isEmpty()) {
+            m_pending.add(event);
+        }
+    }
+
+    /**
+     * Closes the current batch and delivers it, unless it is empty.
+     *
+     * @return the closed batch, <code>null</code> if there was no change
+     */
+    synchronized DeviceEventBatch flush() {
+        if (m_pending.isEmpty()) {
+            return null;
+        }
+        final DeviceEventBatch batch = new DeviceEventBatch(++m_sequence, System.currentTimeMillis(), m_pending);
+        m_pending = new ArrayList<DeviceEvent>();
+        if (m_executor == null) {
+            m_executor = createExecutor();
+        }
+        // Submitted under the lock, the batches are delivered in sequence.
+        m_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliver(batch);
+            }
+        });
+        return batch;
+    }
+
+    /**
+     * Stops the delivery thread once the batches already closed are delivered, so it does not outlive the bundle.
+     * A new thread is created by the next batch, when the discovery starts again.
+     */
+    synchronized void shutdown() {
+        if (m_executor != null) {
+            m_executor.shutdown();
+            m_executor = null;
+        }
+    }
+
+    /**
+     * @return whether the delivery thread is started.
+     */
+    synchronized boolean isStarted() {
+        return m_executor != null;
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable target) {
+                Thread thread = new Thread(target, "Bluetooth Device Events");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // A batch closed after a component stopped does not keep the thread forever.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return the sequence number of the last batch, 0 if none.
+     */
+    synchronized long getSequence() {
+        return m_sequence;
+    }
+
+    private void deliver(DeviceEventBatch batch) {
+        for (DeviceListener listener : m_listeners) {
+            try {
+                listener.devicesChanged(batch);
+            } catch (RuntimeException e) {
+                m_logger.error("Device listener " + listener + " failed to handle " + batch, e);
+            }
+        }
+    }
+}
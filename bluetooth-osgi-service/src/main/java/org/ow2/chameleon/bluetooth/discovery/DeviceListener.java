@@ -0,0 +1,34 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+/**
+ * Listener of the changes of the published devices and services, published as an OSGi service (whiteboard).
+ * <p/>
+ * Instead of one service event per registration, the listener receives one {@link DeviceEventBatch} per discovery
+ * cycle, holding the arrivals, departures, name changes and service changes in their order. The batches are
+ * delivered one at a time, in sequence, on a dedicated thread: a slow listener delays the next batches, but not the
+ * discovery.
+ */
+public interface DeviceListener {
+
+    /**
+     * Receives the changes of a discovery cycle.
+     *
+     * @param batch the changes, never empty
+     */
+    void devicesChanged(DeviceEventBatch batch);
+}
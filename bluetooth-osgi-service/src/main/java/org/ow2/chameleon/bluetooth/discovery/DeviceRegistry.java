@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.osgi.framework.ServiceRegistration;
+
+import javax.bluetooth.RemoteDevice;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The devices published by the {@link BluetoothDeviceDiscovery}, indexed by their 48-bit bluetooth address.
+ * <p/>
+ * The index does not rely on the {@link RemoteDevice} identity or equality: the raw device returned by an inquiry and
+ * the {@link RemoteNamedDevice} wrapping it are the same entry. All methods are thread safe.
+ */
+class DeviceRegistry {
+
+    private final Map<Long, Entry> m_entries = new HashMap<Long, Entry>();
+
+    /**
+     * Computes the index key of a device.
+     *
+     * @param device the device
+     * @return the 48-bit address of the device
+     */
+    static long address(RemoteDevice device) {
+        return Long.parseLong(device.getBluetoothAddress(), 16);
+    }
+
+    public synchronized boolean contains(RemoteDevice device) {
+        return m_entries.containsKey(address(device));
+    }
+
+    public synchronized int size() {
+        return m_entries.size();
+    }
+
+    /**
+     * Adds a published device.
+     *
+     * @param device       the published device
+     * @param registration the registration of the device service
+     * @return <code>false</code> if a device with the same address is already registered, the registry is unchanged
+     */
+    public boolean add(RemoteDevice device, ServiceRegistration registration) {
+        return add(device, registration, new Hashtable<String, Object>());
+    }
+
+    /**
+     * Adds a published device.
+     *
+     * @param device       the published device
+     * @param registration the registration of the device service
+     * @param properties   the properties of the device service
+     * @return <code>false</code> if a device with the same address is already registered, the registry is unchanged
+     */
+    public synchronized boolean add(RemoteDevice device, ServiceRegistration registration,
+                                    Dictionary<String, Object> properties) {
+        Long key = address(device);
+        if (m_entries.containsKey(key)) {
+            return false;
+        }
+        m_entries.put(key, new Entry(device, registration, properties));
+        return true;
+    }
+
+    /**
+     * Sets a property of a published device, updating its service registration if the value changes.
+     *
+     * @param device the device
+     * @param key    the property
+     * @param value  the new value
+     * @return <code>true</code> if the registration was updated, <code>false</code> if the device is not registered
+     * or the value is unchanged
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized boolean update(RemoteDevice device, String key, Object value) {
+        Entry entry = m_entries.get(address(device));
+        if (entry == null || value.equals(entry.m_properties.get(key))) {
+            return false;
+        }
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        for (Enumeration<String> keys = entry.m_properties.keys(); keys.hasMoreElements(); ) {
+            String k = keys.nextElement();
+            properties.put(k, entry.m_properties.get(k));
+        }
+        properties.put(key, value);
+        entry.m_registration.setProperties(properties);
+        entry.m_properties = properties;
+        return true;
+    }
+
+    /**
+     * Removes the device having the address of the given device.
+     *
+     * @param device the device
+     * @return the registration of the removed device, <code>null</code> if the device is not registered
+     */
+    public synchronized ServiceRegistration remove(RemoteDevice device) {
+        Entry entry = m_entries.remove(address(device));
+        return entry == null ? null : entry.m_registration;
+    }
+
+    /**
+     * Removes all the devices.
+     *
+     * @return the removed devices and their registration
+     */
+    public synchronized Map<RemoteDevice, ServiceRegistration> clear() {
+        Map<RemoteDevice, ServiceRegistration> removed = new LinkedHashMap<RemoteDevice, ServiceRegistration>();
+        for (Entry entry : m_entries.values()) {
+            removed.put(entry.m_device, entry.m_registration);
+        }
+        m_entries.clear();
+        return removed;
+    }
+
+    /**
+     * @return a copy of the registered devices.
+     */
+    public synchronized List<RemoteDevice> getDevices() {
+        List<RemoteDevice> devices = new ArrayList<RemoteDevice>(m_entries.size());
+        for (Entry entry : m_entries.values()) {
+            devices.add(entry.m_device);
+        }
+        return devices;
+    }
+
+    /**
+     * Gets the last time a registered device was registered or found by an inquiry.
+     *
+     * @param device the device
+     * @return the time in milliseconds, -1 if the device is not registered
+     */
+    public synchronized long getLastSeen(RemoteDevice device) {
+        Entry entry = m_entries.get(address(device));
+        return entry == null ? -1 : entry.m_lastSeen;
+    }
+
+    /**
+     * Gets the number of consecutive inquiries a registered device is missing from.
+     *
+     * @param device the device
+     * @return the number of inquiries, 0 if the device is not registered or was found by the last inquiry
+     */
+    public synchronized int getMisses(RemoteDevice device) {
+        Entry entry = m_entries.get(address(device));
+        return entry == null ? 0 : entry.m_misses;
+    }
+
+    /**
+     * Compares the result of an inquiry with the registered devices, in linear time. The registered devices found by
+     * the inquiry are marked as seen, the missing ones count one more miss.
+     *
+     * @param discovered the discovered devices, devices having the same address are reported once
+     * @return the arrived, departed and unchanged devices
+     */
+    public synchronized DiscoveryDiff diff(Collection<RemoteDevice> discovered) {
+        List<RemoteDevice> arrived = new ArrayList<RemoteDevice>();
+        List<RemoteDevice> unchanged = new ArrayList<RemoteDevice>();
+        List<RemoteDevice> recovered = new ArrayList<RemoteDevice>();
+        long now = System.currentTimeMillis();
+        Map<Long, RemoteDevice> seen = new HashMap<Long, RemoteDevice>(discovered.size() * 2);
+        for (RemoteDevice device : discovered) {
+            Long key = address(device);
+            if (seen.put(key, device) != null) {
+                continue;
+            }
+            Entry entry = m_entries.get(key);
+            if (entry == null) {
+                arrived.add(device);
+            } else {
+                entry.m_lastSeen = now;
+                if (entry.m_misses > 0) {
+                    recovered.add(entry.m_device);
+                    entry.m_misses = 0;
+                }
+                unchanged.add(entry.m_device);
+            }
+        }
+
+        List<RemoteDevice> departed = new ArrayList<RemoteDevice>();
+        if (unchanged.size() < m_entries.size()) {
+            for (Map.Entry<Long, Entry> entry : m_entries.entrySet()) {
+                if (!seen.containsKey(entry.getKey())) {
+                    entry.getValue().m_misses++;
+                    departed.add(entry.getValue().m_device);
+                }
+            }
+        }
+        return new DiscoveryDiff(arrived, departed, unchanged, recovered);
+    }
+
+    private static final class Entry {
+
+        private final RemoteDevice m_device;
+
+        private final ServiceRegistration m_registration;
+
+        private Dictionary<String, Object> m_properties;
+
+        private long m_lastSeen;
+
+        /**
+         * The number of consecutive inquiries the device is missing from.
+         */
+        private int m_misses;
+
+        private Entry(RemoteDevice device, ServiceRegistration registration, Dictionary<String, Object> properties) {
+            m_device = device;
+            m_registration = registration;
+            m_properties = properties;
+            m_lastSeen = System.currentTimeMillis();
+        }
+    }
+}
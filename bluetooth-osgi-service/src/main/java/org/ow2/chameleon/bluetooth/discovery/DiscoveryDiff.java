@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.RemoteDevice;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes between the registered devices and the result of a discovery cycle, computed by
+ * {@link DeviceRegistry#diff(java.util.Collection)}.
+ */
+class DiscoveryDiff {
+
+    private final List<RemoteDevice> m_arrived;
+
+    private final List<RemoteDevice> m_departed;
+
+    private final List<RemoteDevice> m_unchanged;
+
+    private final List<RemoteDevice> m_recovered;
+
+    DiscoveryDiff(List<RemoteDevice> arrived, List<RemoteDevice> departed, List<RemoteDevice> unchanged) {
+        this(arrived, departed, unchanged, Collections.<RemoteDevice>emptyList());
+    }
+
+    DiscoveryDiff(List<RemoteDevice> arrived, List<RemoteDevice> departed, List<RemoteDevice> unchanged,
+                  List<RemoteDevice> recovered) {
+        m_arrived = Collections.unmodifiableList(arrived);
+        m_departed = Collections.unmodifiableList(departed);
+        m_unchanged = Collections.unmodifiableList(unchanged);
+        m_recovered = Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * @return the discovered devices which are not registered, as returned by the inquiry.
+     */
+    public List<RemoteDevice> getArrived() {
+        return m_arrived;
+    }
+
+    /**
+     * @return the registered devices which were not discovered, as registered.
+     */
+    public List<RemoteDevice> getDeparted() {
+        return m_departed;
+    }
+
+    /**
+     * @return the registered devices which were discovered again, as registered.
+     */
+    public List<RemoteDevice> getUnchanged() {
+        return m_unchanged;
+    }
+
+    /**
+     * @return the unchanged devices which were missing from the previous inquiries, as registered.
+     */
+    public List<RemoteDevice> getRecovered() {
+        return m_recovered;
+    }
+
+    @Override
+    public String toString() {
+        return "DiscoveryDiff[arrived=" + m_arrived.size() + ", departed=" + m_departed.size() + ", unchanged="
+                + m_unchanged.size() + ", recovered=" + m_recovered.size() + "]";
+    }
+}
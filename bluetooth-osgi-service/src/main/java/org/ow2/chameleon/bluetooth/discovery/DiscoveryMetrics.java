@@ -0,0 +1,51 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.management.MXBean;
+import java.util.Map;
+
+/**
+ * Latency and throughput metrics of the discovery, published as an OSGi service and as the
+ * <tt>org.ow2.chameleon.bluetooth:type=DiscoveryMetrics</tt> MBean of the platform MBean server.
+ * <p/>
+ * The latencies are recorded by phase: <tt>inquiry</tt>, <tt>sdp</tt>, <tt>name</tt>, <tt>pairing</tt>,
+ * <tt>presence</tt> (online checks included), and the wait time of each radio lane (<tt>wait.INQUIRY</tt>,
+ * <tt>wait.SDP</tt>...). The counters track the registrations, the failed service searches and their retries.
+ */
+@MXBean
+public interface DiscoveryMetrics {
+
+    /**
+     * @return the latency snapshots by phase.
+     */
+    Map<String, LatencySnapshot> getLatencies();
+
+    /**
+     * @return the counters by name, e.g. <tt>devices.registered</tt> or <tt>sdp.retries</tt>.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return the number of operations waiting in each radio lane, all adapters included.
+     */
+    Map<String, Integer> getQueueDepths();
+
+    /**
+     * Clears the latencies and the counters.
+     */
+    void reset();
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the latency of each phase of the discovery and the discovery counters, read by the
+ * {@link DiscoveryMetrics} service.
+ * <p/>
+ * The agents, the scheduler and the discoveries record into the shared recorder as the operations complete.
+ * Recording is lock-free.
+ */
+final class DiscoveryMetricsRecorder {
+
+    static final String INQUIRY = "inquiry";
+
+    static final String SDP = "sdp";
+
+    static final String NAME = "name";
+
+    static final String PAIRING = "pairing";
+
+    static final String PRESENCE = "presence";
+
+    /**
+     * The prefix of the wait time of the lanes, e.g. <tt>wait.SDP</tt>.
+     */
+    static final String WAIT = "wait.";
+
+    static final String DEVICES_REGISTERED = "devices.registered";
+
+    static final String DEVICES_UNREGISTERED = "devices.unregistered";
+
+    static final String SERVICES_REGISTERED = "services.registered";
+
+    static final String SERVICES_UPDATED = "services.updated";
+
+    static final String SERVICES_UNREGISTERED = "services.unregistered";
+
+    static final String SDP_FAILURES = "sdp.failures";
+
+    static final String SDP_RETRIES = "sdp.retries";
+
+    static final String SDP_RETRIES_DROPPED = "sdp.retries.dropped";
+
+    /**
+     * The recorder shared by the discovery components.
+     */
+    private static final DiscoveryMetricsRecorder DEFAULT = new DiscoveryMetricsRecorder();
+
+    private final ConcurrentMap<String, LatencyHistogram> m_latencies =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final ConcurrentMap<String, AtomicLong> m_counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * @return the recorder shared by the discovery components.
+     */
+    static DiscoveryMetricsRecorder getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Records the duration of an operation.
+     *
+     * @param phase    the phase, e.g. {@link #INQUIRY}
+     * @param duration the duration in milliseconds
+     * @param success  whether the operation succeeded
+     */
+    void record(String phase, long duration, boolean success) {
+        LatencyHistogram histogram = m_latencies.get(phase);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram(phase);
+            histogram = m_latencies.putIfAbsent(phase, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(duration, success);
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param counter the counter, e.g. {@link #DEVICES_REGISTERED}
+     */
+    void increment(String counter) {
+        add(counter, 1);
+    }
+
+    void add(String counter, long delta) {
+        AtomicLong value = m_counters.get(counter);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = m_counters.putIfAbsent(counter, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    /**
+     * @return the snapshots of the latencies by phase, sorted by phase.
+     */
+    Map<String, LatencySnapshot> getLatencies() {
+        Map<String, LatencySnapshot> latencies = new TreeMap<String, LatencySnapshot>();
+        for (Map.Entry<String, LatencyHistogram> entry : m_latencies.entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return latencies;
+    }
+
+    /**
+     * @return the values of the counters, sorted by name.
+     */
+    Map<String, Long> getCounters() {
+        Map<String, Long> counters = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : m_counters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        return counters;
+    }
+
+    /**
+     * Clears the latencies and the counters.
+     */
+    void reset() {
+        m_latencies.clear();
+        m_counters.clear();
+    }
+}
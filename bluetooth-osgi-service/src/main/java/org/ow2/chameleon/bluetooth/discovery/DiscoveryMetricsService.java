@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.apache.felix.ipojo.annotations.Component;
+import org.apache.felix.ipojo.annotations.Instantiate;
+import org.apache.felix.ipojo.annotations.Invalidate;
+import org.apache.felix.ipojo.annotations.Provides;
+import org.apache.felix.ipojo.annotations.Validate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Component exposing the {@link DiscoveryMetrics} as an OSGi service and as a MBean of the platform MBean server.
+ */
+@Component(public_factory = false)
+@Provides
+@Instantiate(name = "BluetoothDiscoveryMetrics")
+public class DiscoveryMetricsService implements DiscoveryMetrics {
+
+    /**
+     * The name of the MBean.
+     */
+    public static final String OBJECT_NAME = "org.ow2.chameleon.bluetooth:type=DiscoveryMetrics";
+
+    private final Logger m_logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DiscoveryMetricsRecorder m_recorder;
+
+    /**
+     * The registered MBean name, <code>null</code> if not registered.
+     */
+    private ObjectName m_name;
+
+    public DiscoveryMetricsService() {
+        this(DiscoveryMetricsRecorder.getDefault());
+    }
+
+    DiscoveryMetricsService(DiscoveryMetricsRecorder recorder) {
+        m_recorder = recorder;
+    }
+
+    /**
+     * Registers the MBean. The service is published even if the MBean cannot be registered.
+     */
+    @Validate
+    public void start() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            server.registerMBean(this, name);
+            m_name = name;
+        } catch (JMException e) {
+            m_logger.error("Cannot register the discovery metrics MBean " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Unregisters the MBean and logs the metrics.
+     */
+    @Invalidate
+    public void stop() {
+        if (m_name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_name);
+            } catch (JMException e) {
+                m_logger.warn("Cannot unregister the discovery metrics MBean " + OBJECT_NAME, e);
+            }
+            m_name = null;
+        }
+        m_logger.info("Discovery latencies : " + getLatencies().values());
+        m_logger.info("Discovery counters : " + getCounters());
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getLatencies() {
+        return m_recorder.getLatencies();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return m_recorder.getCounters();
+    }
+
+    @Override
+    public Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<String, Integer>();
+        for (LaneStatistics statistics : BluetoothThreadManager.getLaneStatistics().values()) {
+            depths.put(statistics.getLane().name(), statistics.getPending());
+        }
+        return depths;
+    }
+
+    @Override
+    public void reset() {
+        m_recorder.reset();
+    }
+}
@@ -1,34 +0,0 @@
-/*
- * Copyright 2013 OW2 Chameleon
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- * http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package org.ow2.chameleon.bluetooth.discovery;
-
-
-public class Env {
-
-
-    public static boolean isTestEnvironmentEnabled() {
-        return Boolean.getBoolean("bluetooth.test");
-    }
-
-    public static void enableTestEnvironment() {
-        System.setProperty("bluetooth.test", "true");
-    }
-
-    public static void disableTestEnvironment() {
-        System.setProperty("bluetooth.test", "false");
-    }
-
-}
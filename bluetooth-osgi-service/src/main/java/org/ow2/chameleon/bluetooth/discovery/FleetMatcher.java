@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.ow2.chameleon.bluetooth.devices.Device;
+import org.ow2.chameleon.bluetooth.devices.DeviceList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.UUID;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches the devices against the entries of the fleet (<tt>devices.xml</tt>). The id of an entry is a regex
+ * matching either the address or the name of the device.
+ * <p/>
+ * The matcher is built once per fleet: the ids without regex metacharacter are indexed in a hash map, the others are
+ * compiled. The results are cached by address, the cache is dropped with the matcher when the fleet is reloaded.
+ */
+class FleetMatcher {
+
+    /**
+     * The maximum number of addresses kept in the result cache.
+     */
+    static final int CACHE_SIZE = 4096;
+
+    /**
+     * The characters making an id a regex rather than a literal.
+     */
+    private static final String METACHARACTERS = "\\.[]{}()*+?^$|";
+
+    private final Logger m_logger = LoggerFactory.getLogger(FleetMatcher.class);
+
+    private final List<Device> m_devices;
+
+    /**
+     * Indexes of the entries by literal id.
+     */
+    private final Map<String, List<Integer>> m_literals = new HashMap<String, List<Integer>>();
+
+    /**
+     * Compiled patterns of the other entries, and their indexes.
+     */
+    private final Pattern[] m_patterns;
+
+    private final int[] m_patternIndexes;
+
+    /**
+     * The service classes declared by the entries.
+     */
+    private final Map<Device, UUID[]> m_serviceClasses = new IdentityHashMap<Device, UUID[]>();
+
+    private final Map<String, CachedMatch> m_cache = new LinkedHashMap<String, CachedMatch>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedMatch> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Creates the matcher of the given fleet. The entries having an invalid id are ignored.
+     *
+     * @param fleet the fleet
+     */
+    FleetMatcher(DeviceList fleet) {
+        m_devices = new ArrayList<Device>(fleet.getDevices());
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        List<Integer> patternIndexes = new ArrayList<Integer>();
+        int literals = 0;
+        for (int i = 0; i < m_devices.size(); i++) {
+            String id = m_devices.get(i).getId();
+            if (id == null) {
+                m_logger.error("Fleet entry " + i + " has no id, ignoring it");
+            } else if (isLiteral(id)) {
+                List<Integer> indexes = m_literals.get(id);
+                if (indexes == null) {
+                    indexes = new ArrayList<Integer>(1);
+                    m_literals.put(id, indexes);
+                }
+                indexes.add(i);
+                literals++;
+            } else {
+                try {
+                    patterns.add(Pattern.compile(id));
+                    patternIndexes.add(i);
+                } catch (PatternSyntaxException e) {
+                    m_logger.error("Invalid id in the fleet entry " + i + " (" + id + "), ignoring it", e);
+                }
+            }
+        }
+        m_patterns = patterns.toArray(new Pattern[patterns.size()]);
+        m_patternIndexes = new int[patternIndexes.size()];
+        for (int i = 0; i < m_patternIndexes.length; i++) {
+            m_patternIndexes[i] = patternIndexes.get(i);
+        }
+        for (Device device : m_devices) {
+            m_serviceClasses.put(device, parseServiceClasses(device));
+        }
+        m_logger.info("Fleet matcher built: " + literals + " literal ids, " + m_patterns.length + " regex ids");
+    }
+
+    private UUID[] parseServiceClasses(Device device) {
+        List<UUID> classes = new ArrayList<UUID>();
+        for (String serviceClass : device.getServiceClass()) {
+            try {
+                classes.add(UUIDs.parse(serviceClass));
+            } catch (IllegalArgumentException e) {
+                m_logger.error("Invalid service class in the fleet entry " + device.getId() + " (" + serviceClass
+                        + "), ignoring it", e);
+            }
+        }
+        return classes.toArray(new UUID[classes.size()]);
+    }
+
+    /**
+     * Gets the service classes declared by a fleet entry.
+     *
+     * @param device the entry
+     * @return the service classes, empty if none is declared (or the entry is not part of the fleet)
+     */
+    public UUID[] getServiceClasses(Device device) {
+        UUID[] classes = m_serviceClasses.get(device);
+        return classes == null ? new UUID[0] : classes.clone();
+    }
+
+    static boolean isLiteral(String id) {
+        for (int i = 0; i < id.length(); i++) {
+            if (METACHARACTERS.indexOf(id.charAt(i)) != -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the fleet entries matching a device.
+     *
+     * @param address the device address
+     * @param name    the device name, <code>null</code> if unknown
+     * @return the matching entries, in the fleet order
+     */
+    public List<Device> getMatchingDevices(String address, String name) {
+        synchronized (m_cache) {
+            CachedMatch cached = m_cache.get(address);
+            if (cached != null && (name == null ? cached.m_name == null : name.equals(cached.m_name))) {
+                return cached.m_devices;
+            }
+        }
+
+        List<Device> devices = match(address, name);
+        synchronized (m_cache) {
+            m_cache.put(address, new CachedMatch(name, devices));
+        }
+        return devices;
+    }
+
+    /**
+     * Gets the first fleet entry matching a device.
+     *
+     * @param address the device address
+     * @param name    the device name, <code>null</code> if unknown
+     * @return the first matching entry, <code>null</code> if none
+     */
+    public Device getMatchingDevice(String address, String name) {
+        List<Device> devices = getMatchingDevices(address, name);
+        return devices.isEmpty() ? null : devices.get(0);
+    }
+
+    private List<Device> match(String address, String name) {
+        SortedSet<Integer> indexes = new TreeSet<Integer>();
+        addLiterals(indexes, address);
+        if (name != null) {
+            addLiterals(indexes, name);
+        }
+        for (int i = 0; i < m_patterns.length; i++) {
+            Pattern pattern = m_patterns[i];
+            if (pattern.matcher(address).matches() || (name != null && pattern.matcher(name).matches())) {
+                indexes.add(m_patternIndexes[i]);
+            }
+        }
+
+        if (indexes.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Device> devices = new ArrayList<Device>(indexes.size());
+        for (Integer index : indexes) {
+            devices.add(m_devices.get(index));
+        }
+        return Collections.unmodifiableList(devices);
+    }
+
+    private void addLiterals(SortedSet<Integer> indexes, String id) {
+        List<Integer> matching = m_literals.get(id);
+        if (matching != null) {
+            indexes.addAll(matching);
+        }
+    }
+
+    private static final class CachedMatch {
+
+        private final String m_name;
+
+        private final List<Device> m_devices;
+
+        private CachedMatch(String name, List<Device> devices) {
+            m_name = name;
+            m_devices = devices;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.RemoteDevice;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The delay between two inquiries, adapting to the device churn.
+ * <p/>
+ * After each discovery cycle, the devices found by the inquiry are compared with the ones found by the recent
+ * inquiries, whether they are registered or not. A device departs once missed by {@link #DEPARTURE_MISSES}
+ * consecutive inquiries, and a device found again before does not arrive: a device flickering in and out of range
+ * is not churn. A cycle with arrivals or departures halves the period, so the arrivals are tracked closely. A cycle
+ * without churn, once the smoothed churn of the recent cycles has settled, doubles the period, so the air is not
+ * flooded when nothing changes. The period stays within the configured bounds, equal bounds give a fixed period.
+ */
+class InquiryPeriod implements RadioScheduler.Delay {
+
+    /**
+     * The weight of the last cycle in the smoothed churn.
+     */
+    static final double SMOOTHING = 0.5;
+
+    /**
+     * The smoothed churn (devices per cycle) under which the discovery is considered stable.
+     */
+    static final double STABLE_CHURN = 0.5;
+
+    /**
+     * The number of consecutive inquiries missing a device before it is considered departed.
+     */
+    static final int DEPARTURE_MISSES = 2;
+
+    private final Logger m_logger = LoggerFactory.getLogger(InquiryPeriod.class);
+
+    private final long m_minimum;
+
+    private final long m_maximum;
+
+    /**
+     * The configured period.
+     */
+    private final long m_initial;
+
+    private long m_period;
+
+    private String m_reason = "initial period";
+
+    private double m_churn;
+
+    /**
+     * The number of consecutive inquiries having missed each device found by the recent inquiries, by address.
+     * <code>null</code> before the first inquiry.
+     */
+    private Map<Long, Integer> m_misses;
+
+    /**
+     * Creates an {@link InquiryPeriod}.
+     *
+     * @param period  the initial period in milliseconds
+     * @param minimum the minimum period in milliseconds
+     * @param maximum the maximum period in milliseconds
+     */
+    InquiryPeriod(long period, long minimum, long maximum) {
+        if (minimum <= 0 || maximum < minimum) {
+            throw new IllegalArgumentException("Invalid inquiry period bounds [" + minimum + ", " + maximum + "]");
+        }
+        m_minimum = minimum;
+        m_maximum = maximum;
+        m_initial = period;
+        m_period = Math.max(minimum, Math.min(maximum, period));
+    }
+
+    /**
+     * Checks whether the period was created with the given configuration.
+     *
+     * @param period  the initial period in milliseconds
+     * @param minimum the minimum period in milliseconds
+     * @param maximum the maximum period in milliseconds
+     * @return <code>true</code> if the configuration is the same
+     */
+    boolean isConfiguredAs(long period, long minimum, long maximum) {
+        return m_initial == period && m_minimum == minimum && m_maximum == maximum;
+    }
+
+    /**
+     * Records the devices found by an inquiry and adapts the period.
+     *
+     * @param discovered the devices found by the inquiry
+     */
+    public synchronized void record(Collection<RemoteDevice> discovered) {
+        Set<Long> seen = new HashSet<Long>(discovered.size() * 2);
+        for (RemoteDevice device : discovered) {
+            seen.add(DeviceRegistry.address(device));
+        }
+        boolean first = m_misses == null;
+        if (first) {
+            m_misses = new HashMap<Long, Integer>(seen.size() * 2);
+        }
+
+        int arrived = 0;
+        for (Long address : seen) {
+            if (m_misses.put(address, 0) == null) {
+                arrived++;
+            }
+        }
+        int departed = 0;
+        for (Iterator<Map.Entry<Long, Integer>> iterator = m_misses.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Long, Integer> entry = iterator.next();
+            if (seen.contains(entry.getKey())) {
+                continue;
+            }
+            int misses = entry.getValue() + 1;
+            if (misses >= DEPARTURE_MISSES) {
+                iterator.remove();
+                departed++;
+            } else {
+                entry.setValue(misses);
+            }
+        }
+        if (first) {
+            // Everything is new on the first inquiry, it does not tell anything about the churn.
+            return;
+        }
+        record(arrived, departed);
+    }
+
+    /**
+     * Records the churn of a discovery cycle and adapts the period.
+     *
+     * @param arrived  the number of arrived devices
+     * @param departed the number of departed devices, once confirmed
+     */
+    synchronized void record(int arrived, int departed) {
+        int churn = arrived + departed;
+        m_churn = SMOOTHING * churn + (1 - SMOOTHING) * m_churn;
+
+        if (churn > 0) {
+            change(m_period / 2, "churn: " + arrived + " arrivals, " + departed + " departures");
+        } else if (m_churn < STABLE_CHURN) {
+            change(m_period * 2, "stable");
+        }
+    }
+
+    private void change(long period, String reason) {
+        period = Math.max(m_minimum, Math.min(m_maximum, period));
+        if (period == m_period) {
+            return;
+        }
+        m_logger.info("Inquiry period changed from " + m_period + " ms to " + period + " ms (" + reason + ")");
+        m_period = period;
+        m_reason = reason;
+    }
+
+    @Override
+    public synchronized long next() {
+        return m_period;
+    }
+
+    /**
+     * @return the current period in milliseconds.
+     */
+    public synchronized long getPeriod() {
+        return m_period;
+    }
+
+    /**
+     * @return the reason of the last change of the period.
+     */
+    public synchronized String getReason() {
+        return m_reason;
+    }
+
+    /**
+     * @return the smoothed churn, in devices per cycle.
+     */
+    public synchronized double getChurn() {
+        return m_churn;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "InquiryPeriod[" + m_period + " ms in [" + m_minimum + ", " + m_maximum + "], " + m_reason + "]";
+    }
+}
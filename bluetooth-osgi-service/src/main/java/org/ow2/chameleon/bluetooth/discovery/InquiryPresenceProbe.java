@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.ow2.chameleon.bluetooth.devices.Device;
+
+import javax.bluetooth.RemoteDevice;
+
+/**
+ * Presence probe without radio operation: the device is considered reachable if an inquiry found it recently.
+ * A device missing from a few inquiries is so kept until its last sighting is too old.
+ */
+class InquiryPresenceProbe implements PresenceProbe {
+
+    private final DeviceRegistry m_registry;
+
+    private volatile long m_maxAge;
+
+    /**
+     * Creates a {@link InquiryPresenceProbe}.
+     *
+     * @param registry the registry giving the last sighting of the devices
+     * @param maxAge   the time in milliseconds after which a device not found by the inquiries is unreachable
+     */
+    InquiryPresenceProbe(DeviceRegistry registry, long maxAge) {
+        m_registry = registry;
+        m_maxAge = maxAge;
+    }
+
+    /**
+     * Sets the time after which a device not found by the inquiries is unreachable.
+     *
+     * @param maxAge the time in milliseconds
+     */
+    void setMaxAge(long maxAge) {
+        m_maxAge = maxAge;
+    }
+
+    @Override
+    public String getName() {
+        return PresenceProbes.INQUIRY;
+    }
+
+    @Override
+    public boolean isRadioRequired() {
+        return false;
+    }
+
+    @Override
+    public boolean isPresent(BluetoothRadio radio, RemoteDevice device, Device entry, long timeout) {
+        long seen = m_registry.getLastSeen(device);
+        return seen >= 0 && System.currentTimeMillis() - seen <= m_maxAge;
+    }
+
+    @Override
+    public String toString() {
+        return "InquiryPresenceProbe[" + m_maxAge + "ms]";
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+/**
+ * Wait time statistics of a {@link RadioLane}.
+ * The wait time is the time between the moment a task is queued and the moment it starts on the radio.
+ * Instances returned by the scheduler are snapshots, they are not updated afterwards.
+ */
+public class LaneStatistics {
+
+    private final RadioLane m_lane;
+
+    private int m_pending;
+
+    private long m_submitted;
+
+    private long m_executed;
+
+    private long m_coalesced;
+
+    private long m_totalWait;
+
+    private long m_maxWait;
+
+    private long m_lastWait;
+
+    LaneStatistics(RadioLane lane) {
+        m_lane = lane;
+    }
+
+    void submitted(int pending) {
+        m_submitted++;
+        m_pending = pending;
+    }
+
+    void coalesced(int pending) {
+        m_coalesced++;
+        m_pending = pending;
+    }
+
+    void started(long wait, int pending) {
+        m_executed++;
+        m_totalWait += wait;
+        m_lastWait = wait;
+        if (wait > m_maxWait) {
+            m_maxWait = wait;
+        }
+        m_pending = pending;
+    }
+
+    LaneStatistics copy() {
+        LaneStatistics copy = new LaneStatistics(m_lane);
+        copy.m_pending = m_pending;
+        copy.m_submitted = m_submitted;
+        copy.m_executed = m_executed;
+        copy.m_coalesced = m_coalesced;
+        copy.m_totalWait = m_totalWait;
+        copy.m_maxWait = m_maxWait;
+        copy.m_lastWait = m_lastWait;
+        return copy;
+    }
+
+    public RadioLane getLane() {
+        return m_lane;
+    }
+
+    /**
+     * @return the number of tasks waiting in the lane.
+     */
+    public int getPending() {
+        return m_pending;
+    }
+
+    /**
+     * @return the number of tasks submitted to the lane.
+     */
+    public long getSubmitted() {
+        return m_submitted;
+    }
+
+    /**
+     * @return the number of tasks of the lane that have started.
+     */
+    public long getExecuted() {
+        return m_executed;
+    }
+
+    /**
+     * @return the number of submissions merged into a waiting task of the lane.
+     */
+    public long getCoalesced() {
+        return m_coalesced;
+    }
+
+    /**
+     * @return the average wait time in milliseconds.
+     */
+    public long getAverageWait() {
+        if (m_executed == 0) {
+            return 0;
+        }
+        return m_totalWait / m_executed;
+    }
+
+    /**
+     * @return the longest wait time in milliseconds.
+     */
+    public long getMaxWait() {
+        return m_maxWait;
+    }
+
+    /**
+     * @return the wait time of the last started task in milliseconds.
+     */
+    public long getLastWait() {
+        return m_lastWait;
+    }
+
+    @Override
+    public String toString() {
+        return m_lane + " [pending=" + m_pending + ", submitted=" + m_submitted + ", executed=" + m_executed
+                + ", coalesced=" + m_coalesced + ", avgWait=" + getAverageWait() + "ms, maxWait=" + m_maxWait
+                + "ms, lastWait=" + m_lastWait + "ms]";
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of the durations of an operation, in milliseconds.
+ * <p/>
+ * The durations below 16 ms have their own bucket, each following power of two is split in 8 buckets: the
+ * percentiles are exact up to 16 ms, then within 12.5%. Recording a duration is a few atomic increments, so the
+ * radio threads can record every operation.
+ */
+final class LatencyHistogram {
+
+    /**
+     * The number of bits of the sub-bucket index.
+     */
+    private static final int SUB_BITS = 3;
+
+    /**
+     * The durations below this bound have their own bucket.
+     */
+    private static final int LINEAR = 2 << SUB_BITS;
+
+    /**
+     * The durations from this power of two (more than 12 days) share the last bucket.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    static final int BUCKETS = LINEAR + (MAX_EXPONENT - SUB_BITS - 1) * (1 << SUB_BITS) + 1;
+
+    private final String m_name;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong m_count = new AtomicLong();
+
+    private final AtomicLong m_failures = new AtomicLong();
+
+    private final AtomicLong m_total = new AtomicLong();
+
+    private final AtomicLong m_max = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        m_name = name;
+    }
+
+    /**
+     * Records an operation.
+     *
+     * @param duration the duration in milliseconds
+     * @param success  whether the operation succeeded
+     */
+    void record(long duration, boolean success) {
+        duration = Math.max(0, duration);
+        m_buckets.incrementAndGet(index(duration));
+        m_count.incrementAndGet();
+        if (!success) {
+            m_failures.incrementAndGet();
+        }
+        m_total.addAndGet(duration);
+        long max = m_max.get();
+        while (duration > max && !m_max.compareAndSet(max, duration)) {
+            max = m_max.get();
+        }
+    }
+
+    static int index(long duration) {
+        if (duration < LINEAR) {
+            return (int) duration;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(duration);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (duration >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + sub;
+    }
+
+    /**
+     * @return the greatest duration of the bucket at the given index.
+     */
+    static long upperBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exponent = (index - LINEAR) / (1 << SUB_BITS) + SUB_BITS + 1;
+        int sub = (index - LINEAR) % (1 << SUB_BITS);
+        long lower = (long) ((1 << SUB_BITS) + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Takes a snapshot of the histogram. The operations recorded meanwhile may be partially taken into account.
+     *
+     * @return the snapshot
+     */
+    LatencySnapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = m_buckets.get(i);
+            count += buckets[i];
+        }
+        long max = m_max.get();
+        return new LatencySnapshot(m_name, count, m_failures.get(), count == 0 ? 0 : m_total.get() / count,
+                percentile(buckets, count, 0.5, max), percentile(buckets, count, 0.9, max),
+                percentile(buckets, count, 0.99, max), max);
+    }
+
+    private static long percentile(long[] buckets, long count, double percentile, long max) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+}
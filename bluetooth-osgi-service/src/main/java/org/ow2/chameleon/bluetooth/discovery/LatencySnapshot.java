@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Latency statistics of an operation: the number of operations, the failures, and the percentiles of their
+ * duration in milliseconds. The percentiles are approximated within 12.5%.
+ * Instances returned by the metrics are snapshots, they are not updated afterwards.
+ */
+public class LatencySnapshot {
+
+    private final String m_name;
+
+    private final long m_count;
+
+    private final long m_failures;
+
+    private final long m_mean;
+
+    private final long m_p50;
+
+    private final long m_p90;
+
+    private final long m_p99;
+
+    private final long m_max;
+
+    @ConstructorProperties({"name", "count", "failures", "mean", "p50", "p90", "p99", "max"})
+    public LatencySnapshot(String name, long count, long failures, long mean, long p50, long p90, long p99,
+                           long max) {
+        m_name = name;
+        m_count = count;
+        m_failures = failures;
+        m_mean = mean;
+        m_p50 = p50;
+        m_p90 = p90;
+        m_p99 = p99;
+        m_max = max;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * @return the number of operations recorded.
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    /**
+     * @return the number of operations which failed or timed out.
+     */
+    public long getFailures() {
+        return m_failures;
+    }
+
+    public long getMean() {
+        return m_mean;
+    }
+
+    public long getP50() {
+        return m_p50;
+    }
+
+    public long getP90() {
+        return m_p90;
+    }
+
+    public long getP99() {
+        return m_p99;
+    }
+
+    public long getMax() {
+        return m_max;
+    }
+
+    @Override
+    public String toString() {
+        return m_name + "[count=" + m_count + ", failures=" + m_failures + ", mean=" + m_mean + "ms, p50=" + m_p50
+                + "ms, p90=" + m_p90 + "ms, p99=" + m_p99 + "ms, max=" + m_max + "ms]";
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.ow2.chameleon.bluetooth.devices.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.RemoteDevice;
+import java.io.IOException;
+
+/**
+ * Presence probe requesting the name of the device. The device is reachable if it answers, even without name.
+ * <p/>
+ * A name request is a short exchange at the baseband level, much cheaper than a service search. It cannot be
+ * cancelled: its duration is bounded by the stack, not by the timeout given to the probe.
+ */
+class NamePresenceProbe implements PresenceProbe {
+
+    private final Logger m_logger = LoggerFactory.getLogger(NamePresenceProbe.class);
+
+    @Override
+    public String getName() {
+        return PresenceProbes.NAME;
+    }
+
+    @Override
+    public boolean isRadioRequired() {
+        return true;
+    }
+
+    @Override
+    public boolean isPresent(BluetoothRadio radio, RemoteDevice device, Device entry, long timeout) {
+        try {
+            radio.requestFriendlyName(device);
+            return true;
+        } catch (IOException e) {
+            m_logger.info("Device " + device.getBluetoothAddress() + " does not answer the name request: "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NamePresenceProbe";
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.RemoteDevice;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the friendly names of the devices, out of the discovery locks.
+ * <p/>
+ * A remote name request can take several seconds. The requests are radio operations queued in the
+ * {@link RadioLane#NAME} lane, so they run on the adapter of the device and never concurrently with another operation of
+ * this adapter. Concurrent lookups of the same address share a single request, and the callbacks are called by a
+ * dedicated pool of bounded size, out of the radio threads. The resolved names are cached for a time-to-live:
+ * once elapsed, the name is requested again, and the previous name is kept if the device does not answer.
+ * <p/>
+ * The cache is a bounded LRU in front of the {@link NameStore}, if any, holding the persistent mac to name
+ * association: the names of the devices seen a long time ago are read back from the store, and are valid for the
+ * time-to-live from then. The new names are written to the store. This class is thread-safe.
+ */
+class NameResolver {
+
+    /**
+     * Callback receiving a resolved name.
+     */
+    interface Callback {
+
+        /**
+         * The name of the device is resolved. This method is called either by the thread requesting the name, if
+         * a valid name is cached, or by a resolver thread.
+         *
+         * @param device the device
+         * @param name   the name, the previous name if the device did not answer, <code>null</code> if the device has
+         *               no known name
+         */
+        void nameResolved(RemoteDevice device, String name);
+    }
+
+    /**
+     * The time after which a request is given up, its task being lost. The requests dropped by a stopped scheduler
+     * are completed right away.
+     */
+    static final long REQUEST_TIMEOUT = 60000;
+
+    private final Logger m_logger = LoggerFactory.getLogger(NameResolver.class);
+
+    private final ThreadPoolExecutor m_executor;
+
+    /**
+     * The recently used names, by address, in access order.
+     */
+    private final Map<String, CachedName> m_names = new LinkedHashMap<String, CachedName>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedName> eldest) {
+            return size() > m_capacity;
+        }
+    };
+
+    private int m_capacity;
+
+    /**
+     * The store persisting the resolved names, <code>null</code> if the names are not persisted.
+     */
+    private NameStore m_store;
+
+    /**
+     * The ongoing requests, by address.
+     */
+    private final Map<String, Resolution> m_resolutions = new HashMap<String, Resolution>();
+
+    private long m_timeToLive;
+
+    private long m_requests;
+
+    private long m_sharedRequests;
+
+    /**
+     * Creates a {@link NameResolver}.
+     *
+     * @param concurrency the number of threads calling the callbacks
+     * @param timeToLive  the time-to-live of the cached names, in milliseconds
+     * @param capacity    the maximum number of cached names
+     */
+    NameResolver(int concurrency, long timeToLive, int capacity) {
+        m_timeToLive = timeToLive;
+        m_capacity = capacity;
+        m_executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "bluetooth-name-resolver-" + m_count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        m_executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the number of threads calling the callbacks. The name requests themselves are executed one at a time per
+     * adapter by the radio scheduler.
+     *
+     * @param concurrency the number of threads, at least 1
+     */
+    void setConcurrency(int concurrency) {
+        int size = Math.max(1, concurrency);
+        if (size > m_executor.getMaximumPoolSize()) {
+            m_executor.setMaximumPoolSize(size);
+            m_executor.setCorePoolSize(size);
+        } else {
+            m_executor.setCorePoolSize(size);
+            m_executor.setMaximumPoolSize(size);
+        }
+    }
+
+    /**
+     * Sets the time-to-live of the cached names.
+     *
+     * @param timeToLive the time-to-live in milliseconds
+     */
+    synchronized void setTimeToLive(long timeToLive) {
+        m_timeToLive = timeToLive;
+    }
+
+    /**
+     * Sets the maximum number of cached names. The least recently used names are evicted first.
+     *
+     * @param capacity the number of names
+     */
+    synchronized void setCapacity(int capacity) {
+        m_capacity = Math.max(1, capacity);
+        Iterator<String> addresses = m_names.keySet().iterator();
+        while (m_names.size() > m_capacity) {
+            addresses.next();
+            addresses.remove();
+        }
+    }
+
+    /**
+     * Sets the store persisting the resolved names. The cached names are dropped.
+     *
+     * @param store the store, <code>null</code> to disable the persistence
+     */
+    synchronized void setStore(NameStore store) {
+        m_store = store;
+        m_names.clear();
+    }
+
+    /**
+     * @return the number of cached names.
+     */
+    synchronized int getCacheSize() {
+        return m_names.size();
+    }
+
+    /**
+     * Gets the known name of a device, without requesting it.
+     *
+     * @param device the device
+     * @return the name, possibly expired, <code>null</code> if the name is unknown
+     */
+    synchronized String getCachedName(RemoteDevice device) {
+        CachedName cached = lookup(device.getBluetoothAddress());
+        return cached == null ? null : cached.m_name;
+    }
+
+    /**
+     * Gets the name of a device, waiting for the resolution if the cached name is missing or expired.
+     * A request already in progress for the device is shared. Called by a radio thread, the name is requested
+     * directly, a queued request would wait for the end of the current operation.
+     *
+     * @param device the device
+     * @return the name, <code>null</code> if the device has no known name
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    String getName(RemoteDevice device) throws InterruptedException {
+        String address = device.getBluetoothAddress();
+        synchronized (this) {
+            CachedName cached = lookup(address);
+            if (cached != null && cached.isValid()) {
+                return cached.m_name;
+            }
+            if (RadioScheduler.currentAdapter() < 0) {
+                Resolution resolution = request(device);
+                long remaining = resolution.m_deadline - System.currentTimeMillis();
+                while (!resolution.m_done && remaining > 0) {
+                    wait(remaining);
+                    remaining = resolution.m_deadline - System.currentTimeMillis();
+                }
+                if (!resolution.m_done) {
+                    resolution.dropped();
+                }
+                return resolution.m_name;
+            }
+        }
+        return store(address, fetch(device));
+    }
+
+    /**
+     * Resolves the name of a device without waiting. If a valid name is cached, the callback is called immediately,
+     * otherwise it is called by a resolver thread once the name is resolved. A request already in progress for the
+     * device is shared.
+     *
+     * @param device   the device
+     * @param callback the callback receiving the name
+     */
+    void resolve(RemoteDevice device, Callback callback) {
+        String name;
+        synchronized (this) {
+            CachedName cached = lookup(device.getBluetoothAddress());
+            if (cached != null && cached.isValid()) {
+                name = cached.m_name;
+            } else {
+                Resolution resolution = request(device);
+                if (!resolution.m_done) {
+                    resolution.m_callbacks.add(callback);
+                    return;
+                }
+                // Not submitted, the known name is used.
+                name = resolution.m_name;
+            }
+        }
+        callback.nameResolved(device, name);
+    }
+
+    /**
+     * @return the number of name requests sent to the devices.
+     */
+    synchronized long getRequests() {
+        return m_requests;
+    }
+
+    /**
+     * @return the number of lookups served by a request already in progress.
+     */
+    synchronized long getSharedRequests() {
+        return m_sharedRequests;
+    }
+
+    /**
+     * Gets the cached name of a device, reading it back from the store if it was evicted.
+     */
+    private CachedName lookup(String address) {
+        CachedName cached = m_names.get(address);
+        if (cached == null && m_store != null) {
+            String name = m_store.get(address);
+            if (name != null) {
+                cached = new CachedName(name, System.currentTimeMillis() + m_timeToLive);
+                m_names.put(address, cached);
+            }
+        }
+        return cached;
+    }
+
+    private Resolution request(RemoteDevice device) {
+        String address = device.getBluetoothAddress();
+        Resolution resolution = m_resolutions.get(address);
+        if (resolution != null) {
+            if (resolution.m_deadline > System.currentTimeMillis()) {
+                m_sharedRequests++;
+                return resolution;
+            }
+            // Lost, its callbacks get the known name.
+            resolution.dropped();
+        }
+        resolution = new Resolution(device);
+        m_resolutions.put(address, resolution);
+        try {
+            // The key routes the request to the adapter of the device.
+            BluetoothThreadManager.submit(RadioLane.NAME, address, resolution);
+        } catch (RejectedExecutionException e) {
+            // Stopped, the known name is used.
+            resolution.dropped();
+        }
+        return resolution;
+    }
+
+    /**
+     * Requests the name of a device to the radio of the current thread.
+     *
+     * @return the name, <code>null</code> if the device did not answer
+     */
+    private String fetch(RemoteDevice device) {
+        String name = null;
+        long start = System.currentTimeMillis();
+        try {
+            synchronized (this) {
+                m_requests++;
+            }
+            name = BluetoothThreadManager.getRadio().getFriendlyName(device);
+            if (name != null && name.length() == 0) {
+                name = null;
+            }
+        } catch (IOException e) {
+            m_logger.info("Not able to get the device friendly name of " + device.getBluetoothAddress(), e);
+        } catch (RuntimeException e) {
+            m_logger.error("Unexpected exception while getting the name of " + device.getBluetoothAddress(), e);
+        }
+        DiscoveryMetricsRecorder.getDefault().record(DiscoveryMetricsRecorder.NAME, System.currentTimeMillis() - start, name != null);
+        return name;
+    }
+
+    /**
+     * Caches the outcome of a name request.
+     *
+     * @param address the device address
+     * @param name    the name received, <code>null</code> if the device did not answer
+     * @return the name of the device, the previous one if the device did not answer
+     */
+    private synchronized String store(String address, String name) {
+        CachedName previous = lookup(address);
+        if (name != null) {
+            m_names.put(address, new CachedName(name, System.currentTimeMillis() + m_timeToLive));
+            if (previous == null || !name.equals(previous.m_name)) {
+                m_logger.info("New device name discovered : " + address + " => " + name);
+                if (m_store != null) {
+                    m_store.put(address, name);
+                }
+            }
+            return name;
+        }
+        // The device did not answer, its previous name is kept but not renewed.
+        return previous == null ? null : previous.m_name;
+    }
+
+    /**
+     * A cached name and its expiration date.
+     */
+    private static final class CachedName {
+
+        private final String m_name;
+
+        private final long m_expiration;
+
+        private CachedName(String name, long expiration) {
+            m_name = name;
+            m_expiration = expiration;
+        }
+
+        private boolean isValid() {
+            return m_expiration > System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A name request, shared by the lookups of the device until it completes. A request that cannot be executed
+     * completes with the known name.
+     */
+    private final class Resolution implements Runnable, RadioScheduler.Droppable {
+
+        private final RemoteDevice m_device;
+
+        private final List<Callback> m_callbacks = new ArrayList<Callback>();
+
+        /**
+         * The date after which the request is considered lost.
+         */
+        private final long m_deadline = System.currentTimeMillis() + REQUEST_TIMEOUT;
+
+        private boolean m_done;
+
+        private String m_name;
+
+        private Resolution(RemoteDevice device) {
+            m_device = device;
+        }
+
+        /**
+         * Executed by a radio thread, the callbacks are called by the resolver pool.
+         */
+        public void run() {
+            String address = m_device.getBluetoothAddress();
+            String name = null;
+            synchronized (NameResolver.this) {
+                if (m_done) {
+                    // Given up.
+                    return;
+                }
+                CachedName cached = lookup(address);
+                if (cached != null && cached.isValid()) {
+                    // Resolved by a radio thread in the meantime.
+                    name = cached.m_name;
+                }
+            }
+            if (name == null) {
+                name = store(address, fetch(m_device));
+            }
+            complete(name);
+        }
+
+        /**
+         * Completes the request with the known name, without requesting it.
+         */
+        public void dropped() {
+            String name;
+            synchronized (NameResolver.this) {
+                if (m_done) {
+                    return;
+                }
+                m_logger.warn("Name request of " + m_device.getBluetoothAddress() + " dropped, using the known name");
+                CachedName cached = lookup(m_device.getBluetoothAddress());
+                name = cached == null ? null : cached.m_name;
+            }
+            complete(name);
+        }
+
+        private void complete(String name) {
+            String address = m_device.getBluetoothAddress();
+            final List<Callback> callbacks;
+            synchronized (NameResolver.this) {
+                if (m_done) {
+                    return;
+                }
+                m_name = name;
+                m_done = true;
+                if (m_resolutions.get(address) == this) {
+                    m_resolutions.remove(address);
+                }
+                callbacks = new ArrayList<Callback>(m_callbacks);
+                m_callbacks.clear();
+                NameResolver.this.notifyAll();
+            }
+            if (callbacks.isEmpty()) {
+                return;
+            }
+            final String resolved = name;
+            try {
+                m_executor.execute(new Runnable() {
+                    public void run() {
+                        deliver(callbacks, resolved);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                deliver(callbacks, resolved);
+            }
+        }
+
+        private void deliver(List<Callback> callbacks, String name) {
+            String address = m_device.getBluetoothAddress();
+            for (Callback callback : callbacks) {
+                try {
+                    callback.nameResolved(m_device, name);
+                } catch (RuntimeException e) {
+                    m_logger.error("Name callback failed for " + address, e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "NameResolution[" + m_device.getBluetoothAddress() + "]";
+        }
+    }
+}
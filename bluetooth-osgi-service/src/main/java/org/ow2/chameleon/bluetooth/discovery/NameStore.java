@@ -0,0 +1,706 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The persistent MAC address to name association, sized for millions of addresses.
+ * <p/>
+ * The names are stored in an index file (<tt>&lt;file&gt;.index.&lt;generation&gt;</tt>) memory-mapped and searched
+ * in place: the
+ * records, sorted by 48-bit address, hold the offset of the name, so a lookup does not load the names on the heap.
+ * The learned names are kept in a bounded delta and appended to a journal (<tt>&lt;file&gt;.journal</tt>) by a
+ * background thread; the names learned in the same {@link #FLUSH_DELAY} are written and synced at once (group
+ * commit). Once the journal reaches {@link #COMPACTION_THRESHOLD} lines, the delta is merged with the index into the
+ * index file of the next generation, written aside then renamed, and the journal is truncated. A mapped file is never
+ * replaced, as some platforms forbid it: the previous generations are deleted once they can be, the lookups in
+ * progress still reading them. The merge streams the index, so the heap use does not depend on the number of stored
+ * names.
+ * <p/>
+ * Opening maps the index of the last generation and replays the journal, a line torn by a crash being ignored. The device name file itself,
+ * in the {@link Properties} format, is imported when it is newer than the index, so it can still be populated on
+ * deployment.
+ * <p/>
+ * This class is thread-safe. Lookups do not wait for the writes.
+ */
+class NameStore {
+
+    /**
+     * The delay gathering the learned names in a batch, in milliseconds.
+     */
+    static final long FLUSH_DELAY = 500;
+
+    /**
+     * The number of journal lines triggering a compaction, bounding the delta.
+     */
+    static final int COMPACTION_THRESHOLD = 16384;
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final int MAGIC = 0x424e4958;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final int RECORD_SIZE = 16;
+
+    private final Logger m_logger = LoggerFactory.getLogger(NameStore.class);
+
+    private final File m_file;
+
+    private final File m_journal;
+
+    /**
+     * The generation of the mapped index, -1 if none. Guarded by the write lock.
+     */
+    private long m_generation = -1;
+
+    /**
+     * The names learned since the last compaction, by address, guarded by this.
+     */
+    private final TreeMap<Long, String> m_delta = new TreeMap<Long, String>();
+
+    /**
+     * The mapped index, guarded by this.
+     */
+    private Index m_index = Index.EMPTY;
+
+    /**
+     * The names waiting to be written, guarded by itself with the writer.
+     */
+    private final List<String> m_pending = new ArrayList<String>();
+
+    private boolean m_flushScheduled;
+
+    private ScheduledExecutorService m_writer;
+
+    /**
+     * Set once closed, the names learned later are ignored. Guarded by the pending names.
+     */
+    private boolean m_closed;
+
+    /**
+     * Serializes the writes, guards the journal size.
+     */
+    private final Object m_writeLock = new Object();
+
+    private int m_journalSize;
+
+    /**
+     * Creates a {@link NameStore}.
+     *
+     * @param file the device name file
+     */
+    NameStore(File file) {
+        m_file = file;
+        m_journal = new File(file.getPath() + ".journal");
+    }
+
+    File getFile() {
+        return m_file;
+    }
+
+    /**
+     * @return the index file currently mapped, <code>null</code> if none.
+     */
+    File getIndexFile() {
+        synchronized (m_writeLock) {
+            return m_generation < 0 ? null : getIndexFile(m_generation);
+        }
+    }
+
+    /**
+     * Maps the index of the last generation and replays the journal. The device name file is imported if it is newer
+     * than the index.
+     */
+    void open() {
+        synchronized (m_writeLock) {
+            synchronized (m_pending) {
+                m_closed = false;
+            }
+            synchronized (this) {
+                m_delta.clear();
+                m_index = Index.EMPTY;
+            }
+            m_generation = -1;
+            File indexFile = null;
+            // A generation that cannot be mapped is skipped, the next compaction writes after it.
+            for (long generation : getGenerations()) {
+                File file = getIndexFile(generation);
+                try {
+                    Index index = map(file);
+                    synchronized (this) {
+                        m_index = index;
+                    }
+                    m_generation = generation;
+                    indexFile = file;
+                    break;
+                } catch (IOException e) {
+                    m_logger.error("Cannot map the device name index (" + file.getAbsolutePath() + ")", e);
+                }
+            }
+
+            boolean imported = false;
+            if (m_file.exists() && (indexFile == null || m_file.lastModified() > indexFile.lastModified())) {
+                imported = importNames();
+            } else if (!m_file.exists() && indexFile == null) {
+                m_logger.error("The device name file does not exist, ignoring (" + m_file.getAbsolutePath() + ")");
+            }
+
+            m_journalSize = 0;
+            if (m_journal.exists()) {
+                try {
+                    m_journalSize = replay();
+                } catch (IOException e) {
+                    m_logger.error("Cannot replay the device name journal (" + m_journal.getAbsolutePath() + ")", e);
+                }
+            }
+            m_logger.info("Device name file loaded, " + m_index.m_count + " devices indexed, " + m_delta.size()
+                    + " in the journal");
+            if (imported || m_journalSize >= COMPACTION_THRESHOLD) {
+                compact();
+            }
+            deletePreviousGenerations();
+        }
+    }
+
+    /**
+     * Gets the stored name of a device.
+     *
+     * @param address the device address
+     * @return the name, <code>null</code> if unknown
+     */
+    String get(String address) {
+        long key = parse(address);
+        if (key < 0) {
+            return null;
+        }
+        Index index;
+        synchronized (this) {
+            String name = m_delta.get(key);
+            if (name != null) {
+                return name;
+            }
+            index = m_index;
+        }
+        return index.get(key);
+    }
+
+    /**
+     * Records a learned name. The name is written to the journal in the background, with the names learned in the
+     * next {@link #FLUSH_DELAY} milliseconds.
+     *
+     * @param address the device address
+     * @param name    the name
+     */
+    void put(String address, String name) {
+        long key = parse(address);
+        if (key < 0) {
+            return;
+        }
+        synchronized (m_pending) {
+            if (m_closed) {
+                // The writer is stopped for good.
+                return;
+            }
+            synchronized (this) {
+                m_delta.put(key, name);
+            }
+            m_pending.add(address + "=" + escape(name) + "\n");
+            if (m_flushScheduled) {
+                return;
+            }
+            m_flushScheduled = true;
+            getWriter().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    writeBehind();
+                }
+            }, FLUSH_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the number of stored names, a name learned again being possibly counted twice until the compaction.
+     */
+    synchronized int size() {
+        return m_index.m_count + m_delta.size();
+    }
+
+    /**
+     * Writes the pending names to the journal, syncing them to the disk.
+     */
+    void flush() {
+        synchronized (m_writeLock) {
+            List<String> batch;
+            synchronized (m_pending) {
+                m_flushScheduled = false;
+                if (m_pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<String>(m_pending);
+                m_pending.clear();
+            }
+            try {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                for (String line : batch) {
+                    buffer.write(line.getBytes(CHARSET));
+                }
+                mkdirs();
+                FileOutputStream out = new FileOutputStream(m_journal, true);
+                try {
+                    buffer.writeTo(out);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                m_journalSize += batch.size();
+            } catch (IOException e) {
+                m_logger.error("Cannot append the 'names' to " + m_journal.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Merges the learned names into the index of the next generation, and truncates the journal.
+     */
+    void compact() {
+        synchronized (m_writeLock) {
+            flush();
+            Index index;
+            TreeMap<Long, String> delta;
+            synchronized (this) {
+                index = m_index;
+                delta = new TreeMap<Long, String>(m_delta);
+            }
+            if (delta.isEmpty()) {
+                return;
+            }
+            mkdirs();
+            List<Long> generations = getGenerations();
+            long generation = generations.isEmpty() ? m_generation + 1 : Math.max(m_generation, generations.get(0)) + 1;
+            File indexFile = getIndexFile(generation);
+            File tmp = new File(indexFile.getPath() + ".tmp");
+            try {
+                write(tmp, index, delta);
+                // The index contains the journal, replaying it again is harmless if we crash before the truncation.
+                if (!tmp.renameTo(indexFile)) {
+                    throw new IOException("Cannot rename " + tmp.getAbsolutePath());
+                }
+                Index compacted = map(indexFile);
+                m_generation = generation;
+                synchronized (this) {
+                    // Keep the names learned during the compaction.
+                    for (Map.Entry<Long, String> entry : delta.entrySet()) {
+                        if (entry.getValue().equals(m_delta.get(entry.getKey()))) {
+                            m_delta.remove(entry.getKey());
+                        }
+                    }
+                    m_index = compacted;
+                }
+                new FileOutputStream(m_journal).close();
+                m_logger.info("Device names compacted, " + compacted.m_count + " names, " + m_journalSize
+                        + " journal entries dropped");
+                m_journalSize = 0;
+                deletePreviousGenerations();
+            } catch (IOException e) {
+                m_logger.error("Cannot store the 'names' in " + indexFile.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Compacts the names and stops the background writer. The names learned later are ignored, until the store is
+     * opened again.
+     */
+    void close() {
+        ScheduledExecutorService writer;
+        synchronized (m_pending) {
+            m_closed = true;
+            writer = m_writer;
+            m_writer = null;
+        }
+        if (writer != null) {
+            writer.shutdownNow();
+        }
+        compact();
+    }
+
+    int getJournalSize() {
+        synchronized (m_writeLock) {
+            return m_journalSize;
+        }
+    }
+
+    private void writeBehind() {
+        synchronized (m_writeLock) {
+            flush();
+            if (m_journalSize >= COMPACTION_THRESHOLD) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Gets the background writer, called while holding the pending names.
+     */
+    private ScheduledExecutorService getWriter() {
+        if (m_writer == null) {
+            m_writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "bluetooth-name-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return m_writer;
+    }
+
+    private File getIndexFile(long generation) {
+        return new File(m_file.getPath() + ".index." + generation);
+    }
+
+    /**
+     * @return the generations of the index files on the disk, the last one first.
+     */
+    private List<Long> getGenerations() {
+        List<Long> generations = new ArrayList<Long>();
+        File parent = m_file.getAbsoluteFile().getParentFile();
+        String[] names = parent == null ? null : parent.list();
+        if (names == null) {
+            return generations;
+        }
+        String prefix = m_file.getName() + ".index.";
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                try {
+                    generations.add(Long.parseLong(name.substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    // A temporary file.
+                }
+            }
+        }
+        Collections.sort(generations, Collections.reverseOrder());
+        return generations;
+    }
+
+    /**
+     * Deletes the index files of the previous generations. A file still mapped cannot be deleted on some platforms,
+     * it is deleted by a later compaction, or when the store is opened again. Called with the write lock held.
+     */
+    private void deletePreviousGenerations() {
+        for (long generation : getGenerations()) {
+            if (generation < m_generation) {
+                File file = getIndexFile(generation);
+                if (!file.delete() && file.exists()) {
+                    m_logger.debug("The device name index " + file.getAbsolutePath() + " is still mapped");
+                }
+            }
+        }
+    }
+
+    private void mkdirs() {
+        File parent = m_file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+    }
+
+    private static long parse(String address) {
+        try {
+            long key = Long.parseLong(address, 16);
+            return key >> 48 == 0 ? key : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Index map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a device name index : " + file.getAbsolutePath());
+            }
+            return new Index(buffer, buffer.getInt(4));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the merge of the index and of the delta: the header, the records sorted by address, then the names
+     * prefixed by their length.
+     */
+    private static void write(File file, Index index, TreeMap<Long, String> delta) throws IOException {
+        int count = 0;
+        long size = 0;
+        for (Merge merge = new Merge(index, delta); merge.next(); ) {
+            count++;
+            size += 2 + merge.m_name.length;
+        }
+        if (HEADER_SIZE + (long) count * RECORD_SIZE + size > Integer.MAX_VALUE) {
+            throw new IOException("The device name index exceeds 2GB");
+        }
+
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            out.writeLong(0);
+            long offset = HEADER_SIZE + (long) count * RECORD_SIZE;
+            for (Merge merge = new Merge(index, delta); merge.next(); ) {
+                out.writeLong(merge.m_address);
+                out.writeLong(offset);
+                offset += 2 + merge.m_name.length;
+            }
+            for (Merge merge = new Merge(index, delta); merge.next(); ) {
+                out.writeShort(merge.m_name.length);
+                out.write(merge.m_name);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private boolean importNames() {
+        Properties properties = new Properties();
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(m_file));
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            m_logger.error("Cannot load the device name file (" + m_file.getAbsolutePath() + ")", e);
+            return false;
+        }
+        synchronized (this) {
+            for (String address : properties.stringPropertyNames()) {
+                long key = parse(address);
+                if (key < 0) {
+                    m_logger.warn("Ignoring the invalid address " + address + " of " + m_file.getAbsolutePath());
+                } else {
+                    m_delta.put(key, properties.getProperty(address));
+                }
+            }
+        }
+        m_logger.info("Device name file imported, " + properties.size() + " devices read");
+        return true;
+    }
+
+    /**
+     * Replays the complete lines of the journal.
+     *
+     * @return the number of replayed lines
+     */
+    private int replay() throws IOException {
+        int count = 0;
+        InputStream in = new BufferedInputStream(new FileInputStream(m_journal));
+        try {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String entry = line.toString(CHARSET);
+                line.reset();
+                int separator = entry.indexOf('=');
+                long key = separator > 0 ? parse(entry.substring(0, separator)) : -1;
+                if (key >= 0) {
+                    synchronized (this) {
+                        m_delta.put(key, unescape(entry.substring(separator + 1)));
+                    }
+                    count++;
+                }
+            }
+            if (line.size() > 0) {
+                m_logger.warn("Ignoring the incomplete last entry of " + m_journal.getAbsolutePath());
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    static String escape(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\') {
+                builder.append("\\\\");
+            } else if (c == '\n') {
+                builder.append("\\n");
+            } else if (c == '\r') {
+                builder.append("\\r");
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    static String unescape(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\' && i + 1 < name.length()) {
+                char next = name.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A mapped index. The buffer is only read with absolute accessors, or through duplicates, so it can be shared.
+     */
+    private static final class Index {
+
+        private static final Index EMPTY = new Index(null, 0);
+
+        private final ByteBuffer m_buffer;
+
+        private final int m_count;
+
+        private Index(ByteBuffer buffer, int count) {
+            m_buffer = buffer;
+            m_count = count;
+        }
+
+        private long address(int record) {
+            return m_buffer.getLong(HEADER_SIZE + record * RECORD_SIZE);
+        }
+
+        private byte[] name(int record) {
+            ByteBuffer buffer = m_buffer.duplicate();
+            buffer.position((int) m_buffer.getLong(HEADER_SIZE + record * RECORD_SIZE + 8));
+            byte[] name = new byte[buffer.getShort() & 0xffff];
+            buffer.get(name);
+            return name;
+        }
+
+        private String get(long address) {
+            int low = 0;
+            int high = m_count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long current = address(middle);
+                if (current < address) {
+                    low = middle + 1;
+                } else if (current > address) {
+                    high = middle - 1;
+                } else {
+                    try {
+                        return new String(name(middle), CHARSET);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Iterates over the merge of an index and of a delta, by address. The delta overrides the index.
+     */
+    private static final class Merge {
+
+        private final Index m_index;
+
+        private final Iterator<Map.Entry<Long, String>> m_delta;
+
+        private Map.Entry<Long, String> m_nextDelta;
+
+        private int m_record;
+
+        private long m_address;
+
+        private byte[] m_name;
+
+        private Merge(Index index, TreeMap<Long, String> delta) {
+            m_index = index;
+            m_delta = delta.entrySet().iterator();
+            m_nextDelta = m_delta.hasNext() ? m_delta.next() : null;
+        }
+
+        private boolean next() throws IOException {
+            boolean hasRecord = m_record < m_index.m_count;
+            if (!hasRecord && m_nextDelta == null) {
+                return false;
+            }
+            long recordAddress = hasRecord ? m_index.address(m_record) : Long.MAX_VALUE;
+            if (m_nextDelta != null && m_nextDelta.getKey() <= recordAddress) {
+                if (m_nextDelta.getKey() == recordAddress) {
+                    m_record++;
+                }
+                m_address = m_nextDelta.getKey();
+                m_name = truncate(m_nextDelta.getValue().getBytes(CHARSET));
+                m_nextDelta = m_delta.hasNext() ? m_delta.next() : null;
+            } else {
+                m_address = recordAddress;
+                m_name = m_index.name(m_record++);
+            }
+            return true;
+        }
+
+        private static byte[] truncate(byte[] name) {
+            if (name.length <= 0xffff) {
+                return name;
+            }
+            byte[] truncated = new byte[0xffff];
+            System.arraycopy(name, 0, truncated, 0, truncated.length);
+            return truncated;
+        }
+    }
+}
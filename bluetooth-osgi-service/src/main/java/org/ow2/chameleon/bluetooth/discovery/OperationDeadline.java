@@ -0,0 +1,157 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import java.util.Arrays;
+
+/**
+ * The deadline of a kind of radio operation (inquiry, service search...).
+ * An operation not completed before its deadline is cancelled, so a lost stack callback does not block the radio.
+ * <p/>
+ * The deadline adapts to the observed durations: once enough operations have completed, it is set to twice the
+ * 99th percentile of the recent durations, bounded by the configured minimum and maximum. A timed out operation is
+ * recorded with the maximum duration, so the deadline grows back when the stack slows down.
+ * <p/>
+ * This class is thread-safe.
+ */
+public class OperationDeadline {
+
+    /**
+     * Number of durations kept to compute the percentile.
+     */
+    static final int WINDOW = 128;
+
+    /**
+     * Number of durations required before adapting the deadline.
+     */
+    static final int MIN_SAMPLES = 20;
+
+    private final String m_operation;
+
+    private final long[] m_durations = new long[WINDOW];
+
+    private int m_count;
+
+    private int m_next;
+
+    private long m_minimum;
+
+    private long m_maximum;
+
+    private long m_timeouts;
+
+    /**
+     * Creates an {@link OperationDeadline}.
+     *
+     * @param operation the operation name, used in the logs
+     * @param minimum   the minimum deadline in milliseconds
+     * @param maximum   the maximum deadline in milliseconds, used until enough durations are observed
+     */
+    public OperationDeadline(String operation, long minimum, long maximum) {
+        m_operation = operation;
+        m_minimum = minimum;
+        m_maximum = Math.max(minimum, maximum);
+    }
+
+    public String getOperation() {
+        return m_operation;
+    }
+
+    /**
+     * Sets the maximum deadline.
+     *
+     * @param maximum the maximum deadline in milliseconds
+     */
+    public synchronized void setMaximum(long maximum) {
+        m_maximum = Math.max(m_minimum, maximum);
+    }
+
+    public synchronized long getMaximum() {
+        return m_maximum;
+    }
+
+    /**
+     * Sets the minimum deadline.
+     *
+     * @param minimum the minimum deadline in milliseconds
+     */
+    public synchronized void setMinimum(long minimum) {
+        m_minimum = minimum;
+        m_maximum = Math.max(minimum, m_maximum);
+    }
+
+    public synchronized long getMinimum() {
+        return m_minimum;
+    }
+
+    /**
+     * Records the duration of a completed operation.
+     *
+     * @param duration the duration in milliseconds
+     */
+    public synchronized void record(long duration) {
+        m_durations[m_next] = duration;
+        m_next = (m_next + 1) % WINDOW;
+        if (m_count < WINDOW) {
+            m_count++;
+        }
+    }
+
+    /**
+     * Records a timed out operation.
+     */
+    public synchronized void timedOut() {
+        m_timeouts++;
+        record(m_maximum);
+    }
+
+    /**
+     * @return the number of timed out operations.
+     */
+    public synchronized long getTimeouts() {
+        return m_timeouts;
+    }
+
+    /**
+     * @return the 99th percentile of the recent durations in milliseconds, -1 if no operation was recorded.
+     */
+    public synchronized long getP99() {
+        if (m_count == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(m_durations, m_count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(0.99 * m_count) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * @return the current deadline in milliseconds.
+     */
+    public synchronized long getDeadline() {
+        if (m_count < MIN_SAMPLES) {
+            return m_maximum;
+        }
+        long deadline = 2 * getP99();
+        return Math.min(m_maximum, Math.max(m_minimum, deadline));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return m_operation + " deadline [current=" + getDeadline() + "ms, p99=" + getP99() + "ms, timeouts="
+                + m_timeouts + "]";
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.ow2.chameleon.bluetooth.devices.Device;
+
+import javax.bluetooth.RemoteDevice;
+
+/**
+ * Strategy checking whether a device is still reachable.
+ * The {@link BluetoothDeviceDiscovery} probes the devices missing from an inquiry before withdrawing them, and the
+ * devices found by an inquiry when the online check is enabled.
+ * <p/>
+ * The probe of a device is chosen by name: the fleet entry of the device sets it (<tt>presence-probe</tt>), the other
+ * devices use the probe configured on the discovery. The built-in probes are <tt>sdp</tt> (service search),
+ * <tt>handle</tt> (record handle of the SDP server), <tt>name</tt> (name request) and <tt>inquiry</tt> (seen by a
+ * recent inquiry). Custom probes are published as OSGi services, a custom probe replaces the built-in probe having
+ * the same name.
+ * <p/>
+ * The probes are shared by the adapters: implementations must be thread-safe.
+ */
+public interface PresenceProbe {
+
+    /**
+     * @return the name of the probe, as used in the fleet entries.
+     */
+    String getName();
+
+    /**
+     * Whether the probe uses the radio. The probes using the radio are executed in the
+     * {@link RadioLane#PRESENCE} lane, the others as soon as a check is needed.
+     *
+     * @return <code>true</code> if the probe uses the radio
+     */
+    boolean isRadioRequired();
+
+    /**
+     * Checks whether a device is reachable.
+     *
+     * @param radio   the radio of the adapter running the probe, <code>null</code> if the probe does not use the
+     *                radio
+     * @param device  the device
+     * @param entry   the fleet entry of the device, <code>null</code> if the device is not in the fleet
+     * @param timeout the time in milliseconds after which the probe should give up and consider the device
+     *                unreachable
+     * @return <code>true</code> if the device is reachable
+     * @throws InterruptedException if the thread is interrupted, the discovery being stopped
+     */
+    boolean isPresent(BluetoothRadio radio, RemoteDevice device, Device entry, long timeout)
+            throws InterruptedException;
+}
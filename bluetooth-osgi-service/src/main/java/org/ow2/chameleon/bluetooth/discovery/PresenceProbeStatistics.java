@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+/**
+ * Cost statistics of a {@link PresenceProbe}: the number of probes, their outcome and their duration.
+ * Instances returned by the discovery are snapshots, they are not updated afterwards.
+ */
+public class PresenceProbeStatistics {
+
+    private final String m_probe;
+
+    private long m_executed;
+
+    private long m_present;
+
+    private long m_timeouts;
+
+    private long m_totalDuration;
+
+    private long m_maxDuration;
+
+    PresenceProbeStatistics(String probe) {
+        m_probe = probe;
+    }
+
+    void executed(boolean present, long duration, boolean timedOut) {
+        m_executed++;
+        if (present) {
+            m_present++;
+        }
+        if (timedOut) {
+            m_timeouts++;
+        }
+        m_totalDuration += duration;
+        if (duration > m_maxDuration) {
+            m_maxDuration = duration;
+        }
+    }
+
+    PresenceProbeStatistics copy() {
+        PresenceProbeStatistics copy = new PresenceProbeStatistics(m_probe);
+        copy.m_executed = m_executed;
+        copy.m_present = m_present;
+        copy.m_timeouts = m_timeouts;
+        copy.m_totalDuration = m_totalDuration;
+        copy.m_maxDuration = m_maxDuration;
+        return copy;
+    }
+
+    public String getProbe() {
+        return m_probe;
+    }
+
+    /**
+     * @return the number of probes executed.
+     */
+    public long getExecuted() {
+        return m_executed;
+    }
+
+    /**
+     * @return the number of probes having found the device.
+     */
+    public long getPresent() {
+        return m_present;
+    }
+
+    /**
+     * @return the number of probes having not found the device, timeouts included.
+     */
+    public long getAbsent() {
+        return m_executed - m_present;
+    }
+
+    /**
+     * @return the number of probes cancelled after their deadline.
+     */
+    public long getTimeouts() {
+        return m_timeouts;
+    }
+
+    /**
+     * @return the total duration of the probes in milliseconds, i.e. the radio time they used.
+     */
+    public long getTotalDuration() {
+        return m_totalDuration;
+    }
+
+    /**
+     * @return the average duration in milliseconds.
+     */
+    public long getAverageDuration() {
+        if (m_executed == 0) {
+            return 0;
+        }
+        return m_totalDuration / m_executed;
+    }
+
+    /**
+     * @return the longest duration in milliseconds.
+     */
+    public long getMaxDuration() {
+        return m_maxDuration;
+    }
+
+    @Override
+    public String toString() {
+        return m_probe + " [executed=" + m_executed + ", present=" + m_present + ", timeouts=" + m_timeouts
+                + ", avgDuration=" + getAverageDuration() + "ms, maxDuration=" + m_maxDuration
+                + "ms, totalDuration=" + m_totalDuration + "ms]";
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.ow2.chameleon.bluetooth.devices.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.UUID;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The presence probes known by the discovery, by name: the built-in probes, possibly replaced by custom probes.
+ * <p/>
+ * The probes are executed through this class, which bounds them with a deadline adapting to the observed durations
+ * of each probe (see {@link OperationDeadline}) and measures their cost. This class is thread-safe.
+ */
+class PresenceProbes {
+
+    /**
+     * The probe searching the public browse group, or the single service class declared in the fleet.
+     */
+    static final String SDP = "sdp";
+
+    /**
+     * The probe searching the record handle of the SDP server.
+     */
+    static final String HANDLE = "handle";
+
+    /**
+     * The probe requesting the device name.
+     */
+    static final String NAME = "name";
+
+    /**
+     * The probe checking the last sighting of the device by an inquiry.
+     */
+    static final String INQUIRY = "inquiry";
+
+    private final Logger m_logger = LoggerFactory.getLogger(PresenceProbes.class);
+
+    private final Map<String, PresenceProbe> m_builtIn = new HashMap<String, PresenceProbe>();
+
+    private final Map<String, PresenceProbe> m_probes = new HashMap<String, PresenceProbe>();
+
+    private final Map<String, OperationDeadline> m_deadlines = new HashMap<String, OperationDeadline>();
+
+    private final Map<String, PresenceProbeStatistics> m_statistics = new HashMap<String, PresenceProbeStatistics>();
+
+    private final SdpPresenceProbe m_sdp;
+
+    private volatile FleetMatcher m_fleet;
+
+    private volatile String m_default = SDP;
+
+    /**
+     * The maximum deadline of the probes in milliseconds.
+     */
+    private long m_timeout = 30000;
+
+    /**
+     * Creates a {@link PresenceProbes} with the built-in probes using the radio.
+     */
+    PresenceProbes() {
+        m_sdp = new SdpPresenceProbe(SDP, new UUID[]{UUIDs.PUBLIC_BROWSE_GROUP}, false);
+        addBuiltIn(m_sdp);
+        addBuiltIn(new SdpPresenceProbe(HANDLE, new UUID[]{UUIDs.SDP}, true));
+        addBuiltIn(new NamePresenceProbe());
+    }
+
+    /**
+     * Adds a built-in probe. A custom probe having the same name takes precedence.
+     *
+     * @param probe the probe
+     */
+    synchronized void addBuiltIn(PresenceProbe probe) {
+        m_builtIn.put(probe.getName(), probe);
+        if (!m_probes.containsKey(probe.getName())) {
+            m_probes.put(probe.getName(), probe);
+        }
+    }
+
+    /**
+     * Adds a custom probe, replacing the probe having the same name.
+     *
+     * @param probe the probe
+     */
+    synchronized void add(PresenceProbe probe) {
+        m_logger.info("Presence probe " + probe.getName() + " set to " + probe);
+        m_probes.put(probe.getName(), probe);
+    }
+
+    /**
+     * Removes a custom probe. The built-in probe having the same name, if any, is restored.
+     *
+     * @param probe the probe
+     */
+    synchronized void remove(PresenceProbe probe) {
+        if (m_probes.get(probe.getName()) != probe) {
+            return;
+        }
+        PresenceProbe builtIn = m_builtIn.get(probe.getName());
+        if (builtIn != null) {
+            m_probes.put(probe.getName(), builtIn);
+        } else {
+            m_probes.remove(probe.getName());
+        }
+    }
+
+    synchronized PresenceProbe get(String name) {
+        return m_probes.get(name);
+    }
+
+    /**
+     * Sets the fleet, selecting the probe of the fleet devices.
+     *
+     * @param fleet the fleet matcher, <code>null</code> if there is no fleet
+     */
+    void setFleet(FleetMatcher fleet) {
+        m_fleet = fleet;
+        m_sdp.setFleet(fleet);
+    }
+
+    /**
+     * Sets the probe of the devices whose fleet entry does not set one.
+     *
+     * @param name the name of the probe
+     */
+    void setDefault(String name) {
+        m_default = name == null ? SDP : name.trim();
+    }
+
+    String getDefault() {
+        return m_default;
+    }
+
+    /**
+     * Sets the maximum duration of the probes.
+     *
+     * @param timeout the timeout in milliseconds
+     */
+    synchronized void setTimeout(long timeout) {
+        m_timeout = timeout;
+        for (OperationDeadline deadline : m_deadlines.values()) {
+            deadline.setMaximum(timeout);
+        }
+    }
+
+    /**
+     * Gets the fleet entry of a device.
+     *
+     * @param device the device
+     * @param name   the known name of the device, <code>null</code> if unknown
+     * @return the entry, <code>null</code> if the device is not in the fleet
+     */
+    Device getEntry(RemoteDevice device, String name) {
+        FleetMatcher fleet = m_fleet;
+        return fleet == null ? null : fleet.getMatchingDevice(device.getBluetoothAddress(), name);
+    }
+
+    /**
+     * Selects the probe of a device: the probe set by its fleet entry, or the default probe.
+     *
+     * @param entry the fleet entry of the device, <code>null</code> if the device is not in the fleet
+     * @return the probe
+     */
+    PresenceProbe select(Device entry) {
+        return select(entry, m_default);
+    }
+
+    /**
+     * Selects the probe of a device: the probe set by its fleet entry, or the given probe.
+     *
+     * @param entry    the fleet entry of the device, <code>null</code> if the device is not in the fleet
+     * @param fallback the name of the probe used if the entry does not set a known probe
+     * @return the probe
+     */
+    PresenceProbe select(Device entry, String fallback) {
+        if (entry != null && entry.getPresenceProbe() != null) {
+            PresenceProbe probe = get(entry.getPresenceProbe().trim());
+            if (probe != null) {
+                return probe;
+            }
+            m_logger.warn("Unknown presence probe " + entry.getPresenceProbe() + " set for " + entry.getId()
+                    + ", using " + fallback);
+        }
+        PresenceProbe probe = get(fallback);
+        if (probe == null) {
+            m_logger.warn("Unknown presence probe " + fallback + ", using " + SDP);
+            return get(SDP);
+        }
+        return probe;
+    }
+
+    /**
+     * Probes a device, within the deadline of the probe.
+     *
+     * @param probe  the probe
+     * @param radio  the radio of the adapter running the probe
+     * @param device the device
+     * @param entry  the fleet entry of the device, <code>null</code> if none
+     * @param bound  the maximum duration in milliseconds allowed by the caller
+     * @return <code>true</code> if the device is reachable
+     * @throws InterruptedException if the thread is interrupted
+     */
+    boolean probe(PresenceProbe probe, BluetoothRadio radio, RemoteDevice device, Device entry, long bound)
+            throws InterruptedException {
+        OperationDeadline deadline = getDeadline(probe.getName());
+        long timeout = Math.min(deadline.getDeadline(), bound);
+        long start = System.currentTimeMillis();
+        boolean present = false;
+        boolean failed = false;
+        try {
+            present = probe.isPresent(probe.isRadioRequired() ? radio : null, device, entry, timeout);
+        } catch (RuntimeException e) {
+            m_logger.error("Presence probe " + probe.getName() + " failed on " + device.getBluetoothAddress(), e);
+            failed = true;
+        }
+        long duration = System.currentTimeMillis() - start;
+        boolean timedOut = !present && duration >= timeout;
+        DiscoveryMetricsRecorder.getDefault().record(DiscoveryMetricsRecorder.PRESENCE, duration, !failed && !timedOut);
+        if (timedOut) {
+            deadline.timedOut();
+        } else {
+            deadline.record(duration);
+        }
+        synchronized (this) {
+            PresenceProbeStatistics statistics = m_statistics.get(probe.getName());
+            if (statistics == null) {
+                statistics = new PresenceProbeStatistics(probe.getName());
+                m_statistics.put(probe.getName(), statistics);
+            }
+            statistics.executed(present, duration, timedOut);
+        }
+        return present;
+    }
+
+    private synchronized OperationDeadline getDeadline(String name) {
+        OperationDeadline deadline = m_deadlines.get(name);
+        if (deadline == null) {
+            deadline = new OperationDeadline("presence-" + name, Math.min(5000, m_timeout), m_timeout);
+            m_deadlines.put(name, deadline);
+        }
+        return deadline;
+    }
+
+    /**
+     * @return a snapshot of the statistics of the executed probes, by probe name.
+     */
+    synchronized Map<String, PresenceProbeStatistics> getStatistics() {
+        Map<String, PresenceProbeStatistics> copy = new TreeMap<String, PresenceProbeStatistics>();
+        for (Map.Entry<String, PresenceProbeStatistics> entry : m_statistics.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+/**
+ * The lanes of the {@link RadioScheduler}.
+ * Each kind of radio operation is queued in its own lane. When the radio is free, the scheduler picks the next
+ * operation according to the lane priority, increased by the time the operation has been waiting.
+ * <p/>
+ * The {@link #INQUIRY} lane is special: a due inquiry is always executed as soon as the radio is free, so the
+ * discovery period is met whatever the size of the other lanes.
+ */
+public enum RadioLane {
+
+    /**
+     * Periodic device inquiry.
+     */
+    INQUIRY(3),
+
+    /**
+     * Device pairing (authentication), blocking the registration of the device.
+     */
+    PAIRING(2),
+
+    /**
+     * Presence checks of already known devices.
+     */
+    PRESENCE(1),
+
+    /**
+     * Remote name requests, blocking the registration of the device when its name is required.
+     */
+    NAME(1),
+
+    /**
+     * Service discovery (SDP) on a device.
+     */
+    SDP(0);
+
+    private final int m_priority;
+
+    RadioLane(int priority) {
+        m_priority = priority;
+    }
+
+    /**
+     * @return the base priority of the lane, the greater the more urgent.
+     */
+    public int getPriority() {
+        return m_priority;
+    }
+}
@@ -0,0 +1,766 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler executing the radio operations.
+ * Each adapter has its own worker thread executing the operations one at a time, as an adapter cannot run several
+ * operations concurrently. Operations are queued in {@link RadioLane}s.
+ * <p/>
+ * When an adapter is free, a due inquiry is executed first. Otherwise the head of each lane is scored with the lane
+ * priority plus one point per <em>aging period</em> spent in the queue, and the best score wins (the oldest task
+ * on ties). So a low priority lane is delayed by a busy lane but never starves.
+ * <p/>
+ * Periodic jobs are executed with a fixed delay: the next execution is queued <em>period</em> after the end of the
+ * previous one.
+ * <p/>
+ * One-shot tasks can be submitted with a key, generally the address of the targeted device. A task submitted while
+ * a task with the same key is waiting in the same lane is merged into it: the waiting task keeps its place in the
+ * queue but executes the latest job. So each lane holds at most one waiting task per device.
+ * <p/>
+ * With several adapters, inquiries run on the first adapter, while the other operations are spread over the other
+ * adapters. Operations submitted with a key always run on the same adapter, so a device is paired and searched
+ * through a single adapter. Operations without key go to the least loaded adapter. An adapter whose worker thread
+ * cannot be bound is excluded, its share of the operations goes to the other adapters.
+ */
+class RadioScheduler {
+
+    /**
+     * The adapter bound to the current worker thread.
+     */
+    private static final ThreadLocal<Integer> CURRENT_ADAPTER = new ThreadLocal<Integer>();
+
+    private final Logger m_logger = LoggerFactory.getLogger(RadioScheduler.class);
+
+    private final Object m_lock = new Object();
+
+    private final ThreadFactory m_factory;
+
+    private final AdapterBinder m_binder;
+
+    /**
+     * The aging period in milliseconds.
+     */
+    private final long m_agingPeriod;
+
+    private final Adapter[] m_adapters;
+
+    private final Map<RadioLane, LaneStatistics> m_statistics = new EnumMap<RadioLane, LaneStatistics>(RadioLane.class);
+
+    /**
+     * The waiting tasks submitted with a key, by lane and key.
+     */
+    private final Map<RadioLane, Map<String, RadioTask>> m_pending = new EnumMap<RadioLane, Map<String, RadioTask>>(RadioLane.class);
+
+    /**
+     * The periodic tasks, so they can be rescheduled or cancelled.
+     */
+    private final List<RadioTask> m_periodic = new ArrayList<RadioTask>();
+
+    /**
+     * Timer queuing the periodic jobs when they are due. It never touches the radio.
+     */
+    private final ScheduledThreadPoolExecutor m_timer;
+
+    private boolean m_shutdown;
+
+    /**
+     * Creates a {@link RadioScheduler} using a single adapter, the default one.
+     *
+     * @param factory     the factory creating the worker thread
+     * @param agingPeriod the time in milliseconds after which a waiting task gains one priority point
+     */
+    RadioScheduler(ThreadFactory factory, long agingPeriod) {
+        this(factory, agingPeriod, 1, null);
+    }
+
+    /**
+     * Creates a {@link RadioScheduler}. The worker threads are created on the first submission.
+     *
+     * @param factory     the factory creating the worker threads
+     * @param agingPeriod the time in milliseconds after which a waiting task gains one priority point
+     * @param adapters    the number of adapters
+     * @param binder      the binder attaching each worker thread to its adapter, <code>null</code> to use the
+     *                    default adapter (single adapter only)
+     */
+    RadioScheduler(ThreadFactory factory, long agingPeriod, int adapters, AdapterBinder binder) {
+        if (adapters < 1 || (adapters > 1 && binder == null)) {
+            throw new IllegalArgumentException("Cannot use " + adapters + " adapters without binder");
+        }
+        m_factory = factory;
+        m_binder = binder;
+        m_agingPeriod = agingPeriod <= 0 ? 1 : agingPeriod;
+        m_timer = new ScheduledThreadPoolExecutor(1, factory);
+        for (RadioLane lane : RadioLane.values()) {
+            m_statistics.put(lane, new LaneStatistics(lane));
+            m_pending.put(lane, new HashMap<String, RadioTask>());
+        }
+        m_adapters = new Adapter[adapters];
+        for (int i = 0; i < adapters; i++) {
+            m_adapters[i] = new Adapter(i);
+        }
+    }
+
+    /**
+     * Gets the adapter bound to the current thread.
+     *
+     * @return the index of the adapter, -1 if the current thread is not a worker thread
+     */
+    static int currentAdapter() {
+        Integer adapter = CURRENT_ADAPTER.get();
+        if (adapter == null) {
+            return -1;
+        }
+        return adapter;
+    }
+
+    /**
+     * @return the number of adapters.
+     */
+    int getAdapterCount() {
+        return m_adapters.length;
+    }
+
+    /**
+     * Gets the adapter executing the operations submitted with the given key, except inquiries. The keys are spread
+     * over the adapters bound successfully, the inquiry adapter excepted when another one is usable.
+     *
+     * @param key the key
+     * @return the index of the adapter
+     */
+    int getAdapter(String key) {
+        synchronized (m_lock) {
+            return getShard(key).m_index;
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private Adapter getShard(String key) {
+        Adapter inquiry = getInquiryAdapter();
+        List<Adapter> shards = new ArrayList<Adapter>(m_adapters.length);
+        for (Adapter adapter : m_adapters) {
+            if (adapter != inquiry && !adapter.m_unusable) {
+                shards.add(adapter);
+            }
+        }
+        if (shards.isEmpty()) {
+            return inquiry;
+        }
+        return shards.get((key.hashCode() & Integer.MAX_VALUE) % shards.size());
+    }
+
+    /**
+     * Gets the adapter executing the inquiries, the first one unless it cannot be bound. Must be called with the lock
+     * held.
+     */
+    private Adapter getInquiryAdapter() {
+        for (Adapter adapter : m_adapters) {
+            if (!adapter.m_unusable) {
+                return adapter;
+            }
+        }
+        // None usable, the tasks wait until shutdown.
+        return m_adapters[0];
+    }
+
+    /**
+     * Schedules a periodic job. The first execution is queued immediately.
+     *
+     * @param lane   the lane
+     * @param job    the job
+     * @param period the delay between the end of an execution and the next one
+     * @param unit   the unit of the period
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    void schedule(RadioLane lane, Runnable job, long period, TimeUnit unit) {
+        final long delay = unit.toMillis(period);
+        schedule(lane, job, new Delay() {
+            @Override
+            public long next() {
+                return delay;
+            }
+        });
+    }
+
+    /**
+     * Schedules a periodic job whose delay changes over time. The first execution is queued immediately.
+     *
+     * @param lane  the lane
+     * @param job   the job
+     * @param delay the delay between the end of an execution and the next one, asked after each execution
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    void schedule(RadioLane lane, Runnable job, Delay delay) {
+        synchronized (m_lock) {
+            RadioTask task = new RadioTask(lane, job, delay);
+            enqueue(task);
+            m_periodic.add(task);
+        }
+    }
+
+    /**
+     * Replaces a periodic job and its delay, atomically. A running execution of the job completes, the next
+     * executions run the replacement. If the job is waiting for its delay and the delay is replaced, the next
+     * execution is rescheduled with the new delay, counted from now.
+     *
+     * @param job         the scheduled job
+     * @param replacement the job executed from now on
+     * @param delay       the delay between two executions from now on
+     * @return <code>true</code> if the job was replaced, <code>false</code> if it is not scheduled
+     */
+    boolean reschedule(Runnable job, Runnable replacement, Delay delay) {
+        synchronized (m_lock) {
+            RadioTask task = getPeriodic(job);
+            if (task == null || m_shutdown) {
+                return false;
+            }
+            task.m_job = replacement;
+            if (task.m_delay == delay) {
+                return true;
+            }
+            task.m_delay = delay;
+            if (task.m_rearm != null) {
+                // Waiting for the previous delay.
+                task.m_rearm.cancel(false);
+                task.m_rearm = null;
+                task.m_generation++;
+                rearm(task);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Cancels a periodic job. A running execution of the job completes, but the job is not executed anymore.
+     *
+     * @param job the scheduled job
+     * @return <code>true</code> if the job was cancelled, <code>false</code> if it is not scheduled
+     */
+    boolean cancel(Runnable job) {
+        synchronized (m_lock) {
+            RadioTask task = getPeriodic(job);
+            if (task == null) {
+                return false;
+            }
+            m_periodic.remove(task);
+            task.m_delay = null;
+            task.m_generation++;
+            if (task.m_rearm != null) {
+                task.m_rearm.cancel(false);
+                task.m_rearm = null;
+            }
+            for (Adapter adapter : m_adapters) {
+                adapter.m_queues.get(task.m_lane).remove(task);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private RadioTask getPeriodic(Runnable job) {
+        for (RadioTask task : m_periodic) {
+            if (task.m_job == job) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Submits a one-shot task.
+     *
+     * @param lane the lane
+     * @param job  the job
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    void submit(RadioLane lane, Runnable job) {
+        enqueue(new RadioTask(lane, job, null));
+    }
+
+    /**
+     * Submits a one-shot task, merging it with the waiting task of the lane having the same key if any.
+     *
+     * @param lane the lane
+     * @param key  the key, generally the address of the device
+     * @param job  the job
+     * @return <code>true</code> if the task was queued, <code>false</code> if it was merged in a waiting task
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    boolean submit(RadioLane lane, String key, Runnable job) {
+        synchronized (m_lock) {
+            RadioTask waiting = m_pending.get(lane).get(key);
+            if (waiting != null && !m_shutdown) {
+                waiting.m_job = job;
+                m_statistics.get(lane).coalesced(getPending(lane));
+                return false;
+            }
+            RadioTask task = new RadioTask(lane, job, null);
+            task.m_key = key;
+            enqueue(task);
+            m_pending.get(lane).put(key, task);
+            return true;
+        }
+    }
+
+    /**
+     * Executes a job in the timer once the given delay elapsed, such as a delayed retry. The job must not touch the
+     * radio: it generally submits a task once due.
+     *
+     * @param job   the job
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return the future of the job, cancelling it before the delay elapsed drops the job
+     * @throws RejectedExecutionException if the scheduler is shut down
+     */
+    ScheduledFuture<?> delay(Runnable job, long delay, TimeUnit unit) {
+        synchronized (m_lock) {
+            if (m_shutdown) {
+                throw new RejectedExecutionException("The radio scheduler is shut down");
+            }
+        }
+        return m_timer.schedule(job, delay, unit);
+    }
+
+    /**
+     * @return the number of waiting tasks, all lanes and adapters included.
+     */
+    int getQueueSize() {
+        synchronized (m_lock) {
+            int size = 0;
+            for (Adapter adapter : m_adapters) {
+                size += adapter.size();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * @return a snapshot of the per-lane statistics, all adapters included.
+     */
+    Map<RadioLane, LaneStatistics> getStatistics() {
+        synchronized (m_lock) {
+            Map<RadioLane, LaneStatistics> copy = new EnumMap<RadioLane, LaneStatistics>(RadioLane.class);
+            for (LaneStatistics statistics : m_statistics.values()) {
+                copy.put(statistics.getLane(), statistics.copy());
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Gets the number of tasks executed by each adapter.
+     *
+     * @return the number of executed tasks, indexed by adapter
+     */
+    long[] getExecutedPerAdapter() {
+        synchronized (m_lock) {
+            long[] executed = new long[m_adapters.length];
+            for (int i = 0; i < m_adapters.length; i++) {
+                executed[i] = m_adapters[i].m_executed;
+            }
+            return executed;
+        }
+    }
+
+    /**
+     * Shutdowns the scheduler. Waiting tasks are dropped and the running ones are interrupted. The dropped jobs
+     * implementing {@link Droppable} are told so.
+     */
+    void shutdown() {
+        List<Droppable> dropped = new ArrayList<Droppable>();
+        synchronized (m_lock) {
+            m_shutdown = true;
+            for (Adapter adapter : m_adapters) {
+                for (LinkedList<RadioTask> queue : adapter.m_queues.values()) {
+                    for (RadioTask task : queue) {
+                        if (task.m_job instanceof Droppable) {
+                            dropped.add((Droppable) task.m_job);
+                        }
+                    }
+                }
+                adapter.clear();
+            }
+            for (Map<String, RadioTask> pending : m_pending.values()) {
+                pending.clear();
+            }
+            m_periodic.clear();
+            m_lock.notifyAll();
+        }
+        m_timer.shutdownNow();
+        for (Adapter adapter : m_adapters) {
+            if (adapter.m_worker != null) {
+                adapter.m_worker.interrupt();
+            }
+        }
+        // Out of the lock, the jobs may submit again.
+        for (Droppable job : dropped) {
+            try {
+                job.dropped();
+            } catch (RuntimeException e) {
+                m_logger.error("Uncaught Exception thrown by " + job, e);
+            }
+        }
+    }
+
+    private void enqueue(RadioTask task) {
+        synchronized (m_lock) {
+            if (m_shutdown) {
+                throw new RejectedExecutionException("The radio scheduler is shut down");
+            }
+            Adapter adapter = select(task);
+            task.m_enqueued = System.currentTimeMillis();
+            adapter.m_queues.get(task.m_lane).addLast(task);
+            m_statistics.get(task.m_lane).submitted(getPending(task.m_lane));
+            for (Adapter a : m_adapters) {
+                a.start();
+            }
+            m_lock.notifyAll();
+        }
+    }
+
+    /**
+     * Selects the adapter executing the given task. Must be called with the lock held.
+     */
+    private Adapter select(RadioTask task) {
+        Adapter inquiry = getInquiryAdapter();
+        if (m_adapters.length == 1 || task.m_lane == RadioLane.INQUIRY) {
+            return inquiry;
+        }
+        if (task.m_key != null) {
+            return getShard(task.m_key);
+        }
+        Adapter best = null;
+        for (Adapter adapter : m_adapters) {
+            if (adapter != inquiry && !adapter.m_unusable && (best == null || adapter.load() < best.load())) {
+                best = adapter;
+            }
+        }
+        return best == null ? inquiry : best;
+    }
+
+    /**
+     * Excludes an adapter that cannot be bound, its waiting tasks are moved to the usable adapters. Must be called
+     * with the lock held.
+     */
+    private void exclude(Adapter adapter) {
+        adapter.m_unusable = true;
+        List<RadioTask> moved = new ArrayList<RadioTask>();
+        for (LinkedList<RadioTask> queue : adapter.m_queues.values()) {
+            moved.addAll(queue);
+            queue.clear();
+        }
+        for (RadioTask task : moved) {
+            select(task).m_queues.get(task.m_lane).addLast(task);
+        }
+        for (Adapter a : m_adapters) {
+            a.start();
+        }
+        m_lock.notifyAll();
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private int getPending(RadioLane lane) {
+        int pending = 0;
+        for (Adapter adapter : m_adapters) {
+            pending += adapter.m_queues.get(lane).size();
+        }
+        return pending;
+    }
+
+    private RadioTask dequeue(RadioTask task) {
+        if (task.m_key != null) {
+            // From now on, a submission with the same key is a new task.
+            m_pending.get(task.m_lane).remove(task.m_key);
+        }
+        return task;
+    }
+
+    private void rearm(final RadioTask task) {
+        synchronized (m_lock) {
+            if (m_shutdown || task.m_delay == null) {
+                return;
+            }
+            long delay = task.m_delay.next();
+            if (delay <= 0) {
+                m_periodic.remove(task);
+                return;
+            }
+            final long generation = task.m_generation;
+            try {
+                task.m_rearm = m_timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (m_lock) {
+                            if (task.m_generation != generation) {
+                                // Rescheduled or cancelled in the meantime.
+                                return;
+                            }
+                            task.m_rearm = null;
+                            try {
+                                enqueue(task);
+                            } catch (RejectedExecutionException e) {
+                                // Shut down in the meantime.
+                            }
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down in the meantime.
+            }
+        }
+    }
+
+    /**
+     * Attaches a worker thread to its adapter.
+     */
+    interface AdapterBinder {
+
+        /**
+         * Binds the current thread to the given adapter. All radio operations executed later by the thread target
+         * this adapter.
+         *
+         * @param adapter the index of the adapter
+         * @throws Exception if the adapter cannot be used
+         */
+        void bind(int adapter) throws Exception;
+    }
+
+    /**
+     * A job waiting for a result, told when it is dropped without being executed.
+     */
+    interface Droppable {
+
+        /**
+         * The job will never be executed, the scheduler being shut down.
+         */
+        void dropped();
+    }
+
+    /**
+     * Computes the delay before the next execution of a periodic job.
+     */
+    interface Delay {
+
+        /**
+         * @return the delay in milliseconds between the end of the last execution and the next one, 0 to stop the
+         * job.
+         */
+        long next();
+    }
+
+    /**
+     * A task queued in a lane.
+     */
+    private static class RadioTask {
+
+        final RadioLane m_lane;
+
+        /**
+         * The job, replaced when another task is merged into this one.
+         */
+        Runnable m_job;
+
+        /**
+         * The coalescing key, <code>null</code> if the task cannot be merged.
+         */
+        String m_key;
+
+        /**
+         * The delay of the periodic tasks, <code>null</code> for one-shot tasks and cancelled periodic tasks.
+         */
+        Delay m_delay;
+
+        /**
+         * The pending execution of a periodic task waiting for its delay, <code>null</code> otherwise.
+         */
+        ScheduledFuture<?> m_rearm;
+
+        /**
+         * Incremented when the pending execution is dropped, so a timer firing concurrently is ignored.
+         */
+        long m_generation;
+
+        long m_enqueued;
+
+        RadioTask(RadioLane lane, Runnable job, Delay delay) {
+            m_lane = lane;
+            m_job = job;
+            m_delay = delay;
+        }
+    }
+
+    /**
+     * An adapter, with its lanes and its worker. Guarded by the scheduler lock.
+     */
+    private class Adapter implements Runnable {
+
+        final int m_index;
+
+        final Map<RadioLane, LinkedList<RadioTask>> m_queues = new EnumMap<RadioLane, LinkedList<RadioTask>>(RadioLane.class);
+
+        Thread m_worker;
+
+        boolean m_busy;
+
+        /**
+         * Whether the worker thread cannot be bound to the adapter, the adapter then receives no task.
+         */
+        boolean m_unusable;
+
+        long m_executed;
+
+        Adapter(int index) {
+            m_index = index;
+            for (RadioLane lane : RadioLane.values()) {
+                m_queues.put(lane, new LinkedList<RadioTask>());
+            }
+        }
+
+        void start() {
+            if (m_worker == null && !m_unusable) {
+                m_worker = m_factory.newThread(this);
+                m_worker.start();
+            }
+        }
+
+        int size() {
+            int size = 0;
+            for (LinkedList<RadioTask> queue : m_queues.values()) {
+                size += queue.size();
+            }
+            return size;
+        }
+
+        int load() {
+            return size() + (m_busy ? 1 : 0);
+        }
+
+        void clear() {
+            for (LinkedList<RadioTask> queue : m_queues.values()) {
+                queue.clear();
+            }
+        }
+
+        /**
+         * Picks the next task to execute.
+         *
+         * @param now the current time
+         * @return the next task, <code>null</code> if all lanes are empty
+         */
+        RadioTask next(long now) {
+            LinkedList<RadioTask> inquiries = m_queues.get(RadioLane.INQUIRY);
+            if (!inquiries.isEmpty()) {
+                return dequeue(inquiries.removeFirst());
+            }
+
+            RadioTask best = null;
+            long bestScore = Long.MIN_VALUE;
+            for (LinkedList<RadioTask> queue : m_queues.values()) {
+                if (queue.isEmpty()) {
+                    continue;
+                }
+                RadioTask head = queue.getFirst();
+                long score = head.m_lane.getPriority() + (now - head.m_enqueued) / m_agingPeriod;
+                if (best == null || score > bestScore || (score == bestScore && head.m_enqueued < best.m_enqueued)) {
+                    best = head;
+                    bestScore = score;
+                }
+            }
+            if (best != null) {
+                m_queues.get(best.m_lane).removeFirst();
+                dequeue(best);
+            }
+            return best;
+        }
+
+        @Override
+        public void run() {
+            CURRENT_ADAPTER.set(m_index);
+            if (m_binder != null) {
+                try {
+                    m_binder.bind(m_index);
+                } catch (Exception e) {
+                    m_logger.error("Cannot bind the worker thread to the adapter " + m_index
+                            + ", its operations are executed by the other adapters", e);
+                    synchronized (m_lock) {
+                        exclude(this);
+                    }
+                    CURRENT_ADAPTER.remove();
+                    return;
+                }
+            }
+
+            while (true) {
+                RadioTask task;
+                Runnable job;
+                synchronized (m_lock) {
+                    m_busy = false;
+                    task = next(System.currentTimeMillis());
+                    while (task == null && !m_shutdown) {
+                        try {
+                            m_lock.wait();
+                        } catch (InterruptedException e) {
+                            // Check the shutdown flag.
+                        }
+                        task = next(System.currentTimeMillis());
+                    }
+                    if (m_shutdown) {
+                        return;
+                    }
+                    long wait = System.currentTimeMillis() - task.m_enqueued;
+                    m_statistics.get(task.m_lane).started(wait, getPending(task.m_lane));
+                    DiscoveryMetricsRecorder.getDefault().record(DiscoveryMetricsRecorder.WAIT + task.m_lane.name(), wait, true);
+                    m_busy = true;
+                    m_executed++;
+                    job = task.m_job;
+                    m_logger.info("Starting " + job + " on lane " + task.m_lane + " of adapter " + m_index
+                            + " after " + wait + " ms");
+                }
+
+                try {
+                    job.run();
+                } catch (Throwable e) {
+                    m_logger.error("Uncaught Exception thrown by " + job, e);
+                }
+                // Clear the interrupted flag, the interruption was targeting the task.
+                Thread.interrupted();
+                rearm(task);
+            }
+        }
+    }
+
+}
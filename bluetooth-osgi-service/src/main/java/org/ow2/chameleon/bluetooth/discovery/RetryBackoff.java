@@ -0,0 +1,112 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import java.util.Random;
+
+/**
+ * The delays between the retries of a failed radio operation.
+ * The delays grow exponentially: the n-th retry waits the initial delay times 2<sup>n-1</sup>, bounded by the maximum
+ * delay. Each delay is then drawn between its half and itself, so the retries of the devices failing together are
+ * spread over time instead of reaching the radio at once.
+ * <p/>
+ * This class is thread-safe.
+ */
+class RetryBackoff {
+
+    private final Random m_random;
+
+    private long m_initialDelay;
+
+    private long m_maximumDelay;
+
+    /**
+     * Creates a {@link RetryBackoff}.
+     *
+     * @param initialDelay the delay before the first retry in milliseconds
+     * @param maximumDelay the maximum delay in milliseconds
+     */
+    RetryBackoff(long initialDelay, long maximumDelay) {
+        this(initialDelay, maximumDelay, new Random());
+    }
+
+    /**
+     * Creates a {@link RetryBackoff} drawing the delays from the given generator.
+     *
+     * @param initialDelay the delay before the first retry in milliseconds
+     * @param maximumDelay the maximum delay in milliseconds
+     * @param random       the generator
+     */
+    RetryBackoff(long initialDelay, long maximumDelay, Random random) {
+        m_random = random;
+        m_initialDelay = Math.max(0, initialDelay);
+        m_maximumDelay = Math.max(0, maximumDelay);
+    }
+
+    /**
+     * Sets the delay before the first retry.
+     *
+     * @param initialDelay the delay in milliseconds
+     */
+    synchronized void setInitialDelay(long initialDelay) {
+        m_initialDelay = Math.max(0, initialDelay);
+    }
+
+    synchronized long getInitialDelay() {
+        return m_initialDelay;
+    }
+
+    /**
+     * Sets the maximum delay between two retries.
+     *
+     * @param maximumDelay the delay in milliseconds
+     */
+    synchronized void setMaximumDelay(long maximumDelay) {
+        m_maximumDelay = Math.max(0, maximumDelay);
+    }
+
+    synchronized long getMaximumDelay() {
+        return m_maximumDelay;
+    }
+
+    /**
+     * Gets the delay before a retry, using the configured initial delay.
+     *
+     * @param retry the retry number, starting at 1
+     * @return the delay in milliseconds
+     */
+    long getDelay(int retry) {
+        return getDelay(retry, getInitialDelay());
+    }
+
+    /**
+     * Gets the delay before a retry.
+     *
+     * @param retry        the retry number, starting at 1
+     * @param initialDelay the delay before the first retry in milliseconds
+     * @return the delay in milliseconds
+     */
+    synchronized long getDelay(int retry, long initialDelay) {
+        long delay = Math.max(0, initialDelay);
+        // Stop doubling once above the maximum, so the delay never overflows.
+        for (int i = 1; i < retry && delay < m_maximumDelay; i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, m_maximumDelay);
+        long half = delay / 2;
+        return delay - half + (long) (m_random.nextDouble() * (half + 1));
+    }
+}
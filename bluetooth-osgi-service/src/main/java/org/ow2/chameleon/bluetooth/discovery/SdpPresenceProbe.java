@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.ow2.chameleon.bluetooth.devices.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DeviceClass;
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+
+/**
+ * Presence probe searching services on the device. The device is reachable if the search completes.
+ * <p/>
+ * The <tt>sdp</tt> probe searches the public browse group, or the service class of the devices declaring a single
+ * class in the fleet: the device is reachable if one of its records matches. The <tt>handle</tt> probe searches the
+ * SDP protocol UUID, only retrieving the default attributes (record handle...) of the records of the SDP server:
+ * the device is reachable as soon as its SDP server answers, even without matching record.
+ */
+class SdpPresenceProbe implements PresenceProbe {
+
+    private final Logger m_logger = LoggerFactory.getLogger(SdpPresenceProbe.class);
+
+    private final String m_name;
+
+    private final UUID[] m_uuids;
+
+    /**
+     * Whether an answer without record means the device is reachable.
+     */
+    private final boolean m_acceptNoRecords;
+
+    /**
+     * The matcher giving the service classes declared by the fleet entries, <code>null</code> to always search the
+     * default UUIDs.
+     */
+    private volatile FleetMatcher m_fleet;
+
+    /**
+     * Creates a {@link SdpPresenceProbe}.
+     *
+     * @param name            the name of the probe
+     * @param uuids           the UUIDs searched by default
+     * @param acceptNoRecords whether an answer without record means the device is reachable
+     */
+    SdpPresenceProbe(String name, UUID[] uuids, boolean acceptNoRecords) {
+        m_name = name;
+        m_uuids = uuids;
+        m_acceptNoRecords = acceptNoRecords;
+    }
+
+    /**
+     * Narrows the searches of the devices declaring a single service class in the fleet to this class.
+     *
+     * @param fleet the fleet matcher, <code>null</code> to always search the default UUIDs
+     */
+    void setFleet(FleetMatcher fleet) {
+        m_fleet = fleet;
+    }
+
+    @Override
+    public String getName() {
+        return m_name;
+    }
+
+    @Override
+    public boolean isRadioRequired() {
+        return true;
+    }
+
+    /**
+     * Gets the UUIDs searched to check a device. A device declaring a single service class in the fleet is checked
+     * with this class, the other devices with the default UUIDs.
+     *
+     * @param entry the fleet entry of the device, <code>null</code> if none
+     * @return the UUID set
+     */
+    UUID[] getSearchUuidSet(Device entry) {
+        FleetMatcher fleet = m_fleet;
+        if (fleet != null && entry != null) {
+            UUID[] classes = fleet.getServiceClasses(entry);
+            if (classes.length == 1) {
+                return classes;
+            }
+        }
+        return m_uuids;
+    }
+
+    @Override
+    public boolean isPresent(BluetoothRadio radio, RemoteDevice device, Device entry, long timeout)
+            throws InterruptedException {
+        Search search = new Search();
+        synchronized (search) {
+            int transaction;
+            try {
+                transaction = radio.searchServices(null, getSearchUuidSet(entry), device, search);
+            } catch (BluetoothStateException e) {
+                m_logger.error("Cannot search for bluetooth services on " + device.getBluetoothAddress(), e);
+                return false;
+            }
+
+            long start = System.currentTimeMillis();
+            long remaining = timeout;
+            try {
+                while (!search.m_completed && remaining > 0) {
+                    search.wait(remaining);
+                    remaining = timeout - (System.currentTimeMillis() - start);
+                }
+            } catch (InterruptedException e) {
+                // We're stopping, aborting the search.
+                search.m_completed = true;
+                radio.cancelServiceSearch(transaction);
+                throw e;
+            }
+
+            if (!search.m_completed) {
+                // The stack did not call us back, cancel the search and consider the device unreachable.
+                search.m_completed = true;
+                m_logger.warn("Presence check of " + device.getBluetoothAddress() + " not completed after "
+                        + timeout + " ms, cancelling it");
+                radio.cancelServiceSearch(transaction);
+                return false;
+            }
+            return search.m_response == DiscoveryListener.SERVICE_SEARCH_COMPLETED
+                    || (m_acceptNoRecords && search.m_response == DiscoveryListener.SERVICE_SEARCH_NO_RECORDS);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SdpPresenceProbe[" + m_name + "]";
+    }
+
+    /**
+     * Listener of a search, waiting for its completion.
+     */
+    private static final class Search implements DiscoveryListener {
+
+        private boolean m_completed;
+
+        private int m_response = -1;
+
+        @Override
+        public void deviceDiscovered(RemoteDevice btDevice, DeviceClass cod) {
+            // Not used here.
+        }
+
+        @Override
+        public void servicesDiscovered(int transID, ServiceRecord[] servRecord) {
+            // The records are not used, only the completion matters.
+        }
+
+        @Override
+        public synchronized void serviceSearchCompleted(int transID, int respCode) {
+            if (m_completed) {
+                // Cancelled or interrupted, the outcome was already handled.
+                return;
+            }
+            m_response = respCode;
+            m_completed = true;
+            notifyAll();
+        }
+
+        @Override
+        public void inquiryCompleted(int discType) {
+            // Not used here.
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.DataElement;
+import javax.bluetooth.ServiceRecord;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The attributes of a published {@link ServiceRecord}, exposed in the <tt>service.attributes</tt> service property.
+ * <p/>
+ * The map is a read-only view of the record, restricted to the exposed attribute IDs: single attributes are read from
+ * the record, and the map of the exposed attributes is only built when iterated. All the attributes of the record,
+ * exposed or not, are returned by {@link #getAll()}, built on the first call.
+ */
+public class ServiceAttributes extends AbstractMap<Integer, DataElement> {
+
+    private final ServiceRecord m_record;
+
+    /**
+     * The exposed attribute IDs, <code>null</code> to expose all the attributes.
+     */
+    private final Set<Integer> m_exposed;
+
+    private volatile Map<Integer, DataElement> m_attributes;
+
+    private volatile Map<Integer, DataElement> m_all;
+
+    /**
+     * Creates a {@link ServiceAttributes}.
+     *
+     * @param record  the record
+     * @param exposed the exposed attribute IDs, <code>null</code> to expose all the attributes
+     */
+    ServiceAttributes(ServiceRecord record, Set<Integer> exposed) {
+        m_record = record;
+        m_exposed = exposed;
+    }
+
+    /**
+     * @return the record.
+     */
+    public ServiceRecord getRecord() {
+        return m_record;
+    }
+
+    @Override
+    public DataElement get(Object key) {
+        if (!(key instanceof Integer) || (m_exposed != null && !m_exposed.contains(key))) {
+            return null;
+        }
+        return m_record.getAttributeValue((Integer) key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Entry<Integer, DataElement>> entrySet() {
+        Map<Integer, DataElement> attributes = m_attributes;
+        if (attributes == null) {
+            // Racing threads build the same map.
+            attributes = Collections.unmodifiableMap(collect(m_exposed));
+            m_attributes = attributes;
+        }
+        return attributes.entrySet();
+    }
+
+    /**
+     * Gets all the attributes of the record, including the attributes that are not exposed.
+     *
+     * @return the attributes by ID
+     */
+    public Map<Integer, DataElement> getAll() {
+        Map<Integer, DataElement> all = m_all;
+        if (all == null) {
+            all = m_exposed == null ? this : Collections.unmodifiableMap(collect(null));
+            m_all = all;
+        }
+        return all;
+    }
+
+    boolean isMaterialized() {
+        return m_attributes != null || m_all != null;
+    }
+
+    private Map<Integer, DataElement> collect(Set<Integer> ids) {
+        Map<Integer, DataElement> attributes = new HashMap<Integer, DataElement>();
+        int[] attributeIDs = m_record.getAttributeIDs();
+        if (attributeIDs != null) {
+            for (int id : attributeIDs) {
+                if (ids == null || ids.contains(id)) {
+                    DataElement value = m_record.getAttributeValue(id);
+                    if (value != null) {
+                        attributes.put(id, value);
+                    }
+                }
+            }
+        }
+        return attributes;
+    }
+}
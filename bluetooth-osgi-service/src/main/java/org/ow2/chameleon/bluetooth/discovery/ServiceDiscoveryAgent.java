@@ -21,14 +21,15 @@ import org.slf4j.LoggerFactory;
 import javax.bluetooth.BluetoothStateException;
 import javax.bluetooth.DeviceClass;
 import javax.bluetooth.DiscoveryListener;
-import javax.bluetooth.LocalDevice;
 import javax.bluetooth.RemoteDevice;
 import javax.bluetooth.ServiceRecord;
 import javax.bluetooth.UUID;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Discovery Agent searching services for one specific device.
@@ -47,6 +48,21 @@ class ServiceDiscoveryAgent implements DiscoveryListener, Runnable {
 
     private final RemoteDevice m_device;
 
+    /**
+     * The deadline of the service search.
+     */
+    private final OperationDeadline m_deadline;
+
+    /**
+     * The attributes requested in addition to the default ones, <code>null</code> for the default attributes only.
+     */
+    private final int[] m_attributes;
+
+    /**
+     * The UUID sets searched one after the other.
+     */
+    private final UUID[][] m_searches;
+
     private String m_name;
 
     private boolean m_searchInProgress = false;
@@ -55,9 +71,40 @@ class ServiceDiscoveryAgent implements DiscoveryListener, Runnable {
 
     private List<ServiceRecord> m_discoveredServices = new ArrayList<ServiceRecord>();
 
-    public ServiceDiscoveryAgent(BluetoothServiceDiscovery bluetoothServiceDiscovery, RemoteDevice device) {
+    public ServiceDiscoveryAgent(BluetoothServiceDiscovery bluetoothServiceDiscovery, RemoteDevice device,
+                                 OperationDeadline deadline) {
+        this(bluetoothServiceDiscovery, device, deadline, attrIDs);
+    }
+
+    public ServiceDiscoveryAgent(BluetoothServiceDiscovery bluetoothServiceDiscovery, RemoteDevice device,
+                                 OperationDeadline deadline, int[] attributes) {
+        this(bluetoothServiceDiscovery, device, deadline, attributes, null);
+    }
+
+    /**
+     * Creates a {@link ServiceDiscoveryAgent} searching the given service classes. A record matches when it
+     * contains all the UUIDs of a search, so each service class is searched separately.
+     *
+     * @param bluetoothServiceDiscovery the parent
+     * @param device                    the device
+     * @param deadline                  the deadline of the search, covering all the service classes
+     * @param attributes                the requested attributes, <code>null</code> for the default attributes only
+     * @param serviceClasses            the service classes, all the public services if <code>null</code> or empty
+     */
+    public ServiceDiscoveryAgent(BluetoothServiceDiscovery bluetoothServiceDiscovery, RemoteDevice device,
+                                 OperationDeadline deadline, int[] attributes, UUID[] serviceClasses) {
         m_parent = bluetoothServiceDiscovery;
         m_device = device;
+        m_deadline = deadline;
+        m_attributes = attributes;
+        if (serviceClasses == null || serviceClasses.length == 0) {
+            m_searches = new UUID[][]{searchUuidSet};
+        } else {
+            m_searches = new UUID[serviceClasses.length][];
+            for (int i = 0; i < serviceClasses.length; i++) {
+                m_searches[i] = new UUID[]{serviceClasses[i]};
+            }
+        }
         try {
             m_name = m_device.getFriendlyName(false);
         } catch (IOException e) {
@@ -65,18 +112,9 @@ class ServiceDiscoveryAgent implements DiscoveryListener, Runnable {
         }
     }
 
-    private LocalDevice initialize() {
-        LocalDevice local = null;
-        try {
-            local = LocalDevice.getLocalDevice();
-            m_logger.info("Address: " + local.getBluetoothAddress());
-            m_logger.info("Name: " + local.getFriendlyName());
-        } catch (BluetoothStateException e) {
-            m_logger.error("Bluetooth Adapter not started.");
-        }
-
-        return local;
-
+    @Override
+    public String toString() {
+        return "ServiceDiscoveryAgent[" + m_device.getBluetoothAddress() + "]";
     }
 
     public void run() {
@@ -84,31 +122,49 @@ class ServiceDiscoveryAgent implements DiscoveryListener, Runnable {
             m_logger.info("Search services on " + m_device.getBluetoothAddress()
                     + " " + m_name);
 
-            LocalDevice local = initialize();
-            if (!LocalDevice.isPowerOn() || local == null) {
+            BluetoothRadio radio = BluetoothThreadManager.getRadio();
+            if (!radio.isPowerOn()) {
                 m_logger.error("Bluetooth adapter not ready, aborting service discovery");
                 m_parent.discovered(m_device, null);
                 return;
             }
 
-            doSearch(local);
+            doSearch(radio);
         } catch (Throwable e) {
             m_logger.error("Unexpected exception during service inquiry", e);
         }
     }
 
-    void doSearch(LocalDevice local) {
+    void doSearch(BluetoothRadio radio) {
         synchronized (this) {
-            m_searchInProgress = true;
+            long start = System.currentTimeMillis();
+            long deadline = m_deadline.getDeadline();
             try {
-
-                if (Env.isTestEnvironmentEnabled()) {
-                    m_logger.warn("=== TEST ENVIRONMENT ENABLED ===");
-                } else {
-                    local.getDiscoveryAgent().searchServices(attrIDs, searchUuidSet, m_device, this);
+                for (UUID[] uuids : m_searches) {
+                    m_searchInProgress = true;
+                    int transaction = radio.searchServices(m_attributes, uuids, m_device, this);
+
+                    long remaining = deadline - (System.currentTimeMillis() - start);
+                    while (m_searchInProgress && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - (System.currentTimeMillis() - start);
+                    }
+
+                    if (m_searchInProgress) {
+                        // The stack did not call us back, cancel the search.
+                        m_searchInProgress = false;
+                        m_deadline.timedOut();
+                        DiscoveryMetricsRecorder.getDefault().record(DiscoveryMetricsRecorder.SDP, System.currentTimeMillis() - start, false);
+                        m_logger.warn("Service search on " + m_name + " not completed after " + deadline
+                                + " ms, cancelling it - " + m_deadline);
+                        radio.cancelServiceSearch(transaction);
+                        m_parent.discovered(m_device, null);
+                        return;
+                    }
                 }
-
-                wait();
+                long duration = System.currentTimeMillis() - start;
+                m_deadline.record(duration);
+                DiscoveryMetricsRecorder.getDefault().record(DiscoveryMetricsRecorder.SDP, duration, true);
             } catch (InterruptedException e) {
                 if (m_searchInProgress) {
                     // we're stopping, aborting discovery.
@@ -122,9 +178,18 @@ class ServiceDiscoveryAgent implements DiscoveryListener, Runnable {
                 // well ... bad choice. Bluetooth driver not ready
                 // Just abort.
                 m_logger.error("Cannot search for bluetooth services", e);
+                DiscoveryMetricsRecorder.getDefault().record(DiscoveryMetricsRecorder.SDP, System.currentTimeMillis() - start, false);
                 m_parent.discovered(m_device, null);
                 return;
             }
+            if (m_searches.length > 1) {
+                // A record offering several of the searched classes is found by each search.
+                Map<Object, ServiceRecord> records = new LinkedHashMap<Object, ServiceRecord>();
+                for (ServiceRecord record : m_discoveredServices) {
+                    records.put(ServiceRecordDiff.key(record), record);
+                }
+                m_discoveredServices = new ArrayList<ServiceRecord>(records.values());
+            }
             m_logger.info("Bluetooth discovery for " + m_name + " is now completed - injecting "
                     + m_discoveredServices.size() + " discovered services ");
             m_parent.discovered(m_device, m_discoveredServices);
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The service records discovered on the devices, by 48-bit address.
+ * <p/>
+ * A device leaving and coming back usually offers the same services. The cached records are published again right
+ * away, and searched again in the background once older than the time-to-live. The cache holds a bounded number of
+ * devices, the least recently used ones being evicted first. All methods are thread safe.
+ */
+class ServiceRecordCache {
+
+    private final Map<Long, CachedRecords> m_entries = new LinkedHashMap<Long, CachedRecords>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, CachedRecords> eldest) {
+            return size() > m_capacity;
+        }
+    };
+
+    private int m_capacity;
+
+    private long m_timeToLive;
+
+    private long m_hits;
+
+    private long m_misses;
+
+    /**
+     * Creates a {@link ServiceRecordCache}.
+     *
+     * @param capacity   the maximum number of devices
+     * @param timeToLive the time-to-live of the records, in milliseconds
+     */
+    ServiceRecordCache(int capacity, long timeToLive) {
+        m_capacity = capacity;
+        m_timeToLive = timeToLive;
+    }
+
+    /**
+     * Sets the maximum number of devices. The least recently used devices are evicted first.
+     *
+     * @param capacity the number of devices, 0 disables the cache
+     */
+    synchronized void setCapacity(int capacity) {
+        m_capacity = Math.max(0, capacity);
+        Iterator<Long> addresses = m_entries.keySet().iterator();
+        while (m_entries.size() > m_capacity) {
+            addresses.next();
+            addresses.remove();
+        }
+    }
+
+    /**
+     * Sets the time-to-live of the records.
+     *
+     * @param timeToLive the time-to-live in milliseconds
+     */
+    synchronized void setTimeToLive(long timeToLive) {
+        m_timeToLive = timeToLive;
+    }
+
+    /**
+     * Gets the cached records of a device.
+     *
+     * @param device the device
+     * @return the records, possibly stale, <code>null</code> if the device is not cached
+     */
+    synchronized List<ServiceRecord> get(RemoteDevice device) {
+        long address = DeviceRegistry.address(device);
+        CachedRecords entry = m_entries.get(address);
+        if (entry == null) {
+            m_misses++;
+            return null;
+        }
+        m_hits++;
+        if (entry.m_restored) {
+            entry = new CachedRecords(StoredServiceRecord.attach(entry.m_records, device), entry.m_date, false);
+            m_entries.put(address, entry);
+        }
+        return entry.m_records;
+    }
+
+    /**
+     * Checks whether the cached records of a device are older than the time-to-live.
+     *
+     * @param device the device
+     * @return <code>true</code> if the records are stale or not cached
+     */
+    synchronized boolean isStale(RemoteDevice device) {
+        CachedRecords entry = m_entries.get(DeviceRegistry.address(device));
+        return entry == null || System.currentTimeMillis() - entry.m_date >= m_timeToLive;
+    }
+
+    /**
+     * Caches the records discovered on a device.
+     *
+     * @param device  the device
+     * @param records the records
+     */
+    synchronized void put(RemoteDevice device, List<ServiceRecord> records) {
+        m_entries.put(DeviceRegistry.address(device), new CachedRecords(records, System.currentTimeMillis(), false));
+    }
+
+    /**
+     * Caches the records of a device restored from a snapshot. The records are stale, so they are published
+     * optimistically and searched again when the device comes back.
+     *
+     * @param address the device address
+     * @param records the detached records
+     */
+    synchronized void restore(long address, List<ServiceRecord> records) {
+        if (!m_entries.containsKey(address)) {
+            m_entries.put(address, new CachedRecords(records, 0, true));
+        }
+    }
+
+    /**
+     * Restores the records of a snapshot.
+     *
+     * @param snapshot the snapshot
+     * @return the number of restored devices
+     */
+    synchronized int restore(ServiceRecordSnapshot snapshot) {
+        Map<Long, List<ServiceRecord>> devices = snapshot.read();
+        for (Map.Entry<Long, List<ServiceRecord>> device : devices.entrySet()) {
+            restore(device.getKey(), device.getValue());
+        }
+        return devices.size();
+    }
+
+    /**
+     * Saves the cached records in a snapshot.
+     *
+     * @param snapshot the snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    void save(ServiceRecordSnapshot snapshot) throws IOException {
+        Map<Long, List<ServiceRecord>> devices = new LinkedHashMap<Long, List<ServiceRecord>>();
+        synchronized (this) {
+            // Least recently used first, restoring in this order keeps the eviction order.
+            for (Map.Entry<Long, CachedRecords> entry : m_entries.entrySet()) {
+                devices.put(entry.getKey(), entry.getValue().m_records);
+            }
+        }
+        snapshot.write(devices);
+    }
+
+    synchronized void remove(RemoteDevice device) {
+        m_entries.remove(DeviceRegistry.address(device));
+    }
+
+    synchronized int size() {
+        return m_entries.size();
+    }
+
+    synchronized long getHits() {
+        return m_hits;
+    }
+
+    synchronized long getMisses() {
+        return m_misses;
+    }
+
+    private static final class CachedRecords {
+
+        private final List<ServiceRecord> m_records;
+
+        private final long m_date;
+
+        /**
+         * Whether the records are restored from a snapshot and not attached to their device yet.
+         */
+        private final boolean m_restored;
+
+        private CachedRecords(List<ServiceRecord> records, long date, boolean restored) {
+            m_records = Collections.unmodifiableList(new ArrayList<ServiceRecord>(records));
+            m_date = date;
+            m_restored = restored;
+        }
+    }
+}
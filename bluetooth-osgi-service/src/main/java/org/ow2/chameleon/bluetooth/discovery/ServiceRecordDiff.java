@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.DataElement;
+import javax.bluetooth.ServiceRecord;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes between the published service records of a device and the result of a new service search, computed by
+ * {@link #compute(Collection, List)}.
+ * <p/>
+ * The records are matched by service record handle (attribute <tt>0x0000</tt>), or by connection URL when the handle
+ * is missing. A matched record is changed when its connection URL or one of its attributes differs.
+ */
+class ServiceRecordDiff {
+
+    /**
+     * The service record handle attribute.
+     */
+    static final int SERVICE_RECORD_HANDLE = 0x0000;
+
+    private final List<ServiceRecord> m_added;
+
+    private final List<ServiceRecord> m_removed;
+
+    private final Map<ServiceRecord, ServiceRecord> m_changed;
+
+    private final Map<ServiceRecord, ServiceRecord> m_unchanged;
+
+    private ServiceRecordDiff(List<ServiceRecord> added, List<ServiceRecord> removed,
+                              Map<ServiceRecord, ServiceRecord> changed, Map<ServiceRecord, ServiceRecord> unchanged) {
+        m_added = Collections.unmodifiableList(added);
+        m_removed = Collections.unmodifiableList(removed);
+        m_changed = Collections.unmodifiableMap(changed);
+        m_unchanged = Collections.unmodifiableMap(unchanged);
+    }
+
+    /**
+     * Computes the changes between two record sets.
+     *
+     * @param published  the published records
+     * @param discovered the discovered records
+     * @return the diff
+     */
+    static ServiceRecordDiff compute(Collection<ServiceRecord> published, List<ServiceRecord> discovered) {
+        Map<Object, ServiceRecord> remaining = new LinkedHashMap<Object, ServiceRecord>();
+        for (ServiceRecord record : published) {
+            Object key = key(record);
+            // Records sharing a key cannot be told apart, the extra ones are replaced.
+            remaining.put(remaining.containsKey(key) ? new Object() : key, record);
+        }
+
+        List<ServiceRecord> added = new ArrayList<ServiceRecord>();
+        Map<ServiceRecord, ServiceRecord> changed = new LinkedHashMap<ServiceRecord, ServiceRecord>();
+        Map<ServiceRecord, ServiceRecord> unchanged = new LinkedHashMap<ServiceRecord, ServiceRecord>();
+        for (ServiceRecord record : discovered) {
+            ServiceRecord previous = remaining.remove(key(record));
+            if (previous == null) {
+                added.add(record);
+            } else if (isSameRecord(previous, record)) {
+                unchanged.put(previous, record);
+            } else {
+                changed.put(previous, record);
+            }
+        }
+        return new ServiceRecordDiff(added, new ArrayList<ServiceRecord>(remaining.values()), changed, unchanged);
+    }
+
+    /**
+     * @return the discovered records which were not published.
+     */
+    public List<ServiceRecord> getAdded() {
+        return m_added;
+    }
+
+    /**
+     * @return the published records which were not discovered again.
+     */
+    public List<ServiceRecord> getRemoved() {
+        return m_removed;
+    }
+
+    /**
+     * @return the discovered records which differ from the published ones, by published record.
+     */
+    public Map<ServiceRecord, ServiceRecord> getChanged() {
+        return m_changed;
+    }
+
+    /**
+     * @return the discovered records identical to the published ones, by published record.
+     */
+    public Map<ServiceRecord, ServiceRecord> getUnchanged() {
+        return m_unchanged;
+    }
+
+    /**
+     * @return <code>true</code> if the discovered records are identical to the published ones.
+     */
+    public boolean isEmpty() {
+        return m_added.isEmpty() && m_removed.isEmpty() && m_changed.isEmpty();
+    }
+
+    /**
+     * Gets the key matching a record: its service record handle, or its connection URL without handle.
+     *
+     * @param record the record
+     * @return the key
+     */
+    static Object key(ServiceRecord record) {
+        DataElement handle = record.getAttributeValue(SERVICE_RECORD_HANDLE);
+        if (handle != null && handle.getDataType() == DataElement.U_INT_4) {
+            return handle.getLong();
+        }
+        return String.valueOf(record.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false));
+    }
+
+    /**
+     * Checks whether two records have the same connection URL and attributes.
+     *
+     * @param first  the first record
+     * @param second the second record
+     * @return <code>true</code> if the records are identical
+     */
+    static boolean isSameRecord(ServiceRecord first, ServiceRecord second) {
+        String url = first.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false);
+        if (url == null ? second.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false) != null
+                : !url.equals(second.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false))) {
+            return false;
+        }
+        Map<Integer, DataElement> attributes = attributes(first);
+        Map<Integer, DataElement> others = attributes(second);
+        if (!attributes.keySet().equals(others.keySet())) {
+            return false;
+        }
+        for (Map.Entry<Integer, DataElement> attribute : attributes.entrySet()) {
+            if (!isSameElement(attribute.getValue(), others.get(attribute.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<Integer, DataElement> attributes(ServiceRecord record) {
+        Map<Integer, DataElement> attributes = new HashMap<Integer, DataElement>();
+        int[] ids = record.getAttributeIDs();
+        if (ids != null) {
+            for (int id : ids) {
+                DataElement value = record.getAttributeValue(id);
+                if (value != null) {
+                    attributes.put(id, value);
+                }
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Compares two data elements, {@link DataElement} does not implement {@link Object#equals(Object)}.
+     */
+    static boolean isSameElement(DataElement first, DataElement second) {
+        int type = first.getDataType();
+        if (type != second.getDataType()) {
+            return false;
+        }
+        switch (type) {
+            case DataElement.NULL:
+                return true;
+            case DataElement.BOOL:
+                return first.getBoolean() == second.getBoolean();
+            case DataElement.U_INT_1:
+            case DataElement.U_INT_2:
+            case DataElement.U_INT_4:
+            case DataElement.INT_1:
+            case DataElement.INT_2:
+            case DataElement.INT_4:
+            case DataElement.INT_8:
+                return first.getLong() == second.getLong();
+            case DataElement.U_INT_8:
+            case DataElement.U_INT_16:
+            case DataElement.INT_16:
+                return Arrays.equals((byte[]) first.getValue(), (byte[]) second.getValue());
+            case DataElement.DATSEQ:
+            case DataElement.DATALT:
+                if (first.getSize() != second.getSize()) {
+                    return false;
+                }
+                Enumeration<?> firsts = (Enumeration<?>) first.getValue();
+                Enumeration<?> seconds = (Enumeration<?>) second.getValue();
+                while (firsts.hasMoreElements()) {
+                    if (!isSameElement((DataElement) firsts.nextElement(), (DataElement) seconds.nextElement())) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                // UUID, string and URL.
+                return first.getValue().equals(second.getValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ServiceRecordDiff[added=" + m_added.size() + ", removed=" + m_removed.size() + ", changed="
+                + m_changed.size() + ", unchanged=" + m_unchanged.size() + "]";
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.DataElement;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The binary snapshot of the discovered service records, read at activation to publish the services of the known
+ * devices without waiting for their service search.
+ * <p/>
+ * The file holds, for each device address, the records with their attributes (the {@link DataElement} trees) and
+ * their connection URLs. It ends with a CRC32 checksum: a truncated or corrupted snapshot is ignored as a whole.
+ * The snapshot is written aside then renamed, so a crash while writing keeps the previous snapshot.
+ */
+class ServiceRecordSnapshot {
+
+    private static final int MAGIC = 0x42535652;
+
+    private static final int VERSION = 1;
+
+    private final Logger m_logger = LoggerFactory.getLogger(ServiceRecordSnapshot.class);
+
+    private final File m_file;
+
+    /**
+     * Creates a {@link ServiceRecordSnapshot}.
+     *
+     * @param file the snapshot file
+     */
+    ServiceRecordSnapshot(File file) {
+        m_file = file;
+    }
+
+    File getFile() {
+        return m_file;
+    }
+
+    /**
+     * Reads the snapshot.
+     *
+     * @return the detached records by device address, in the order they were written, empty if the snapshot does not
+     *         exist or is invalid
+     */
+    Map<Long, List<ServiceRecord>> read() {
+        Map<Long, List<ServiceRecord>> devices = new LinkedHashMap<Long, List<ServiceRecord>>();
+        if (!m_file.isFile()) {
+            return devices;
+        }
+        try {
+            CRC32 crc = new CRC32();
+            // The checksum is computed on the bytes read, not on the bytes buffered ahead.
+            DataInputStream in = new DataInputStream(new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(m_file)), crc));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a service record snapshot");
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long address = in.readLong();
+                    int size = in.readUnsignedShort();
+                    List<ServiceRecord> records = new ArrayList<ServiceRecord>(size);
+                    for (int j = 0; j < size; j++) {
+                        records.add(readRecord(in));
+                    }
+                    devices.put(address, records);
+                }
+                long expected = crc.getValue();
+                if (in.readLong() != expected) {
+                    throw new IOException("Invalid checksum");
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            m_logger.error("Ignoring the truncated service record snapshot " + m_file.getAbsolutePath());
+            devices.clear();
+        } catch (IOException e) {
+            m_logger.error("Ignoring the invalid service record snapshot " + m_file.getAbsolutePath(), e);
+            devices.clear();
+        }
+        return devices;
+    }
+
+    /**
+     * Writes the snapshot.
+     *
+     * @param devices the records by device address
+     * @throws IOException if the snapshot cannot be written
+     */
+    void write(Map<Long, List<ServiceRecord>> devices) throws IOException {
+        File parent = m_file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent.getAbsolutePath());
+        }
+        File tmp = new File(m_file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(devices.size());
+            for (Map.Entry<Long, List<ServiceRecord>> entry : devices.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeShort(entry.getValue().size());
+                for (ServiceRecord record : entry.getValue()) {
+                    writeRecord(out, record);
+                }
+            }
+            out.flush();
+            // The checksum covers everything above, it is not part of itself.
+            new DataOutputStream(fos).writeLong(crc.getValue());
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(m_file) && !(m_file.delete() && tmp.renameTo(m_file))) {
+            throw new IOException("Cannot rename " + tmp.getAbsolutePath());
+        }
+        m_logger.info("Services of " + devices.size() + " devices saved in " + m_file.getAbsolutePath());
+    }
+
+    private static void writeRecord(DataOutputStream out, ServiceRecord record) throws IOException {
+        for (int level : StoredServiceRecord.SECURITY_LEVELS) {
+            writeString(out, record.getConnectionURL(level, false));
+        }
+        int[] ids = record.getAttributeIDs();
+        Map<Integer, DataElement> attributes = new TreeMap<Integer, DataElement>();
+        if (ids != null) {
+            for (int id : ids) {
+                DataElement value = record.getAttributeValue(id);
+                if (value != null) {
+                    attributes.put(id, value);
+                }
+            }
+        }
+        out.writeShort(attributes.size());
+        for (Map.Entry<Integer, DataElement> attribute : attributes.entrySet()) {
+            out.writeShort(attribute.getKey());
+            writeElement(out, attribute.getValue());
+        }
+    }
+
+    private static ServiceRecord readRecord(DataInputStream in) throws IOException {
+        String[] urls = new String[StoredServiceRecord.SECURITY_LEVELS.length];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = readString(in);
+        }
+        int count = in.readUnsignedShort();
+        Map<Integer, DataElement> attributes = new TreeMap<Integer, DataElement>();
+        for (int i = 0; i < count; i++) {
+            attributes.put(in.readUnsignedShort(), readElement(in));
+        }
+        return new StoredServiceRecord(attributes, urls);
+    }
+
+    static void writeElement(DataOutputStream out, DataElement element) throws IOException {
+        int type = element.getDataType();
+        out.writeByte(type);
+        switch (type) {
+            case DataElement.NULL:
+                break;
+            case DataElement.BOOL:
+                out.writeBoolean(element.getBoolean());
+                break;
+            case DataElement.U_INT_1:
+            case DataElement.U_INT_2:
+            case DataElement.U_INT_4:
+            case DataElement.INT_1:
+            case DataElement.INT_2:
+            case DataElement.INT_4:
+            case DataElement.INT_8:
+                out.writeLong(element.getLong());
+                break;
+            case DataElement.U_INT_8:
+            case DataElement.U_INT_16:
+            case DataElement.INT_16:
+                byte[] bytes = (byte[]) element.getValue();
+                out.writeByte(bytes.length);
+                out.write(bytes);
+                break;
+            case DataElement.UUID:
+                out.writeUTF(element.getValue().toString());
+                break;
+            case DataElement.STRING:
+            case DataElement.URL:
+                writeString(out, String.valueOf(element.getValue()));
+                break;
+            case DataElement.DATSEQ:
+            case DataElement.DATALT:
+                List<DataElement> children = new ArrayList<DataElement>(element.getSize());
+                Enumeration<?> elements = (Enumeration<?>) element.getValue();
+                while (elements.hasMoreElements()) {
+                    children.add((DataElement) elements.nextElement());
+                }
+                out.writeShort(children.size());
+                for (DataElement child : children) {
+                    writeElement(out, child);
+                }
+                break;
+            default:
+                throw new IOException("Unsupported data element type " + type);
+        }
+    }
+
+    static DataElement readElement(DataInputStream in) throws IOException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case DataElement.NULL:
+                return new DataElement(DataElement.NULL);
+            case DataElement.BOOL:
+                return new DataElement(in.readBoolean());
+            case DataElement.U_INT_1:
+            case DataElement.U_INT_2:
+            case DataElement.U_INT_4:
+            case DataElement.INT_1:
+            case DataElement.INT_2:
+            case DataElement.INT_4:
+            case DataElement.INT_8:
+                return new DataElement(type, in.readLong());
+            case DataElement.U_INT_8:
+            case DataElement.U_INT_16:
+            case DataElement.INT_16:
+                byte[] bytes = new byte[in.readUnsignedByte()];
+                in.readFully(bytes);
+                return new DataElement(type, bytes);
+            case DataElement.UUID:
+                String uuid = in.readUTF();
+                return new DataElement(DataElement.UUID, new UUID(uuid, uuid.length() <= 8));
+            case DataElement.STRING:
+            case DataElement.URL:
+                return new DataElement(type, readString(in));
+            case DataElement.DATSEQ:
+            case DataElement.DATALT:
+                DataElement sequence = new DataElement(type);
+                int size = in.readUnsignedShort();
+                for (int i = 0; i < size; i++) {
+                    sequence.addElement(readElement(in));
+                }
+                return sequence;
+            default:
+                throw new IOException("Unsupported data element type " + type);
+        }
+    }
+
+    /**
+     * Writes a string that may be <code>null</code> or longer than the 64KB of {@link DataOutputStream#writeUTF}.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
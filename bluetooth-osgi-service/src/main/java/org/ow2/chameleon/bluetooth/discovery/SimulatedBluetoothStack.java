@@ -0,0 +1,704 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DeviceClass;
+import javax.bluetooth.DiscoveryAgent;
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory {@link BluetoothStack}, simulating a population of devices.
+ * It runs the discovery without bluetooth hardware, for tests and load measurements.
+ * <p/>
+ * The simulation is configured with:
+ * <ul>
+ * <li>the devices, their names, pin codes and services, and whether they are in range</li>
+ * <li>the duration of the inquiries and the latency of the service searches, name requests and pairings</li>
+ * <li>failure rates: devices missed by an inquiry, failed service searches and lost completion callbacks</li>
+ * <li>the number of adapters</li>
+ * </ul>
+ * The failures are drawn from a random generator per adapter, seeded by the stack seed. So a sequence of operations
+ * on an adapter gives the same results from one run to another. The callbacks are delivered by a single thread, in
+ * the order of their due time.
+ */
+public class SimulatedBluetoothStack implements BluetoothStack {
+
+    /**
+     * The stack name.
+     */
+    public static final String NAME = "simulated";
+
+    /**
+     * The first address of the generated devices.
+     */
+    private static final long FIRST_ADDRESS = 0x001E00000000L;
+
+    private final Logger m_logger = LoggerFactory.getLogger(SimulatedBluetoothStack.class);
+
+    /**
+     * The population, by address, in insertion order.
+     */
+    private final Map<String, SimulatedDevice> m_devices = new LinkedHashMap<String, SimulatedDevice>();
+
+    private final SimulatedRadio[] m_radios;
+
+    private final ScheduledExecutorService m_callbacks;
+
+    private final AtomicInteger m_transactions = new AtomicInteger();
+
+    private int m_generated;
+
+    private volatile boolean m_powerOn = true;
+
+    private volatile long m_inquiryDuration = 100;
+
+    private volatile long m_serviceSearchLatency = 10;
+
+    private volatile long m_nameLatency;
+
+    private volatile long m_pairingLatency;
+
+    private volatile double m_inquiryMissRate;
+
+    private volatile double m_serviceSearchFailureRate;
+
+    private volatile double m_lostCallbackRate;
+
+    /**
+     * Creates a {@link SimulatedBluetoothStack} with one adapter.
+     */
+    public SimulatedBluetoothStack() {
+        this(1, 0);
+    }
+
+    /**
+     * Creates a {@link SimulatedBluetoothStack}.
+     *
+     * @param adapters the number of adapters
+     * @param seed     the seed of the failure draws
+     */
+    public SimulatedBluetoothStack(int adapters, long seed) {
+        if (adapters < 1) {
+            throw new IllegalArgumentException("At least one adapter is required");
+        }
+        m_radios = new SimulatedRadio[adapters];
+        for (int i = 0; i < adapters; i++) {
+            m_radios[i] = new SimulatedRadio(i, new Random(seed + i));
+        }
+        ScheduledThreadPoolExecutor callbacks = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "simulated-bluetooth-stack");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        callbacks.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        m_callbacks = callbacks;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int getAdapterCount() {
+        return m_radios.length;
+    }
+
+    @Override
+    public void bind(int adapter) {
+        m_logger.info("Worker thread bound to the simulated adapter " + adapter);
+    }
+
+    @Override
+    public BluetoothRadio getRadio(int adapter) {
+        return m_radios[adapter];
+    }
+
+    /**
+     * Stops the callback thread. The pending operations never complete.
+     */
+    public void shutdown() {
+        m_callbacks.shutdownNow();
+    }
+
+    /*
+     *
+     ********** Population **********
+     *
+     */
+
+    /**
+     * Adds a device to the population. The device has no service, add them with
+     * {@link SimulatedDevice#addService(UUID, String)}: a device without service in the public browse group fails
+     * the presence checks.
+     *
+     * @param address the bluetooth address
+     * @param name    the name, <code>null</code> for an unnamed device
+     * @return the device
+     */
+    public SimulatedDevice addDevice(String address, String name) {
+        SimulatedDevice device = new SimulatedDevice(address, name);
+        synchronized (m_devices) {
+            m_devices.put(device.getBluetoothAddress(), device);
+        }
+        return device;
+    }
+
+    /**
+     * Adds generated devices to the population. Each device is named <tt>device-N</tt> and offers a serial port
+     * service.
+     *
+     * @param count the number of devices to add
+     * @return the added devices
+     */
+    public List<SimulatedDevice> populate(int count) {
+        List<SimulatedDevice> devices = new ArrayList<SimulatedDevice>(count);
+        synchronized (m_devices) {
+            for (int i = 0; i < count; i++) {
+                int index = m_generated++;
+                SimulatedDevice device = addDevice(String.format("%012X", FIRST_ADDRESS + index), "device-" + index);
+                device.addService(UUIDs.SERIAL_PORT, "serial-" + index);
+                devices.add(device);
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * Removes a device from the population. The stack does not know it anymore, as if it was never met.
+     *
+     * @param address the bluetooth address
+     * @return the removed device, <code>null</code> if unknown
+     */
+    public SimulatedDevice removeDevice(String address) {
+        synchronized (m_devices) {
+            return m_devices.remove(address);
+        }
+    }
+
+    /**
+     * @param address the bluetooth address
+     * @return the device, <code>null</code> if unknown
+     */
+    public SimulatedDevice getDevice(String address) {
+        synchronized (m_devices) {
+            return m_devices.get(address);
+        }
+    }
+
+    /**
+     * @return a copy of the population, in insertion order.
+     */
+    public List<SimulatedDevice> getDevices() {
+        synchronized (m_devices) {
+            return new ArrayList<SimulatedDevice>(m_devices.values());
+        }
+    }
+
+    private SimulatedDevice getDevice(RemoteDevice device) {
+        // By address, the discovery wraps the devices (RemoteNamedDevice).
+        return getDevice(device.getBluetoothAddress());
+    }
+
+    /*
+     *
+     ********** Configuration **********
+     *
+     */
+
+    public void setPowerOn(boolean powerOn) {
+        m_powerOn = powerOn;
+    }
+
+    /**
+     * Sets the inquiry duration. The devices are found at regular intervals during the inquiry.
+     *
+     * @param duration the duration in milliseconds
+     */
+    public void setInquiryDuration(long duration) {
+        m_inquiryDuration = duration;
+    }
+
+    /**
+     * @param latency the latency of the service searches in milliseconds
+     */
+    public void setServiceSearchLatency(long latency) {
+        m_serviceSearchLatency = latency;
+    }
+
+    /**
+     * @param latency the latency of the name requests in milliseconds
+     */
+    public void setNameLatency(long latency) {
+        m_nameLatency = latency;
+    }
+
+    /**
+     * @param latency the latency of the pairings in milliseconds
+     */
+    public void setPairingLatency(long latency) {
+        m_pairingLatency = latency;
+    }
+
+    /**
+     * @param rate the probability that an inquiry misses a device in range, between 0 and 1
+     */
+    public void setInquiryMissRate(double rate) {
+        m_inquiryMissRate = rate;
+    }
+
+    /**
+     * @param rate the probability that a service search on a device in range fails, between 0 and 1
+     */
+    public void setServiceSearchFailureRate(double rate) {
+        m_serviceSearchFailureRate = rate;
+    }
+
+    /**
+     * @param rate the probability that an inquiry or a service search never completes, between 0 and 1
+     */
+    public void setLostCallbackRate(double rate) {
+        m_lostCallbackRate = rate;
+    }
+
+    /*
+     *
+     ********** Statistics **********
+     *
+     */
+
+    /**
+     * @return the number of inquiries started, all adapters included.
+     */
+    public int getInquiryCount() {
+        int count = 0;
+        for (SimulatedRadio radio : m_radios) {
+            count += radio.m_inquiries.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of service searches started, all adapters included.
+     */
+    public int getServiceSearchCount() {
+        int count = 0;
+        for (SimulatedRadio radio : m_radios) {
+            count += radio.m_searches.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of name requests, all adapters included.
+     */
+    public int getNameRequestCount() {
+        int count = 0;
+        for (SimulatedRadio radio : m_radios) {
+            count += radio.m_names.get();
+        }
+        return count;
+    }
+
+    /**
+     * @return the highest number of inquiries, service searches and name requests observed in progress on a same
+     * adapter.
+     */
+    public int getMaxConcurrentOperations() {
+        int max = 0;
+        for (SimulatedRadio radio : m_radios) {
+            max = Math.max(max, radio.m_maxActive.get());
+        }
+        return max;
+    }
+
+    private static void sleep(long duration) throws InterruptedIOException {
+        if (duration <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(duration);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted radio operation");
+        }
+    }
+
+    /**
+     * An operation in progress: its listener and its pending callbacks.
+     */
+    private static class Operation {
+
+        private final DiscoveryListener m_listener;
+
+        private final List<Future<?>> m_callbacks = new ArrayList<Future<?>>();
+
+        Operation(DiscoveryListener listener) {
+            m_listener = listener;
+        }
+
+        void cancel() {
+            synchronized (m_callbacks) {
+                for (Future<?> callback : m_callbacks) {
+                    callback.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * The radio of a simulated adapter.
+     */
+    private class SimulatedRadio implements BluetoothRadio {
+
+        private final int m_adapter;
+
+        private final Random m_random;
+
+        private final Map<DiscoveryListener, Operation> m_inquiryInProgress = new HashMap<DiscoveryListener, Operation>();
+
+        private final Map<Integer, Operation> m_searchInProgress = new HashMap<Integer, Operation>();
+
+        /**
+         * The devices found by the inquiries of this adapter.
+         */
+        private final Set<RemoteDevice> m_cached = new LinkedHashSet<RemoteDevice>();
+
+        private final AtomicInteger m_inquiries = new AtomicInteger();
+
+        private final AtomicInteger m_searches = new AtomicInteger();
+
+        private final AtomicInteger m_names = new AtomicInteger();
+
+        private final AtomicInteger m_active = new AtomicInteger();
+
+        private final AtomicInteger m_maxActive = new AtomicInteger();
+
+        SimulatedRadio(int adapter, Random random) {
+            m_adapter = adapter;
+            m_random = random;
+        }
+
+        private boolean draw(double rate) {
+            synchronized (m_random) {
+                return rate > 0 && m_random.nextDouble() < rate;
+            }
+        }
+
+        private void started() {
+            int active = m_active.incrementAndGet();
+            int max = m_maxActive.get();
+            while (active > max && !m_maxActive.compareAndSet(max, active)) {
+                max = m_maxActive.get();
+            }
+        }
+
+        private void schedule(Operation operation, Runnable callback, long delay) {
+            Future<?> future = m_callbacks.schedule(new SafeCallback(callback), delay, TimeUnit.MILLISECONDS);
+            synchronized (operation.m_callbacks) {
+                operation.m_callbacks.add(future);
+            }
+        }
+
+        @Override
+        public boolean isPowerOn() {
+            return m_powerOn;
+        }
+
+        @Override
+        public String getAddress() throws BluetoothStateException {
+            if (!m_powerOn) {
+                throw new BluetoothStateException("The simulated adapter " + m_adapter + " is off");
+            }
+            return String.format("%012X", 0xA00000000000L + m_adapter);
+        }
+
+        @Override
+        public boolean startInquiry(int accessCode, final DiscoveryListener listener) throws BluetoothStateException {
+            if (!m_powerOn) {
+                throw new BluetoothStateException("The simulated adapter " + m_adapter + " is off");
+            }
+            final Operation operation = new Operation(listener);
+            synchronized (this) {
+                if (m_inquiryInProgress.containsKey(listener)) {
+                    throw new BluetoothStateException("An inquiry is already in progress for this listener");
+                }
+                m_inquiryInProgress.put(listener, operation);
+            }
+            m_inquiries.incrementAndGet();
+            started();
+
+            List<SimulatedDevice> found = new ArrayList<SimulatedDevice>();
+            double missRate = m_inquiryMissRate;
+            for (SimulatedDevice device : getDevices()) {
+                if (device.isPresent() && !draw(missRate)) {
+                    found.add(device);
+                }
+            }
+            boolean lost = draw(m_lostCallbackRate);
+
+            long duration = m_inquiryDuration;
+            for (int i = 0; i < found.size(); i++) {
+                final SimulatedDevice device = found.get(i);
+                schedule(operation, new Runnable() {
+                    public void run() {
+                        synchronized (SimulatedRadio.this) {
+                            if (m_inquiryInProgress.get(listener) != operation) {
+                                return;
+                            }
+                            m_cached.add(device);
+                        }
+                        listener.deviceDiscovered(device, new DeviceClass(0));
+                    }
+                }, duration * (i + 1) / (found.size() + 1));
+            }
+            if (!lost) {
+                schedule(operation, new Runnable() {
+                    public void run() {
+                        synchronized (SimulatedRadio.this) {
+                            if (m_inquiryInProgress.get(listener) != operation) {
+                                return;
+                            }
+                            m_inquiryInProgress.remove(listener);
+                        }
+                        m_active.decrementAndGet();
+                        listener.inquiryCompleted(DiscoveryListener.INQUIRY_COMPLETED);
+                    }
+                }, duration);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean cancelInquiry(final DiscoveryListener listener) {
+            Operation operation;
+            synchronized (this) {
+                operation = m_inquiryInProgress.remove(listener);
+            }
+            if (operation == null) {
+                return false;
+            }
+            operation.cancel();
+            m_active.decrementAndGet();
+            m_callbacks.execute(new SafeCallback(new Runnable() {
+                public void run() {
+                    listener.inquiryCompleted(DiscoveryListener.INQUIRY_TERMINATED);
+                }
+            }));
+            return true;
+        }
+
+        @Override
+        public int searchServices(final int[] attributes, final UUID[] uuids, final RemoteDevice device,
+                                  final DiscoveryListener listener) throws BluetoothStateException {
+            if (!m_powerOn) {
+                throw new BluetoothStateException("The simulated adapter " + m_adapter + " is off");
+            }
+            final int transaction = m_transactions.incrementAndGet();
+            final Operation operation = new Operation(listener);
+            synchronized (this) {
+                m_searchInProgress.put(transaction, operation);
+            }
+            m_searches.incrementAndGet();
+            started();
+
+            final boolean failed = draw(m_serviceSearchFailureRate);
+            if (draw(m_lostCallbackRate)) {
+                return transaction;
+            }
+            schedule(operation, new Runnable() {
+                public void run() {
+                    synchronized (SimulatedRadio.this) {
+                        if (m_searchInProgress.remove(transaction) == null) {
+                            return;
+                        }
+                    }
+                    m_active.decrementAndGet();
+                    SimulatedDevice target = getDevice(device);
+                    if (target == null || !target.isPresent()) {
+                        listener.serviceSearchCompleted(transaction,
+                                DiscoveryListener.SERVICE_SEARCH_DEVICE_NOT_REACHABLE);
+                        return;
+                    }
+                    if (failed) {
+                        listener.serviceSearchCompleted(transaction, DiscoveryListener.SERVICE_SEARCH_ERROR);
+                        return;
+                    }
+                    List<ServiceRecord> records = new ArrayList<ServiceRecord>();
+                    for (SimulatedServiceRecord record : target.getServices()) {
+                        if (record.matches(uuids)) {
+                            records.add(record.project(attributes));
+                        }
+                    }
+                    if (records.isEmpty()) {
+                        listener.serviceSearchCompleted(transaction, DiscoveryListener.SERVICE_SEARCH_NO_RECORDS);
+                        return;
+                    }
+                    listener.servicesDiscovered(transaction, records.toArray(new ServiceRecord[records.size()]));
+                    listener.serviceSearchCompleted(transaction, DiscoveryListener.SERVICE_SEARCH_COMPLETED);
+                }
+            }, m_serviceSearchLatency);
+            return transaction;
+        }
+
+        @Override
+        public boolean cancelServiceSearch(final int transaction) {
+            final Operation operation;
+            synchronized (this) {
+                operation = m_searchInProgress.remove(transaction);
+            }
+            if (operation == null) {
+                return false;
+            }
+            operation.cancel();
+            m_active.decrementAndGet();
+            m_callbacks.execute(new SafeCallback(new Runnable() {
+                public void run() {
+                    operation.m_listener.serviceSearchCompleted(transaction,
+                            DiscoveryListener.SERVICE_SEARCH_TERMINATED);
+                }
+            }));
+            return true;
+        }
+
+        @Override
+        public RemoteDevice[] retrieveDevices(int option) {
+            List<RemoteDevice> devices = new ArrayList<RemoteDevice>();
+            if (option == DiscoveryAgent.CACHED) {
+                synchronized (this) {
+                    devices.addAll(m_cached);
+                }
+            } else if (option == DiscoveryAgent.PREKNOWN) {
+                for (SimulatedDevice device : getDevices()) {
+                    if (device.isAuthenticated()) {
+                        devices.add(device);
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid option " + option);
+            }
+            if (devices.isEmpty()) {
+                return null;
+            }
+            return devices.toArray(new RemoteDevice[devices.size()]);
+        }
+
+        @Override
+        public String getFriendlyName(RemoteDevice device) throws IOException {
+            SimulatedDevice target = getDevice(device);
+            if (target == null) {
+                // Not simulated, let the device answer.
+                return device.getFriendlyName(false);
+            }
+            m_names.incrementAndGet();
+            started();
+            try {
+                sleep(m_nameLatency);
+            } finally {
+                m_active.decrementAndGet();
+            }
+            if (!target.isPresent()) {
+                throw new IOException("Device " + device.getBluetoothAddress() + " not reachable");
+            }
+            return target.getName();
+        }
+
+        @Override
+        public String requestFriendlyName(RemoteDevice device) throws IOException {
+            SimulatedDevice target = getDevice(device);
+            if (target == null) {
+                return device.getFriendlyName(true);
+            }
+            // The simulated names are never cached.
+            return getFriendlyName(device);
+        }
+
+        @Override
+        public boolean authenticate(RemoteDevice device, String pin) throws IOException {
+            SimulatedDevice target = getDevice(device);
+            sleep(m_pairingLatency);
+            if (target == null || !target.isPresent()) {
+                throw new IOException("Device " + device.getBluetoothAddress() + " not reachable");
+            }
+            if (target.getPin() != null && !target.getPin().equals(pin)) {
+                throw new IOException("Authentication of " + device.getBluetoothAddress() + " failed");
+            }
+            target.setAuthenticated(true);
+            return true;
+        }
+
+        @Override
+        public void removeAuthentication(RemoteDevice device) throws IOException {
+            SimulatedDevice target = getDevice(device);
+            if (target != null) {
+                target.setAuthenticated(false);
+            }
+        }
+
+        @Override
+        public boolean isAuthenticated(RemoteDevice device) {
+            SimulatedDevice target = getDevice(device);
+            return target != null && target.isAuthenticated();
+        }
+    }
+
+    /**
+     * Keeps the callback thread alive when a listener throws an exception, as a real stack does.
+     */
+    private class SafeCallback implements Runnable {
+
+        private final Runnable m_callback;
+
+        SafeCallback(Runnable callback) {
+            m_callback = callback;
+        }
+
+        @Override
+        public void run() {
+            try {
+                m_callback.run();
+            } catch (Throwable e) {
+                m_logger.error("Exception thrown by a discovery listener", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.UUID;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A device of the {@link SimulatedBluetoothStack} population.
+ * The device state (presence, name, pin, services) can be changed while the discovery runs.
+ */
+public class SimulatedDevice extends RemoteDevice {
+
+    private volatile String m_name;
+
+    private volatile String m_pin;
+
+    private volatile boolean m_present = true;
+
+    private volatile boolean m_authenticated;
+
+    private final List<SimulatedServiceRecord> m_services = new ArrayList<SimulatedServiceRecord>();
+
+    /**
+     * Creates a {@link SimulatedDevice}.
+     *
+     * @param address the bluetooth address (12 hexadecimal digits)
+     * @param name    the name, <code>null</code> for an unnamed device
+     */
+    public SimulatedDevice(String address, String name) {
+        super(address);
+        m_name = name;
+    }
+
+    /**
+     * Returns the name without simulating the name request. Use the radio to simulate it.
+     */
+    @Override
+    public String getFriendlyName(boolean alwaysAsk) {
+        return m_name;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    public void setName(String name) {
+        m_name = name;
+    }
+
+    public String getPin() {
+        return m_pin;
+    }
+
+    /**
+     * Sets the pin code expected by the device.
+     *
+     * @param pin the pin code, <code>null</code> to accept any pin code
+     */
+    public void setPin(String pin) {
+        m_pin = pin;
+    }
+
+    public boolean isPresent() {
+        return m_present;
+    }
+
+    /**
+     * Sets whether the device is in range. A device out of range is not found by the inquiries and does not answer
+     * the service searches, name requests or pairing attempts.
+     *
+     * @param present <code>true</code> if the device is in range
+     */
+    public void setPresent(boolean present) {
+        m_present = present;
+    }
+
+    @Override
+    public boolean isAuthenticated() {
+        return m_authenticated;
+    }
+
+    void setAuthenticated(boolean authenticated) {
+        m_authenticated = authenticated;
+    }
+
+    /**
+     * Adds a RFCOMM service to the device.
+     *
+     * @param serviceClass the service class
+     * @param name         the service name
+     * @return the service record
+     */
+    public SimulatedServiceRecord addService(UUID serviceClass, String name) {
+        synchronized (m_services) {
+            int channel = m_services.size() + 1;
+            long handle = 0x10000 + m_services.size();
+            SimulatedServiceRecord record = new SimulatedServiceRecord(this, handle, serviceClass, name, channel);
+            m_services.add(record);
+            return record;
+        }
+    }
+
+    /**
+     * @return a copy of the device services.
+     */
+    public List<SimulatedServiceRecord> getServices() {
+        synchronized (m_services) {
+            return new ArrayList<SimulatedServiceRecord>(m_services);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedDevice[" + getBluetoothAddress() + " " + m_name + "]";
+    }
+}
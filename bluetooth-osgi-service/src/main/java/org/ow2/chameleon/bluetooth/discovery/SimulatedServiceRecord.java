@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.DataElement;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A RFCOMM service record of a {@link SimulatedDevice}.
+ * The record holds the service record handle, the service class, the protocol descriptor list, the public browse
+ * group and the service name.
+ */
+public class SimulatedServiceRecord implements ServiceRecord {
+
+    /**
+     * The attributes returned by every service search (service record handle to protocol descriptor list).
+     */
+    static final int[] DEFAULT_ATTRIBUTES = {0x0000, 0x0001, 0x0002, 0x0003, 0x0004};
+
+    private final RemoteDevice m_device;
+
+    private final int m_channel;
+
+    private final Map<Integer, DataElement> m_attributes = new TreeMap<Integer, DataElement>();
+
+    private final Set<UUID> m_uuids;
+
+    /**
+     * Creates a {@link SimulatedServiceRecord}.
+     *
+     * @param device       the host device
+     * @param handle       the service record handle
+     * @param serviceClass the service class
+     * @param name         the service name, may be <code>null</code>
+     * @param channel      the RFCOMM channel
+     */
+    public SimulatedServiceRecord(RemoteDevice device, long handle, UUID serviceClass, String name, int channel) {
+        m_device = device;
+        m_channel = channel;
+        m_uuids = new HashSet<UUID>(Arrays.asList(serviceClass, UUIDs.L2CAP, UUIDs.RFCOMM,
+                UUIDs.PUBLIC_BROWSE_GROUP));
+
+        m_attributes.put(0x0000, new DataElement(DataElement.U_INT_4, handle));
+
+        DataElement classes = new DataElement(DataElement.DATSEQ);
+        classes.addElement(new DataElement(DataElement.UUID, serviceClass));
+        m_attributes.put(0x0001, classes);
+
+        DataElement l2cap = new DataElement(DataElement.DATSEQ);
+        l2cap.addElement(new DataElement(DataElement.UUID, UUIDs.L2CAP));
+        DataElement rfcomm = new DataElement(DataElement.DATSEQ);
+        rfcomm.addElement(new DataElement(DataElement.UUID, UUIDs.RFCOMM));
+        rfcomm.addElement(new DataElement(DataElement.U_INT_1, channel));
+        DataElement protocols = new DataElement(DataElement.DATSEQ);
+        protocols.addElement(l2cap);
+        protocols.addElement(rfcomm);
+        m_attributes.put(0x0004, protocols);
+
+        DataElement groups = new DataElement(DataElement.DATSEQ);
+        groups.addElement(new DataElement(DataElement.UUID, UUIDs.PUBLIC_BROWSE_GROUP));
+        m_attributes.put(0x0005, groups);
+
+        if (name != null) {
+            m_attributes.put(0x0100, new DataElement(DataElement.STRING, name));
+        }
+    }
+
+    private SimulatedServiceRecord(SimulatedServiceRecord record, int[] attributes) {
+        m_device = record.m_device;
+        m_channel = record.m_channel;
+        m_uuids = record.m_uuids;
+        for (int id : DEFAULT_ATTRIBUTES) {
+            copy(record, id);
+        }
+        if (attributes != null) {
+            for (int id : attributes) {
+                copy(record, id);
+            }
+        }
+    }
+
+    private void copy(SimulatedServiceRecord record, int id) {
+        DataElement value = record.m_attributes.get(id);
+        if (value != null) {
+            m_attributes.put(id, value);
+        }
+    }
+
+    /**
+     * Checks whether the record contains all the given UUIDs, as required to match a service search.
+     *
+     * @param uuids the UUIDs
+     * @return <code>true</code> if the record contains all the UUIDs
+     */
+    boolean matches(UUID[] uuids) {
+        return uuids == null || m_uuids.containsAll(Arrays.asList(uuids));
+    }
+
+    /**
+     * Creates the record returned by a service search: the default attributes and the requested ones.
+     *
+     * @param attributes the requested attributes, may be <code>null</code>
+     * @return the record
+     */
+    SimulatedServiceRecord project(int[] attributes) {
+        return new SimulatedServiceRecord(this, attributes);
+    }
+
+    @Override
+    public DataElement getAttributeValue(int id) {
+        synchronized (m_attributes) {
+            return m_attributes.get(id);
+        }
+    }
+
+    @Override
+    public RemoteDevice getHostDevice() {
+        return m_device;
+    }
+
+    @Override
+    public int[] getAttributeIDs() {
+        synchronized (m_attributes) {
+            int[] ids = new int[m_attributes.size()];
+            int i = 0;
+            for (Integer id : m_attributes.keySet()) {
+                ids[i++] = id;
+            }
+            return ids;
+        }
+    }
+
+    @Override
+    public boolean populateRecord(int[] attrIDs) throws IOException {
+        return false;
+    }
+
+    @Override
+    public String getConnectionURL(int requiredSecurity, boolean mustBeMaster) {
+        StringBuilder url = new StringBuilder("btspp://").append(m_device.getBluetoothAddress()).append(':')
+                .append(m_channel);
+        switch (requiredSecurity) {
+            case NOAUTHENTICATE_NOENCRYPT:
+                url.append(";authenticate=false;encrypt=false");
+                break;
+            case AUTHENTICATE_NOENCRYPT:
+                url.append(";authenticate=true;encrypt=false");
+                break;
+            case AUTHENTICATE_ENCRYPT:
+                url.append(";authenticate=true;encrypt=true");
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid security level " + requiredSecurity);
+        }
+        return url.append(";master=").append(mustBeMaster).toString();
+    }
+
+    @Override
+    public void setDeviceServiceClasses(int classes) {
+        throw new RuntimeException("Not a local service record");
+    }
+
+    @Override
+    public boolean setAttributeValue(int id, DataElement value) {
+        synchronized (m_attributes) {
+            if (value == null) {
+                return m_attributes.remove(id) != null;
+            }
+            m_attributes.put(id, value);
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedServiceRecord[" + getConnectionURL(NOAUTHENTICATE_NOENCRYPT, false) + "]";
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import javax.bluetooth.DataElement;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A service record restored from a {@link ServiceRecordSnapshot}: the attributes and the connection URLs of a record
+ * discovered before a restart. The record is detached until the device comes back, its host device being set by
+ * {@link #attach(List, RemoteDevice)}.
+ */
+class StoredServiceRecord implements ServiceRecord {
+
+    /**
+     * The security levels whose connection URL is stored, in this order.
+     */
+    static final int[] SECURITY_LEVELS = {NOAUTHENTICATE_NOENCRYPT, AUTHENTICATE_NOENCRYPT, AUTHENTICATE_ENCRYPT};
+
+    private final RemoteDevice m_device;
+
+    private final Map<Integer, DataElement> m_attributes;
+
+    private final String[] m_urls;
+
+    /**
+     * Creates a detached {@link StoredServiceRecord}.
+     *
+     * @param attributes the attributes by ID
+     * @param urls       the connection URLs (without master role) by security level, as in {@link #SECURITY_LEVELS}
+     */
+    StoredServiceRecord(Map<Integer, DataElement> attributes, String[] urls) {
+        this(null, new TreeMap<Integer, DataElement>(attributes), urls);
+    }
+
+    private StoredServiceRecord(RemoteDevice device, Map<Integer, DataElement> attributes, String[] urls) {
+        m_device = device;
+        m_attributes = attributes;
+        m_urls = urls;
+    }
+
+    /**
+     * Attaches the restored records of a device to the device.
+     *
+     * @param records the records, the ones that are not restored are kept as they are
+     * @param device  the device
+     * @return the attached records
+     */
+    static List<ServiceRecord> attach(List<ServiceRecord> records, RemoteDevice device) {
+        List<ServiceRecord> attached = new ArrayList<ServiceRecord>(records.size());
+        for (ServiceRecord record : records) {
+            if (record instanceof StoredServiceRecord) {
+                StoredServiceRecord stored = (StoredServiceRecord) record;
+                record = new StoredServiceRecord(device, stored.m_attributes, stored.m_urls);
+            }
+            attached.add(record);
+        }
+        return attached;
+    }
+
+    @Override
+    public DataElement getAttributeValue(int id) {
+        synchronized (m_attributes) {
+            return m_attributes.get(id);
+        }
+    }
+
+    /**
+     * @return the host device, <code>null</code> while the record is detached.
+     */
+    @Override
+    public RemoteDevice getHostDevice() {
+        return m_device;
+    }
+
+    @Override
+    public int[] getAttributeIDs() {
+        synchronized (m_attributes) {
+            int[] ids = new int[m_attributes.size()];
+            int i = 0;
+            for (Integer id : m_attributes.keySet()) {
+                ids[i++] = id;
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * The attributes of a restored record are not retrieved from the device.
+     *
+     * @param attrIDs the attributes
+     * @return nothing
+     * @throws IOException always, the record is restored from the snapshot
+     */
+    @Override
+    public boolean populateRecord(int[] attrIDs) throws IOException {
+        throw new IOException("Restored service record, the attributes cannot be retrieved");
+    }
+
+    @Override
+    public String getConnectionURL(int requiredSecurity, boolean mustBeMaster) {
+        for (int i = 0; i < SECURITY_LEVELS.length; i++) {
+            if (SECURITY_LEVELS[i] == requiredSecurity) {
+                String url = m_urls[i];
+                if (url != null && mustBeMaster) {
+                    url = url.replace(";master=false", ";master=true");
+                }
+                return url;
+            }
+        }
+        throw new IllegalArgumentException("Invalid security level " + requiredSecurity);
+    }
+
+    @Override
+    public void setDeviceServiceClasses(int classes) {
+        throw new RuntimeException("Not a local service record");
+    }
+
+    @Override
+    public boolean setAttributeValue(int id, DataElement value) {
+        synchronized (m_attributes) {
+            if (value == null) {
+                return m_attributes.remove(id) != null;
+            }
+            m_attributes.put(id, value);
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StoredServiceRecord[" + m_urls[0] + "]";
+    }
+}
@@ -17,6 +17,8 @@ package org.ow2.chameleon.bluetooth.discovery;
 
 
 import javax.bluetooth.UUID;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 
 public class UUIDs {
 
@@ -51,4 +53,35 @@ public class UUIDs {
     public static final UUID NETWORK_ACCESS_POUUID = new UUID(0x1116);
 
     public static final UUID GROUP_NETWORK = new UUID(0x1117);
+
+    /**
+     * Parses a UUID.
+     *
+     * @param uuid the name of a constant of this class (<tt>SERIAL_PORT</tt>), or a 16, 32 or 128-bit hexadecimal
+     *             UUID, optionally prefixed with <tt>0x</tt> and with dashes (<tt>1101</tt>)
+     * @return the UUID
+     * @throws IllegalArgumentException if the UUID is invalid
+     */
+    public static UUID parse(String uuid) {
+        String value = uuid.trim();
+        try {
+            Field field = UUIDs.class.getField(value.toUpperCase());
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == UUID.class) {
+                return (UUID) field.get(null);
+            }
+        } catch (NoSuchFieldException e) {
+            // Not a constant.
+        } catch (IllegalAccessException e) {
+            // Not a constant.
+        }
+        if (value.startsWith("0x") || value.startsWith("0X")) {
+            value = value.substring(2);
+        }
+        value = value.replace("-", "");
+        if (value.length() == 0 || (value.length() > 8 && value.length() != 32)) {
+            throw new IllegalArgumentException("Invalid UUID " + uuid);
+        }
+        // UUID throws a NumberFormatException, an IllegalArgumentException, on invalid digits.
+        return new UUID(value, value.length() <= 8);
+    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intel.bluetooth;
+
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DeviceClass;
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.LocalDevice;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRegistrationException;
+import javax.bluetooth.UUID;
+import java.io.IOException;
+
+/**
+ * A radio-less BlueCove stack, installed through the BlueCove emulator hook when no adapter is available.
+ * <p/>
+ * <code>RemoteDevice</code> instances cannot be created without an initialized BlueCove stack. This stack only
+ * provides a local device address, so the simulated devices and the stubs can be created on a machine without
+ * bluetooth. It is powered off, so the tests requiring an adapter are still skipped. It lives in the BlueCove
+ * package as the stack interface uses package private types.
+ */
+public class SimulationHostStack implements BluetoothStack {
+
+    private static final String NOT_SUPPORTED = "Not supported by the simulation host stack";
+
+    /**
+     * Installs this stack if BlueCove cannot use a real adapter.
+     */
+    public static synchronized void install() {
+        try {
+            LocalDevice.getLocalDevice();
+            return;
+        } catch (BluetoothStateException e) {
+            // No adapter, use the host.
+        } catch (RuntimeException e) {
+            // No native library, use the host.
+        }
+        BlueCoveImpl.setConfigProperty(BlueCoveConfigProperties.PROPERTY_STACK, BlueCoveImpl.STACK_EMULATOR);
+        BlueCoveImpl.setConfigProperty("bluecove.emulator.class", SimulationHostStack.class.getName());
+        try {
+            LocalDevice.getLocalDevice();
+        } catch (BluetoothStateException e) {
+            throw new IllegalStateException("Cannot install the simulation host stack", e);
+        }
+    }
+
+    public boolean isNativeCodeLoaded() {
+        return true;
+    }
+
+    public LibraryInformation[] requireNativeLibraries() {
+        return null;
+    }
+
+    public int getLibraryVersion() {
+        return BlueCoveImpl.nativeLibraryVersionExpected;
+    }
+
+    public int detectBluetoothStack() {
+        return BlueCoveImpl.BLUECOVE_STACK_DETECT_EMULATOR;
+    }
+
+    public void enableNativeDebug(Class nativeDebugCallback, boolean on) {
+        // No native code.
+    }
+
+    public void initialize() {
+        // Nothing to initialize.
+    }
+
+    public void destroy() {
+        // Nothing to release.
+    }
+
+    public String getStackID() {
+        return BlueCoveImpl.STACK_EMULATOR;
+    }
+
+    public boolean isCurrentThreadInterruptedCallback() {
+        return false;
+    }
+
+    public int getFeatureSet() {
+        return 0;
+    }
+
+    public String getLocalDeviceBluetoothAddress() {
+        return "0B0B0B0B0B0B";
+    }
+
+    public String getLocalDeviceName() {
+        return "simulation-host";
+    }
+
+    public DeviceClass getLocalDeviceClass() {
+        return new DeviceClass(0);
+    }
+
+    public void setLocalDeviceServiceClasses(int classOfDevice) {
+        // Ignored.
+    }
+
+    public boolean setLocalDeviceDiscoverable(int mode) {
+        return false;
+    }
+
+    public int getLocalDeviceDiscoverable() {
+        return 0;
+    }
+
+    public boolean isLocalDevicePowerOn() {
+        return false;
+    }
+
+    public String getLocalDeviceProperty(String property) {
+        return null;
+    }
+
+    public boolean authenticateRemoteDevice(long address) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public boolean authenticateRemoteDevice(long address, String passkey) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void removeAuthenticationWithRemoteDevice(long address) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public boolean startInquiry(int accessCode, DiscoveryListener listener) throws BluetoothStateException {
+        throw new BluetoothStateException(NOT_SUPPORTED);
+    }
+
+    public boolean cancelInquiry(DiscoveryListener listener) {
+        return false;
+    }
+
+    public String getRemoteDeviceFriendlyName(long address) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public RemoteDevice[] retrieveDevices(int option) {
+        return null;
+    }
+
+    public Boolean isRemoteDeviceTrusted(long address) {
+        return Boolean.FALSE;
+    }
+
+    public Boolean isRemoteDeviceAuthenticated(long address) {
+        return Boolean.FALSE;
+    }
+
+    public int searchServices(int[] attrSet, UUID[] uuidSet, RemoteDevice device, DiscoveryListener listener)
+            throws BluetoothStateException {
+        throw new BluetoothStateException(NOT_SUPPORTED);
+    }
+
+    public boolean cancelServiceSearch(int transID) {
+        return false;
+    }
+
+    public boolean populateServicesRecordAttributeValues(ServiceRecordImpl record, int[] attributes)
+            throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public long connectionRfOpenClientConnection(BluetoothConnectionParams params) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public int rfGetSecurityOpt(long handle, int expected) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void connectionRfCloseClientConnection(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void connectionRfCloseServerConnection(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public long rfServerOpen(BluetoothConnectionNotifierParams params, ServiceRecordImpl record) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void rfServerUpdateServiceRecord(long handle, ServiceRecordImpl record, boolean acceptAndOpen)
+            throws ServiceRegistrationException {
+        throw new ServiceRegistrationException(NOT_SUPPORTED);
+    }
+
+    public long rfServerAcceptAndOpenRfServerConnection(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void rfServerClose(long handle, ServiceRecordImpl record) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public long getConnectionRfRemoteAddress(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public boolean rfEncrypt(long handle, long address, boolean on) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public int connectionRfRead(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public int connectionRfRead(long handle, byte[] buffer, int offset, int length) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public int connectionRfReadAvailable(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void connectionRfWrite(long handle, int b) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void connectionRfWrite(long handle, byte[] buffer, int offset, int length) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void connectionRfFlush(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public long l2OpenClientConnection(BluetoothConnectionParams params, int receiveMTU, int transmitMTU)
+            throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void l2CloseClientConnection(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public long l2ServerOpen(BluetoothConnectionNotifierParams params, int receiveMTU, int transmitMTU,
+                             ServiceRecordImpl record) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void l2ServerUpdateServiceRecord(long handle, ServiceRecordImpl record, boolean acceptAndOpen)
+            throws ServiceRegistrationException {
+        throw new ServiceRegistrationException(NOT_SUPPORTED);
+    }
+
+    public long l2ServerAcceptAndOpenServerConnection(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void l2CloseServerConnection(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void l2ServerClose(long handle, ServiceRecordImpl record) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public int l2GetSecurityOpt(long handle, int expected) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public int l2GetTransmitMTU(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public int l2GetReceiveMTU(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public boolean l2Ready(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public int l2Receive(long handle, byte[] buffer) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public void l2Send(long handle, byte[] buffer) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public long l2RemoteAddress(long handle) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+
+    public boolean l2Encrypt(long handle, long address, boolean on) throws IOException {
+        throw new IOException(NOT_SUPPORTED);
+    }
+}
@@ -15,6 +15,7 @@
 
 package org.ow2.chameleon.bluetooth.discovery;
 
+import com.intel.bluetooth.SimulationHostStack;
 import org.junit.Assert;
 import org.easymock.EasyMock;
 import org.junit.Test;
@@ -23,14 +24,18 @@ import org.osgi.framework.BundleContext;
 import javax.bluetooth.LocalDevice;
 import javax.bluetooth.RemoteDevice;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 public class BluetoothDeviceDiscoveryTest {
 
@@ -70,7 +75,7 @@ public class BluetoothDeviceDiscoveryTest {
 
         bdd.discovered(discovered);
 
-        Assert.assertEquals(1, context.getServices().size());
+        waitForServices(context, 1);
 
         bdd.stop();
     }
@@ -121,7 +126,7 @@ public class BluetoothDeviceDiscoveryTest {
     }
 
     @Test
-    public void testDeviceFilter() throws IOException {
+    public void testDeviceFilter() throws IOException, InterruptedException {
         if (!LocalDevice.isPowerOn()) {
             System.err.println("Bluetooth Adapter required");
             return;
@@ -146,11 +151,11 @@ public class BluetoothDeviceDiscoveryTest {
 
         bdd.discovered(discovered);
 
-        Assert.assertEquals(1, context.getServices().size());
+        waitForServices(context, 1);
     }
 
     @Test
-    public void testDeviceName() throws IOException {
+    public void testDeviceName() throws IOException, InterruptedException {
         if (!LocalDevice.isPowerOn()) {
             System.err.println("Bluetooth Adapter required");
             return;
@@ -188,8 +193,8 @@ public class BluetoothDeviceDiscoveryTest {
         // device 5 exposed using memory name
         // properties file updated with device 1
 
+        waitForServices(context, 4);
         Map<Object, Dictionary> services = context.getServices();
-        Assert.assertEquals(4, services.size());
         // Check devices 1
         Assert.assertNotNull(services.get(device1));
         Assert.assertEquals("TDU_00000006", services.get(device1).get("device.name"));
@@ -211,20 +216,16 @@ public class BluetoothDeviceDiscoveryTest {
 
         bdd.stop(); // write the file.
 
-        // Load properties
-        Properties properties = new Properties();
-        File p = new File("target/test-classes/names.properties");
-        FileInputStream fis = new FileInputStream(p);
-        properties.load(fis);
-        fis.close();
+        // Load the names
+        NameStore store = new NameStore(new File("target/test-classes/names.properties"));
+        store.open();
 
-        Assert.assertTrue(properties.containsKey("000012345678"));
-        Assert.assertEquals("TDU_00000006", properties.getProperty("000012345678"));
+        Assert.assertEquals("TDU_00000006", store.get("000012345678"));
 
     }
 
     @Test
-    public void testPersistentSupportDisabledWithNull() throws IOException {
+    public void testPersistentSupportDisabledWithNull() throws IOException, InterruptedException {
         if (!LocalDevice.isPowerOn()) {
             System.err.println("Bluetooth Adapter required");
             return;
@@ -244,7 +245,7 @@ public class BluetoothDeviceDiscoveryTest {
         discovered.addAll(Arrays.asList(device1, device2));
         bdd.discovered(discovered);
 
-
+        waitForServices(context, 1);
         Map<Object, Dictionary> services = context.getServices();
         // Check devices 1
         Assert.assertNotNull(services.get(device1));
@@ -255,19 +256,16 @@ public class BluetoothDeviceDiscoveryTest {
 
         bdd.stop(); // write the file.
 
-        // Load properties
-        Properties properties = new Properties();
-        File p = new File("target/test-classes/names.properties");
-        FileInputStream fis = new FileInputStream(p);
-        properties.load(fis);
-        fis.close();
+        // Load the names
+        NameStore store = new NameStore(new File("target/test-classes/names.properties"));
+        store.open();
 
-        Assert.assertFalse(properties.containsKey("000012345677"));
+        Assert.assertNull(store.get("000012345677"));
 
     }
 
     @Test
-    public void testPersistentSupportDisabledWithNullString() throws IOException {
+    public void testPersistentSupportDisabledWithNullString() throws IOException, InterruptedException {
         if (!LocalDevice.isPowerOn()) {
             System.err.println("Bluetooth Adapter required");
             return;
@@ -287,7 +285,7 @@ public class BluetoothDeviceDiscoveryTest {
         discovered.addAll(Arrays.asList(device1, device2));
         bdd.discovered(discovered);
 
-
+        waitForServices(context, 1);
         Map<Object, Dictionary> services = context.getServices();
         // Check devices 1
         Assert.assertNotNull(services.get(device1));
@@ -298,20 +296,17 @@ public class BluetoothDeviceDiscoveryTest {
 
         bdd.stop(); // write the file.
 
-        // Load properties
-        Properties properties = new Properties();
-        File p = new File("target/test-classes/names.properties");
-        FileInputStream fis = new FileInputStream(p);
-        properties.load(fis);
-        fis.close();
+        // Load the names
+        NameStore store = new NameStore(new File("target/test-classes/names.properties"));
+        store.open();
 
-        Assert.assertFalse(properties.containsKey("000012345677"));
+        Assert.assertNull(store.get("000012345677"));
 
     }
 
 
     @Test
-    public void testPersistentSupportDisabledWithEmptyString() throws IOException {
+    public void testPersistentSupportDisabledWithEmptyString() throws IOException, InterruptedException {
         if (!LocalDevice.isPowerOn()) {
             System.err.println("Bluetooth Adapter required");
             return;
@@ -331,7 +326,7 @@ public class BluetoothDeviceDiscoveryTest {
         discovered.addAll(Arrays.asList(device1, device2));
         bdd.discovered(discovered);
 
-
+        waitForServices(context, 1);
         Map<Object, Dictionary> services = context.getServices();
         // Check devices 1
         Assert.assertNotNull(services.get(device1));
@@ -342,15 +337,409 @@ public class BluetoothDeviceDiscoveryTest {
 
         bdd.stop(); // write the file.
 
-        // Load properties
-        Properties properties = new Properties();
-        File p = new File("target/test-classes/names.properties");
-        FileInputStream fis = new FileInputStream(p);
-        properties.load(fis);
-        fis.close();
+        // Load the names
+        NameStore store = new NameStore(new File("target/test-classes/names.properties"));
+        store.open();
+
+        Assert.assertNull(store.get("000012345677"));
+
+    }
+
+    @Test
+    public void testDiscoveryOnSimulatedStack() throws Exception {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(2, 0);
+        stack.setInquiryDuration(50);
+        SimulatedDevice paired = stack.addDevice("000000000001", "TDU_00000001");
+        paired.setPin("11111111");
+        paired.addService(UUIDs.SERIAL_PORT, "serial");
+        SimulatedDevice refused = stack.addDevice("000000000002", "TDU_00000002");
+        refused.setPin("0000");
+        refused.addService(UUIDs.SERIAL_PORT, "serial");
+        stack.addDevice("000000000003", "other").addService(UUIDs.SERIAL_PORT, "serial");
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+            bdd.m_ignoreUnnamedDevices = true;
+            bdd.setAutopairingConfiguration(new File("src/test/resources/devices-with-filter.xml"));
+            Assert.assertTrue(bdd.isBluetoothStackSupported());
+            bdd.start();
+
+            // The first inquiry runs immediately, the matching device is paired on the second adapter.
+            waitForServices(context, 1);
+            Assert.assertEquals("TDU_00000001", context.getServices().get(paired).get("device.name"));
+            Assert.assertTrue(paired.isAuthenticated());
+            Assert.assertFalse(refused.isAuthenticated());
+
+            // The device leaves, the presence check unregisters it.
+            paired.setPresent(false);
+            bdd.discovered(new HashSet<RemoteDevice>());
+            waitForServices(context, 0);
+
+            bdd.stop();
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamedDevicesAreRegisteredOnce() {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+            RemoteDevice device = new RemoteDeviceStub("000000000001", "test");
+
+            // Found during the inquiry, then reported again with the whole inquiry result.
+            bdd.deviceFound(device);
+            Assert.assertEquals(1, context.getServices().size());
+            bdd.deviceFound(new RemoteDeviceStub("000000000001", "test"));
+            bdd.discovered(new HashSet<RemoteDevice>(Arrays.<RemoteDevice>asList(device)));
+            Assert.assertEquals(1, context.getServices().size());
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testRegistrationDoesNotWaitForTheName() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        stack.setNameLatency(500);
+        SimulatedDevice device = stack.addDevice("000000000001", "slow");
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+            bdd.m_ignoreUnnamedDevices = false;
+
+            // Registered without name, the name is added once resolved.
+            long begin = System.currentTimeMillis();
+            bdd.discovered(new HashSet<RemoteDevice>(Arrays.<RemoteDevice>asList(device)));
+            Assert.assertTrue(System.currentTimeMillis() - begin < 500);
+            Assert.assertEquals(1, context.getServices().size());
+            Assert.assertNull(context.getServices().get(device).get("device.name"));
+
+            long end = System.currentTimeMillis() + 5000;
+            while (context.getServices().get(device).get("device.name") == null
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("slow", context.getServices().get(device).get("device.name"));
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
 
-        Assert.assertFalse(properties.containsKey("000012345677"));
+    @Test
+    public void testStreamedDeviceIsRegisteredDuringTheInquiry() throws InterruptedException {
+        SimulationHostStack.install();
+        // A single adapter, busy with the inquiry until it completes.
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        stack.setInquiryDuration(3000);
+        stack.setNameLatency(200);
+        SimulatedDevice device = stack.addDevice("000000000001", "streamed");
+        BluetoothThreadManager.setStack(stack);
 
+        BundleContextStub context = new BundleContextStub();
+        BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+        try {
+            bdd.m_ignoreUnnamedDevices = true;
+            bdd.m_streaming = true;
+            bdd.m_period = 3600;
+            long begin = System.currentTimeMillis();
+            bdd.start();
+
+            // Found half way, registered without waiting for its name.
+            long end = begin + 2500;
+            while (context.getServices().isEmpty() && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, context.getServices().size());
+            Assert.assertTrue(System.currentTimeMillis() - begin < 3000);
+            Assert.assertNull(context.getServices().get(device).get("device.name"));
+
+            // The name is requested once the adapter is free.
+            end = System.currentTimeMillis() + 5000;
+            while (context.getServices().get(device).get("device.name") == null
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals("streamed", context.getServices().get(device).get("device.name"));
+            Assert.assertEquals(1, stack.getMaxConcurrentOperations());
+        } finally {
+            bdd.stop();
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnnamedDeviceIsWithdrawnOnceResolved() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        SimulatedDevice unnamed = stack.addDevice("000000000001", null);
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+            bdd.m_ignoreUnnamedDevices = true;
+            bdd.discovered(new HashSet<RemoteDevice>(Arrays.<RemoteDevice>asList(unnamed)));
+            Assert.assertEquals(1, context.getRegistrationCount());
+
+            long end = System.currentTimeMillis() + 5000;
+            while (context.getUnregistrationCount() == 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, context.getServices().size());
+            Assert.assertEquals(1, context.getUnregistrationCount());
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testPresenceIsProbedByName() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        Set<RemoteDevice> devices = new HashSet<RemoteDevice>();
+        for (int i = 1; i <= 3; i++) {
+            devices.add(stack.addDevice("00000000000" + i, "device-" + i));
+        }
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+            bdd.m_ignoreUnnamedDevices = false;
+            bdd.setPresenceProbe("name");
+            bdd.discovered(devices);
+            Assert.assertEquals(3, context.getServices().size());
+
+            // The devices are missing from the inquiry, a name request checks each of them.
+            stack.getDevice("000000000002").setPresent(false);
+            bdd.discovered(new HashSet<RemoteDevice>());
+            waitForServices(context, 2);
+            long end = System.currentTimeMillis() + 5000;
+            while (!bdd.getPresenceProbeStatistics().containsKey("name")
+                    || bdd.getPresenceProbeStatistics().get("name").getExecuted() != 3) {
+                Assert.assertTrue(System.currentTimeMillis() < end);
+                Thread.sleep(10);
+            }
+            PresenceProbeStatistics statistics = bdd.getPresenceProbeStatistics().get("name");
+            Assert.assertEquals(2, statistics.getPresent());
+            Assert.assertEquals(1, statistics.getAbsent());
+            Assert.assertEquals(0, stack.getServiceSearchCount());
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testPresenceIsProbedByInquiry() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        SimulatedDevice device = stack.addDevice("000000000001", "device");
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+            bdd.m_ignoreUnnamedDevices = false;
+            bdd.setPresenceProbe("inquiry");
+            bdd.setPresenceInquiryAge(1);
+            bdd.discovered(new HashSet<RemoteDevice>(Arrays.<RemoteDevice>asList(device)));
+
+            // Seen recently, kept without radio operation.
+            bdd.discovered(new HashSet<RemoteDevice>());
+            Assert.assertEquals(1, context.getServices().size());
+
+            Thread.sleep(1100);
+            bdd.discovered(new HashSet<RemoteDevice>());
+            Assert.assertEquals(0, context.getServices().size());
+            Assert.assertEquals(0, stack.getServiceSearchCount());
+            Assert.assertEquals(2, bdd.getPresenceProbeStatistics().get("inquiry").getExecuted());
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testDepartureHysteresis() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        SimulatedDevice device = stack.addDevice("000000000001", "device");
+        Set<RemoteDevice> found = new HashSet<RemoteDevice>(Arrays.<RemoteDevice>asList(device));
+        Set<RemoteDevice> missed = new HashSet<RemoteDevice>();
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+            bdd.m_ignoreUnnamedDevices = false;
+            bdd.setDepartureMisses(3);
+            bdd.discovered(found);
+
+            // Missed twice then found again, the device is neither checked nor withdrawn.
+            bdd.discovered(missed);
+            bdd.discovered(missed);
+            bdd.discovered(found);
+            Thread.sleep(100);
+            Assert.assertEquals(1, context.getServices().size());
+            Assert.assertEquals(0, stack.getServiceSearchCount());
+            Assert.assertEquals(1, bdd.getDepartureStatistics().getAbsorbedFlaps());
+            Assert.assertEquals(2, bdd.getDepartureStatistics().getDeferred());
+
+            // Gone, checked on the third missed inquiry.
+            device.setPresent(false);
+            bdd.discovered(missed);
+            bdd.discovered(missed);
+            Thread.sleep(100);
+            Assert.assertEquals(1, context.getServices().size());
+            bdd.discovered(missed);
+            waitForServices(context, 0);
+            Assert.assertEquals(1, bdd.getDepartureStatistics().getDepartures());
+
+            // Back shortly after, a flap.
+            device.setPresent(true);
+            bdd.discovered(found);
+            Assert.assertEquals(1, context.getServices().size());
+            Assert.assertEquals(1, bdd.getDepartureStatistics().getFlaps());
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeviceEventsAreBatched() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        SimulatedDevice first = stack.addDevice("000000000001", "first");
+        SimulatedDevice second = stack.addDevice("000000000002", "second");
+        BluetoothThreadManager.setStack(stack);
+        final BlockingQueue<DeviceEventBatch> batches = new LinkedBlockingQueue<DeviceEventBatch>();
+        DeviceListener listener = new DeviceListener() {
+            @Override
+            public void devicesChanged(DeviceEventBatch batch) {
+                batches.add(batch);
+            }
+        };
+
+        BundleContextStub context = new BundleContextStub();
+        BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+        bdd.bindDeviceListener(listener);
+        try {
+            bdd.m_ignoreUnnamedDevices = false;
+            bdd.discovered(new HashSet<RemoteDevice>(Arrays.<RemoteDevice>asList(first, second)));
+            DeviceEventBatch batch = batches.poll(5, TimeUnit.SECONDS);
+            List<DeviceEvent> arrivals = filter(batch, DeviceEvent.Type.ARRIVED);
+            Assert.assertEquals(2, arrivals.size());
+
+            // The departure is confirmed by a presence check, after the cycle: part of the next batch.
+            second.setPresent(false);
+            bdd.discovered(new HashSet<RemoteDevice>(Arrays.<RemoteDevice>asList(first)));
+            waitForServices(context, 1);
+            bdd.discovered(new HashSet<RemoteDevice>(Arrays.<RemoteDevice>asList(first)));
+            DeviceEventBatch next = batches.poll(5, TimeUnit.SECONDS);
+            while (next != null && filter(next, DeviceEvent.Type.DEPARTED).isEmpty()) {
+                Assert.assertTrue(next.getSequence() > batch.getSequence());
+                batch = next;
+                next = batches.poll(5, TimeUnit.SECONDS);
+            }
+            Assert.assertNotNull(next);
+            Assert.assertEquals(batch.getSequence() + 1, next.getSequence());
+            List<DeviceEvent> departures = filter(next, DeviceEvent.Type.DEPARTED);
+            Assert.assertEquals(1, departures.size());
+            Assert.assertEquals("000000000002", departures.get(0).getAddress());
+        } finally {
+            bdd.unbindDeviceListener(listener);
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testLiveReconfiguration() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        stack.addDevice("000000000001", "first");
+        SimulatedDevice second = stack.addDevice("000000000002", "second");
+        BluetoothThreadManager.setStack(stack);
+
+        BundleContextStub context = new BundleContextStub();
+        BluetoothDeviceDiscovery bdd = new BluetoothDeviceDiscovery(context);
+        try {
+            bdd.m_ignoreUnnamedDevices = false;
+            bdd.m_period = 3600;
+            bdd.start();
+            waitForServices(context, 2);
+            Assert.assertEquals(1, stack.getInquiryCount());
+
+            // The next inquiry is due in an hour, the new period applies right away.
+            bdd.m_period = 1;
+            bdd.m_discoveryMode = BluetoothDeviceDiscovery.DiscoveryMode.LIAC;
+            bdd.updated();
+            Assert.assertEquals(1000, bdd.getInquiryPeriod());
+            long end = System.currentTimeMillis() + 5000;
+            while (stack.getInquiryCount() < 3 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(stack.getInquiryCount() >= 3);
+            Assert.assertEquals(2, context.getRegistrationCount());
+            Assert.assertEquals(0, context.getUnregistrationCount());
+
+            // A new filter withdraws the devices not matching anymore.
+            bdd.m_filter = Pattern.compile("first");
+            bdd.updated();
+            Assert.assertEquals(1, context.getServices().size());
+            Assert.assertEquals(1, context.getUnregistrationCount());
+            Assert.assertFalse(context.getServices().containsKey(second));
+
+            // Restarted, the scheduler runs the inquiries again.
+            bdd.stop();
+            int inquiries = stack.getInquiryCount();
+            bdd.m_filter = null;
+            bdd.start();
+            waitForServices(context, 2);
+            Assert.assertTrue(stack.getInquiryCount() > inquiries);
+        } finally {
+            bdd.stop();
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    private static List<DeviceEvent> filter(DeviceEventBatch batch, DeviceEvent.Type type) {
+        Assert.assertNotNull(batch);
+        List<DeviceEvent> events = new ArrayList<DeviceEvent>();
+        for (DeviceEvent event : batch.getEvents()) {
+            if (event.getType() == type) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    private static void waitForServices(BundleContextStub context, int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (context.getServices().size() != count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, context.getServices().size());
     }
 
 }
@@ -15,18 +15,31 @@
 
 package org.ow2.chameleon.bluetooth.discovery;
 
+import com.intel.bluetooth.SimulationHostStack;
 import org.easymock.EasyMock;
 import org.junit.Assert;
 import org.junit.Test;
 import org.osgi.framework.BundleContext;
 import org.ow2.chameleon.bluetooth.devices.Device;
 
+import javax.bluetooth.DataElement;
 import javax.bluetooth.LocalDevice;
 import javax.bluetooth.RemoteDevice;
 import javax.bluetooth.ServiceRecord;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class BluetoothServiceDiscoveryTest {
 
@@ -119,4 +132,466 @@ public class BluetoothServiceDiscoveryTest {
         Assert.assertNull(dev);
     }
 
+    @Test
+    public void testStopWithdrawsAllServices() {
+        SimulationHostStack.install();
+
+        BundleContextStub context = new BundleContextStub();
+        BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+
+        RemoteDevice first = new RemoteDeviceStub("000000000001", "first");
+        RemoteDevice second = new RemoteDeviceStub("000000000002", "second");
+        bsd.discovered(first, Arrays.asList(new ServiceRecord[]{new ServiceRecordStub(first, "test")}));
+        bsd.discovered(second, Arrays.asList(new ServiceRecord[]{new ServiceRecordStub(second, "test")}));
+        Assert.assertEquals(2, context.getServices().size());
+
+        bsd.stop();
+
+        Assert.assertEquals(0, context.getServices().size());
+    }
+
+
+    @Test
+    public void testCachedServicesArePublishedOnRebind() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        SimulatedDevice device = stack.addDevice("000000000001", "device");
+        device.addService(UUIDs.SERIAL_PORT, "serial");
+        device.addService(UUIDs.OBEX_OBJECT_PUSH_PROFILE, "push");
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            bsd.bindRemoteDevice(device);
+            waitForServices(context, 2);
+            Assert.assertEquals(1, stack.getServiceSearchCount());
+
+            // The device flaps, the cached services are published without search.
+            bsd.unbindRemoteDevice(device);
+            Assert.assertEquals(0, context.getServices().size());
+            bsd.bindRemoteDevice(device);
+            Assert.assertEquals(2, context.getServices().size());
+            Thread.sleep(100);
+            Assert.assertEquals(1, stack.getServiceSearchCount());
+            Assert.assertEquals(1, bsd.getServiceCache().getHits());
+
+            // Stale, the services are searched again in the background.
+            bsd.setServiceCacheTimeToLive(0);
+            bsd.unbindRemoteDevice(device);
+            device.addService(UUIDs.SERIAL_PORT, "second serial");
+            bsd.bindRemoteDevice(device);
+            Assert.assertEquals(2, context.getServices().size());
+            waitForServices(context, 3);
+            Assert.assertEquals(2, stack.getServiceSearchCount());
+
+            bsd.stop();
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnchangedServicesAreKept() {
+        SimulationHostStack.install();
+
+        BundleContextStub context = new BundleContextStub();
+        BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+        RemoteDevice device = new RemoteDeviceStub("000000000001", "device");
+        ServiceRecord record = new ServiceRecordStub(device, "test");
+        bsd.discovered(device, Arrays.asList(record));
+
+        // Searched again, the same service is found: the published record is kept.
+        bsd.discovered(device, Arrays.<ServiceRecord>asList(new ServiceRecordStub(device, "test")));
+        Assert.assertEquals(1, context.getServices().size());
+        Assert.assertTrue(context.getServices().containsKey(record));
+
+        bsd.discovered(device, Arrays.<ServiceRecord>asList(new ServiceRecordStub(device, "other")));
+        Assert.assertEquals(1, context.getServices().size());
+        Assert.assertFalse(context.getServices().containsKey(record));
+        bsd.stop();
+    }
+
+    @Test
+    public void testServicesAreUpdatedInPlace() {
+        SimulationHostStack.install();
+
+        BundleContextStub context = new BundleContextStub();
+        BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+        RemoteDevice device = new RemoteDeviceStub("000000000001", "device");
+        ServiceRecord serial = new SimulatedServiceRecord(device, 0x10000, UUIDs.SERIAL_PORT, "serial", 1);
+        ServiceRecord push = new SimulatedServiceRecord(device, 0x10001, UUIDs.OBEX_OBJECT_PUSH_PROFILE, "push", 2);
+        bsd.discovered(device, Arrays.asList(serial, push));
+        Assert.assertEquals(2, context.getRegistrationCount());
+
+        // Same serial port, renamed push service, new service.
+        bsd.discovered(device, Arrays.<ServiceRecord>asList(
+                new SimulatedServiceRecord(device, 0x10000, UUIDs.SERIAL_PORT, "serial", 1),
+                new SimulatedServiceRecord(device, 0x10001, UUIDs.OBEX_OBJECT_PUSH_PROFILE, "renamed", 2),
+                new SimulatedServiceRecord(device, 0x10002, UUIDs.SERIAL_PORT, "ftp", 3)));
+        Assert.assertEquals(3, context.getServices().size());
+        Assert.assertEquals(3, context.getRegistrationCount());
+        Assert.assertEquals(1, context.getModificationCount());
+        Assert.assertEquals(0, context.getUnregistrationCount());
+        Map<?, ?> attributes = (Map<?, ?>) context.getServices().get(push).get("service.attributes");
+        Assert.assertEquals("renamed", ((DataElement) attributes.get(0x0100)).getValue());
+
+        // The push service is gone.
+        bsd.discovered(device, Arrays.<ServiceRecord>asList(
+                new SimulatedServiceRecord(device, 0x10000, UUIDs.SERIAL_PORT, "serial", 1),
+                new SimulatedServiceRecord(device, 0x10002, UUIDs.SERIAL_PORT, "ftp", 3)));
+        Assert.assertEquals(2, context.getServices().size());
+        Assert.assertFalse(context.getServices().containsKey(push));
+        Assert.assertTrue(context.getServices().containsKey(serial));
+        Assert.assertEquals(3, context.getRegistrationCount());
+        Assert.assertEquals(1, context.getModificationCount());
+        Assert.assertEquals(1, context.getUnregistrationCount());
+        bsd.stop();
+    }
+
+    @Test
+    public void testServiceChangesArePosted() throws InterruptedException {
+        SimulationHostStack.install();
+        final BlockingQueue<DeviceEventBatch> batches = new LinkedBlockingQueue<DeviceEventBatch>();
+        DeviceListener listener = new DeviceListener() {
+            @Override
+            public void devicesChanged(DeviceEventBatch batch) {
+                batches.add(batch);
+            }
+        };
+        DeviceEventDispatcher.getDefault().addListener(listener);
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            RemoteDevice device = new RemoteDeviceStub("000000000001", "device");
+            bsd.discovered(device, Arrays.<ServiceRecord>asList(
+                    new SimulatedServiceRecord(device, 0x10000, UUIDs.SERIAL_PORT, "serial", 1),
+                    new SimulatedServiceRecord(device, 0x10001, UUIDs.OBEX_OBJECT_PUSH_PROFILE, "push", 2)));
+            bsd.discovered(device, Arrays.<ServiceRecord>asList(
+                    new SimulatedServiceRecord(device, 0x10000, UUIDs.SERIAL_PORT, "renamed", 1)));
+            // The batch is closed by the device discovery, or when the discovery stops.
+            bsd.stop();
+
+            DeviceEventBatch batch = batches.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(batch);
+            Assert.assertEquals(3, batch.getEvents().size());
+            DeviceEvent published = batch.getEvents().get(0);
+            Assert.assertEquals(DeviceEvent.Type.SERVICES_CHANGED, published.getType());
+            Assert.assertEquals("000000000001", published.getAddress());
+            Assert.assertEquals(2, published.getAddedServices().size());
+            DeviceEvent updated = batch.getEvents().get(1);
+            Assert.assertEquals(1, updated.getModifiedServices().size());
+            Assert.assertEquals(1, updated.getRemovedServices().size());
+            DeviceEvent withdrawn = batch.getEvents().get(2);
+            Assert.assertEquals(1, withdrawn.getRemovedServices().size());
+            Assert.assertNull(withdrawn.getDevice());
+        } finally {
+            DeviceEventDispatcher.getDefault().removeListener(listener);
+        }
+    }
+
+    @Test
+    public void testAttributesAreProjected() {
+        SimulationHostStack.install();
+
+        BundleContextStub context = new BundleContextStub();
+        BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+        bsd.setExposedAttributes("0x0100, 4");
+        RemoteDevice device = new RemoteDeviceStub("000000000001", "device");
+        ServiceRecord serial = new SimulatedServiceRecord(device, 0x10000, UUIDs.SERIAL_PORT, "serial", 1);
+        bsd.discovered(device, Arrays.asList(serial));
+
+        ServiceAttributes attributes = (ServiceAttributes) context.getServices().get(serial).get("service.attributes");
+        Assert.assertEquals("serial", attributes.get(0x0100).getValue());
+        Assert.assertNull(attributes.get(0x0000));
+        Assert.assertFalse(attributes.isMaterialized());
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(0x0004, 0x0100)), attributes.keySet());
+        Assert.assertEquals(5, attributes.getAll().size());
+        Assert.assertSame(serial, attributes.getRecord());
+
+        // No property.
+        bsd.setExposedAttributes("");
+        RemoteDevice other = new RemoteDeviceStub("000000000002", "other");
+        ServiceRecord push = new SimulatedServiceRecord(other, 0x10000, UUIDs.OBEX_OBJECT_PUSH_PROFILE, "push", 1);
+        bsd.discovered(other, Arrays.asList(push));
+        Assert.assertNull(context.getServices().get(push).get("service.attributes"));
+        bsd.stop();
+    }
+
+    @Test
+    public void testRequestedAttributes() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        SimulatedDevice device = stack.addDevice("000000000001", "device");
+        device.addService(UUIDs.SERIAL_PORT, "serial");
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            bsd.bindRemoteDevice(device);
+            waitForServices(context, 1);
+            Map<?, ?> attributes = (Map<?, ?>) context.getServices().values().iterator().next().get("service.attributes");
+            Assert.assertNull(attributes.get(0x0100));
+            bsd.stop();
+
+            // The service name is requested.
+            context = new BundleContextStub();
+            bsd = new BluetoothServiceDiscovery(context);
+            bsd.setRequestedAttributes("0x0100");
+            bsd.bindRemoteDevice(device);
+            waitForServices(context, 1);
+            attributes = (Map<?, ?>) context.getServices().values().iterator().next().get("service.attributes");
+            Assert.assertEquals("serial", ((DataElement) attributes.get(0x0100)).getValue());
+            bsd.stop();
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testServicesAreRestoredAfterRestart() throws InterruptedException, IOException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        SimulatedDevice device = stack.addDevice("000000000001", "device");
+        device.addService(UUIDs.SERIAL_PORT, "serial");
+        device.addService(UUIDs.OBEX_OBJECT_PUSH_PROFILE, "push");
+        BluetoothThreadManager.setStack(stack);
+        File snapshot = File.createTempFile("services", ".snapshot");
+        snapshot.delete();
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            bsd.setServiceSnapshotFile(snapshot.getAbsolutePath());
+            bsd.bindRemoteDevice(device);
+            waitForServices(context, 2);
+            bsd.stop();
+            Assert.assertTrue(snapshot.isFile());
+
+            // Restarted, the services are published before the search completes, then validated.
+            stack.setServiceSearchLatency(500);
+            context = new BundleContextStub();
+            bsd = new BluetoothServiceDiscovery(context);
+            bsd.setServiceSnapshotFile(snapshot.getAbsolutePath());
+            bsd.bindRemoteDevice(device);
+            Assert.assertEquals(2, context.getServices().size());
+            for (Object record : context.getServices().keySet()) {
+                Assert.assertSame(device, ((ServiceRecord) record).getHostDevice());
+            }
+            long end = System.currentTimeMillis() + 5000;
+            while (stack.getServiceSearchCount() < 2 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            // Let the search complete.
+            Thread.sleep(1000);
+            Assert.assertEquals(2, stack.getServiceSearchCount());
+            Assert.assertEquals(2, context.getServices().size());
+            bsd.stop();
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentDevices() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(4, 42);
+        final List<RemoteDevice> devices = new ArrayList<RemoteDevice>();
+        for (int i = 0; i < 64; i++) {
+            SimulatedDevice device = stack.addDevice(String.format("0000000001%02X", i), "device-" + i);
+            device.addService(UUIDs.SERIAL_PORT, "serial");
+            device.addService(UUIDs.OBEX_OBJECT_PUSH_PROFILE, "push");
+            devices.add(device);
+        }
+        stack.setServiceSearchLatency(2);
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            final BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            // Every binding searches the services again, the results race with the bindings.
+            bsd.setServiceCacheTimeToLive(0);
+
+            // Each thread flaps its own devices, then binds the even ones.
+            final int threads = 8;
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                new Thread(new Runnable() {
+                    public void run() {
+                        Random random = new Random(thread);
+                        for (int i = 0; i < 500; i++) {
+                            RemoteDevice device = devices.get(thread + threads * random.nextInt(devices.size() / threads));
+                            if (random.nextBoolean()) {
+                                bsd.bindRemoteDevice(device);
+                            } else {
+                                bsd.unbindRemoteDevice(device);
+                            }
+                        }
+                        for (int i = thread; i < devices.size(); i += threads) {
+                            if (i % 2 == 0) {
+                                bsd.bindRemoteDevice(devices.get(i));
+                            } else {
+                                bsd.unbindRemoteDevice(devices.get(i));
+                            }
+                        }
+                        done.countDown();
+                    }
+                }).start();
+            }
+            Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+
+            // Once the pending searches are completed, only the bound devices have services.
+            waitForServices(context, devices.size());
+            Thread.sleep(500);
+            Assert.assertEquals(devices.size(), context.getServices().size());
+            Set<String> published = new HashSet<String>();
+            synchronized (context.getServices()) {
+                for (Dictionary properties : context.getServices().values()) {
+                    published.add((String) properties.get("device.id"));
+                }
+            }
+            Assert.assertEquals(devices.size() / 2, published.size());
+            for (int i = 0; i < devices.size(); i += 2) {
+                Assert.assertTrue(published.contains(devices.get(i).getBluetoothAddress()));
+            }
+
+            bsd.stop();
+            Assert.assertEquals(0, context.getServices().size());
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedSearchesAreRetriedWithBackoff() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        // Without service, the searches fail.
+        SimulatedDevice device = stack.addDevice("000000000001", "device");
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            bsd.setServiceMaxRetries(3);
+            bsd.getRetryBackoff().setInitialDelay(100);
+            long start = System.currentTimeMillis();
+            bsd.bindRemoteDevice(device);
+
+            long end = start + 5000;
+            while ((stack.getServiceSearchCount() != 4 || bsd.getPendingRetries() != 0)
+                    && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(4, stack.getServiceSearchCount());
+            // At least half of 100 + 200 + 400 ms.
+            Assert.assertTrue(System.currentTimeMillis() - start >= 350);
+
+            // Out of retries.
+            Thread.sleep(1000);
+            Assert.assertEquals(4, stack.getServiceSearchCount());
+            Assert.assertEquals(0, bsd.getPendingRetries());
+
+            bsd.stop();
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testRetriesAreCancelledAndBounded() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        List<SimulatedDevice> devices = new ArrayList<SimulatedDevice>();
+        for (int i = 0; i < 5; i++) {
+            devices.add(stack.addDevice(String.format("%012X", i + 1), "device-" + i));
+        }
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            bsd.setServiceRetryBudget(3);
+            bsd.getRetryBackoff().setInitialDelay(60000);
+            for (SimulatedDevice device : devices) {
+                bsd.bindRemoteDevice(device);
+            }
+            long end = System.currentTimeMillis() + 5000;
+            while (stack.getServiceSearchCount() != 5 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            // The global budget drops the retries of the last failing devices.
+            Assert.assertEquals(5, stack.getServiceSearchCount());
+            Assert.assertEquals(3, bsd.getPendingRetries());
+
+            // The devices leave, their retries are cancelled.
+            for (SimulatedDevice device : devices) {
+                bsd.unbindRemoteDevice(device);
+            }
+            Assert.assertEquals(0, bsd.getPendingRetries());
+
+            bsd.stop();
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    @Test
+    public void testMergedSearchesAreCompleted() throws InterruptedException {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        List<SimulatedDevice> devices = new ArrayList<SimulatedDevice>();
+        for (int i = 0; i < 3; i++) {
+            SimulatedDevice device = stack.addDevice(String.format("%012X", i + 1), "device-" + i);
+            device.addService(UUIDs.SERIAL_PORT, "serial");
+            devices.add(device);
+        }
+        // The first search keeps the single adapter busy, the next ones wait and are merged.
+        stack.setServiceSearchLatency(300);
+        BluetoothThreadManager.setStack(stack);
+
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            bsd.setServiceCacheTimeToLive(0);
+            bsd.bindRemoteDevice(devices.get(0));
+            Thread.sleep(100);
+            for (int i = 0; i < 3; i++) {
+                bsd.bindRemoteDevice(devices.get(1));
+                bsd.bindRemoteDevice(devices.get(2));
+            }
+            Assert.assertEquals(3, bsd.getPendingSearches());
+
+            waitForServices(context, devices.size());
+            long end = System.currentTimeMillis() + 5000;
+            while (bsd.getPendingSearches() != 0 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            // Each merged search completes once, no device stays pending.
+            Assert.assertEquals(0, bsd.getPendingSearches());
+
+            bsd.stop();
+        } finally {
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+    }
+
+    private static void waitForServices(BundleContextStub context, int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (context.getServices().size() != count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, context.getServices().size());
+    }
 }
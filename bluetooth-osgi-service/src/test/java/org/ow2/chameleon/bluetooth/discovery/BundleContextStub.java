@@ -15,7 +15,6 @@
 
 package org.ow2.chameleon.bluetooth.discovery;
 
-import org.easymock.EasyMock;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
@@ -30,18 +29,38 @@ import org.osgi.framework.ServiceRegistration;
 import java.io.File;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BundleContextStub implements BundleContext {
 
-    private HashMap<Object, Dictionary> m_services = new HashMap<Object, Dictionary>();
+    private Map<Object, Dictionary> m_services = Collections.synchronizedMap(new HashMap<Object, Dictionary>());
+
+    private final AtomicInteger m_registrations = new AtomicInteger();
+
+    private final AtomicInteger m_modifications = new AtomicInteger();
+
+    private final AtomicInteger m_unregistrations = new AtomicInteger();
 
     public Map<Object, Dictionary> getServices() {
         return m_services;
     }
 
+    public int getRegistrationCount() {
+        return m_registrations.get();
+    }
+
+    public int getModificationCount() {
+        return m_modifications.get();
+    }
+
+    public int getUnregistrationCount() {
+        return m_unregistrations.get();
+    }
+
     @Override
     public String getProperty(String key) {
         return null;
@@ -119,21 +138,21 @@ public class BundleContextStub implements BundleContext {
     @Override
     public <S> ServiceRegistration<S> registerService(Class<S> clazz, S service, Dictionary<String, ?> properties) {
         m_services.put(service, properties);
-        return EasyMock.createMock(ServiceRegistration.class);
+        return new RegistrationStub(service);
     }
 
     @Override
     public ServiceRegistration registerService(String[] clazzes,
                                                Object service, Dictionary properties) {
         m_services.put(service, properties);
-        return EasyMock.createMock(ServiceRegistration.class);
+        return new RegistrationStub(service);
     }
 
     @Override
     public ServiceRegistration registerService(String clazz, Object service,
                                                Dictionary properties) {
         m_services.put(service, properties);
-        return EasyMock.createMock(ServiceRegistration.class);
+        return new RegistrationStub(service);
     }
 
     @Override
@@ -183,6 +202,34 @@ public class BundleContextStub implements BundleContext {
         return null;
     }
 
+    /**
+     * Registration updating the service map.
+     */
+    private class RegistrationStub implements ServiceRegistration {
+
+        private final Object m_service;
+
+        RegistrationStub(Object service) {
+            m_service = service;
+            m_registrations.incrementAndGet();
+        }
 
+        @Override
+        public ServiceReference getReference() {
+            return null;
+        }
+
+        @Override
+        public void setProperties(Dictionary properties) {
+            m_modifications.incrementAndGet();
+            m_services.put(m_service, properties);
+        }
+
+        @Override
+        public void unregister() {
+            m_unregistrations.incrementAndGet();
+            m_services.remove(m_service);
+        }
+    }
 
 }
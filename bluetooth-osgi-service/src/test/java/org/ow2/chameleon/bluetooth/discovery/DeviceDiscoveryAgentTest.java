@@ -15,25 +15,41 @@
 
 package org.ow2.chameleon.bluetooth.discovery;
 
+import com.intel.bluetooth.SimulationHostStack;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.ow2.chameleon.bluetooth.discovery.BluetoothDeviceDiscovery.DiscoveryMode;
-import org.ow2.chameleon.bluetooth.discovery.DeviceDiscoveryAgent.DeviceDiscoveryListener;
 
-import javax.bluetooth.LocalDevice;
 import javax.bluetooth.RemoteDevice;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class DeviceDiscoveryAgentTest {
 
+    private SimulatedBluetoothStack m_stack = new SimulatedBluetoothStack();
+
+    @BeforeClass
+    public static void installHost() {
+        SimulationHostStack.install();
+    }
+
     @After
     public void tearDown() {
-        Env.disableTestEnvironment();
+        m_stack.shutdown();
     }
 
     @Test
     public void testRun() throws InterruptedException {
         BluetoothDeviceDiscovery parent = org.easymock.EasyMock.createMock(BluetoothDeviceDiscovery.class);
-        final DeviceDiscoveryAgent agent = new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, false);
+        final DeviceDiscoveryAgent agent = new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, false,
+                new OperationDeadline("inquiry", 15000, 60000));
 
         new Thread(new Runnable() {
             public void run() {
@@ -49,31 +65,166 @@ public class DeviceDiscoveryAgentTest {
     }
 
     @Test
-    public void testInquiry() throws InterruptedException {
-        if (!LocalDevice.isPowerOn()) {
-            System.err.println("Bluetooth Adapter required");
-            return;
-        }
-        Env.enableTestEnvironment();
+    public void testInquiryTimeout() {
+        m_stack.setLostCallbackRate(1.0);
 
         BluetoothDeviceDiscovery parent = org.easymock.EasyMock.createMock(BluetoothDeviceDiscovery.class);
-        final DeviceDiscoveryAgent agent = new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, false);
-        new Thread(new Runnable() {
-            public void run() {
-                agent.doInquiry(null);
+        org.easymock.EasyMock.replay(parent);
+        OperationDeadline deadline = new OperationDeadline("inquiry", 0, 100);
+        DeviceDiscoveryAgent agent = new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, false, deadline);
+
+        // No callback, the inquiry is cancelled and the cycle skipped.
+        long begin = System.currentTimeMillis();
+        agent.doInquiry(m_stack.getRadio(0));
+        Assert.assertTrue(System.currentTimeMillis() - begin < 5000);
+        Assert.assertEquals(1, deadline.getTimeouts());
+        org.easymock.EasyMock.verify(parent);
+    }
+
+    @Test
+    public void testInquiry() {
+        m_stack.addDevice("000000000001", null);
+        m_stack.addDevice("000000000002", "test");
+        m_stack.addDevice("000000000003", "gone").setPresent(false);
+
+        BluetoothDeviceDiscovery parent = EasyMock.createMock(BluetoothDeviceDiscovery.class);
+        Capture<Set<RemoteDevice>> found = new Capture<Set<RemoteDevice>>();
+        parent.discovered(EasyMock.capture(found));
+        EasyMock.replay(parent);
+
+        DeviceDiscoveryAgent agent = new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, false,
+                new OperationDeadline("inquiry", 15000, 60000));
+        agent.doInquiry(m_stack.getRadio(0));
+
+        EasyMock.verify(parent);
+        Assert.assertEquals(addresses("000000000001", "000000000002"), addresses(found.getValue()));
+    }
+
+    @Test
+    public void testInquiryWithOnlineCheck() {
+        m_stack.addDevice("000000000001", "first");
+        m_stack.addDevice("000000000002", "second");
+
+        Assert.assertEquals(addresses("000000000001", "000000000002"), addresses(inquireWithOnlineCheck()));
+        Assert.assertEquals(2, m_stack.getServiceSearchCount());
+
+        // Found by the inquiry, but the service searches fail.
+        m_stack.setServiceSearchFailureRate(1.0);
+        Assert.assertTrue(inquireWithOnlineCheck().isEmpty());
+        Assert.assertEquals(4, m_stack.getServiceSearchCount());
+    }
+
+    @Test
+    public void testSlowOnlineChecksDeliverTheCheckedDevices() {
+        for (int i = 1; i <= 6; i++) {
+            m_stack.addDevice("00000000000" + i, "device-" + i);
+        }
+        m_stack.setServiceSearchLatency(400);
+
+        BluetoothDeviceDiscovery parent = EasyMock.createMock(BluetoothDeviceDiscovery.class);
+        Capture<Set<RemoteDevice>> found = new Capture<Set<RemoteDevice>>();
+        parent.discovered(EasyMock.capture(found));
+        EasyMock.replay(parent);
+
+        // The checks need 2400 ms, twice the inquiry timeout.
+        OperationDeadline deadline = new OperationDeadline("inquiry", 0, 1200);
+        DeviceDiscoveryAgent agent = new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, true, deadline);
+        long begin = System.currentTimeMillis();
+        agent.doInquiry(m_stack.getRadio(0));
+
+        // The devices checked in time are delivered, each check running to its end.
+        EasyMock.verify(parent);
+        Assert.assertTrue(System.currentTimeMillis() - begin < 2400);
+        int checked = m_stack.getServiceSearchCount();
+        Assert.assertTrue("checked " + checked, checked > 0 && checked < 6);
+        Assert.assertEquals(checked, found.getValue().size());
+        Assert.assertEquals(0, deadline.getTimeouts());
+    }
+
+    @Test
+    public void testStreamingInquiry() {
+        m_stack.addDevice("000000000001", "first");
+        m_stack.addDevice("000000000002", "second");
+        m_stack.setInquiryDuration(1000);
+
+        final long begin = System.currentTimeMillis();
+        final List<Long> streamed = new ArrayList<Long>();
+        BluetoothDeviceDiscovery parent = EasyMock.createMock(BluetoothDeviceDiscovery.class);
+        parent.deviceFound(EasyMock.<RemoteDevice>anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            public Object answer() {
+                streamed.add(System.currentTimeMillis() - begin);
+                return null;
             }
-        }).start();
-        Thread.sleep(100); // Just to be sure, we're waiting.
+        }).times(2);
+        Capture<Set<RemoteDevice>> found = new Capture<Set<RemoteDevice>>();
+        parent.discovered(EasyMock.capture(found));
+        EasyMock.replay(parent);
+
+        DeviceDiscoveryAgent agent = new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, false, true,
+                new OperationDeadline("inquiry", 15000, 60000));
+        agent.doInquiry(m_stack.getRadio(0));
+
+        // The first device is handed over before the end of the inquiry, the whole result at the end.
+        EasyMock.verify(parent);
+        Assert.assertTrue(streamed.toString(), streamed.get(0) < 1000);
+        Assert.assertEquals(addresses("000000000001", "000000000002"), addresses(found.getValue()));
+    }
+
+    private Set<RemoteDevice> inquireWithOnlineCheck() {
+        BluetoothDeviceDiscovery parent = EasyMock.createMock(BluetoothDeviceDiscovery.class);
+        Capture<Set<RemoteDevice>> found = new Capture<Set<RemoteDevice>>();
+        parent.discovered(EasyMock.capture(found));
+        EasyMock.replay(parent);
+
+        DeviceDiscoveryAgent agent = new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, true,
+                new OperationDeadline("inquiry", 15000, 60000));
+        agent.doInquiry(m_stack.getRadio(0));
 
-        DeviceDiscoveryListener listener = agent.getDeviceDiscoveryListener();
+        EasyMock.verify(parent);
+        return found.getValue();
+    }
 
-        RemoteDevice unamed = new RemoteDeviceStub("000000000001", null);
-        listener.deviceDiscovered(unamed, null);
+    @Test
+    public void testInquiryIsDeterministic() {
+        Assert.assertEquals(inquire(42), inquire(42));
+    }
 
-        RemoteDevice named = new RemoteDeviceStub("000000000002", "test");
-        listener.deviceDiscovered(named, null);
+    private static Set<String> inquire(long seed) {
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(1, seed);
+        try {
+            stack.populate(200);
+            stack.setInquiryDuration(20);
+            stack.setInquiryMissRate(0.3);
+
+            BluetoothDeviceDiscovery parent = EasyMock.createMock(BluetoothDeviceDiscovery.class);
+            Capture<Set<RemoteDevice>> found = new Capture<Set<RemoteDevice>>();
+            parent.discovered(EasyMock.capture(found));
+            EasyMock.replay(parent);
+            new DeviceDiscoveryAgent(parent, DiscoveryMode.GIAC, false, new OperationDeadline("inquiry", 15000, 60000))
+                    .doInquiry(stack.getRadio(0));
+
+            Set<String> addresses = addresses(found.getValue());
+            Assert.assertTrue(addresses.size() > 100 && addresses.size() < 180);
+            return addresses;
+        } finally {
+            stack.shutdown();
+        }
+    }
 
-        listener.inquiryCompleted(0);
+    private static Set<String> addresses(String... addresses) {
+        Set<String> set = new HashSet<String>();
+        for (String address : addresses) {
+            set.add(address);
+        }
+        return set;
     }
 
+    private static Set<String> addresses(Set<RemoteDevice> devices) {
+        Set<String> set = new HashSet<String>();
+        for (RemoteDevice device : devices) {
+            set.add(device.getBluetoothAddress());
+        }
+        return set;
+    }
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class DeviceEventDispatcherTest {
+
+    @Test
+    public void testBatchesAreDeliveredInSequence() throws InterruptedException {
+        DeviceEventDispatcher dispatcher = new DeviceEventDispatcher();
+        // Not recorded without listener.
+        dispatcher.post(new DeviceEvent(DeviceEvent.Type.ARRIVED, "000000000001", null, null));
+        Assert.assertNull(dispatcher.flush());
+
+        final BlockingQueue<DeviceEventBatch> batches = new LinkedBlockingQueue<DeviceEventBatch>();
+        dispatcher.addListener(new DeviceListener() {
+            @Override
+            public void devicesChanged(DeviceEventBatch batch) {
+                throw new IllegalStateException("broken listener");
+            }
+        });
+        dispatcher.addListener(new DeviceListener() {
+            @Override
+            public void devicesChanged(DeviceEventBatch batch) {
+                batches.add(batch);
+            }
+        });
+
+        dispatcher.post(new DeviceEvent(DeviceEvent.Type.ARRIVED, "000000000001", null, "first"));
+        dispatcher.post(new DeviceEvent(DeviceEvent.Type.ARRIVED, "000000000002", null, null));
+        dispatcher.post(new DeviceEvent(DeviceEvent.Type.NAME_CHANGED, "000000000002", null, "second"));
+        Assert.assertEquals(1, dispatcher.flush().getSequence());
+        Assert.assertNull(dispatcher.flush());
+        dispatcher.post(new DeviceEvent(DeviceEvent.Type.DEPARTED, "000000000001", null, "first"));
+        dispatcher.flush();
+        Assert.assertEquals(2, dispatcher.getSequence());
+
+        DeviceEventBatch batch = batches.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, batch.getSequence());
+        Assert.assertEquals(3, batch.getEvents().size());
+        Assert.assertEquals("000000000001", batch.getEvents().get(0).getAddress());
+        Assert.assertEquals(DeviceEvent.Type.NAME_CHANGED, batch.getEvents().get(2).getType());
+        batch = batches.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(2, batch.getSequence());
+        Assert.assertEquals(DeviceEvent.Type.DEPARTED, batch.getEvents().get(0).getType());
+    }
+
+    @Test
+    public void testShutdownDeliversPendingBatchesAndRestarts() throws InterruptedException {
+        DeviceEventDispatcher dispatcher = new DeviceEventDispatcher();
+        final BlockingQueue<DeviceEventBatch> batches = new LinkedBlockingQueue<DeviceEventBatch>();
+        dispatcher.addListener(new DeviceListener() {
+            @Override
+            public void devicesChanged(DeviceEventBatch batch) {
+                batches.add(batch);
+            }
+        });
+        Assert.assertFalse(dispatcher.isStarted());
+
+        dispatcher.post(new DeviceEvent(DeviceEvent.Type.ARRIVED, "000000000001", null, null));
+        dispatcher.flush();
+        Assert.assertTrue(dispatcher.isStarted());
+        dispatcher.shutdown();
+        Assert.assertFalse(dispatcher.isStarted());
+        Assert.assertEquals(1, batches.poll(5, TimeUnit.SECONDS).getSequence());
+
+        dispatcher.post(new DeviceEvent(DeviceEvent.Type.DEPARTED, "000000000001", null, null));
+        dispatcher.flush();
+        Assert.assertTrue(dispatcher.isStarted());
+        Assert.assertEquals(2, batches.poll(5, TimeUnit.SECONDS).getSequence());
+        dispatcher.shutdown();
+    }
+}
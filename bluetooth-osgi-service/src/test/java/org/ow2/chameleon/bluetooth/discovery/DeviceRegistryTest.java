@@ -0,0 +1,142 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.osgi.framework.ServiceRegistration;
+
+import javax.bluetooth.RemoteDevice;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+
+public class DeviceRegistryTest {
+
+    @BeforeClass
+    public static void installHost() {
+        SimulationHostStack.install();
+    }
+
+    @Test
+    public void testIndexedByAddress() {
+        DeviceRegistry registry = new DeviceRegistry();
+        RemoteDevice raw = new RemoteDeviceStub("00000000000A", null);
+        RemoteDevice named = new RemoteNamedDevice(raw, "test");
+        ServiceRegistration registration = EasyMock.createMock(ServiceRegistration.class);
+
+        Assert.assertEquals(0xAL, DeviceRegistry.address(raw));
+        Assert.assertTrue(registry.add(named, registration));
+        Assert.assertFalse(registry.add(new RemoteDeviceStub("00000000000a", "other"), registration));
+        Assert.assertEquals(1, registry.size());
+
+        Assert.assertTrue(registry.contains(raw));
+        Assert.assertTrue(registry.contains(new RemoteDeviceStub("00000000000A", "another instance")));
+        Assert.assertEquals(Collections.singletonList(named), registry.getDevices());
+        Assert.assertSame(named, registry.getDevices().get(0));
+
+        Assert.assertSame(registration, registry.remove(new RemoteDeviceStub("00000000000A", null)));
+        Assert.assertNull(registry.remove(raw));
+        Assert.assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void testUpdate() {
+        DeviceRegistry registry = new DeviceRegistry();
+        RemoteDevice device = new RemoteDeviceStub("000000000001", null);
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("device.id", "000000000001");
+        Capture<Dictionary> updated = new Capture<Dictionary>();
+        ServiceRegistration registration = EasyMock.createMock(ServiceRegistration.class);
+        registration.setProperties(EasyMock.capture(updated));
+        EasyMock.replay(registration);
+
+        registry.add(device, registration, properties);
+        Assert.assertTrue(registry.update(device, "device.name", "test"));
+        // Unchanged value or unknown device, the registration is not updated.
+        Assert.assertFalse(registry.update(device, "device.name", "test"));
+        Assert.assertFalse(registry.update(new RemoteDeviceStub("000000000002", null), "device.name", "test"));
+
+        EasyMock.verify(registration);
+        Assert.assertEquals("000000000001", updated.getValue().get("device.id"));
+        Assert.assertEquals("test", updated.getValue().get("device.name"));
+        Assert.assertNull(properties.get("device.name"));
+    }
+
+    @Test
+    public void testDiff() {
+        DeviceRegistry registry = new DeviceRegistry();
+        RemoteDevice kept = new RemoteNamedDevice(new RemoteDeviceStub("000000000001", null), "kept");
+        RemoteDevice lost = new RemoteNamedDevice(new RemoteDeviceStub("000000000002", null), "lost");
+        registry.add(kept, EasyMock.createMock(ServiceRegistration.class));
+        registry.add(lost, EasyMock.createMock(ServiceRegistration.class));
+
+        RemoteDevice found = new RemoteDeviceStub("000000000003", "found");
+        DiscoveryDiff diff = registry.diff(Arrays.<RemoteDevice>asList(
+                new RemoteDeviceStub("000000000001", null), found, new RemoteDeviceStub("000000000003", "twice")));
+
+        // The registered instances are reported for the known devices, the discovered ones for the new devices.
+        Assert.assertEquals(Collections.singletonList(found), diff.getArrived());
+        Assert.assertSame(found, diff.getArrived().get(0));
+        Assert.assertSame(lost, diff.getDeparted().get(0));
+        Assert.assertEquals(1, diff.getDeparted().size());
+        Assert.assertSame(kept, diff.getUnchanged().get(0));
+        Assert.assertEquals(1, diff.getUnchanged().size());
+
+        // The diff does not update the registry.
+        Assert.assertEquals(2, registry.size());
+        Assert.assertEquals(2, registry.diff(Collections.<RemoteDevice>emptySet()).getDeparted().size());
+    }
+
+    @Test
+    public void testMisses() {
+        DeviceRegistry registry = new DeviceRegistry();
+        RemoteDevice device = new RemoteDeviceStub("000000000001", "test");
+        registry.add(device, EasyMock.createMock(ServiceRegistration.class));
+        Assert.assertEquals(0, registry.getMisses(device));
+
+        registry.diff(Collections.<RemoteDevice>emptySet());
+        registry.diff(Collections.<RemoteDevice>emptySet());
+        Assert.assertEquals(2, registry.getMisses(device));
+
+        // Found again, the device is reported as recovered once.
+        DiscoveryDiff diff = registry.diff(Collections.singleton(device));
+        Assert.assertEquals(Collections.singletonList(device), diff.getRecovered());
+        Assert.assertEquals(0, registry.getMisses(device));
+        Assert.assertTrue(registry.diff(Collections.singleton(device)).getRecovered().isEmpty());
+    }
+
+    @Test
+    public void testClear() {
+        DeviceRegistry registry = new DeviceRegistry();
+        RemoteDevice device = new RemoteDeviceStub("000000000001", "test");
+        ServiceRegistration registration = EasyMock.createMock(ServiceRegistration.class);
+        registry.add(device, registration);
+
+        Map<RemoteDevice, ServiceRegistration> removed = registry.clear();
+
+        Assert.assertEquals(1, removed.size());
+        Assert.assertSame(registration, removed.get(device));
+        Assert.assertEquals(0, registry.size());
+        Assert.assertFalse(registry.contains(device));
+    }
+}
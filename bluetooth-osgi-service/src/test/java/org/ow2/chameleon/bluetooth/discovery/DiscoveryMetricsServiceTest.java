@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+public class DiscoveryMetricsServiceTest {
+
+    @Test
+    public void testMetricsAreExposedAsMBean() throws Exception {
+        SimulationHostStack.install();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack();
+        SimulatedDevice device = stack.addDevice("000000000001", "device");
+        device.addService(UUIDs.SERIAL_PORT, "serial");
+        BluetoothThreadManager.setStack(stack);
+        DiscoveryMetricsRecorder.getDefault().reset();
+
+        DiscoveryMetricsService metrics = new DiscoveryMetricsService();
+        metrics.start();
+        try {
+            BundleContextStub context = new BundleContextStub();
+            BluetoothServiceDiscovery bsd = new BluetoothServiceDiscovery(context);
+            bsd.bindRemoteDevice(device);
+            long end = System.currentTimeMillis() + 5000;
+            while (context.getServices().isEmpty() && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, context.getServices().size());
+            bsd.stop();
+
+            Assert.assertEquals(1, metrics.getLatencies().get(DiscoveryMetricsRecorder.SDP).getCount());
+            Assert.assertEquals(Long.valueOf(1), metrics.getCounters().get(DiscoveryMetricsRecorder.SERVICES_REGISTERED));
+            Assert.assertTrue(metrics.getQueueDepths().containsKey(RadioLane.SDP.name()));
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DiscoveryMetricsService.OBJECT_NAME);
+            TabularData latencies = (TabularData) server.getAttribute(name, "Latencies");
+            CompositeData sdp = (CompositeData) latencies.get(new Object[]{DiscoveryMetricsRecorder.SDP}).get("value");
+            Assert.assertEquals(1L, sdp.get("count"));
+            Assert.assertEquals(0L, sdp.get("failures"));
+            Assert.assertNotNull(latencies.get(new Object[]{DiscoveryMetricsRecorder.WAIT + RadioLane.SDP.name()}));
+            TabularData counters = (TabularData) server.getAttribute(name, "Counters");
+            Assert.assertEquals(1L,
+                    counters.get(new Object[]{DiscoveryMetricsRecorder.SERVICES_UNREGISTERED}).get("value"));
+
+            server.invoke(name, "reset", null, null);
+            Assert.assertTrue(metrics.getLatencies().isEmpty());
+        } finally {
+            metrics.stop();
+            BluetoothThreadManager.setStack(null);
+            stack.shutdown();
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new ObjectName(DiscoveryMetricsService.OBJECT_NAME)));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.ow2.chameleon.bluetooth.devices.Device;
+import org.ow2.chameleon.bluetooth.devices.DeviceList;
+
+import javax.bluetooth.UUID;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.List;
+
+public class FleetMatcherTest {
+
+    private static DeviceList fleet(String... ids) {
+        DeviceList fleet = new DeviceList();
+        for (String id : ids) {
+            Device device = new Device();
+            device.setId(id);
+            device.setPin(id + "-pin");
+            fleet.getDevices().add(device);
+        }
+        return fleet;
+    }
+
+    private static String pins(List<Device> devices) {
+        StringBuilder pins = new StringBuilder();
+        for (Device device : devices) {
+            pins.append(pins.length() == 0 ? "" : ",").append(device.getPin());
+        }
+        return pins.toString();
+    }
+
+    @Test
+    public void testLiteralIds() {
+        Assert.assertTrue(FleetMatcher.isLiteral("1000E8C18C85"));
+        Assert.assertTrue(FleetMatcher.isLiteral("TDU_0001 - printer"));
+        Assert.assertFalse(FleetMatcher.isLiteral("TDU_.*"));
+        Assert.assertFalse(FleetMatcher.isLiteral("10[0-9]+"));
+        Assert.assertFalse(FleetMatcher.isLiteral("a|b"));
+    }
+
+    @Test
+    public void testMatchesInFleetOrder() {
+        FleetMatcher matcher = new FleetMatcher(fleet("TDU_.*", "000000000001", "00000000000.", "TDU_1", "other"));
+
+        // Address and name, literal and regex entries are merged in the fleet order.
+        Assert.assertEquals("TDU_.*-pin,000000000001-pin,00000000000.-pin,TDU_1-pin",
+                pins(matcher.getMatchingDevices("000000000001", "TDU_1")));
+        Assert.assertEquals("TDU_.*-pin", matcher.getMatchingDevice("000000000001", "TDU_1").getPin());
+        Assert.assertEquals("000000000001-pin,00000000000.-pin",
+                pins(matcher.getMatchingDevices("000000000001", null)));
+        Assert.assertEquals("other-pin", matcher.getMatchingDevice("000000000100", "other").getPin());
+
+        // The regex must match the whole address or name.
+        Assert.assertNull(matcher.getMatchingDevice("000000000100", "a TDU_1"));
+        Assert.assertEquals(Collections.<Device>emptyList(), matcher.getMatchingDevices("0000000000AB", "unknown"));
+    }
+
+    @Test
+    public void testCachedResultsFollowTheName() {
+        FleetMatcher matcher = new FleetMatcher(fleet("TDU_.*", "printer"));
+
+        Assert.assertNull(matcher.getMatchingDevice("000000000001", null));
+        Assert.assertEquals("TDU_.*-pin", matcher.getMatchingDevice("000000000001", "TDU_1").getPin());
+        Assert.assertEquals("printer-pin", matcher.getMatchingDevice("000000000001", "printer").getPin());
+        Assert.assertSame(matcher.getMatchingDevices("000000000001", "printer"),
+                matcher.getMatchingDevices("000000000001", "printer"));
+
+        // The cache is bounded: the evicted results are computed again.
+        for (int i = 0; i < FleetMatcher.CACHE_SIZE + 10; i++) {
+            matcher.getMatchingDevice(String.format("%012X", 0x100 + i), "TDU_" + i);
+        }
+        Assert.assertEquals("printer-pin", matcher.getMatchingDevice("000000000001", "printer").getPin());
+    }
+
+    @Test
+    public void testInvalidIdsAreIgnored() {
+        FleetMatcher matcher = new FleetMatcher(fleet("TDU_[", "TDU_.*"));
+        Assert.assertEquals("TDU_.*-pin", pins(matcher.getMatchingDevices("000000000001", "TDU_[")));
+    }
+
+    @Test
+    public void testFleetFile() throws Exception {
+        FileInputStream fis = new FileInputStream(new File("src/test/resources/devices-with-filter.xml"));
+        FleetMatcher matcher = new FleetMatcher(ConfigurationUtils.unmarshal(DeviceList.class, fis));
+        fis.close();
+
+        Assert.assertEquals("TDU_.*", matcher.getMatchingDevice("000000000002", "TDU_00000002").getId());
+        Assert.assertEquals("1000E8C18C85", matcher.getMatchingDevice("1000E8C18C85", null).getId());
+        Assert.assertNull(matcher.getMatchingDevice("000000000003", "other"));
+    }
+
+    @Test
+    public void testServiceClasses() {
+        DeviceList fleet = fleet("TDU_.*", "000000000001");
+        fleet.getDevices().get(0).getServiceClass().add("SERIAL_PORT");
+        fleet.getDevices().get(0).getServiceClass().add("0x1105");
+        fleet.getDevices().get(0).getServiceClass().add("not-a-uuid");
+        FleetMatcher matcher = new FleetMatcher(fleet);
+
+        Device entry = matcher.getMatchingDevice("000000000002", "TDU_00000002");
+        Assert.assertArrayEquals(new UUID[]{UUIDs.SERIAL_PORT, UUIDs.OBEX_OBJECT_PUSH_PROFILE},
+                matcher.getServiceClasses(entry));
+        Assert.assertEquals(0, matcher.getServiceClasses(matcher.getMatchingDevice("000000000001", null)).length);
+        Assert.assertEquals(UUIDs.SERIAL_PORT, UUIDs.parse("00001101-0000-1000-8000-00805F9B34FB"));
+    }
+}
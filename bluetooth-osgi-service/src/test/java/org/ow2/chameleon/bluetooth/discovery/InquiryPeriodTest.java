@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.bluetooth.RemoteDevice;
+import java.util.ArrayList;
+import java.util.List;
+
+public class InquiryPeriodTest {
+
+    @BeforeClass
+    public static void installHost() {
+        SimulationHostStack.install();
+    }
+
+    private static List<RemoteDevice> devices(int from, int to) {
+        List<RemoteDevice> devices = new ArrayList<RemoteDevice>();
+        for (int i = from; i < to; i++) {
+            devices.add(new RemoteDeviceStub(String.format("%012X", i), null));
+        }
+        return devices;
+    }
+
+    @Test
+    public void testBackOffWhenStable() {
+        InquiryPeriod period = new InquiryPeriod(10000, 5000, 60000);
+        Assert.assertEquals(10000, period.next());
+        Assert.assertEquals("initial period", period.getReason());
+
+        // The first inquiry only sets the reference.
+        period.record(devices(0, 10));
+        Assert.assertEquals(10000, period.next());
+
+        period.record(devices(0, 10));
+        Assert.assertEquals(20000, period.next());
+        Assert.assertEquals("stable", period.getReason());
+        period.record(devices(0, 10));
+        period.record(devices(0, 10));
+        Assert.assertEquals(60000, period.next());
+        period.record(devices(0, 10));
+        Assert.assertEquals(60000, period.next());
+    }
+
+    @Test
+    public void testShortenDuringChurn() {
+        InquiryPeriod period = new InquiryPeriod(40000, 5000, 60000);
+        period.record(devices(0, 10));
+
+        // 2 arrivals, the missing device has not departed yet.
+        period.record(devices(1, 12));
+        Assert.assertEquals(20000, period.next());
+        Assert.assertEquals("churn: 2 arrivals, 0 departures", period.getReason());
+        period.record(devices(2, 13));
+        Assert.assertEquals("churn: 1 arrivals, 1 departures", period.getReason());
+        period.record(devices(3, 14));
+        Assert.assertEquals(5000, period.next());
+
+        // The last departure is confirmed, then the smoothed churn must settle before backing off.
+        period.record(devices(3, 14));
+        Assert.assertEquals(1.375, period.getChurn(), 0.001);
+        period.record(devices(3, 14));
+        Assert.assertEquals(5000, period.next());
+        Assert.assertEquals(0.6875, period.getChurn(), 0.001);
+        period.record(devices(3, 14));
+        Assert.assertEquals(10000, period.next());
+        Assert.assertEquals("stable", period.getReason());
+    }
+
+    @Test
+    public void testFlickeringDeviceIsNotChurn() {
+        InquiryPeriod period = new InquiryPeriod(40000, 5000, 60000);
+        period.record(devices(0, 11));
+
+        // The last device is missed by every other inquiry.
+        for (int i = 0; i < 10; i++) {
+            period.record(devices(0, 10));
+            period.record(devices(0, 11));
+        }
+        Assert.assertEquals(60000, period.next());
+        Assert.assertEquals("stable", period.getReason());
+        Assert.assertEquals(0.0, period.getChurn(), 0.001);
+
+        // Missed twice in a row, it departs.
+        period.record(devices(0, 10));
+        period.record(devices(0, 10));
+        Assert.assertEquals(30000, period.next());
+        Assert.assertEquals("churn: 0 arrivals, 1 departures", period.getReason());
+    }
+
+    @Test
+    public void testFixedPeriod() {
+        InquiryPeriod period = new InquiryPeriod(10000, 10000, 10000);
+        period.record(devices(0, 10));
+        period.record(devices(5, 20));
+        Assert.assertEquals(10000, period.next());
+        period.record(devices(5, 20));
+        period.record(devices(5, 20));
+        Assert.assertEquals(10000, period.next());
+        Assert.assertEquals("initial period", period.getReason());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new InquiryPeriod(10000, 20000, 10000);
+    }
+}
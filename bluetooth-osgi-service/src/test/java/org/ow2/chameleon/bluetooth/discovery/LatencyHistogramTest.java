@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        int previous = -1;
+        for (long duration = 0; duration < 1000000; duration++) {
+            int index = LatencyHistogram.index(duration);
+            Assert.assertTrue(index == previous || index == previous + 1);
+            Assert.assertTrue(duration <= LatencyHistogram.upperBound(index));
+            // Within 12.5%.
+            Assert.assertTrue(LatencyHistogram.upperBound(index) <= duration + duration / 8);
+            previous = index;
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram("sdp");
+        Assert.assertEquals(0, histogram.snapshot().getP99());
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, i % 100 != 0);
+        }
+        LatencySnapshot snapshot = histogram.snapshot();
+        Assert.assertEquals("sdp", snapshot.getName());
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(10, snapshot.getFailures());
+        Assert.assertEquals(500, snapshot.getMean());
+        Assert.assertEquals(1000, snapshot.getMax());
+        Assert.assertEquals(500, snapshot.getP50(), 500 / 8);
+        Assert.assertEquals(900, snapshot.getP90(), 900 / 8);
+        Assert.assertEquals(990, snapshot.getP99(), 990 / 8);
+        Assert.assertTrue(snapshot.getP99() <= snapshot.getMax());
+    }
+}
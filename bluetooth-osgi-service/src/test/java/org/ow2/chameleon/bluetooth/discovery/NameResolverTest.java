@@ -0,0 +1,241 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.bluetooth.RemoteDevice;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class NameResolverTest {
+
+    private SimulatedBluetoothStack m_stack;
+
+    @BeforeClass
+    public static void installHost() {
+        SimulationHostStack.install();
+    }
+
+    @Before
+    public void setUp() {
+        m_stack = new SimulatedBluetoothStack();
+        BluetoothThreadManager.setStack(m_stack);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothThreadManager.setStack(null);
+        m_stack.shutdown();
+    }
+
+    @Test
+    public void testConcurrentLookupsShareTheRequest() throws Exception {
+        final SimulatedDevice device = m_stack.addDevice("000000000001", "first");
+        m_stack.setNameLatency(200);
+        final NameResolver resolver = new NameResolver(2, 60000, 100);
+
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(3);
+        NameResolver.Callback callback = new NameResolver.Callback() {
+            @Override
+            public void nameResolved(RemoteDevice remote, String name) {
+                names.add(name);
+                done.countDown();
+            }
+        };
+        // The lookups do not wait for the name.
+        long begin = System.currentTimeMillis();
+        resolver.resolve(device, callback);
+        resolver.resolve(device, callback);
+        Assert.assertTrue(System.currentTimeMillis() - begin < 200);
+        Assert.assertNull(resolver.getCachedName(device));
+
+        Assert.assertEquals("first", resolver.getName(device));
+        Assert.assertEquals(1, resolver.getRequests());
+        Assert.assertEquals(2, resolver.getSharedRequests());
+
+        // Cached, the callback is called immediately.
+        resolver.resolve(device, callback);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.nCopies(3, "first"), names);
+        Assert.assertEquals("first", resolver.getCachedName(device));
+        Assert.assertEquals(1, resolver.getRequests());
+    }
+
+    @Test
+    public void testExpiredNamesAreRequestedAgain() throws Exception {
+        SimulatedDevice device = m_stack.addDevice("000000000001", "first");
+        NameResolver resolver = new NameResolver(1, 60000, 100);
+        File file = File.createTempFile("names", ".properties");
+        NameStore store = new NameStore(file);
+        store.put("000000000001", "stored");
+        resolver.setStore(store);
+
+        // The stored names are valid for the time-to-live.
+        Assert.assertEquals("stored", resolver.getName(device));
+        Assert.assertEquals(0, resolver.getRequests());
+
+        resolver.setTimeToLive(0);
+        resolver.setStore(store);
+        Assert.assertEquals("first", resolver.getName(device));
+        Assert.assertEquals("first", store.get("000000000001"));
+        Assert.assertEquals(1, resolver.getRequests());
+
+        // The device does not answer, the previous name is kept.
+        device.setPresent(false);
+        Assert.assertEquals("first", resolver.getName(device));
+        Assert.assertEquals(2, resolver.getRequests());
+        delete(store);
+    }
+
+    @Test
+    public void testUnknownName() throws Exception {
+        NameResolver resolver = new NameResolver(1, 60000, 100);
+        RemoteDevice device = new RemoteDeviceStub("000000000002", null);
+        Assert.assertNull(resolver.getName(device));
+        Assert.assertEquals(0, resolver.getCacheSize());
+    }
+
+    @Test
+    public void testEvictedNamesAreReadFromTheStore() throws Exception {
+        NameResolver resolver = new NameResolver(1, 60000, 2);
+        File file = File.createTempFile("names", ".properties");
+        NameStore store = new NameStore(file);
+        resolver.setStore(store);
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("device-" + i, resolver.getName(new RemoteDeviceStub("00000000000" + i, "device-" + i)));
+        }
+        Assert.assertEquals(2, resolver.getCacheSize());
+        Assert.assertEquals(5, resolver.getRequests());
+
+        // Not requested again.
+        Assert.assertEquals("device-0", resolver.getName(new RemoteDeviceStub("000000000000", "renamed")));
+        Assert.assertEquals(5, resolver.getRequests());
+        Assert.assertEquals(2, resolver.getCacheSize());
+        delete(store);
+    }
+
+    @Test
+    public void testNameRequestsAreRadioOperations() throws Exception {
+        List<SimulatedDevice> devices = new ArrayList<SimulatedDevice>();
+        for (int i = 0; i < 6; i++) {
+            devices.add(m_stack.addDevice("00000000000" + i, "device-" + i));
+        }
+        m_stack.setNameLatency(50);
+        NameResolver resolver = new NameResolver(4, 60000, 100);
+
+        final CountDownLatch done = new CountDownLatch(devices.size());
+        for (SimulatedDevice device : devices) {
+            resolver.resolve(device, new NameResolver.Callback() {
+                @Override
+                public void nameResolved(RemoteDevice remote, String name) {
+                    // Called out of the radio threads.
+                    Assert.assertEquals(-1, RadioScheduler.currentAdapter());
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(devices.size(), m_stack.getNameRequestCount());
+        // Queued in the lanes, the requests never overlap on the adapter.
+        Assert.assertEquals(1, m_stack.getMaxConcurrentOperations());
+        Assert.assertEquals(devices.size(), BluetoothThreadManager.getLaneStatistics().get(RadioLane.NAME).getSubmitted());
+    }
+
+    @Test
+    public void testNameIsRequestedDirectlyFromARadioThread() throws Exception {
+        final SimulatedDevice device = m_stack.addDevice("000000000001", "first");
+        final NameResolver resolver = new NameResolver(1, 60000, 100);
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        // A queued request would wait for the end of the pairing.
+        BluetoothThreadManager.submit(RadioLane.PAIRING, device.getBluetoothAddress(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    names.add(resolver.getName(device));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.singletonList("first"), names);
+        Assert.assertEquals(1, resolver.getRequests());
+    }
+
+    @Test
+    public void testDroppedRequestCallsItsCallbacks() throws Exception {
+        final SimulatedDevice device = m_stack.addDevice("000000000001", "first");
+        NameResolver resolver = new NameResolver(1, 60000, 100);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch busy = new CountDownLatch(1);
+        // Keeps the single adapter busy, the request waits in its lane.
+        BluetoothThreadManager.submit(RadioLane.PAIRING, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Interrupted by the shutdown.
+                }
+                busy.countDown();
+            }
+        });
+        Assert.assertTrue(started.await(2, TimeUnit.SECONDS));
+
+        final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(1);
+        resolver.resolve(device, new NameResolver.Callback() {
+            @Override
+            public void nameResolved(RemoteDevice remote, String name) {
+                names.add(name);
+                done.countDown();
+            }
+        });
+        Assert.assertEquals(1, done.getCount());
+
+        // The scheduler is replaced, the waiting request is dropped.
+        BluetoothThreadManager.setStack(m_stack);
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(Collections.<String>singletonList(null), names);
+        Assert.assertTrue(busy.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(0, resolver.getRequests());
+
+        // Not shared with the dropped request, the name is requested by the new scheduler.
+        Assert.assertEquals("first", resolver.getName(device));
+        Assert.assertEquals(1, resolver.getRequests());
+        Assert.assertEquals(0, resolver.getSharedRequests());
+    }
+
+    private static void delete(NameStore store) {
+        store.close();
+        NameStoreTest.delete(store.getFile());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+public class NameStoreTest {
+
+    private File m_file;
+
+    @Before
+    public void setUp() throws IOException {
+        m_file = File.createTempFile("names", ".properties");
+        m_file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        delete(m_file);
+    }
+
+    /**
+     * Deletes a device name file, its journal and its indexes.
+     */
+    static void delete(File file) {
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File candidate : files) {
+                if (candidate.getName().startsWith(file.getName())) {
+                    candidate.delete();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testJournalIsReplayed() throws Exception {
+        NameStore store = new NameStore(m_file);
+        store.open();
+        Assert.assertEquals(0, store.size());
+
+        store.put("000000000001", "first");
+        store.put("000000000002", "multi\nline \\ name");
+        store.put("000000000001", "renamed");
+        Assert.assertEquals("renamed", store.get("000000000001"));
+
+        // Written behind, in a single batch.
+        long end = System.currentTimeMillis() + 5000;
+        while (store.getJournalSize() != 3 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(3, store.getJournalSize());
+        Assert.assertNull(store.getIndexFile());
+
+        // A crash tears the last line.
+        FileOutputStream out = new FileOutputStream(m_file.getPath() + ".journal", true);
+        out.write("000000000003=tor".getBytes("UTF-8"));
+        out.close();
+
+        NameStore loaded = new NameStore(m_file);
+        loaded.open();
+        Assert.assertEquals(2, loaded.size());
+        Assert.assertEquals("renamed", loaded.get("000000000001"));
+        Assert.assertEquals("multi\nline \\ name", loaded.get("000000000002"));
+        Assert.assertNull(loaded.get("000000000003"));
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        NameStore store = new NameStore(m_file);
+        store.open();
+        // Not in address order.
+        for (int i = 0; i < 3000; i++) {
+            int device = (i * 7919) % 3000;
+            store.put(address(device * 2), "device-" + device);
+        }
+        store.close();
+        Assert.assertEquals(0, new File(m_file.getPath() + ".journal").length());
+
+        store = new NameStore(m_file);
+        store.open();
+        Assert.assertEquals(3000, store.size());
+        for (int i = 0; i < 3000; i++) {
+            Assert.assertEquals("device-" + i, store.get(address(i * 2)));
+            Assert.assertNull(store.get(address(i * 2 + 1)));
+        }
+        Assert.assertNull(store.get("FFFFFFFFFFFF"));
+        Assert.assertNull(store.get("not an address"));
+
+        // Merged with the index.
+        store.put(address(0), "renamed");
+        store.put(address(1), "new");
+        Assert.assertEquals("renamed", store.get(address(0)));
+        store.compact();
+        Assert.assertEquals(3001, store.size());
+        Assert.assertEquals("renamed", store.get(address(0)));
+        Assert.assertEquals("new", store.get(address(1)));
+        Assert.assertEquals("device-2999", store.get(address(5998)));
+        store.close();
+    }
+
+    @Test
+    public void testNameFileIsImported() throws Exception {
+        // A name file written by the previous versions, or on deployment.
+        Properties legacy = new Properties();
+        legacy.setProperty("000000000001", "first");
+        legacy.setProperty("invalid", "ignored");
+        FileOutputStream out = new FileOutputStream(m_file);
+        legacy.store(out, null);
+        out.close();
+
+        NameStore store = new NameStore(m_file);
+        store.open();
+        Assert.assertTrue(store.getIndexFile().exists());
+        Assert.assertEquals("first", store.get("000000000001"));
+        store.put("000000000002", "second");
+        store.close();
+
+        // Imported again once updated.
+        legacy.setProperty("000000000001", "updated");
+        out = new FileOutputStream(m_file);
+        legacy.store(out, null);
+        out.close();
+        m_file.setLastModified(System.currentTimeMillis() + 2000);
+
+        store = new NameStore(m_file);
+        store.open();
+        Assert.assertEquals("updated", store.get("000000000001"));
+        Assert.assertEquals("second", store.get("000000000002"));
+        Assert.assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testCompactionWritesTheNextGeneration() throws Exception {
+        NameStore store = new NameStore(m_file);
+        store.open();
+        store.put(address(1), "first");
+        store.compact();
+        File first = store.getIndexFile();
+        Assert.assertTrue(first.exists());
+
+        store.put(address(2), "second");
+        store.compact();
+        File second = store.getIndexFile();
+        // The mapped index is not replaced, the previous generation is deleted.
+        Assert.assertFalse(first.equals(second));
+        Assert.assertFalse(first.exists());
+        Assert.assertEquals("first", store.get(address(1)));
+        Assert.assertEquals("second", store.get(address(2)));
+        store.close();
+
+        // A torn generation is skipped.
+        FileOutputStream out = new FileOutputStream(m_file.getPath() + ".index.99");
+        out.write(1);
+        out.close();
+        store = new NameStore(m_file);
+        store.open();
+        Assert.assertEquals(second, store.getIndexFile());
+        Assert.assertEquals("second", store.get(address(2)));
+        store.put(address(3), "third");
+        store.compact();
+        Assert.assertEquals(new File(m_file.getPath() + ".index.100"), store.getIndexFile());
+        Assert.assertFalse(second.exists());
+        Assert.assertEquals(3, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testNamesAreIgnoredOnceClosed() throws Exception {
+        NameStore store = new NameStore(m_file);
+        store.open();
+        store.close();
+        store.put(address(1), "late");
+        Assert.assertNull(store.get(address(1)));
+        Thread.sleep(NameStore.FLUSH_DELAY + 200);
+        // Not written behind, the writer is not started again.
+        Assert.assertEquals(0, store.getJournalSize());
+        Assert.assertEquals(0, new File(m_file.getPath() + ".journal").length());
+
+        // Opened again, the names are recorded.
+        store.open();
+        store.put(address(1), "again");
+        Assert.assertEquals("again", store.get(address(1)));
+        store.close();
+    }
+
+    @Test
+    public void testEscaping() {
+        String name = "a\\b\r\nc=d";
+        Assert.assertFalse(NameStore.escape(name).contains("\n"));
+        Assert.assertEquals(name, NameStore.unescape(NameStore.escape(name)));
+    }
+
+    private static String address(int i) {
+        return String.format("%012X", i);
+    }
+}
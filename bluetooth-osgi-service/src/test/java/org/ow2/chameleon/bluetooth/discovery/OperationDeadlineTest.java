@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OperationDeadlineTest {
+
+    @Test
+    public void testMaximumUntilEnoughSamples() {
+        OperationDeadline deadline = new OperationDeadline("sdp", 100, 30000);
+        for (int i = 0; i < OperationDeadline.MIN_SAMPLES - 1; i++) {
+            deadline.record(200);
+        }
+        Assert.assertEquals(30000, deadline.getDeadline());
+        deadline.record(200);
+        Assert.assertEquals(400, deadline.getDeadline());
+    }
+
+    @Test
+    public void testAdaptsToP99() {
+        OperationDeadline deadline = new OperationDeadline("sdp", 100, 30000);
+        for (int i = 0; i < 99; i++) {
+            deadline.record(1000);
+        }
+        deadline.record(5000);
+        Assert.assertEquals(1000, deadline.getP99());
+        Assert.assertEquals(2000, deadline.getDeadline());
+    }
+
+    @Test
+    public void testBounds() {
+        OperationDeadline deadline = new OperationDeadline("inquiry", 15000, 60000);
+        for (int i = 0; i < OperationDeadline.MIN_SAMPLES; i++) {
+            deadline.record(10);
+        }
+        Assert.assertEquals(15000, deadline.getDeadline());
+
+        deadline.setMaximum(20000);
+        for (int i = 0; i < OperationDeadline.WINDOW; i++) {
+            deadline.record(50000);
+        }
+        Assert.assertEquals(20000, deadline.getDeadline());
+    }
+
+    @Test
+    public void testTimeoutsWidenTheDeadline() {
+        OperationDeadline deadline = new OperationDeadline("sdp", 100, 30000);
+        for (int i = 0; i < OperationDeadline.WINDOW; i++) {
+            deadline.record(200);
+        }
+        Assert.assertEquals(400, deadline.getDeadline());
+        deadline.timedOut();
+        deadline.timedOut();
+        Assert.assertEquals(2, deadline.getTimeouts());
+        Assert.assertEquals(30000, deadline.getDeadline());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ow2.chameleon.bluetooth.devices.Device;
+
+import javax.bluetooth.RemoteDevice;
+
+public class PresenceProbesTest {
+
+    @BeforeClass
+    public static void installHost() {
+        SimulationHostStack.install();
+    }
+
+    @Test
+    public void testProbeIsSelectedByFleetEntry() {
+        PresenceProbes probes = new PresenceProbes();
+        Device entry = new Device();
+        entry.setId("TDU_.*");
+        Assert.assertEquals(PresenceProbes.SDP, probes.select(entry).getName());
+        Assert.assertEquals(PresenceProbes.SDP, probes.select(null).getName());
+
+        entry.setPresenceProbe("name");
+        Assert.assertEquals(PresenceProbes.NAME, probes.select(entry).getName());
+
+        // Unknown probes fall back to the default one.
+        entry.setPresenceProbe("unknown");
+        probes.setDefault("handle");
+        Assert.assertEquals(PresenceProbes.HANDLE, probes.select(entry).getName());
+        probes.setDefault("unknown");
+        Assert.assertEquals(PresenceProbes.SDP, probes.select(entry).getName());
+    }
+
+    @Test
+    public void testCustomProbeReplacesBuiltIn() throws InterruptedException {
+        PresenceProbes probes = new PresenceProbes();
+        PresenceProbe custom = new PresenceProbe() {
+            public String getName() {
+                return PresenceProbes.NAME;
+            }
+
+            public boolean isRadioRequired() {
+                return false;
+            }
+
+            public boolean isPresent(BluetoothRadio radio, RemoteDevice device, Device entry, long timeout) {
+                return true;
+            }
+        };
+        PresenceProbe builtIn = probes.get(PresenceProbes.NAME);
+        probes.add(custom);
+        Assert.assertSame(custom, probes.get(PresenceProbes.NAME));
+
+        Assert.assertTrue(probes.probe(custom, null, new RemoteDeviceStub("000000000001", null), null, 1000));
+        Assert.assertEquals(1, probes.getStatistics().get(PresenceProbes.NAME).getPresent());
+
+        probes.remove(custom);
+        Assert.assertSame(builtIn, probes.get(PresenceProbes.NAME));
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RadioSchedulerTest {
+
+    private RadioScheduler m_scheduler;
+
+    @After
+    public void tearDown() {
+        if (m_scheduler != null) {
+            m_scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testDueInquiryRunsFirst() throws InterruptedException {
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 60000);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = block(m_scheduler);
+
+        for (int i = 0; i < 5; i++) {
+            m_scheduler.submit(RadioLane.SDP, new Recorder(order, "sdp"));
+            m_scheduler.submit(RadioLane.PRESENCE, new Recorder(order, "presence"));
+        }
+        m_scheduler.submit(RadioLane.PAIRING, new Recorder(order, "pairing"));
+        m_scheduler.submit(RadioLane.INQUIRY, new Recorder(order, "inquiry"));
+        gate.countDown();
+
+        waitFor(order, 12);
+        Assert.assertEquals("inquiry", order.get(0));
+        Assert.assertEquals("pairing", order.get(1));
+        Assert.assertEquals("presence", order.get(2));
+        Assert.assertEquals("sdp", order.get(11));
+    }
+
+    @Test
+    public void testAgingPreventsStarvation() throws InterruptedException {
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 10);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = block(m_scheduler);
+
+        m_scheduler.submit(RadioLane.SDP, new Recorder(order, "sdp"));
+        Thread.sleep(100);
+        m_scheduler.submit(RadioLane.PAIRING, new Recorder(order, "pairing"));
+        gate.countDown();
+
+        waitFor(order, 2);
+        Assert.assertEquals("sdp", order.get(0));
+    }
+
+    @Test
+    public void testOneOperationAtATime() throws InterruptedException {
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 5000);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            RadioLane lane = RadioLane.values()[i % RadioLane.values().length];
+            m_scheduler.submit(lane, new Runnable() {
+                @Override
+                public void run() {
+                    int current = running.incrementAndGet();
+                    if (current > max.get()) {
+                        max.set(current);
+                    }
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        // Ignore.
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, max.get());
+    }
+
+    @Test
+    public void testPeriodicJobAndStatistics() throws InterruptedException {
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 5000);
+        final CountDownLatch executions = new CountDownLatch(3);
+        m_scheduler.schedule(RadioLane.INQUIRY, new Runnable() {
+            @Override
+            public void run() {
+                executions.countDown();
+            }
+        }, 10, TimeUnit.MILLISECONDS);
+
+        Assert.assertTrue(executions.await(5, TimeUnit.SECONDS));
+        LaneStatistics statistics = m_scheduler.getStatistics().get(RadioLane.INQUIRY);
+        Assert.assertTrue(statistics.getExecuted() >= 3);
+        Assert.assertEquals(0, m_scheduler.getStatistics().get(RadioLane.SDP).getExecuted());
+    }
+
+    @Test
+    public void testPeriodicJobWithVariableDelay() throws InterruptedException {
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 5000);
+        final AtomicInteger executions = new AtomicInteger();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        m_scheduler.schedule(RadioLane.INQUIRY, new Runnable() {
+            @Override
+            public void run() {
+                executions.incrementAndGet();
+            }
+        }, new RadioScheduler.Delay() {
+            @Override
+            public long next() {
+                // The delay is asked after each execution, 0 stops the job after the third one.
+                if (executions.get() < 3) {
+                    return 10;
+                }
+                stopped.countDown();
+                return 0;
+            }
+        });
+
+        Assert.assertTrue(stopped.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        Assert.assertEquals(3, executions.get());
+    }
+
+    @Test
+    public void testPeriodicJobIsRescheduled() throws InterruptedException {
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 5000);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        Runnable first = new Recorder(order, "first");
+        m_scheduler.schedule(RadioLane.INQUIRY, first, 1, TimeUnit.HOURS);
+        waitFor(order, 1);
+        Assert.assertFalse(m_scheduler.reschedule(new Recorder(order, "unknown"), first, null));
+
+        // Waiting for an hour, the replacement runs after the new delay.
+        Runnable second = new Recorder(order, "second");
+        Assert.assertTrue(m_scheduler.reschedule(first, second, new RadioScheduler.Delay() {
+            @Override
+            public long next() {
+                return 10;
+            }
+        }));
+        long end = System.currentTimeMillis() + 5000;
+        while (order.size() < 3 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        // Cancelled first, the list is not appended while it is compared.
+        Assert.assertTrue(m_scheduler.cancel(second));
+        List<String> executed;
+        synchronized (order) {
+            executed = new ArrayList<String>(order);
+        }
+        Assert.assertEquals(Arrays.asList("first", "second", "second"), executed.subList(0, 3));
+
+        Assert.assertFalse(m_scheduler.cancel(second));
+        Thread.sleep(100);
+        int executions = order.size();
+        Thread.sleep(100);
+        Assert.assertEquals(executions, order.size());
+    }
+
+    @Test
+    public void testWaitTimeIsReported() throws InterruptedException {
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 5000);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = block(m_scheduler);
+        m_scheduler.submit(RadioLane.SDP, new Recorder(order, "sdp"));
+        Thread.sleep(50);
+        gate.countDown();
+        waitFor(order, 1);
+
+        LaneStatistics statistics = m_scheduler.getStatistics().get(RadioLane.SDP);
+        Assert.assertEquals(1, statistics.getExecuted());
+        Assert.assertTrue(statistics.getMaxWait() >= 50);
+    }
+
+    @Test
+    public void testSubmissionsAreCoalescedByKey() throws InterruptedException {
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 5000);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch gate = block(m_scheduler);
+
+        // 50 discovery cycles on 10 devices.
+        for (int cycle = 0; cycle < 50; cycle++) {
+            for (int device = 0; device < 10; device++) {
+                boolean queued = m_scheduler.submit(RadioLane.PRESENCE, "00000000000" + device,
+                        new Recorder(order, device + "-" + cycle));
+                Assert.assertEquals(cycle == 0, queued);
+            }
+        }
+        // Same key, different lane.
+        Assert.assertTrue(m_scheduler.submit(RadioLane.SDP, "000000000000", new Recorder(order, "sdp")));
+        Assert.assertEquals(11, m_scheduler.getQueueSize());
+        Assert.assertEquals(490, m_scheduler.getStatistics().get(RadioLane.PRESENCE).getCoalesced());
+
+        gate.countDown();
+        waitFor(order, 11);
+        // The waiting task executes the latest job.
+        Assert.assertEquals("0-49", order.get(0));
+        Assert.assertEquals("9-49", order.get(9));
+
+        // Once executed, a new submission is queued again.
+        Assert.assertTrue(m_scheduler.submit(RadioLane.PRESENCE, "000000000000", new Recorder(order, "again")));
+        waitFor(order, 12);
+    }
+
+    @Test
+    public void testWorkIsShardedOverAdapters() throws InterruptedException {
+        final List<Integer> bound = Collections.synchronizedList(new ArrayList<Integer>());
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 5000, 3, new RadioScheduler.AdapterBinder() {
+            @Override
+            public void bind(int adapter) {
+                bound.add(adapter);
+            }
+        });
+
+        final Map<String, Integer> adapters = new ConcurrentHashMap<String, Integer>();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(41);
+        m_scheduler.submit(RadioLane.INQUIRY, new Runnable() {
+            @Override
+            public void run() {
+                adapters.put("inquiry", RadioScheduler.currentAdapter());
+                done.countDown();
+            }
+        });
+        for (int i = 0; i < 40; i++) {
+            final String address = "0000000000" + (10 + i);
+            RadioLane lane = i % 2 == 0 ? RadioLane.SDP : RadioLane.PRESENCE;
+            m_scheduler.submit(lane, address, new Runnable() {
+                @Override
+                public void run() {
+                    int current = running.incrementAndGet();
+                    synchronized (max) {
+                        max.set(Math.max(max.get(), current));
+                    }
+                    adapters.put(address, RadioScheduler.currentAdapter());
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        // Ignore.
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(3, bound.size());
+        Assert.assertEquals(0, (int) adapters.remove("inquiry"));
+        Set<Integer> used = new HashSet<Integer>();
+        for (Map.Entry<String, Integer> entry : adapters.entrySet()) {
+            Assert.assertEquals(m_scheduler.getAdapter(entry.getKey()), (int) entry.getValue());
+            used.add(entry.getValue());
+        }
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(1, 2)), used);
+        Assert.assertTrue(max.get() <= 2);
+        long[] executed = m_scheduler.getExecutedPerAdapter();
+        Assert.assertEquals(1, executed[0]);
+        Assert.assertEquals(40, executed[1] + executed[2]);
+    }
+
+    @Test
+    public void testUnboundAdapterIsExcluded() throws InterruptedException {
+        final List<Integer> bound = Collections.synchronizedList(new ArrayList<Integer>());
+        m_scheduler = new RadioScheduler(Executors.defaultThreadFactory(), 5000, 3, new RadioScheduler.AdapterBinder() {
+            @Override
+            public void bind(int adapter) throws Exception {
+                if (adapter == 1) {
+                    throw new IOException("Adapter " + adapter + " unplugged");
+                }
+                bound.add(adapter);
+            }
+        });
+
+        final Map<String, Integer> adapters = new ConcurrentHashMap<String, Integer>();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            final String address = "0000000000" + (10 + i);
+            m_scheduler.submit(RadioLane.SDP, address, new Runnable() {
+                @Override
+                public void run() {
+                    adapters.put(address, RadioScheduler.currentAdapter());
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        // The tasks queued before the failure are moved, the next ones skip the adapter.
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), new HashSet<Integer>(bound));
+        for (Map.Entry<String, Integer> entry : adapters.entrySet()) {
+            Assert.assertEquals(2, (int) entry.getValue());
+            Assert.assertEquals(2, m_scheduler.getAdapter(entry.getKey()));
+        }
+        Assert.assertEquals(0, m_scheduler.getExecutedPerAdapter()[1]);
+    }
+
+    @Test
+    public void testThroughputScalesWithAdapters() throws InterruptedException {
+        RadioScheduler.AdapterBinder binder = new RadioScheduler.AdapterBinder() {
+            @Override
+            public void bind(int adapter) {
+                // Nothing to do.
+            }
+        };
+        long single = run(new RadioScheduler(Executors.defaultThreadFactory(), 5000), 60);
+        long five = run(new RadioScheduler(Executors.defaultThreadFactory(), 5000, 5, binder), 60);
+        // 4 adapters for the service discoveries instead of 1.
+        Assert.assertTrue("single: " + single + " ms, five: " + five + " ms", single > 2 * five);
+    }
+
+    private static long run(RadioScheduler scheduler, int tasks) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(tasks);
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < tasks; i++) {
+            scheduler.submit(RadioLane.SDP, Integer.toString(i), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        // Ignore.
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        Assert.assertTrue(done.await(20, TimeUnit.SECONDS));
+        long duration = System.currentTimeMillis() - begin;
+        scheduler.shutdown();
+        return duration;
+    }
+
+    /**
+     * Occupies the radio until the returned latch is released.
+     */
+    private static CountDownLatch block(RadioScheduler scheduler) throws InterruptedException {
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(RadioLane.PAIRING, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        });
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    private static void waitFor(List<String> order, int size) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (order.size() < size && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(size, order.size());
+    }
+
+    private static class Recorder implements Runnable {
+
+        private final List<String> m_order;
+
+        private final String m_name;
+
+        Recorder(List<String> order, String name) {
+            m_order = order;
+            m_name = name;
+        }
+
+        @Override
+        public void run() {
+            m_order.add(m_name);
+        }
+    }
+}
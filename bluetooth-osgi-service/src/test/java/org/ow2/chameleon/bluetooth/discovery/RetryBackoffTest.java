@@ -0,0 +1,52 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RetryBackoffTest {
+
+    @Test
+    public void testDelaysDoubleUpToTheMaximum() {
+        RetryBackoff backoff = new RetryBackoff(1000, 10000, new Random(42));
+        long[] expected = {1000, 2000, 4000, 8000, 10000, 10000};
+        for (int i = 0; i < expected.length; i++) {
+            for (int draw = 0; draw < 100; draw++) {
+                long delay = backoff.getDelay(i + 1);
+                Assert.assertTrue(delay + " for retry " + (i + 1), delay >= expected[i] / 2 && delay <= expected[i]);
+            }
+        }
+        // No overflow on long series.
+        Assert.assertTrue(backoff.getDelay(Integer.MAX_VALUE) <= 10000);
+    }
+
+    @Test
+    public void testJitterSpreadsTheRetries() {
+        RetryBackoff backoff = new RetryBackoff(1000, 10000, new Random(42));
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.getDelay(3, 2000);
+            min = Math.min(min, delay);
+            max = Math.max(max, delay);
+        }
+        Assert.assertTrue(min < 5000);
+        Assert.assertTrue(max > 7000);
+    }
+}
@@ -15,18 +15,32 @@
 
 package org.ow2.chameleon.bluetooth.discovery;
 
+import com.intel.bluetooth.SimulationHostStack;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
 import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import javax.bluetooth.LocalDevice;
 import javax.bluetooth.RemoteDevice;
 import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+import java.util.List;
 
 public class ServiceDiscoveryAgentTest {
 
+    private SimulatedBluetoothStack m_stack = new SimulatedBluetoothStack();
+
+    @BeforeClass
+    public static void installHost() {
+        SimulationHostStack.install();
+    }
+
     @After
     public void tearDown() {
-        Env.disableTestEnvironment();
+        m_stack.shutdown();
     }
 
     @Test
@@ -38,59 +52,99 @@ public class ServiceDiscoveryAgentTest {
 
         BluetoothServiceDiscovery parent = org.easymock.EasyMock.createMock(BluetoothServiceDiscovery.class);
         RemoteDevice remote = new RemoteDeviceStub("000000000001", "test");
-        ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(parent, remote);
+        ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(parent, remote,
+                new OperationDeadline("sdp", 5000, 30000));
         agent.run();
     }
 
     @Test
-    public void testSearch() throws InterruptedException {
-        if (!LocalDevice.isPowerOn()) {
-            System.err.println("Bluetooth Adapter required");
-            return;
-        }
-        Env.enableTestEnvironment();
+    public void testSearch() {
+        SimulatedDevice remote = m_stack.addDevice("000000000001", "test");
+        remote.addService(UUIDs.SERIAL_PORT, "test");
+        remote.addService(UUIDs.OBEX_OBJECT_PUSH_PROFILE, "test-2");
+        remote.addService(UUIDs.OBEX_FILE_TRANSFER_PROFILE, "test-3");
+
+        BluetoothServiceDiscovery parent = EasyMock.createMock(BluetoothServiceDiscovery.class);
+        Capture<List<ServiceRecord>> services = new Capture<List<ServiceRecord>>();
+        parent.discovered(EasyMock.eq(remote), EasyMock.capture(services));
+        EasyMock.replay(parent);
+
+        ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(parent, remote,
+                new OperationDeadline("sdp", 5000, 30000));
+        agent.doSearch(m_stack.getRadio(0));
+
+        EasyMock.verify(parent);
+        Assert.assertEquals(3, services.getValue().size());
+        ServiceRecord record = services.getValue().get(0);
+        Assert.assertEquals("btspp://000000000001:1;authenticate=false;encrypt=false;master=false",
+                record.getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false));
+        // Only the default attributes are retrieved.
+        Assert.assertNull(record.getAttributeValue(0x0100));
+    }
 
-        BluetoothServiceDiscovery parent = org.easymock.EasyMock.createMock(BluetoothServiceDiscovery.class);
-        RemoteDevice remote = new RemoteDeviceStub("000000000001", "test");
-        final ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(parent, remote);
+    @Test
+    public void testSearchServiceClasses() {
+        SimulatedDevice remote = m_stack.addDevice("000000000001", "test");
+        remote.addService(UUIDs.SERIAL_PORT, "test");
+        remote.addService(UUIDs.OBEX_OBJECT_PUSH_PROFILE, "test-2");
+        remote.addService(UUIDs.OBEX_FILE_TRANSFER_PROFILE, "test-3");
+
+        BluetoothServiceDiscovery parent = EasyMock.createMock(BluetoothServiceDiscovery.class);
+        Capture<List<ServiceRecord>> services = new Capture<List<ServiceRecord>>();
+        parent.discovered(EasyMock.eq(remote), EasyMock.capture(services));
+        EasyMock.replay(parent);
+
+        // One search per service class.
+        new ServiceDiscoveryAgent(parent, remote, new OperationDeadline("sdp", 5000, 30000), null,
+                new UUID[]{UUIDs.SERIAL_PORT, UUIDs.OBEX_OBJECT_PUSH_PROFILE}).doSearch(m_stack.getRadio(0));
+
+        EasyMock.verify(parent);
+        Assert.assertEquals(2, m_stack.getServiceSearchCount());
+        Assert.assertEquals(2, services.getValue().size());
+        Assert.assertEquals("btspp://000000000001:1;authenticate=false;encrypt=false;master=false",
+                services.getValue().get(0).getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false));
+        Assert.assertEquals("btspp://000000000001:2;authenticate=false;encrypt=false;master=false",
+                services.getValue().get(1).getConnectionURL(ServiceRecord.NOAUTHENTICATE_NOENCRYPT, false));
+    }
 
-        new Thread(new Runnable() {
-            public void run() {
-                agent.doSearch(null);
-            }
-        }).start();
+    @Test
+    public void testSearchUnreachableDevice() {
+        SimulatedDevice remote = m_stack.addDevice("000000000001", "test");
+        remote.addService(UUIDs.SERIAL_PORT, "test");
+        remote.setPresent(false);
 
-        Thread.sleep(100); // Just to be sure, we're waiting.
-        ServiceRecordStub srs = new ServiceRecordStub(remote, "test");
-        ServiceRecordStub srs2 = new ServiceRecordStub(remote, "test-2");
-        ServiceRecordStub srs3 = new ServiceRecordStub(remote, "test-3");
-        agent.servicesDiscovered(0, new ServiceRecord[]{srs, srs2, srs3});
+        BluetoothServiceDiscovery parent = EasyMock.createMock(BluetoothServiceDiscovery.class);
+        Capture<List<ServiceRecord>> services = new Capture<List<ServiceRecord>>();
+        parent.discovered(EasyMock.eq(remote), EasyMock.capture(services));
+        EasyMock.replay(parent);
+
+        new ServiceDiscoveryAgent(parent, remote, new OperationDeadline("sdp", 5000, 30000))
+                .doSearch(m_stack.getRadio(0));
 
-        agent.serviceSearchCompleted(0, 0);
+        EasyMock.verify(parent);
+        Assert.assertTrue(services.getValue().isEmpty());
     }
 
     @Test
     public void testSearchAborted() throws InterruptedException {
-        if (!LocalDevice.isPowerOn()) {
-            System.err.println("Bluetooth Adapter required");
-            return;
-        }
-        Env.enableTestEnvironment();
+        m_stack.setServiceSearchLatency(60000);
 
         BluetoothServiceDiscovery parent = org.easymock.EasyMock.createMock(BluetoothServiceDiscovery.class);
-        RemoteDevice remote = new RemoteDeviceStub("000000000001", "test");
-        final ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(parent, remote);
+        RemoteDevice remote = m_stack.addDevice("000000000001", "test");
+        final ServiceDiscoveryAgent agent = new ServiceDiscoveryAgent(parent, remote,
+                new OperationDeadline("sdp", 5000, 30000));
 
         Thread t = new Thread(new Runnable() {
             public void run() {
-                agent.doSearch(null);
+                agent.doSearch(m_stack.getRadio(0));
             }
         });
         t.start();
 
         Thread.sleep(100); // Just to be sure, we're waiting.
         t.interrupt();
-
+        t.join(5000);
+        Assert.assertFalse(t.isAlive());
     }
 
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.bluetooth.DataElement;
+import javax.bluetooth.ServiceRecord;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ServiceRecordSnapshotTest {
+
+    private SimulatedBluetoothStack m_stack = new SimulatedBluetoothStack();
+
+    private File m_file;
+
+    @BeforeClass
+    public static void installHost() {
+        SimulationHostStack.install();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        m_file = File.createTempFile("services", ".snapshot");
+        m_file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        m_stack.shutdown();
+        m_file.delete();
+    }
+
+    @Test
+    public void testRecordsAreRestored() throws IOException {
+        SimulatedDevice device = m_stack.addDevice("000000000001", "device");
+        ServiceRecord serial = new SimulatedServiceRecord(device, 0x10000, UUIDs.SERIAL_PORT, "serial", 1);
+        ServiceRecord other = new SimulatedServiceRecord(device, 0x10001, UUIDs.OBEX_OBJECT_PUSH_PROFILE, null, 2);
+        other.setAttributeValue(0x0200, new DataElement(true));
+        other.setAttributeValue(0x0201, new DataElement(DataElement.INT_8, -42));
+        other.setAttributeValue(0x0202, new DataElement(DataElement.U_INT_16, new byte[16]));
+        other.setAttributeValue(0x0203, new DataElement(DataElement.URL, "http://example.org"));
+        other.setAttributeValue(0x0204, new DataElement(DataElement.NULL));
+
+        Map<Long, List<ServiceRecord>> devices = new LinkedHashMap<Long, List<ServiceRecord>>();
+        devices.put(DeviceRegistry.address(device), Arrays.asList(serial, other));
+        ServiceRecordSnapshot snapshot = new ServiceRecordSnapshot(m_file);
+        snapshot.write(devices);
+
+        List<ServiceRecord> restored = snapshot.read().get(DeviceRegistry.address(device));
+        Assert.assertEquals(2, restored.size());
+        for (int i = 0; i < 2; i++) {
+            ServiceRecord expected = devices.get(DeviceRegistry.address(device)).get(i);
+            ServiceRecord actual = restored.get(i);
+            Assert.assertNull(actual.getHostDevice());
+            for (int level : StoredServiceRecord.SECURITY_LEVELS) {
+                Assert.assertEquals(expected.getConnectionURL(level, false), actual.getConnectionURL(level, false));
+                Assert.assertEquals(expected.getConnectionURL(level, true), actual.getConnectionURL(level, true));
+            }
+            Assert.assertArrayEquals(expected.getAttributeIDs(), actual.getAttributeIDs());
+            for (int id : expected.getAttributeIDs()) {
+                Assert.assertEquals(describe(expected.getAttributeValue(id)), describe(actual.getAttributeValue(id)));
+            }
+        }
+
+        // Attached when the device comes back.
+        Assert.assertSame(device, StoredServiceRecord.attach(restored, device).get(0).getHostDevice());
+    }
+
+    @Test
+    public void testInvalidSnapshotIsIgnored() throws IOException {
+        SimulatedDevice device = m_stack.addDevice("000000000001", "device");
+        Map<Long, List<ServiceRecord>> devices = new LinkedHashMap<Long, List<ServiceRecord>>();
+        devices.put(DeviceRegistry.address(device), Arrays.<ServiceRecord>asList(
+                new SimulatedServiceRecord(device, 0x10000, UUIDs.SERIAL_PORT, "serial", 1)));
+        ServiceRecordSnapshot snapshot = new ServiceRecordSnapshot(m_file);
+        snapshot.write(devices);
+        Assert.assertEquals(1, snapshot.read().size());
+
+        RandomAccessFile file = new RandomAccessFile(m_file, "rw");
+        try {
+            file.seek(file.length() / 2);
+            int value = file.read();
+            file.seek(file.length() / 2);
+            file.write(value ^ 0xFF);
+        } finally {
+            file.close();
+        }
+        Assert.assertTrue(snapshot.read().isEmpty());
+
+        file = new RandomAccessFile(m_file, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+        Assert.assertTrue(snapshot.read().isEmpty());
+    }
+
+    private static String describe(DataElement element) {
+        switch (element.getDataType()) {
+            case DataElement.NULL:
+                return "null";
+            case DataElement.DATSEQ:
+            case DataElement.DATALT:
+                StringBuilder builder = new StringBuilder().append(element.getDataType()).append('[');
+                Enumeration<?> children = (Enumeration<?>) element.getValue();
+                while (children.hasMoreElements()) {
+                    builder.append(describe((DataElement) children.nextElement())).append(',');
+                }
+                return builder.append(']').toString();
+            case DataElement.U_INT_8:
+            case DataElement.U_INT_16:
+            case DataElement.INT_16:
+                return element.getDataType() + ":" + Arrays.toString((byte[]) element.getValue());
+            case DataElement.BOOL:
+                return "bool:" + element.getBoolean();
+            case DataElement.UUID:
+            case DataElement.STRING:
+            case DataElement.URL:
+                return element.getDataType() + ":" + element.getValue();
+            default:
+                return element.getDataType() + ":" + element.getLong();
+        }
+    }
+}
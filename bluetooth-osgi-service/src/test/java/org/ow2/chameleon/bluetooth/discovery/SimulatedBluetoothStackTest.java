@@ -0,0 +1,198 @@
+/*
+ * Copyright 2013 OW2 Chameleon
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.ow2.chameleon.bluetooth.discovery;
+
+import com.intel.bluetooth.SimulationHostStack;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.bluetooth.BluetoothStateException;
+import javax.bluetooth.DeviceClass;
+import javax.bluetooth.DiscoveryAgent;
+import javax.bluetooth.DiscoveryListener;
+import javax.bluetooth.RemoteDevice;
+import javax.bluetooth.ServiceRecord;
+import javax.bluetooth.UUID;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SimulatedBluetoothStackTest {
+
+    private SimulatedBluetoothStack m_stack = new SimulatedBluetoothStack(2, 0);
+
+    @BeforeClass
+    public static void installHost() {
+        SimulationHostStack.install();
+    }
+
+    @After
+    public void tearDown() {
+        m_stack.shutdown();
+    }
+
+    @Test
+    public void testInquiryFillsTheCacheOfTheAdapter() throws Exception {
+        m_stack.populate(3);
+        m_stack.setInquiryDuration(10);
+        Assert.assertEquals(SimulatedBluetoothStack.NAME, m_stack.getName());
+        Assert.assertEquals(2, m_stack.getAdapterCount());
+
+        Listener listener = new Listener();
+        Assert.assertTrue(m_stack.getRadio(0).startInquiry(DiscoveryAgent.GIAC, listener));
+        Assert.assertTrue(listener.await());
+        Assert.assertEquals(DiscoveryListener.INQUIRY_COMPLETED, listener.m_result);
+        Assert.assertEquals(3, listener.m_devices.size());
+
+        Assert.assertEquals(3, m_stack.getRadio(0).retrieveDevices(DiscoveryAgent.CACHED).length);
+        Assert.assertNull(m_stack.getRadio(1).retrieveDevices(DiscoveryAgent.CACHED));
+        Assert.assertEquals(1, m_stack.getInquiryCount());
+        Assert.assertEquals(1, m_stack.getMaxConcurrentOperations());
+    }
+
+    @Test
+    public void testCancelledInquiryIsTerminated() throws Exception {
+        m_stack.populate(3);
+        m_stack.setInquiryDuration(60000);
+
+        Listener listener = new Listener();
+        m_stack.getRadio(0).startInquiry(DiscoveryAgent.GIAC, listener);
+        Assert.assertTrue(m_stack.getRadio(0).cancelInquiry(listener));
+        Assert.assertTrue(listener.await());
+        Assert.assertEquals(DiscoveryListener.INQUIRY_TERMINATED, listener.m_result);
+        Assert.assertTrue(listener.m_devices.isEmpty());
+        Assert.assertFalse(m_stack.getRadio(0).cancelInquiry(listener));
+    }
+
+    @Test
+    public void testServiceSearchMatchesAllTheUuids() throws Exception {
+        SimulatedDevice device = m_stack.addDevice("000000000001", "device");
+        device.addService(UUIDs.SERIAL_PORT, "serial");
+        device.addService(UUIDs.OBEX_OBJECT_PUSH_PROFILE, "push");
+
+        Listener listener = search(device, UUIDs.PUBLIC_BROWSE_GROUP);
+        Assert.assertEquals(DiscoveryListener.SERVICE_SEARCH_COMPLETED, listener.m_result);
+        Assert.assertEquals(2, listener.m_records.size());
+
+        listener = search(device, UUIDs.RFCOMM, UUIDs.OBEX_OBJECT_PUSH_PROFILE);
+        Assert.assertEquals(1, listener.m_records.size());
+        Assert.assertEquals(0x10001L, listener.m_records.get(0).getAttributeValue(0x0000).getLong());
+
+        // The online check UUID.
+        Assert.assertEquals(DiscoveryListener.SERVICE_SEARCH_NO_RECORDS, search(device, UUIDs.SDP).m_result);
+
+        device.setPresent(false);
+        Assert.assertEquals(DiscoveryListener.SERVICE_SEARCH_DEVICE_NOT_REACHABLE,
+                search(device, UUIDs.PUBLIC_BROWSE_GROUP).m_result);
+    }
+
+    @Test
+    public void testRequestedAttributesAreRetrieved() throws Exception {
+        SimulatedDevice device = m_stack.addDevice("000000000001", "device");
+        device.addService(UUIDs.SERIAL_PORT, "serial");
+
+        Listener listener = new Listener();
+        m_stack.getRadio(1).searchServices(new int[]{0x0100}, new UUID[]{UUIDs.SERIAL_PORT}, device, listener);
+        Assert.assertTrue(listener.await());
+        Assert.assertEquals("serial", listener.m_records.get(0).getAttributeValue(0x0100).getValue());
+    }
+
+    @Test
+    public void testPairing() throws IOException {
+        SimulatedDevice device = m_stack.addDevice("000000000001", "device");
+        device.setPin("1234");
+        BluetoothRadio radio = m_stack.getRadio(1);
+
+        try {
+            radio.authenticate(device, "0000");
+            Assert.fail("Wrong pin accepted");
+        } catch (IOException e) {
+            // Expected.
+        }
+        Assert.assertFalse(radio.isAuthenticated(device));
+
+        Assert.assertTrue(radio.authenticate(device, "1234"));
+        Assert.assertTrue(radio.isAuthenticated(device));
+        Assert.assertEquals(1, radio.retrieveDevices(DiscoveryAgent.PREKNOWN).length);
+
+        radio.removeAuthentication(device);
+        Assert.assertFalse(radio.isAuthenticated(device));
+
+        device.setPresent(false);
+        try {
+            radio.getFriendlyName(device);
+            Assert.fail("Name of an absent device");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test(expected = BluetoothStateException.class)
+    public void testPoweredOffAdapter() throws BluetoothStateException {
+        m_stack.setPowerOn(false);
+        Assert.assertFalse(m_stack.getRadio(0).isPowerOn());
+        m_stack.getRadio(0).startInquiry(DiscoveryAgent.GIAC, new Listener());
+    }
+
+    private Listener search(RemoteDevice device, UUID... uuids) throws Exception {
+        Listener listener = new Listener();
+        m_stack.getRadio(1).searchServices(null, uuids, device, listener);
+        Assert.assertTrue(listener.await());
+        return listener;
+    }
+
+    private static class Listener implements DiscoveryListener {
+
+        private final CountDownLatch m_done = new CountDownLatch(1);
+
+        private final List<RemoteDevice> m_devices = Collections.synchronizedList(new ArrayList<RemoteDevice>());
+
+        private final List<ServiceRecord> m_records = Collections.synchronizedList(new ArrayList<ServiceRecord>());
+
+        private volatile int m_result = -1;
+
+        boolean await() throws InterruptedException {
+            return m_done.await(5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public void deviceDiscovered(RemoteDevice device, DeviceClass clazz) {
+            m_devices.add(device);
+        }
+
+        @Override
+        public void servicesDiscovered(int transID, ServiceRecord[] records) {
+            Collections.addAll(m_records, records);
+        }
+
+        @Override
+        public void serviceSearchCompleted(int transID, int respCode) {
+            m_result = respCode;
+            m_done.countDown();
+        }
+
+        @Override
+        public void inquiryCompleted(int discType) {
+            m_result = discType;
+            m_done.countDown();
+        }
+    }
+}